@@ -0,0 +1,136 @@
+package fastut.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jgap.Chromosome;
+import org.jgap.Configuration;
+import org.jgap.Gene;
+import org.jgap.IChromosome;
+import org.jgap.impl.StockRandomGenerator;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fastut.denpendency.DependencyKey;
+import fastut.denpendency.MethodConstantPool;
+import fastut.evolution.GeneValueIterator;
+import fastut.evolution.InvocationWatchdog;
+import fastut.evolution.MethodInvokeContext;
+import fastut.generate.TestDataGenerator;
+import fastut.generate.struct.MethodPlan;
+
+/**
+ * Runs the inputs of one chromosome the way the fitness function does, {@link MethodInvokeContext#invokeBatch}
+ * against the prepared invocation, and the way it did before, decoding a slot and calling
+ * {@link MethodInvokeContext#tryInvoke()} per input. Both score one chromosome per operation, so the difference is the
+ * setup the batch saves per input. With a timeout every input of the per slot path is one watchdog task, the batch is
+ * one task.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar InvokeBatchBenchmark -p method=samples.HelloWorld.max
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvokeBatchBenchmark {
+
+    /** class name and method name, the method takes mocks and fields */
+    @Param({ "samples.ServiceBean.shouldHelpNow", "samples.HelloWorld.max" })
+    public String               method;
+
+    /** input slots per chromosome */
+    @Param({ "8", "64" })
+    public int                  inputs;
+
+    /** fastut.invoke.timeout, 0 for no watchdog */
+    @Param({ "0", "5000" })
+    public long                 invokeTimeout;
+
+    private MethodInvokeContext invokeContext;
+
+    private IChromosome         chromosome;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        int dot = method.lastIndexOf('.');
+        String className = method.substring(0, dot);
+        String methodName = method.substring(dot + 1);
+        TestDataGenerator generator = new TestDataGenerator(className);
+        Map<String, MethodConstantPool> values = generator.getMethodConstants();
+        TestDataGenerator.makeSharing(values);
+        MethodPlan plan = null;
+        for (Map.Entry<DependencyKey, MethodNode> entry : generator.getDeclaredMethods().entrySet()) {
+            if (entry.getValue().name.equals(methodName)) {
+                plan = generator.plan(entry.getKey(), entry.getValue(), values);
+                break;
+            }
+        }
+        if (plan == null) {
+            throw new IllegalArgumentException("No branches to cover in " + method);
+        }
+        invokeContext = plan.invokeContext;
+        if (invokeTimeout > 0) {
+            invokeContext.setWatchdog(new InvocationWatchdog(invokeTimeout));
+        }
+
+        // the same inputs for both paths and every run
+        Configuration conf = plan.genes.get(0).getConfiguration();
+        StockRandomGenerator random = new StockRandomGenerator();
+        random.setSeed(42);
+        List<Gene> genes = new ArrayList<Gene>();
+        for (int i = 0; i < inputs; ++i) {
+            for (Gene template : plan.genes) {
+                Gene gene = template.newGene();
+                gene.setToRandomValue(random);
+                genes.add(gene);
+            }
+        }
+        chromosome = new Chromosome(conf, genes.toArray(new Gene[genes.size()]));
+    }
+
+    @Benchmark
+    public int batch() {
+        return invokeContext.invokeBatch(chromosome);
+    }
+
+    @Benchmark
+    public int perSlot() {
+        int slotSize = invokeContext.getSlotSize();
+        int slots = chromosome.size() / slotSize;
+        GeneValueIterator geneIter = new GeneValueIterator(chromosome);
+        int invoked = 0;
+        for (int i = 0; i < slots; ++i) {
+            for (int j = 0; j < slotSize; ++j) {
+                if (invokeContext.getGeneType(j) == null) {
+                    // inside a value spread over genes
+                    continue;
+                }
+                if (invokeContext.isParam(j)) {
+                    invokeContext.processParam(j, geneIter);
+                    continue;
+                }
+                invokeContext.processField(j, geneIter);
+            }
+            invokeContext.tryInvoke();
+            ++invoked;
+        }
+        return invoked;
+    }
+}
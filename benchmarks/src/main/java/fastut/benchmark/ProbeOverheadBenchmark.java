@@ -0,0 +1,155 @@
+package fastut.benchmark;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fastut.coverage.data.ProjectData;
+import fastut.coverage.instrument.ClassPattern;
+import fastut.coverage.instrument.CoverageTransformer;
+
+/**
+ * The cost of the probes against the uninstrumented classes. Copies of {@link Workload} under other names go through
+ * the {@link CoverageTransformer} of the agent, or load unchanged for the baseline, and every operation runs each copy
+ * once. The modes:
+ * <ul>
+ * <li>baseline, nothing instrumented</li>
+ * <li>count, every probe increments its slot</li>
+ * <li>firstHit, fastut.probe.mode=firstHit</li>
+ * <li>sampled, count probes in the share sampleRate of the copies</li>
+ * </ul>
+ * The probe mode is read once per JVM, so every mode needs a fork of its own, which JMH gives each parameter set
+ * unless run with -f 0. The copies share their probe arrays between the threads of {@link #fourThreads(Seed)}, which
+ * is where a store per hit and no store after the first one differ most.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeOverheadBenchmark {
+
+    private static final String WORKLOAD = "fastut/benchmark/Workload";
+
+    @Param({ "baseline", "count", "firstHit", "sampled" })
+    public String               mode;
+
+    /** fastut.probe.sampleRate of the sampled mode */
+    @Param({ "0.1" })
+    public double               sampleRate;
+
+    /** loaded copies of the workload */
+    @Param({ "20" })
+    public int                  classes;
+
+    private Task[]              tasks;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // read by ProbeLayout when the first class is instrumented
+        System.setProperty("fastut.probe.mode", mode.equals("firstHit") ? "firstHit" : "count");
+        // saved on exit like under the agent, not into the working directory
+        System.setProperty("fastut.datafile", new File(System.getProperty("java.io.tmpdir"),
+                                                       "fastut-benchmark.ser").getPath());
+
+        CoverageTransformer transformer = null;
+        if (!mode.equals("baseline")) {
+            transformer = new CoverageTransformer(new ProjectData(), new ClassPattern(), new Vector(), new Vector());
+            if (mode.equals("sampled")) {
+                transformer.setSampling(sampleRate, 42);
+            }
+        }
+        InputStream in = ProbeOverheadBenchmark.class.getResourceAsStream("Workload.class");
+        byte[] workload;
+        try {
+            workload = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+
+        CopyLoader loader = new CopyLoader(ProbeOverheadBenchmark.class.getClassLoader());
+        tasks = new Task[classes];
+        for (int i = 0; i < classes; ++i) {
+            String name = "workload/Workload" + i;
+            ClassReader cr = new ClassReader(workload);
+            ClassWriter cw = new ClassWriter(0);
+            cr.accept(new ClassRemapper(cw, new SimpleRemapper(WORKLOAD, name)), 0);
+            byte[] bytes = cw.toByteArray();
+            if (transformer != null) {
+                byte[] instrumented = transformer.transform(loader, name, null, null, bytes);
+                if (instrumented != null) {
+                    bytes = instrumented;
+                }
+            }
+            tasks[i] = (Task) loader.define(name.replace('/', '.'), bytes).newInstance();
+        }
+        if (transformer != null) {
+            System.out.println(transformer.report());
+        }
+    }
+
+    @Benchmark
+    public int oneThread(Seed seed) {
+        return runAll(seed);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int fourThreads(Seed seed) {
+        return runAll(seed);
+    }
+
+    private int runAll(Seed seed) {
+        int sum = 0;
+        for (Task task : tasks) {
+            sum += task.run(seed.next++);
+        }
+        return sum;
+    }
+
+    /**
+     * The code under measurement, implemented by the copies of {@link Workload}.
+     */
+    public interface Task {
+
+        int run(int seed);
+    }
+
+    @State(Scope.Thread)
+    public static class Seed {
+
+        int next;
+    }
+
+    private static class CopyLoader extends ClassLoader {
+
+        CopyLoader(ClassLoader parent){
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
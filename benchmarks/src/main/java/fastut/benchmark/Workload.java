@@ -0,0 +1,32 @@
+package fastut.benchmark;
+
+/**
+ * The code under measurement of {@link ProbeOverheadBenchmark}: a loop of jumps and a switch, a few lines each, so the
+ * probes are a fair share of the work. Loaded under other names, FastUT instruments nothing of its own packages.
+ */
+public class Workload implements ProbeOverheadBenchmark.Task {
+
+    public int run(int seed) {
+        int x = seed;
+        int sum = 0;
+        for (int i = 0; i < 64; ++i) {
+            x = x * 1103515245 + 12345;
+            if ((x & 0x100) == 0) {
+                sum += x >>> 16;
+            } else {
+                sum -= i;
+            }
+            switch ((x >>> 9) & 3) {
+                case 0:
+                    sum ^= i;
+                    break;
+                case 1:
+                    sum += 3;
+                    break;
+                default:
+                    sum--;
+            }
+        }
+        return sum;
+    }
+}
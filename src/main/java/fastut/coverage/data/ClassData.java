@@ -1,14 +1,21 @@
 package fastut.coverage.data;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>
@@ -19,25 +26,34 @@ import java.util.TreeSet;
  * This class implements HasBeenInstrumented so that when cobertura instruments itself, it will omit this class. It does
  * this to avoid an infinite recursion problem because instrumented classes make use of this class.
  * </p>
+ * <p>
+ * Lines and branches are only added while instrumenting or loading, under the lock. Touches and readers go through
+ * concurrent maps and the counters of {@link LineData} and never take it.
+ * </p>
  */
 
 public class ClassData extends CoverageDataContainer implements Comparable<ClassData>, HasBeenInstrumented {
 
-    private static final long      serialVersionUID            = 5;
+    private static final long                                    serialVersionUID            = 5;
+
+    private static final BranchCoverageData[]                    NO_BRANCHES                 = new BranchCoverageData[0];
 
     /**
      * Each key is a line number in this class, stored as an Integer object. Each value is information about the line,
      * stored as a LineData object.
      */
-    private Map<Integer, LineData> branches                    = new HashMap<Integer, LineData>();
+    private Map<Integer, LineData>                               branches                    = new ConcurrentHashMap<Integer, LineData>();
 
-    private boolean                containsInstrumentationInfo = false;
+    private volatile boolean                                     containsInstrumentationInfo = false;
 
-    private Set<String>            methodNamesAndDescriptors   = new HashSet<String>();
+    private Set<String>                                          methodNamesAndDescriptors   = newConcurrentSet();
 
-    private String                 name                        = null;
+    private String                                               name                        = null;
 
-    private String                 sourceFileName              = null;
+    private volatile String                                      sourceFileName              = null;
+
+    /** The jumps and switches of each method in line order, null when lines or branches were added since. */
+    private transient volatile Map<String, BranchCoverageData[]> methodBranchIndex;
 
     /**
      * @param name In the format "net.sourceforge.cobertura.coveragedata.ClassData"
@@ -50,12 +66,13 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
     public LineData addLine(int lineNumber, String methodName, String methodDescriptor) {
         lock.lock();
         try {
+            methodBranchIndex = null;
             LineData lineData = getLineData(lineNumber);
             if (lineData == null) {
                 lineData = new LineData(lineNumber);
                 // Each key is a line number in this class, stored as an Integer object.
                 // Each value is information about the line, stored as a LineData object.
-                children.put(new Integer(lineNumber), lineData);
+                children.put(Integer.valueOf(lineNumber), lineData);
             }
 
             lineData.setMethodNameAndDescriptor(methodName, methodDescriptor);
@@ -78,12 +95,7 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
     }
 
     public boolean containsInstrumentationInfo() {
-        lock.lock();
-        try {
-            return this.containsInstrumentationInfo;
-        } finally {
-            lock.unlock();
-        }
+        return this.containsInstrumentationInfo;
     }
 
     /**
@@ -95,15 +107,9 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
         if ((obj == null) || !(obj.getClass().equals(this.getClass()))) return false;
 
         ClassData classData = (ClassData) obj;
-        getBothLocks(classData);
-        try {
-            return super.equals(obj) && this.branches.equals(classData.branches)
-                   && this.methodNamesAndDescriptors.equals(classData.methodNamesAndDescriptors)
-                   && this.name.equals(classData.name) && this.sourceFileName.equals(classData.sourceFileName);
-        } finally {
-            lock.unlock();
-            classData.lock.unlock();
-        }
+        return super.equals(obj) && this.branches.equals(classData.branches)
+               && this.methodNamesAndDescriptors.equals(classData.methodNamesAndDescriptors)
+               && this.name.equals(classData.name) && this.sourceFileName.equals(classData.sourceFileName);
     }
 
     public String getBaseName() {
@@ -121,63 +127,102 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
         int total = 0;
         int covered = 0;
 
-        lock.lock();
-        try {
-            for (Iterator<LineData> iter = branches.values().iterator(); iter.hasNext();) {
-                LineData next = (LineData) iter.next();
-                if (methodNameAndDescriptor.equals(next.getMethodName() + next.getMethodDescriptor())) {
-                    total += next.getNumberOfValidBranches();
-                    covered += next.getNumberOfCoveredBranches();
-                }
-            }
-            if (total == 0) return 1.0;
-            return ((double) covered) / total;
-        } finally {
-            lock.unlock();
+        for (BranchCoverageData condition : getMethodBranches(methodNameAndDescriptor)) {
+            total += condition.getNumberOfValidBranches();
+            covered += condition.getNumberOfCoveredBranches();
         }
+        if (total == 0) return 1.0;
+        return ((double) covered) / total;
     }
 
     public int getNumberOfValidBranches(String methodNameAndDescriptor) {
         int total = 0;
-        lock.lock();
-        try {
-            for (Iterator<LineData> iter = branches.values().iterator(); iter.hasNext();) {
-                LineData next = (LineData) iter.next();
-                if (methodNameAndDescriptor.equals(next.getMethodName() + next.getMethodDescriptor())) {
-                    total += next.getNumberOfValidBranches();
+        for (BranchCoverageData condition : getMethodBranches(methodNameAndDescriptor)) {
+            total += condition.getNumberOfValidBranches();
+        }
+        return total;
+    }
+
+    /**
+     * @return One bit per branch outcome of the method, in line order: true then false for each jump, the default then
+     * each key for each switch. A bit is set when that outcome has been hit.
+     */
+    public BitSet getCoveredBranchBits(String methodNameAndDescriptor) {
+        BitSet bits = new BitSet();
+        int bit = 0;
+        for (BranchCoverageData condition : getMethodBranches(methodNameAndDescriptor)) {
+            if (condition instanceof JumpData) {
+                JumpData jump = (JumpData) condition;
+                bits.set(bit++, jump.getTrueHits() > 0);
+                bits.set(bit++, jump.getFalseHits() > 0);
+            } else if (condition instanceof SwitchData) {
+                SwitchData switchData = (SwitchData) condition;
+                bits.set(bit++, switchData.getDefaultHits() > 0);
+                for (int j = 0; j < switchData.getNumberOfValidBranches() - 1; ++j) {
+                    bits.set(bit++, switchData.getHits(j) > 0);
                 }
             }
-            return total;
-        } finally {
-            lock.unlock();
         }
+        return bits;
     }
 
-    public Collection<Integer> getBranches() {
+    /**
+     * @return the jumps and switches of the method in line order, from the index built when the class was instrumented
+     */
+    private BranchCoverageData[] getMethodBranches(String methodNameAndDescriptor) {
+        Map<String, BranchCoverageData[]> index = methodBranchIndex;
+        if (index == null) {
+            index = buildMethodBranchIndex();
+        }
+        BranchCoverageData[] conditions = index.get(methodNameAndDescriptor);
+        return conditions != null ? conditions : NO_BRANCHES;
+    }
+
+    /**
+     * Indexes the branches of every method. Called once the class is instrumented; adding lines or branches drops the
+     * index and the next per-method query builds it again.
+     */
+    public Map<String, BranchCoverageData[]> buildMethodBranchIndex() {
         lock.lock();
         try {
-            return Collections.unmodifiableCollection(branches.keySet());
+            Map<String, List<BranchCoverageData>> byMethod = new HashMap<String, List<BranchCoverageData>>();
+            for (LineData next : new TreeMap<Integer, LineData>(branches).values()) {
+                String method = next.getMethodName() + next.getMethodDescriptor();
+                List<BranchCoverageData> conditions = byMethod.get(method);
+                if (conditions == null) {
+                    conditions = new ArrayList<BranchCoverageData>();
+                    byMethod.put(method, conditions);
+                }
+                for (int i = 0; i < next.getConditionSize(); ++i) {
+                    conditions.add((BranchCoverageData) next.getConditionData(i));
+                }
+            }
+            Map<String, BranchCoverageData[]> index = new HashMap<String, BranchCoverageData[]>();
+            for (Map.Entry<String, List<BranchCoverageData>> entry : byMethod.entrySet()) {
+                index.put(entry.getKey(), entry.getValue().toArray(new BranchCoverageData[entry.getValue().size()]));
+            }
+            methodBranchIndex = index;
+            return index;
         } finally {
             lock.unlock();
         }
     }
 
+    public Collection<Integer> getBranches() {
+        return Collections.unmodifiableCollection(branches.keySet());
+    }
+
     /**
      * @param lineNumber The source code line number.
      * @return The coverage of the line
      */
     public LineData getLineCoverage(int lineNumber) {
-        Integer lineObject = new Integer(lineNumber);
-        lock.lock();
-        try {
-            if (!children.containsKey(lineObject)) {
-                return null;
-            }
-
-            return (LineData) children.get(lineObject);
-        } finally {
-            lock.unlock();
+        Integer lineObject = Integer.valueOf(lineNumber);
+        if (!children.containsKey(lineObject)) {
+            return null;
         }
+
+        return (LineData) children.get(lineObject);
     }
 
     /**
@@ -187,70 +232,45 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
         int total = 0;
         int hits = 0;
 
-        lock.lock();
-        try {
-            Iterator<CoverageData> iter = children.values().iterator();
-            while (iter.hasNext()) {
-                LineData next = (LineData) iter.next();
-                if (methodNameAndDescriptor.equals(next.getMethodName() + next.getMethodDescriptor())) {
-                    total++;
-                    if (next.getHits() > 0) {
-                        hits++;
-                    }
+        Iterator<CoverageData> iter = children.values().iterator();
+        while (iter.hasNext()) {
+            LineData next = (LineData) iter.next();
+            if (methodNameAndDescriptor.equals(next.getMethodName() + next.getMethodDescriptor())) {
+                total++;
+                if (next.getHits() > 0) {
+                    hits++;
                 }
             }
-            if (total == 0) return 1d;
-            return (double) hits / total;
-        } finally {
-            lock.unlock();
         }
+        if (total == 0) return 1d;
+        return (double) hits / total;
     }
 
     private LineData getLineData(int lineNumber) {
-        lock.lock();
-        try {
-            return (LineData) children.get(Integer.valueOf(lineNumber));
-        } finally {
-            lock.unlock();
-        }
+        return (LineData) children.get(Integer.valueOf(lineNumber));
     }
 
     public SortedSet<CoverageData> getLines() {
-        lock.lock();
-        try {
-            return new TreeSet<CoverageData>(this.children.values());
-        } finally {
-            lock.unlock();
-        }
+        return new TreeSet<CoverageData>(this.children.values());
     }
 
     public Collection<CoverageData> getLines(String methodNameAndDescriptor) {
         Collection<CoverageData> lines = new HashSet<CoverageData>();
-        lock.lock();
-        try {
-            Iterator<CoverageData> iter = children.values().iterator();
-            while (iter.hasNext()) {
-                LineData next = (LineData) iter.next();
-                if (methodNameAndDescriptor.equals(next.getMethodName() + next.getMethodDescriptor())) {
-                    lines.add(next);
-                }
+        Iterator<CoverageData> iter = children.values().iterator();
+        while (iter.hasNext()) {
+            LineData next = (LineData) iter.next();
+            if (methodNameAndDescriptor.equals(next.getMethodName() + next.getMethodDescriptor())) {
+                lines.add(next);
             }
-            return lines;
-        } finally {
-            lock.unlock();
         }
+        return lines;
     }
 
     /**
      * @return The method name and descriptor of each method found in the class represented by this instrumentation.
      */
     public Set<String> getMethodNamesAndDescriptors() {
-        lock.lock();
-        try {
-            return methodNamesAndDescriptors;
-        } finally {
-            lock.unlock();
-        }
+        return methodNamesAndDescriptors;
     }
 
     public String getName() {
@@ -262,14 +282,9 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      */
     public int getNumberOfValidBranches() {
         int number = 0;
-        lock.lock();
-        try {
-            for (Iterator<LineData> i = branches.values().iterator(); i.hasNext(); number += (i.next()).getNumberOfValidBranches())
-                ;
-            return number;
-        } finally {
-            lock.unlock();
-        }
+        for (Iterator<LineData> i = branches.values().iterator(); i.hasNext(); number += (i.next()).getNumberOfValidBranches())
+            ;
+        return number;
     }
 
     /**
@@ -277,14 +292,9 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      */
     public int getNumberOfCoveredBranches() {
         int number = 0;
-        lock.lock();
-        try {
-            for (Iterator<LineData> i = branches.values().iterator(); i.hasNext(); number += (i.next()).getNumberOfCoveredBranches())
-                ;
-            return number;
-        } finally {
-            lock.unlock();
-        }
+        for (Iterator<LineData> i = branches.values().iterator(); i.hasNext(); number += (i.next()).getNumberOfCoveredBranches())
+            ;
+        return number;
     }
 
     public String getPackageName() {
@@ -303,22 +313,24 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      */
     public String getSourceFileName() {
         String baseName;
-        lock.lock();
-        try {
-            if (sourceFileName != null) baseName = sourceFileName;
-            else {
-                baseName = getBaseName();
-                int firstDollarSign = baseName.indexOf('$');
-                if (firstDollarSign == -1 || firstDollarSign == 0) baseName += ".java";
-                else baseName = baseName.substring(0, firstDollarSign) + ".java";
-            }
-
-            String packageName = getPackageName();
-            if (packageName.equals("")) return baseName;
-            return packageName.replace('.', '/') + '/' + baseName;
-        } finally {
-            lock.unlock();
+        if (sourceFileName != null) baseName = sourceFileName;
+        else {
+            baseName = getBaseName();
+            int firstDollarSign = baseName.indexOf('$');
+            if (firstDollarSign == -1 || firstDollarSign == 0) baseName += ".java";
+            else baseName = baseName.substring(0, firstDollarSign) + ".java";
         }
+
+        String packageName = getPackageName();
+        if (packageName.equals("")) return baseName;
+        return packageName.replace('.', '/') + '/' + baseName;
+    }
+
+    /**
+     * @return the source file name as recorded by the instrumentation, null when it has to be inferred
+     */
+    String getDeclaredSourceFileName() {
+        return sourceFileName;
     }
 
     public int hashCode() {
@@ -329,12 +341,7 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      * @return True if the line contains at least one condition jump (branch)
      */
     public boolean hasBranch(int lineNumber) {
-        lock.lock();
-        try {
-            return branches.containsKey(Integer.valueOf(lineNumber));
-        } finally {
-            lock.unlock();
-        }
+        return branches.containsKey(Integer.valueOf(lineNumber));
     }
 
     /**
@@ -343,17 +350,13 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      * @return True if the line contains executable code. False if the line is empty, or a comment, etc.
      */
     public boolean isValidSourceLineNumber(int lineNumber) {
-        lock.lock();
-        try {
-            return children.containsKey(Integer.valueOf(lineNumber));
-        } finally {
-            lock.unlock();
-        }
+        return children.containsKey(Integer.valueOf(lineNumber));
     }
 
     public void addLineJump(int lineNumber, int branchNumber) {
         lock.lock();
         try {
+            methodBranchIndex = null;
             LineData lineData = getLineData(lineNumber);
             if (lineData != null) {
                 lineData.addJump(branchNumber);
@@ -367,6 +370,7 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
     public void addLineSwitch(int lineNumber, int switchNumber, int[] keys) {
         lock.lock();
         try {
+            methodBranchIndex = null;
             LineData lineData = getLineData(lineNumber);
             if (lineData != null) {
                 lineData.addSwitch(switchNumber, keys);
@@ -380,6 +384,7 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
     public void addLineSwitch(int lineNumber, int switchNumber, int min, int max) {
         lock.lock();
         try {
+            methodBranchIndex = null;
             LineData lineData = getLineData(lineNumber);
             if (lineData != null) {
                 lineData.addSwitch(switchNumber, min, max);
@@ -401,8 +406,9 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
         // If objects contain data for different classes then don't merge
         if (!this.getName().equals(classData.getName())) return;
 
-        getBothLocks(classData);
+        lock.lock();
         try {
+            methodBranchIndex = null;
             super.merge(coverageData);
 
             // We can't just call this.branches.putAll(classData.branches);
@@ -425,7 +431,6 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
             if (classData.sourceFileName != null) this.sourceFileName = classData.sourceFileName;
         } finally {
             lock.unlock();
-            classData.lock.unlock();
         }
     }
 
@@ -433,6 +438,7 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
         Integer lineObject = Integer.valueOf(lineNumber);
         lock.lock();
         try {
+            methodBranchIndex = null;
             children.remove(lineObject);
             branches.remove(lineObject);
         } finally {
@@ -441,21 +447,11 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
     }
 
     public void setContainsInstrumentationInfo() {
-        lock.lock();
-        try {
-            this.containsInstrumentationInfo = true;
-        } finally {
-            lock.unlock();
-        }
+        this.containsInstrumentationInfo = true;
     }
 
     public void setSourceFileName(String sourceFileName) {
-        lock.lock();
-        try {
-            this.sourceFileName = sourceFileName;
-        } finally {
-            lock.unlock();
-        }
+        this.sourceFileName = sourceFileName;
     }
 
     /**
@@ -465,14 +461,9 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      * @param hits how many times the piece was called
      */
     public void touch(int lineNumber, int hits) {
-        lock.lock();
-        try {
-            LineData lineData = getLineData(lineNumber);
-            if (lineData == null) lineData = addLine(lineNumber, null, null);
-            lineData.touch(hits);
-        } finally {
-            lock.unlock();
-        }
+        LineData lineData = getLineData(lineNumber);
+        if (lineData == null) lineData = addLine(lineNumber, null, null);
+        lineData.touch(hits);
     }
 
     /**
@@ -484,14 +475,9 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      * @param hits how many times the piece was called
      */
     public void touchJump(int lineNumber, int branchNumber, boolean branch, int hits) {
-        lock.lock();
-        try {
-            LineData lineData = getLineData(lineNumber);
-            if (lineData == null) lineData = addLine(lineNumber, null, null);
-            lineData.touchJump(branchNumber, branch, hits);
-        } finally {
-            lock.unlock();
-        }
+        LineData lineData = getLineData(lineNumber);
+        if (lineData == null) lineData = addLine(lineNumber, null, null);
+        lineData.touchJump(branchNumber, branch, hits);
     }
 
     /**
@@ -503,34 +489,37 @@ public class ClassData extends CoverageDataContainer implements Comparable<Class
      * @param hits how many times the piece was called
      */
     public void touchSwitch(int lineNumber, int switchNumber, int branch, int hits) {
-        lock.lock();
-        try {
-            LineData lineData = getLineData(lineNumber);
-            if (lineData == null) lineData = addLine(lineNumber, null, null);
-            lineData.touchSwitch(switchNumber, branch, hits);
-        } finally {
-            lock.unlock();
-        }
+        LineData lineData = getLineData(lineNumber);
+        if (lineData == null) lineData = addLine(lineNumber, null, null);
+        lineData.touchSwitch(switchNumber, branch, hits);
     }
 
     @Override
     public void reset() {
-        lock.lock();
-        try {
-            for (Map.Entry<Integer, LineData> entry : branches.entrySet()) {
-                entry.getValue().reset();
-            }
+        for (Map.Entry<Integer, LineData> entry : branches.entrySet()) {
+            entry.getValue().reset();
+        }
 
-            Iterator<CoverageData> iter = children.values().iterator();
-            while (iter.hasNext()) {
-                LineData next = (LineData) iter.next();
-                next.reset();
-            }
-        } finally {
-            lock.unlock();
+        Iterator<CoverageData> iter = children.values().iterator();
+        while (iter.hasNext()) {
+            LineData next = (LineData) iter.next();
+            next.reset();
         }
     }
 
+    private static Set<String> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // older files hold a HashMap and a HashSet
+        branches = new ConcurrentHashMap<Integer, LineData>(branches);
+        Set<String> names = newConcurrentSet();
+        names.addAll(methodNamesAndDescriptors);
+        methodNamesAndDescriptors = names;
+    }
+
     @Override
     public String toString() {
         return "ClassData [branches=" + branches + "]";
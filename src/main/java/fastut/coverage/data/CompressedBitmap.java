@@ -0,0 +1,192 @@
+package fastut.coverage.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * <p>
+ * Immutable set of non-negative ints laid out like a roaring bitmap: values are grouped by their high 16 bits, each group
+ * holds its low 16 bits either as a sorted char array, while it has at most {@link #ARRAY_MAX} values, or as a 65536
+ * bit bitmap. Sparse branch bitmaps take two bytes per covered branch instead of a bit per probe of the class.
+ * </p>
+ * <p>
+ * Serialized form: int group count, per group: unsigned short high bits, int cardinality, then either cardinality
+ * unsigned shorts or 1024 longs.
+ * </p>
+ */
+public class CompressedBitmap implements HasBeenInstrumented {
+
+    static final int                     ARRAY_MAX = 4096;
+
+    private static final int             WORDS     = 1 << 10;
+
+    public static final CompressedBitmap EMPTY     = new CompressedBitmap(new char[0], new Object[0], new int[0]);
+
+    private final char[]                 keys;
+
+    /** per group a char[] of low bits or a long[WORDS] bitmap */
+    private final Object[]               containers;
+
+    private final int[]                  cardinalities;
+
+    private CompressedBitmap(char[] keys, Object[] containers, int[] cardinalities){
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinalities = cardinalities;
+    }
+
+    public static CompressedBitmap valueOf(BitSet bits) {
+        List<Character> keys = new ArrayList<Character>();
+        List<Object> containers = new ArrayList<Object>();
+        List<Integer> cardinalities = new ArrayList<Integer>();
+        for (int i = bits.nextSetBit(0); i >= 0;) {
+            int high = i >>> 16;
+            // negative past the last group
+            int end = (high + 1) << 16;
+            BitSet chunk = bits.get(high << 16, end < 0 ? Integer.MAX_VALUE : end);
+            int cardinality = chunk.cardinality();
+            if (cardinality <= ARRAY_MAX) {
+                char[] lows = new char[cardinality];
+                int n = 0;
+                for (int j = chunk.nextSetBit(0); j >= 0; j = chunk.nextSetBit(j + 1)) {
+                    lows[n++] = (char) j;
+                }
+                containers.add(lows);
+            } else {
+                long[] words = new long[WORDS];
+                for (int j = chunk.nextSetBit(0); j >= 0; j = chunk.nextSetBit(j + 1)) {
+                    words[j >>> 6] |= 1L << j;
+                }
+                containers.add(words);
+            }
+            keys.add((char) high);
+            cardinalities.add(cardinality);
+            i = end < 0 ? -1 : bits.nextSetBit(end);
+        }
+        char[] keyArray = new char[keys.size()];
+        int[] cardinalityArray = new int[keys.size()];
+        for (int group = 0; group < keyArray.length; group++) {
+            keyArray[group] = keys.get(group);
+            cardinalityArray[group] = cardinalities.get(group);
+        }
+        return new CompressedBitmap(keyArray, containers.toArray(), cardinalityArray);
+    }
+
+    public boolean contains(int value) {
+        int group = Arrays.binarySearch(keys, (char) (value >>> 16));
+        if (value < 0 || group < 0) {
+            return false;
+        }
+        char low = (char) value;
+        Object container = containers[group];
+        if (container instanceof char[]) {
+            return Arrays.binarySearch((char[]) container, low) >= 0;
+        }
+        return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int c : cardinalities) {
+            cardinality += c;
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    public BitSet toBitSet() {
+        BitSet bits = new BitSet();
+        for (int group = 0; group < keys.length; group++) {
+            int high = keys[group] << 16;
+            Object container = containers[group];
+            if (container instanceof char[]) {
+                for (char low : (char[]) container) {
+                    bits.set(high | low);
+                }
+            } else {
+                long[] words = (long[]) container;
+                for (int w = 0; w < WORDS; w++) {
+                    for (long word = words[w]; word != 0; word &= word - 1) {
+                        bits.set(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                    }
+                }
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return whether every value of this bitmap is in the other one
+     */
+    public boolean isSubsetOf(BitSet other) {
+        BitSet bits = toBitSet();
+        bits.andNot(other);
+        return bits.isEmpty();
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(keys.length);
+        for (int group = 0; group < keys.length; group++) {
+            out.writeShort(keys[group]);
+            out.writeInt(cardinalities[group]);
+            Object container = containers[group];
+            if (container instanceof char[]) {
+                for (char low : (char[]) container) {
+                    out.writeShort(low);
+                }
+            } else {
+                for (long word : (long[]) container) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    public static CompressedBitmap read(DataInput in) throws IOException {
+        int groups = in.readInt();
+        char[] keys = new char[groups];
+        Object[] containers = new Object[groups];
+        int[] cardinalities = new int[groups];
+        for (int group = 0; group < groups; group++) {
+            keys[group] = in.readChar();
+            cardinalities[group] = in.readInt();
+            if (cardinalities[group] <= ARRAY_MAX) {
+                char[] lows = new char[cardinalities[group]];
+                for (int i = 0; i < lows.length; i++) {
+                    lows[i] = in.readChar();
+                }
+                containers[group] = lows;
+            } else {
+                long[] words = new long[WORDS];
+                for (int i = 0; i < WORDS; i++) {
+                    words[i] = in.readLong();
+                }
+                containers[group] = words;
+            }
+        }
+        return new CompressedBitmap(keys, containers, cardinalities);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof CompressedBitmap && toBitSet().equals(((CompressedBitmap) obj).toBitSet());
+    }
+
+    @Override
+    public int hashCode() {
+        return toBitSet().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toBitSet().toString();
+    }
+}
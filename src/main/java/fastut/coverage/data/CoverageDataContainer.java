@@ -3,9 +3,9 @@ package fastut.coverage.data;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,6 +20,11 @@ import java.util.concurrent.locks.ReentrantLock;
  * avoid an infinite recursion problem because instrumented classes
  * make use of this class.
  * </p>
+ *
+ * <p>
+ * Children are kept in a ConcurrentHashMap, so the readers never
+ * lock.  The lock only keeps writers that add children apart.
+ * </p>
  */
 public abstract class CoverageDataContainer
         implements CoverageData, HasBeenInstrumented, Serializable
@@ -34,7 +39,7 @@ public abstract class CoverageDataContainer
      * an Integer object.  Each value is information about the child,
      * stored as an object that implements the CoverageData interface.
      */
-    Map<Object,CoverageData> children = new HashMap<Object,CoverageData>();
+    Map<Object,CoverageData> children = new ConcurrentHashMap<Object,CoverageData>();
 
     public CoverageDataContainer()
     {
@@ -62,15 +67,7 @@ public abstract class CoverageDataContainer
             return false;
 
         CoverageDataContainer coverageDataContainer = (CoverageDataContainer)obj;
-        lock.lock();
-        try
-        {
-            return this.children.equals(coverageDataContainer.children);
-        }
-        finally
-        {
-            lock.unlock();
-        }
+        return this.children.equals(coverageDataContainer.children);
     }
 
     /**
@@ -81,20 +78,12 @@ public abstract class CoverageDataContainer
     {
         int number = 0;
         int numberCovered = 0;
-        lock.lock();
-        try
+        Iterator<CoverageData> iter = this.children.values().iterator();
+        while (iter.hasNext())
         {
-            Iterator<CoverageData> iter = this.children.values().iterator();
-            while (iter.hasNext())
-            {
-                CoverageData coverageContainer = iter.next();
-                number += coverageContainer.getNumberOfValidBranches();
-                numberCovered += coverageContainer.getNumberOfCoveredBranches();
-            }
-        }
-        finally
-        {
-            lock.unlock();
+            CoverageData coverageContainer = iter.next();
+            number += coverageContainer.getNumberOfValidBranches();
+            numberCovered += coverageContainer.getNumberOfCoveredBranches();
         }
         if (number == 0)
         {
@@ -113,15 +102,7 @@ public abstract class CoverageDataContainer
      */
     public CoverageData getChild(String name)
     {
-        lock.lock();
-        try
-        {
-            return (CoverageData)this.children.get(name);
-        }
-        finally
-        {
-            lock.unlock();
-        }
+        return (CoverageData)this.children.get(name);
     }
 
     /**
@@ -133,20 +114,12 @@ public abstract class CoverageDataContainer
     {
         int number = 0;
         int numberCovered = 0;
-        lock.lock();
-        try
+        Iterator<CoverageData> iter = this.children.values().iterator();
+        while (iter.hasNext())
         {
-            Iterator<CoverageData> iter = this.children.values().iterator();
-            while (iter.hasNext())
-            {
-                CoverageData coverageContainer = iter.next();
-                number += coverageContainer.getNumberOfValidLines();
-                numberCovered += coverageContainer.getNumberOfCoveredLines();
-            }
-        }
-        finally
-        {
-            lock.unlock();
+            CoverageData coverageContainer = iter.next();
+            number += coverageContainer.getNumberOfValidLines();
+            numberCovered += coverageContainer.getNumberOfCoveredLines();
         }
         if (number == 0)
         {
@@ -161,33 +134,17 @@ public abstract class CoverageDataContainer
      */
     public int getNumberOfChildren()
     {
-        lock.lock();
-        try
-        {
-            return this.children.size();
-        }
-        finally
-        {
-            lock.unlock();
-        }
+        return this.children.size();
     }
 
     public int getNumberOfCoveredBranches()
     {
         int number = 0;
-        lock.lock();
-        try
-        {
-            Iterator<CoverageData> iter = this.children.values().iterator();
-            while (iter.hasNext())
-            {
-                CoverageData coverageContainer = iter.next();
-                number += coverageContainer.getNumberOfCoveredBranches();
-            }
-        }
-        finally
+        Iterator<CoverageData> iter = this.children.values().iterator();
+        while (iter.hasNext())
         {
-            lock.unlock();
+            CoverageData coverageContainer = iter.next();
+            number += coverageContainer.getNumberOfCoveredBranches();
         }
         return number;
     }
@@ -195,19 +152,11 @@ public abstract class CoverageDataContainer
     public int getNumberOfCoveredLines()
     {
         int number = 0;
-        lock.lock();
-        try
+        Iterator<CoverageData> iter = this.children.values().iterator();
+        while (iter.hasNext())
         {
-            Iterator<CoverageData> iter = this.children.values().iterator();
-            while (iter.hasNext())
-            {
-                CoverageData coverageContainer = iter.next();
-                number += coverageContainer.getNumberOfCoveredLines();
-            }
-        }
-        finally
-        {
-            lock.unlock();
+            CoverageData coverageContainer = iter.next();
+            number += coverageContainer.getNumberOfCoveredLines();
         }
         return number;
     }
@@ -215,19 +164,11 @@ public abstract class CoverageDataContainer
     public int getNumberOfValidBranches()
     {
         int number = 0;
-        lock.lock();
-        try
-        {
-            Iterator<CoverageData> iter = this.children.values().iterator();
-            while (iter.hasNext())
-            {
-                CoverageData coverageContainer = iter.next();
-                number += coverageContainer.getNumberOfValidBranches();
-            }
-        }
-        finally
+        Iterator<CoverageData> iter = this.children.values().iterator();
+        while (iter.hasNext())
         {
-            lock.unlock();
+            CoverageData coverageContainer = iter.next();
+            number += coverageContainer.getNumberOfValidBranches();
         }
         return number;
     }
@@ -235,19 +176,11 @@ public abstract class CoverageDataContainer
     public int getNumberOfValidLines()
     {
         int number = 0;
-        lock.lock();
-        try
-        {
-            Iterator<CoverageData> iter = this.children.values().iterator();
-            while (iter.hasNext())
-            {
-                CoverageData coverageContainer = iter.next();
-                number += coverageContainer.getNumberOfValidLines();
-            }
-        }
-        finally
+        Iterator<CoverageData> iter = this.children.values().iterator();
+        while (iter.hasNext())
         {
-            lock.unlock();
+            CoverageData coverageContainer = iter.next();
+            number += coverageContainer.getNumberOfValidLines();
         }
         return number;
     }
@@ -259,15 +192,7 @@ public abstract class CoverageDataContainer
      */
     public int hashCode()
     {
-        lock.lock();
-        try
-        {
-            return this.children.size();
-        }
-        finally
-        {
-            lock.unlock();
-        }
+        return this.children.size();
     }
 
     /**
@@ -278,14 +203,15 @@ public abstract class CoverageDataContainer
     public void merge(CoverageData coverageData)
     {
         CoverageDataContainer container = (CoverageDataContainer)coverageData;
-        getBothLocks(container);
+        lock.lock();
         try
         {
-            Iterator<Object> iter = container.children.keySet().iterator();
+            Iterator<Map.Entry<Object,CoverageData>> iter = container.children.entrySet().iterator();
             while (iter.hasNext())
             {
-                Object key = iter.next();
-                CoverageData newChild = (CoverageData)container.children.get(key);
+                Map.Entry<Object,CoverageData> entry = iter.next();
+                Object key = entry.getKey();
+                CoverageData newChild = entry.getValue();
                 CoverageData existingChild = (CoverageData)this.children.get(key);
                 if (existingChild != null)
                 {
@@ -303,49 +229,14 @@ public abstract class CoverageDataContainer
         finally
         {
             lock.unlock();
-            container.lock.unlock();
-        }
-    }
-
-    protected void getBothLocks(CoverageDataContainer other) {
-        /*
-         * To prevent deadlock, we need to get both locks or none at all.
-         *
-         * When this method returns, the thread will have both locks.
-         * Make sure you unlock them!
-         */
-        boolean myLock = false;
-        boolean otherLock = false;
-        while ((!myLock) || (!otherLock))
-        {
-            try
-            {
-                myLock = lock.tryLock();
-                otherLock = other.lock.tryLock();
-            }
-            finally
-            {
-                if ((!myLock) || (!otherLock))
-                {
-                    //could not obtain both locks - so unlock the one we got.
-                    if (myLock)
-                    {
-                        lock.unlock();
-                    }
-                    if (otherLock)
-                    {
-                        other.lock.unlock();
-                    }
-                    //do a yield so the other threads will get to work.
-                    Thread.yield();
-                }
-            }
         }
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
     {
         in.defaultReadObject();
+        // older files hold a HashMap
+        children = new ConcurrentHashMap<Object,CoverageData>(children);
         initLock();
     }
 }
@@ -1,19 +1,27 @@
 package fastut.coverage.data;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import fastut.coverage.util.ConfigurationUtil;
 
 /**
- * This contains methods used for reading and writing the "cobertura.ser" file.
+ * This contains methods used for reading and writing the "fastut.ser" file, see {@link CoverageDataFormat}. Files
+ * written with Java serialization by older versions are still read.
  */
 public abstract class CoverageDataFileHandler implements HasBeenInstrumented {
 
@@ -33,19 +41,30 @@ public abstract class CoverageDataFileHandler implements HasBeenInstrumented {
     }
 
     public static ProjectData loadCoverageData(File dataFile) {
-        InputStream is = null;
+        RandomAccessFile file = null;
 
         System.out.println("FastUT: Loading coverage data from " + dataFile.getAbsolutePath());
         try {
-            is = new BufferedInputStream(new FileInputStream(dataFile), 16384);
-            return loadCoverageData(is);
+            file = new RandomAccessFile(dataFile, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!CoverageDataFormat.isBinary(buffer)) {
+                // written by an older FastUT with Java serialization
+                return loadCoverageData(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 16384));
+            }
+            ProjectData projectData = CoverageDataFormat.read(buffer);
+            System.out.println("FastUT: Loaded information on " + projectData.getNumberOfClasses() + " classes.");
+            return projectData;
         } catch (IOException e) {
             System.err.println("FastUT: Error reading file " + dataFile.getAbsolutePath() + ": "
                                + e.getLocalizedMessage());
             return null;
+        } catch (RuntimeException e) {
+            System.err.println("FastUT: Corrupt coverage data in " + dataFile.getAbsolutePath() + ": " + e);
+            return null;
         } finally {
-            if (is != null) try {
-                is.close();
+            if (file != null) try {
+                file.close();
             } catch (IOException e) {
                 System.err.println("FastUT: Error closing file " + dataFile.getAbsolutePath() + ": "
                                    + e.getLocalizedMessage());
@@ -81,15 +100,21 @@ public abstract class CoverageDataFileHandler implements HasBeenInstrumented {
 
     public static void saveCoverageData(ProjectData projectData, File dataFile) {
         FileOutputStream os = null;
+        // write aside and move, JVMs that mapped the old file keep reading it unchanged, and each saver writes a file
+        // of its own so concurrent saves never mix their bytes
+        File tmpFile = null;
+        boolean written = false;
 
         // System.out.println("Cobertura: Saving coverage data to " + dataFile.getAbsolutePath());
         try {
-            File dataDir = dataFile.getParentFile();
+            File dataDir = dataFile.getAbsoluteFile().getParentFile();
             if ((dataDir != null) && !dataDir.exists()) {
                 dataDir.mkdirs();
             }
-            os = new FileOutputStream(dataFile);
+            tmpFile = File.createTempFile("fastut", ".tmp", dataDir);
+            os = new FileOutputStream(tmpFile);
             saveCoverageData(projectData, os);
+            written = true;
         } catch (IOException e) {
             System.err.println("Cobertura: Error writing file " + dataFile.getAbsolutePath());
             e.printStackTrace();
@@ -100,31 +125,33 @@ public abstract class CoverageDataFileHandler implements HasBeenInstrumented {
                 } catch (IOException e) {
                     System.err.println("Cobertura: Error closing file " + dataFile.getAbsolutePath());
                     e.printStackTrace();
+                    written = false;
                 }
             }
         }
-    }
-
-    private static void saveCoverageData(ProjectData projectData, OutputStream dataFile) {
-        ObjectOutputStream objects = null;
-
+        if (tmpFile == null) {
+            return;
+        }
+        if (!written) {
+            tmpFile.delete();
+            return;
+        }
         try {
-            objects = new ObjectOutputStream(dataFile);
-            objects.writeObject(projectData);
-            System.out.println("Cobertura: Saved information on " + projectData.getNumberOfClasses() + " classes.");
-        } catch (IOException e) {
-            System.err.println("Cobertura: Error writing to object stream.");
-            e.printStackTrace();
-        } finally {
-            if (objects != null) {
-                try {
-                    objects.close();
-                } catch (IOException e) {
-                    System.err.println("Cobertura: Error closing object stream.");
-                    e.printStackTrace();
-                }
+            try {
+                Files.move(tmpFile.toPath(), dataFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
+        } catch (IOException e) {
+            System.err.println("Cobertura: Error replacing file " + dataFile.getAbsolutePath() + ": " + e);
+            tmpFile.delete();
         }
     }
 
+    private static void saveCoverageData(ProjectData projectData, OutputStream dataFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dataFile, 16384));
+        CoverageDataFormat.write(projectData, out);
+        System.out.println("Cobertura: Saved information on " + projectData.getNumberOfClasses() + " classes.");
+    }
+
 }
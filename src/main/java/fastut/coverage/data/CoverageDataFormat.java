@@ -0,0 +1,397 @@
+package fastut.coverage.data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Binary layout of the coverage data file. All values are big endian; string references are indexes into the string
+ * table, -1 for null.
+ *
+ * <pre>
+ * int    magic "FUTC"
+ * short  version
+ * long   id of the delta log folded into the file, long end of its folded frames   (version 3 only)
+ * int    string count, per string: unsigned short byte length, UTF-8 bytes
+ * int    class count
+ * per class: int name, long offset of its record         (version 2 and 3)
+ * per class record:
+ *   int     name, int source file name, byte flags (1 = contains instrumentation info)
+ *   int     line count n
+ *   int[n]  line numbers
+ *   int[n]  method names
+ *   int[n]  method descriptors
+ *   long[n] line hits
+ *   int[n]  jump counts
+ *   int[n]  switch counts
+ *   long[]  true and false hits of every jump, in line order
+ *   per switch, in line order: int key count k, int[k] keys, int hit count h, long default hits, long[h] hits
+ * </pre>
+ *
+ * The class index lets {@link ProjectData#getClassData(String)} read a single record from the mapped file; version 1
+ * files have no index and are read whole. The log mark tells {@link CoverageDeltaLog} which of its frames a compaction
+ * already folded into the file, 0 and 0 for none.
+ */
+public abstract class CoverageDataFormat implements HasBeenInstrumented {
+
+    public static final int      MAGIC   = 0x46555443;
+
+    public static final short    VERSION = 3;
+
+    private static final Charset UTF8    = Charset.forName("UTF-8");
+
+    /**
+     * @return whether the buffer starts with the binary format, as opposed to a legacy serialized ProjectData
+     */
+    public static boolean isBinary(ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    public static void write(ProjectData projectData, DataOutputStream out) throws IOException {
+        write(projectData, out, 0, 0);
+    }
+
+    /**
+     * @param logId id of the delta log whose frames up to logEnd are folded into the project data
+     */
+    public static void write(ProjectData projectData, DataOutputStream out, long logId, long logEnd)
+                                                                                                  throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        List<ClassRecord> records = new ArrayList<ClassRecord>();
+        for (Iterator<?> iter = projectData.getClasses().iterator(); iter.hasNext();) {
+            records.add(new ClassRecord((ClassData) iter.next(), strings));
+        }
+
+        List<byte[]> encoded = new ArrayList<byte[]>(strings.size());
+        long offset = 4 + 2 + 16 + 4 + 4 + records.size() * 12L;
+        for (String str : strings.keySet()) {
+            byte[] bytes = str.getBytes(UTF8);
+            encoded.add(bytes);
+            offset += 2 + bytes.length;
+        }
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(logId);
+        out.writeLong(logEnd);
+        out.writeInt(encoded.size());
+        for (byte[] bytes : encoded) {
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+        out.writeInt(records.size());
+        for (ClassRecord record : records) {
+            out.writeInt(record.name);
+            out.writeLong(offset);
+            offset += record.size();
+        }
+        for (ClassRecord record : records) {
+            record.write(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the project data; classes of a version 2 or 3 file are read from the buffer when first asked for
+     */
+    public static ProjectData read(ByteBuffer buffer) throws IOException {
+        ProjectData projectData = new ProjectData();
+        List<ClassData> classes = new ArrayList<ClassData>();
+        ClassIndex index = readHeader(buffer, classes);
+        if (index == null) {
+            projectData.addClasses(classes);
+        } else {
+            projectData.setUnloadedClasses(index);
+        }
+        return projectData;
+    }
+
+    /**
+     * Reads only the string table and the class index, so the classes can be visited one at a time.
+     *
+     * @return the index of a version 2 or 3 file, null for a version 1 file which has none
+     */
+    public static ClassIndex index(ByteBuffer buffer) throws IOException {
+        return readHeader(buffer, null);
+    }
+
+    /**
+     * @return the id of the delta log folded into the file and the end of its folded frames, null for a file older than
+     *         version 3
+     */
+    public static long[] readLogMark(ByteBuffer buffer) {
+        if (!isBinary(buffer) || buffer.remaining() < 22 || buffer.getShort(buffer.position() + 4) < 3) {
+            return null;
+        }
+        return new long[] { buffer.getLong(buffer.position() + 6), buffer.getLong(buffer.position() + 14) };
+    }
+
+    /**
+     * @param classes receives the classes of a version 1 file, null to skip them
+     */
+    private static ClassIndex readHeader(ByteBuffer buffer, List<ClassData> classes) throws IOException {
+        if (!isBinary(buffer)) {
+            throw new IOException("Not a FastUT coverage data file.");
+        }
+        buffer.getInt();
+        short version = buffer.getShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported coverage data version " + version + ", expected " + VERSION + ".");
+        }
+        if (version >= 3) {
+            // the log mark, see readLogMark
+            buffer.position(buffer.position() + 16);
+        }
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; ++i) {
+            byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, UTF8);
+        }
+
+        int classCount = buffer.getInt();
+        if (version == 1) {
+            for (int c = 0; classes != null && c < classCount; ++c) {
+                classes.add(readClass(buffer, strings));
+            }
+            return null;
+        }
+        ClassIndex index = new ClassIndex(buffer, strings);
+        for (int c = 0; c < classCount; ++c) {
+            index.offsets.put(strings[buffer.getInt()], buffer.getLong());
+        }
+        return index;
+    }
+
+    private static ClassData readClass(ByteBuffer buffer, String[] strings) {
+        ClassData classData = new ClassData(strings[buffer.getInt()]);
+        String sourceFileName = string(strings, buffer.getInt());
+        if (sourceFileName != null) {
+            classData.setSourceFileName(sourceFileName);
+        }
+        if ((buffer.get() & 1) != 0) {
+            classData.setContainsInstrumentationInfo();
+        }
+        int n = buffer.getInt();
+        int[] lineNumbers = readInts(buffer, n);
+        int[] names = readInts(buffer, n);
+        int[] descs = readInts(buffer, n);
+        long[] hits = readLongs(buffer, n);
+        int[] jumps = readInts(buffer, n);
+        int[] switches = readInts(buffer, n);
+
+        LineData[] lines = new LineData[n];
+        for (int i = 0; i < n; ++i) {
+            lines[i] = classData.addLine(lineNumbers[i], string(strings, names[i]), string(strings, descs[i]));
+            lines[i].setHits(hits[i]);
+        }
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < jumps[i]; ++j) {
+                classData.addLineJump(lineNumbers[i], j);
+                lines[i].getJumpData(j).setHits(buffer.getLong(), buffer.getLong());
+            }
+        }
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < switches[i]; ++j) {
+                int[] keys = readInts(buffer, buffer.getInt());
+                int hitCount = buffer.getInt();
+                long defaultHits = buffer.getLong();
+                long[] switchHits = readLongs(buffer, hitCount);
+                classData.addLineSwitch(lineNumbers[i], j, keys);
+                lines[i].getSwitchData(j, null).setHits(defaultHits, switchHits);
+            }
+        }
+        return classData;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int n) {
+        int[] dst = new int[n];
+        buffer.asIntBuffer().get(dst);
+        buffer.position(buffer.position() + n * 4);
+        return dst;
+    }
+
+    private static long[] readLongs(ByteBuffer buffer, int n) {
+        long[] dst = new long[n];
+        buffer.asLongBuffer().get(dst);
+        buffer.position(buffer.position() + n * 8);
+        return dst;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    private static int intern(Map<String, Integer> strings, String str) {
+        if (str == null) {
+            return -1;
+        }
+        Integer index = strings.get(str);
+        if (index == null) {
+            index = strings.size();
+            strings.put(str, index);
+        }
+        return index;
+    }
+
+    /**
+     * Classes of a mapped version 2 or 3 file that have not been read yet.
+     */
+    public static class ClassIndex {
+
+        private final ByteBuffer        buffer;
+        private final String[]          strings;
+        private final Map<String, Long> offsets = new HashMap<String, Long>();
+
+        ClassIndex(ByteBuffer buffer, String[] strings){
+            this.buffer = buffer;
+            this.strings = strings;
+        }
+
+        public int size() {
+            return offsets.size();
+        }
+
+        public SortedSet<String> names() {
+            return new TreeSet<String>(offsets.keySet());
+        }
+
+        /**
+         * Reads a fresh copy of the class, which is not kept by the index.
+         *
+         * @return the class, or null when the file has no such class
+         */
+        public ClassData read(String name) {
+            Long offset = offsets.get(name);
+            if (offset == null) {
+                return null;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position((int) offset.longValue());
+            return readClass(record, strings);
+        }
+
+        /**
+         * Reads the class and drops it from the index.
+         *
+         * @return the class, or null when the file has no such class
+         */
+        ClassData load(String name) {
+            ClassData classData = read(name);
+            offsets.remove(name);
+            return classData;
+        }
+    }
+
+    /**
+     * Snapshot of a class, taken before writing so the record size in the index matches the bytes written.
+     */
+    private static class ClassRecord {
+
+        final int          name;
+        final int          sourceFileName;
+        final boolean      instrumented;
+        final int[]        lineNumbers;
+        final int[]        names;
+        final int[]        descs;
+        final long[]       hits;
+        final int[]        jumps;
+        final int[]        switches;
+        final List<Long>   jumpHits      = new ArrayList<Long>();
+        final List<int[]>  switchKeys    = new ArrayList<int[]>();
+        final List<Long>   switchDefault = new ArrayList<Long>();
+        final List<long[]> switchHits    = new ArrayList<long[]>();
+
+        ClassRecord(ClassData classData, Map<String, Integer> strings){
+            name = intern(strings, classData.getName());
+            sourceFileName = intern(strings, classData.getDeclaredSourceFileName());
+            instrumented = classData.containsInstrumentationInfo();
+            List<CoverageData> lines = new ArrayList<CoverageData>(classData.getLines());
+            int n = lines.size();
+            lineNumbers = new int[n];
+            names = new int[n];
+            descs = new int[n];
+            hits = new long[n];
+            jumps = new int[n];
+            switches = new int[n];
+            for (int i = 0; i < n; ++i) {
+                LineData lineData = (LineData) lines.get(i);
+                lineNumbers[i] = lineData.getLineNumber();
+                names[i] = intern(strings, lineData.getMethodName());
+                descs[i] = intern(strings, lineData.getMethodDescriptor());
+                hits[i] = lineData.getHits();
+                for (int j = 0; j < lineData.getConditionSize(); ++j) {
+                    Object condition = lineData.getConditionData(j);
+                    if (condition instanceof JumpData) {
+                        jumps[i]++;
+                        jumpHits.add(((JumpData) condition).getTrueHits());
+                        jumpHits.add(((JumpData) condition).getFalseHits());
+                    } else if (condition instanceof SwitchData) {
+                        switches[i]++;
+                        switchKeys.add(((SwitchData) condition).getKeys());
+                        switchDefault.add(((SwitchData) condition).getDefaultHits());
+                        switchHits.add(((SwitchData) condition).getHitArray());
+                    }
+                }
+            }
+        }
+
+        long size() {
+            long size = 4 + 4 + 1 + 4 + lineNumbers.length * (4L * 5 + 8) + jumpHits.size() * 8L;
+            for (int i = 0; i < switchKeys.size(); ++i) {
+                size += 4 + switchKeys.get(i).length * 4 + 4 + 8 + switchHits.get(i).length * 8;
+            }
+            return size;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(name);
+            out.writeInt(sourceFileName);
+            out.writeByte(instrumented ? 1 : 0);
+            out.writeInt(lineNumbers.length);
+            for (int value : lineNumbers) {
+                out.writeInt(value);
+            }
+            for (int value : names) {
+                out.writeInt(value);
+            }
+            for (int value : descs) {
+                out.writeInt(value);
+            }
+            for (long value : hits) {
+                out.writeLong(value);
+            }
+            for (int value : jumps) {
+                out.writeInt(value);
+            }
+            for (int value : switches) {
+                out.writeInt(value);
+            }
+            for (long value : jumpHits) {
+                out.writeLong(value);
+            }
+            for (int i = 0; i < switchKeys.size(); ++i) {
+                int[] keys = switchKeys.get(i);
+                long[] branchHits = switchHits.get(i);
+                out.writeInt(keys.length);
+                for (int key : keys) {
+                    out.writeInt(key);
+                }
+                out.writeInt(branchHits.length);
+                out.writeLong(switchDefault.get(i));
+                for (long hit : branchHits) {
+                    out.writeLong(hit);
+                }
+            }
+        }
+    }
+}
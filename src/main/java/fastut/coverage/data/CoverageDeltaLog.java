@@ -0,0 +1,416 @@
+package fastut.coverage.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Append-only log of coverage deltas next to the data file. A save appends one frame, an int length followed by the
+ * touched classes in {@link CoverageDataFormat}, so it costs the size of what was touched instead of a load, merge and
+ * rewrite of the whole data file. {@link #compact()} folds the log back into the data file.
+ * </p>
+ * <p>
+ * JVMs coordinate with FileChannel locks on byte ranges of the log far past its end: appenders and readers share
+ * {@link #LOG_LOCK} briefly, a compaction holds {@link #COMPACT_LOCK} while it rewrites the data file and only takes
+ * the log lock to swap the files.
+ * </p>
+ * <p>
+ * Every log has a random id in its header. A compaction writes the id and the end of the frames it folded into the
+ * data file, replaces the data file, then replaces the log by a new one holding the frames appended meanwhile, and
+ * marks the old log retired for the JVMs that opened it before. Should it die between the two replacements, readers
+ * skip the frames the data file names as folded, so no delta is counted twice.
+ * </p>
+ *
+ * <pre>
+ * header: int magic "FUTD", int state (0 live, 1 retired), long id
+ * frame:  int length, project data
+ * </pre>
+ */
+public class CoverageDeltaLog implements HasBeenInstrumented {
+
+    public static final int            MAGIC        = 0x46555444;
+
+    private static final int           LIVE         = 0;
+
+    private static final int           RETIRED      = 1;
+
+    private static final int           HEADER_SIZE  = 16;
+
+    private static final long          LOG_LOCK     = Long.MAX_VALUE - 2;
+
+    private static final long          COMPACT_LOCK = Long.MAX_VALUE - 1;
+
+    private static final AtomicBoolean compacting   = new AtomicBoolean();
+
+    private static final Random        ids          = new Random();
+
+    private final File                 dataFile;
+
+    private final File                 logFile;
+
+    public CoverageDeltaLog(File dataFile){
+        this.dataFile = dataFile;
+        this.logFile = new File(dataFile.getPath() + ".delta");
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    public long size() {
+        return logFile.length();
+    }
+
+    public void append(ProjectData delta) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(0);
+        CoverageDataFormat.write(delta, out);
+        ByteBuffer bytes = ByteBuffer.wrap(frame.toByteArray());
+        bytes.putInt(0, bytes.capacity() - 4);
+
+        /*
+         * FileChannel locks are held by the JVM, so threads of one JVM also have to be kept apart. Classes loaded by
+         * different class loaders share the interned path string, as the String class belongs to the root loader.
+         */
+        synchronized (logFile.getPath().intern()) {
+            Log log = open(true, false);
+            try {
+                log.channel.position(log.channel.size());
+                while (bytes.hasRemaining()) {
+                    log.channel.write(bytes);
+                }
+            } finally {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * @return the data file with every delta of the log merged in, or null when there is neither
+     */
+    public ProjectData load() {
+        synchronized (logFile.getPath().intern()) {
+            ProjectData projectData = null;
+            try {
+                Log log = open(false, true);
+                try {
+                    // read under the log lock, a compaction may not swap the data file meanwhile
+                    if (dataFile.isFile()) {
+                        projectData = CoverageDataFileHandler.loadCoverageData(dataFile);
+                    }
+                    if (log != null) {
+                        projectData = readFrames(log.channel, firstUnfolded(log.id), log.channel.size(), projectData);
+                    }
+                } finally {
+                    if (log != null) {
+                        log.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("FastUT: Error reading file " + logFile.getAbsolutePath() + ": "
+                                   + e.getLocalizedMessage());
+            }
+            return projectData;
+        }
+    }
+
+    /**
+     * Opens the live log and locks it. A log retired by a compaction while we waited for the lock is left for the one
+     * that replaced it.
+     *
+     * @param create whether to create the log when there is none
+     * @param shared whether to share the lock, for reading
+     * @return the log, null when there is none and create is false
+     */
+    private Log open(boolean create, boolean shared) throws IOException {
+        while (true) {
+            if (!create && !logFile.isFile()) {
+                return null;
+            }
+            RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            Log log = null;
+            try {
+                FileChannel channel = file.getChannel();
+                FileLock lock = channel.lock(LOG_LOCK, 1, shared && !create);
+                if (channel.size() < HEADER_SIZE) {
+                    if (!create) {
+                        // just created by an appender, nothing in it yet
+                        return null;
+                    }
+                    channel.write(header(LIVE, newId()), 0);
+                }
+                ByteBuffer header = readHeader(channel);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a FastUT delta log.");
+                }
+                if (header.getInt(4) == LIVE) {
+                    log = new Log(file, lock, header.getLong(8));
+                    return log;
+                }
+            } finally {
+                if (log == null) {
+                    // also releases the lock
+                    file.close();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer header(int state, long id) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(state).putLong(id);
+        header.flip();
+        return header;
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+        }
+        return header;
+    }
+
+    private static synchronized long newId() {
+        long id;
+        do {
+            id = ids.nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * @return where the frames of the log not folded into the data file yet start
+     */
+    private long firstUnfolded(long logId) throws IOException {
+        if (!dataFile.isFile()) {
+            return HEADER_SIZE;
+        }
+        RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+        try {
+            ByteBuffer start = ByteBuffer.allocate((int) Math.min(32, file.length()));
+            file.readFully(start.array());
+            long[] mark = CoverageDataFormat.readLogMark(start);
+            return mark != null && mark[0] == logId ? mark[1] : HEADER_SIZE;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps the data file and the frames of the log not folded into it, under the log lock so that no compaction
+     * replaces them in between. The mappings stay readable after a compaction has replaced the files, and the classes
+     * can be read from them one at a time, see {@link CoverageDataFormat#index(ByteBuffer)}.
+     *
+     * @return the data file first, null when there is none, then one buffer per frame
+     */
+    public List<ByteBuffer> map() throws IOException {
+        synchronized (logFile.getPath().intern()) {
+            Log log = open(false, true);
+            try {
+                List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+                buffers.add(dataFile.isFile() ? mapDataFile() : null);
+                if (log != null) {
+                    buffers.addAll(frames(log.channel, firstUnfolded(log.id), log.channel.size()));
+                }
+                return buffers;
+            } finally {
+                if (log != null) {
+                    log.close();
+                }
+            }
+        }
+    }
+
+    private ByteBuffer mapDataFile() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+        try {
+            // the mapping outlives the channel
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Merges the frames between start and end of the log into the project data, which may be null.
+     */
+    private ProjectData readFrames(FileChannel channel, long start, long end, ProjectData projectData)
+                                                                                                     throws IOException {
+        for (ByteBuffer frame : frames(channel, start, end)) {
+            ProjectData delta = CoverageDataFormat.read(frame);
+            if (projectData == null) {
+                projectData = new ProjectData();
+            }
+            projectData.merge(delta);
+        }
+        return projectData;
+    }
+
+    /**
+     * @return the frames between start and end of the log, mapped
+     */
+    private List<ByteBuffer> frames(FileChannel channel, long start, long end) throws IOException {
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+        if (start >= end) {
+            return frames;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length > buffer.remaining()) {
+                // the JVM writing this frame was killed
+                System.err.println("FastUT: Ignoring truncated frame in " + logFile.getAbsolutePath());
+                break;
+            }
+            ByteBuffer frame = buffer.slice();
+            frame.limit(length);
+            buffer.position(buffer.position() + length);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * Folds the log into the data file. Frames appended while the data file is rewritten stay in the log. Returns at
+     * once when another JVM is compacting.
+     */
+    public void compact() throws IOException {
+        Log log;
+        long end;
+        ProjectData merged;
+        FileLock compactLock;
+        synchronized (logFile.getPath().intern()) {
+            log = open(false, true);
+            if (log == null) {
+                return;
+            }
+            try {
+                compactLock = log.channel.tryLock(COMPACT_LOCK, 1, false);
+                if (compactLock == null) {
+                    log.close();
+                    return;
+                }
+                end = log.channel.size();
+                long start = firstUnfolded(log.id);
+                merged = null;
+                if (start < end) {
+                    merged = dataFile.isFile() ? CoverageDataFileHandler.loadCoverageData(dataFile) : null;
+                    merged = readFrames(log.channel, start, end, merged);
+                }
+                log.lock.release();
+            } catch (IOException e) {
+                log.close();
+                throw e;
+            }
+        }
+        try {
+            if (merged == null) {
+                return;
+            }
+            // the slow part, appenders are not held up
+            merged.getClasses();
+            File compacted = new File(dataFile.getPath() + ".compact");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted),
+                                                                                  16384));
+            try {
+                CoverageDataFormat.write(merged, out, log.id, end);
+            } finally {
+                out.close();
+            }
+
+            synchronized (logFile.getPath().intern()) {
+                FileLock lock = log.channel.lock(LOG_LOCK, 1, false);
+                try {
+                    replace(compacted, dataFile);
+                    // from here on the data file names the frames before end as folded, should we die now
+                    long tail = log.channel.size() - end;
+                    ByteBuffer rest = ByteBuffer.allocate((int) tail);
+                    while (rest.hasRemaining() && log.channel.read(rest, end + rest.position()) >= 0) {
+                    }
+                    rest.flip();
+                    File fresh = new File(logFile.getPath() + ".new");
+                    FileOutputStream freshOut = new FileOutputStream(fresh);
+                    try {
+                        freshOut.getChannel().write(new ByteBuffer[] { header(LIVE, newId()), rest });
+                    } finally {
+                        freshOut.close();
+                    }
+                    replace(fresh, logFile);
+                    // appenders waiting for the old log move on to the new one
+                    log.channel.write(header(RETIRED, log.id), 0);
+                } finally {
+                    lock.release();
+                }
+            }
+        } finally {
+            compactLock.release();
+            log.close();
+        }
+    }
+
+    private static void replace(File from, File to) throws IOException {
+        if (!from.renameTo(to) && !(to.delete() && from.renameTo(to))) {
+            throw new IOException("Could not replace " + to.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Starts a compaction on a daemon thread unless this JVM is already running one.
+     */
+    public void compactInBackground() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    System.err.println("FastUT: Error compacting " + logFile.getAbsolutePath() + ": "
+                                       + e.getLocalizedMessage());
+                } finally {
+                    compacting.set(false);
+                }
+            }
+        }, "fastut-coverage-compaction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * An open log with the log lock held, closing it releases the lock.
+     */
+    private static class Log {
+
+        final RandomAccessFile file;
+        final FileChannel      channel;
+        final FileLock         lock;
+        final long             id;
+
+        Log(RandomAccessFile file, FileLock lock, long id){
+            this.file = file;
+            this.channel = file.getChannel();
+            this.lock = lock;
+            this.id = id;
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -1,39 +1,38 @@
 package fastut.coverage.data;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * <p>
  * This class implements HasBeenInstrumented so that when cobertura instruments itself, it will omit this class. It does
  * this to avoid an infinite recursion problem because instrumented classes make use of this class.
  * </p>
+ * <p>
+ * The hit counters are updated with compare-and-set, touches and readers never wait for each other.
+ * </p>
  */
 public class JumpData implements BranchCoverageData, Comparable<Object>, Serializable, HasBeenInstrumented {
 
-    private static final long serialVersionUID = 8;
+    private static final long                             serialVersionUID = 8;
+
+    private static final AtomicLongFieldUpdater<JumpData> TRUE_HITS        = AtomicLongFieldUpdater.newUpdater(JumpData.class,
+                                                                                                               "trueHits");
 
-    protected transient Lock  lock;
+    private static final AtomicLongFieldUpdater<JumpData> FALSE_HITS       = AtomicLongFieldUpdater.newUpdater(JumpData.class,
+                                                                                                               "falseHits");
 
-    private int               conditionNumber;
+    private int                                           conditionNumber;
 
-    private long              trueHits;
+    private volatile long                                 trueHits;
 
-    private long              falseHits;
+    private volatile long                                 falseHits;
 
     JumpData(int conditionNumber){
         super();
         this.conditionNumber = conditionNumber;
         this.trueHits = 0L;
         this.falseHits = 0L;
-        initLock();
-    }
-
-    private void initLock() {
-        lock = new ReentrantLock();
     }
 
     public int compareTo(Object o) {
@@ -42,16 +41,12 @@ public class JumpData implements BranchCoverageData, Comparable<Object>, Seriali
     }
 
     void touchBranch(boolean branch, int new_hits) {
-        lock.lock();
-        try {
-            if (branch) {
-                this.trueHits += new_hits;
-            } else {
-                this.falseHits += new_hits;
-            }
-        } finally {
-            lock.unlock();
-        }
+        (branch ? TRUE_HITS : FALSE_HITS).addAndGet(this, new_hits);
+    }
+
+    void setHits(long trueHits, long falseHits) {
+        this.trueHits = trueHits;
+        this.falseHits = falseHits;
     }
 
     public int getConditionNumber() {
@@ -59,30 +54,15 @@ public class JumpData implements BranchCoverageData, Comparable<Object>, Seriali
     }
 
     public long getTrueHits() {
-        lock.lock();
-        try {
-            return this.trueHits;
-        } finally {
-            lock.unlock();
-        }
+        return this.trueHits;
     }
 
     public long getFalseHits() {
-        lock.lock();
-        try {
-            return this.falseHits;
-        } finally {
-            lock.unlock();
-        }
+        return this.falseHits;
     }
 
     public double getBranchCoverageRate() {
-        lock.lock();
-        try {
-            return ((double) getNumberOfCoveredBranches()) / getNumberOfValidBranches();
-        } finally {
-            lock.unlock();
-        }
+        return ((double) getNumberOfCoveredBranches()) / getNumberOfValidBranches();
     }
 
     public boolean equals(Object obj) {
@@ -90,14 +70,8 @@ public class JumpData implements BranchCoverageData, Comparable<Object>, Seriali
         if ((obj == null) || !(obj.getClass().equals(this.getClass()))) return false;
 
         JumpData branchData = (JumpData) obj;
-        getBothLocks(branchData);
-        try {
-            return (this.trueHits == branchData.trueHits) && (this.falseHits == branchData.falseHits)
-                   && (this.conditionNumber == branchData.conditionNumber);
-        } finally {
-            lock.unlock();
-            branchData.lock.unlock();
-        }
+        return (this.trueHits == branchData.trueHits) && (this.falseHits == branchData.falseHits)
+               && (this.conditionNumber == branchData.conditionNumber);
     }
 
     public int hashCode() {
@@ -105,12 +79,7 @@ public class JumpData implements BranchCoverageData, Comparable<Object>, Seriali
     }
 
     public int getNumberOfCoveredBranches() {
-        lock.lock();
-        try {
-            return ((trueHits > 0) ? 1 : 0) + ((falseHits > 0) ? 1 : 0);
-        } finally {
-            lock.unlock();
-        }
+        return ((trueHits > 0) ? 1 : 0) + ((falseHits > 0) ? 1 : 0);
     }
 
     public int getNumberOfValidBranches() {
@@ -119,57 +88,14 @@ public class JumpData implements BranchCoverageData, Comparable<Object>, Seriali
 
     public void merge(BranchCoverageData coverageData) {
         JumpData jumpData = (JumpData) coverageData;
-        getBothLocks(jumpData);
-        try {
-            this.trueHits += jumpData.trueHits;
-            this.falseHits += jumpData.falseHits;
-        } finally {
-            lock.unlock();
-            jumpData.lock.unlock();
-        }
-    }
-
-    private void getBothLocks(JumpData other) {
-        /*
-         * To prevent deadlock, we need to get both locks or none at all. When this method returns, the thread will have
-         * both locks. Make sure you unlock them!
-         */
-        boolean myLock = false;
-        boolean otherLock = false;
-        while ((!myLock) || (!otherLock)) {
-            try {
-                myLock = lock.tryLock();
-                otherLock = other.lock.tryLock();
-            } finally {
-                if ((!myLock) || (!otherLock)) {
-                    // could not obtain both locks - so unlock the one we got.
-                    if (myLock) {
-                        lock.unlock();
-                    }
-                    if (otherLock) {
-                        other.lock.unlock();
-                    }
-                    // do a yield so the other threads will get to work.
-                    Thread.yield();
-                }
-            }
-        }
-    }
-
-    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
-        initLock();
+        TRUE_HITS.addAndGet(this, jumpData.trueHits);
+        FALSE_HITS.addAndGet(this, jumpData.falseHits);
     }
 
     @Override
     public void reset() {
-        lock.lock();
-        try {
-            this.falseHits = 0;
-            this.trueHits = 0;
-        } finally {
-            lock.unlock();
-        }
+        this.falseHits = 0;
+        this.trueHits = 0;
     }
 
     @Override
@@ -178,4 +104,4 @@ public class JumpData implements BranchCoverageData, Comparable<Object>, Seriali
                + "]";
     }
 
-}
+}
\ No newline at end of file
@@ -3,10 +3,9 @@ package fastut.coverage.data;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import fastut.coverage.util.StringUtil;
 
@@ -15,19 +14,24 @@ import fastut.coverage.util.StringUtil;
  * This class implements HasBeenInstrumented so that when cobertura instruments itself, it will omit this class. It does
  * this to avoid an infinite recursion problem because instrumented classes make use of this class.
  * </p>
+ * <p>
+ * Hits are added with compare-and-set. Jumps and switches are kept in copy-on-write lists, so only adding one takes
+ * the monitor and readers see a consistent list without locking.
+ * </p>
  */
 public class LineData implements Comparable<Object>, CoverageData, HasBeenInstrumented, Serializable {
 
-    private static final long serialVersionUID = 4;
+    private static final long                             serialVersionUID = 4;
 
-    private transient Lock    lock;
+    private static final AtomicLongFieldUpdater<LineData> HITS             = AtomicLongFieldUpdater.newUpdater(LineData.class,
+                                                                                                               "hits");
 
-    private long              hits;
-    private List              jumps;
-    private List              switches;
-    private final int         lineNumber;
-    private String            methodDescriptor;
-    private String            methodName;
+    private volatile long                                 hits;
+    private volatile List                                 jumps;
+    private volatile List                                 switches;
+    private final int                                     lineNumber;
+    private volatile String                               methodDescriptor;
+    private volatile String                               methodName;
 
     LineData(int lineNumber){
         this(lineNumber, null, null);
@@ -39,11 +43,6 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
         this.lineNumber = lineNumber;
         this.methodName = methodName;
         this.methodDescriptor = methodDescriptor;
-        initLock();
-    }
-
-    private void initLock() {
-        lock = new ReentrantLock();
     }
 
     /**
@@ -59,28 +58,19 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
         if ((obj == null) || !(obj.getClass().equals(this.getClass()))) return false;
 
         LineData lineData = (LineData) obj;
-        getBothLocks(lineData);
-        try {
-            return (this.hits == lineData.hits)
-                   && ((this.jumps == lineData.jumps) || ((this.jumps != null) && (this.jumps.equals(lineData.jumps))))
-                   && ((this.switches == lineData.switches) || ((this.switches != null) && (this.switches.equals(lineData.switches))))
-                   && (this.lineNumber == lineData.lineNumber)
-                   && (this.methodDescriptor.equals(lineData.methodDescriptor))
-                   && (this.methodName.equals(lineData.methodName));
-        } finally {
-            lock.unlock();
-            lineData.lock.unlock();
-        }
+        List jumps = this.jumps;
+        List switches = this.switches;
+        return (this.hits == lineData.hits)
+               && ((jumps == lineData.jumps) || ((jumps != null) && (jumps.equals(lineData.jumps))))
+               && ((switches == lineData.switches) || ((switches != null) && (switches.equals(lineData.switches))))
+               && (this.lineNumber == lineData.lineNumber)
+               && (this.methodDescriptor.equals(lineData.methodDescriptor))
+               && (this.methodName.equals(lineData.methodName));
     }
 
     public double getBranchCoverageRate() {
         if (getNumberOfValidBranches() == 0) return 1d;
-        lock.lock();
-        try {
-            return ((double) getNumberOfCoveredBranches()) / getNumberOfValidBranches();
-        } finally {
-            lock.unlock();
-        }
+        return ((double) getNumberOfCoveredBranches()) / getNumberOfValidBranches();
     }
 
     public String getConditionCoverage() {
@@ -88,33 +78,18 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
         if (getNumberOfValidBranches() == 0) {
             ret.append(StringUtil.getPercentValue(1.0));
         } else {
-            lock.lock();
-            try {
-                ret.append(StringUtil.getPercentValue(getBranchCoverageRate()));
-                ret.append(" (").append(getNumberOfCoveredBranches()).append("/").append(getNumberOfValidBranches()).append(")");
-            } finally {
-                lock.unlock();
-            }
+            ret.append(StringUtil.getPercentValue(getBranchCoverageRate()));
+            ret.append(" (").append(getNumberOfCoveredBranches()).append("/").append(getNumberOfValidBranches()).append(")");
         }
         return ret.toString();
     }
 
     public long getHits() {
-        lock.lock();
-        try {
-            return hits;
-        } finally {
-            lock.unlock();
-        }
+        return hits;
     }
 
     public boolean isCovered() {
-        lock.lock();
-        try {
-            return (getHits() > 0) && ((getNumberOfValidBranches() == 0) || ((1.0 - getBranchCoverageRate()) < 0.0001));
-        } finally {
-            lock.unlock();
-        }
+        return (getHits() > 0) && ((getNumberOfValidBranches() == 0) || ((1.0 - getBranchCoverageRate()) < 0.0001));
     }
 
     public double getLineCoverageRate() {
@@ -126,21 +101,11 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
     }
 
     public String getMethodDescriptor() {
-        lock.lock();
-        try {
-            return methodDescriptor;
-        } finally {
-            lock.unlock();
-        }
+        return methodDescriptor;
     }
 
     public String getMethodName() {
-        lock.lock();
-        try {
-            return methodName;
-        } finally {
-            lock.unlock();
-        }
+        return methodName;
     }
 
     /**
@@ -158,48 +123,34 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
 
     public int getNumberOfValidBranches() {
         int ret = 0;
-        lock.lock();
-        try {
-            if (jumps != null) for (int i = jumps.size() - 1; i >= 0; i--)
-                ret += ((JumpData) jumps.get(i)).getNumberOfValidBranches();
-            if (switches != null) for (int i = switches.size() - 1; i >= 0; i--)
-                ret += ((SwitchData) switches.get(i)).getNumberOfValidBranches();
-            return ret;
-        } finally {
-            lock.unlock();
-        }
+        List jumps = this.jumps;
+        List switches = this.switches;
+        if (jumps != null) for (int i = jumps.size() - 1; i >= 0; i--)
+            ret += ((JumpData) jumps.get(i)).getNumberOfValidBranches();
+        if (switches != null) for (int i = switches.size() - 1; i >= 0; i--)
+            ret += ((SwitchData) switches.get(i)).getNumberOfValidBranches();
+        return ret;
     }
 
     public int getFastUTNumberOfValidBranches() {
-        int ret = 0;
-        lock.lock();
-        try {
-            if (jumps != null) for (int i = jumps.size() - 1; i >= 0; i--)
-                ret += 1;
-            if (switches != null) for (int i = switches.size() - 1; i >= 0; i--)
-                ret += 1;
-            return ret;
-        } finally {
-            lock.unlock();
-        }
+        List jumps = this.jumps;
+        List switches = this.switches;
+        return ((jumps == null) ? 0 : jumps.size()) + ((switches == null) ? 0 : switches.size());
     }
 
     public int getNumberOfCoveredBranches() {
         int ret = 0;
-        lock.lock();
-        try {
-            if (jumps != null) for (int i = jumps.size() - 1; i >= 0; i--) {
-                int jc = ((JumpData) jumps.get(i)).getNumberOfCoveredBranches();
-                ret += jc;
-            }
-            if (switches != null) for (int i = switches.size() - 1; i >= 0; i--) {
-                int sc = ((SwitchData) switches.get(i)).getNumberOfCoveredBranches();
-                ret += sc;
-            }
-            return ret;
-        } finally {
-            lock.unlock();
+        List jumps = this.jumps;
+        List switches = this.switches;
+        if (jumps != null) for (int i = jumps.size() - 1; i >= 0; i--) {
+            int jc = ((JumpData) jumps.get(i)).getNumberOfCoveredBranches();
+            ret += jc;
+        }
+        if (switches != null) for (int i = switches.size() - 1; i >= 0; i--) {
+            int sc = ((SwitchData) switches.get(i)).getNumberOfCoveredBranches();
+            ret += sc;
         }
+        return ret;
     }
 
     public int getNumberOfValidLines() {
@@ -211,39 +162,27 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
     }
 
     public boolean hasBranch() {
-        lock.lock();
-        try {
-            return (jumps != null) || (switches != null);
-        } finally {
-            lock.unlock();
-        }
+        return (jumps != null) || (switches != null);
     }
 
     public void merge(CoverageData coverageData) {
         LineData lineData = (LineData) coverageData;
-        getBothLocks(lineData);
-        try {
-            this.hits += lineData.hits;
-            if (lineData.jumps != null) if (this.jumps == null) this.jumps = lineData.jumps;
-            else {
-                for (int i = Math.min(this.jumps.size(), lineData.jumps.size()) - 1; i >= 0; i--)
-                    ((JumpData) this.jumps.get(i)).merge((JumpData) lineData.jumps.get(i));
-                for (int i = Math.min(this.jumps.size(), lineData.jumps.size()); i < lineData.jumps.size(); i++)
-                    this.jumps.add(lineData.jumps.get(i));
+        HITS.addAndGet(this, lineData.hits);
+        List otherJumps = lineData.jumps;
+        if (otherJumps != null) {
+            for (int i = 0; i < otherJumps.size(); i++) {
+                getJumpData(i).merge((JumpData) otherJumps.get(i));
             }
-            if (lineData.switches != null) if (this.switches == null) this.switches = lineData.switches;
-            else {
-                for (int i = Math.min(this.switches.size(), lineData.switches.size()) - 1; i >= 0; i--)
-                    ((SwitchData) this.switches.get(i)).merge((SwitchData) lineData.switches.get(i));
-                for (int i = Math.min(this.switches.size(), lineData.switches.size()); i < lineData.switches.size(); i++)
-                    this.switches.add(lineData.switches.get(i));
+        }
+        List otherSwitches = lineData.switches;
+        if (otherSwitches != null) {
+            for (int i = 0; i < otherSwitches.size(); i++) {
+                SwitchData other = (SwitchData) otherSwitches.get(i);
+                getSwitchData(i, new SwitchData(i, other.getKeys())).merge(other);
             }
-            if (lineData.methodName != null) this.methodName = lineData.methodName;
-            if (lineData.methodDescriptor != null) this.methodDescriptor = lineData.methodDescriptor;
-        } finally {
-            lock.unlock();
-            lineData.lock.unlock();
         }
+        if (lineData.methodName != null) this.methodName = lineData.methodName;
+        if (lineData.methodDescriptor != null) this.methodDescriptor = lineData.methodDescriptor;
     }
 
     void addJump(int jumpNumber) {
@@ -258,23 +197,17 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
         getSwitchData(switchNumber, new SwitchData(switchNumber, min, max));
     }
 
+    void setHits(long hits) {
+        this.hits = hits;
+    }
+
     void setMethodNameAndDescriptor(String name, String descriptor) {
-        lock.lock();
-        try {
-            this.methodName = name;
-            this.methodDescriptor = descriptor;
-        } finally {
-            lock.unlock();
-        }
+        this.methodName = name;
+        this.methodDescriptor = descriptor;
     }
 
     void touch(int new_hits) {
-        lock.lock();
-        try {
-            this.hits += new_hits;
-        } finally {
-            lock.unlock();
-        }
+        HITS.addAndGet(this, new_hits);
     }
 
     void touchJump(int jumpNumber, boolean branch, int hits) {
@@ -286,29 +219,20 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
     }
 
     public int getConditionSize() {
-        lock.lock();
-        try {
-            return ((jumps == null) ? 0 : jumps.size()) + ((switches == null) ? 0 : switches.size());
-        } finally {
-            lock.unlock();
-        }
+        return getFastUTNumberOfValidBranches();
     }
 
     public Object getConditionData(int index) {
-        Object branchData = null;
-        lock.lock();
-        try {
-            int jumpsSize = (jumps == null) ? 0 : jumps.size();
-            int switchesSize = (switches == null) ? 0 : switches.size();
-            if (index < jumpsSize) {
-                branchData = jumps.get(index);
-            } else if (index < jumpsSize + switchesSize) {
-                branchData = switches.get(index - jumpsSize);
-            }
-            return branchData;
-        } finally {
-            lock.unlock();
+        List jumps = this.jumps;
+        List switches = this.switches;
+        int jumpsSize = (jumps == null) ? 0 : jumps.size();
+        int switchesSize = (switches == null) ? 0 : switches.size();
+        if (index < jumpsSize) {
+            return jumps.get(index);
+        } else if (index < jumpsSize + switchesSize) {
+            return switches.get(index - jumpsSize);
         }
+        return null;
     }
 
     public String getConditionCoverage(int index) {
@@ -326,27 +250,31 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
     }
 
     JumpData getJumpData(int jumpNumber) {
-        lock.lock();
-        try {
-            if (jumps == null) {
-                jumps = new ArrayList();
-            }
-            if (jumps.size() <= jumpNumber) {
-                for (int i = jumps.size(); i <= jumpNumber; jumps.add(new JumpData(i++)))
-                    ;
+        List jumps = this.jumps;
+        if (jumps != null && jumps.size() > jumpNumber) {
+            return (JumpData) jumps.get(jumpNumber);
+        }
+        synchronized (this) {
+            if (this.jumps == null) {
+                this.jumps = new CopyOnWriteArrayList();
             }
+            jumps = this.jumps;
+            for (int i = jumps.size(); i <= jumpNumber; jumps.add(new JumpData(i++)))
+                ;
             return (JumpData) jumps.get(jumpNumber);
-        } finally {
-            lock.unlock();
         }
     }
 
     SwitchData getSwitchData(int switchNumber, SwitchData data) {
-        lock.lock();
-        try {
-            if (switches == null) {
-                switches = new ArrayList();
+        List switches = this.switches;
+        if (switches != null && switches.size() > switchNumber) {
+            return (SwitchData) switches.get(switchNumber);
+        }
+        synchronized (this) {
+            if (this.switches == null) {
+                this.switches = new CopyOnWriteArrayList();
             }
+            switches = this.switches;
             if (switches.size() < switchNumber) {
                 for (int i = switches.size(); i < switchNumber; switches.add(new SwitchData(i++)))
                     ;
@@ -354,56 +282,25 @@ public class LineData implements Comparable<Object>, CoverageData, HasBeenInstru
             if (switches.size() == switchNumber) if (data != null) switches.add(data);
             else switches.add(new SwitchData(switchNumber));
             return (SwitchData) switches.get(switchNumber);
-        } finally {
-            lock.unlock();
-        }
-    }
-
-    private void getBothLocks(LineData other) {
-        /*
-         * To prevent deadlock, we need to get both locks or none at all. When this method returns, the thread will have
-         * both locks. Make sure you unlock them!
-         */
-        boolean myLock = false;
-        boolean otherLock = false;
-        while ((!myLock) || (!otherLock)) {
-            try {
-                myLock = lock.tryLock();
-                otherLock = other.lock.tryLock();
-            } finally {
-                if ((!myLock) || (!otherLock)) {
-                    // could not obtain both locks - so unlock the one we got.
-                    if (myLock) {
-                        lock.unlock();
-                    }
-                    if (otherLock) {
-                        other.lock.unlock();
-                    }
-                    // do a yield so the other threads will get to work.
-                    Thread.yield();
-                }
-            }
         }
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        initLock();
+        if (jumps != null) jumps = new CopyOnWriteArrayList(jumps);
+        if (switches != null) switches = new CopyOnWriteArrayList(switches);
     }
 
     @Override
     public void reset() {
-        lock.lock();
-        try {
-            this.hits = 0;
-            if (jumps != null) for (int i = jumps.size() - 1; i >= 0; i--) {
-                ((JumpData) jumps.get(i)).reset();
-            }
-            if (switches != null) for (int i = switches.size() - 1; i >= 0; i--)
-                ((SwitchData) switches.get(i)).reset();
-        } finally {
-            lock.unlock();
+        this.hits = 0;
+        List jumps = this.jumps;
+        List switches = this.switches;
+        if (jumps != null) for (int i = jumps.size() - 1; i >= 0; i--) {
+            ((JumpData) jumps.get(i)).reset();
         }
+        if (switches != null) for (int i = switches.size() - 1; i >= 0; i--)
+            ((SwitchData) switches.get(i)).reset();
     }
 
     @Override
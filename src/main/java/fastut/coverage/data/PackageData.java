@@ -44,12 +44,7 @@ public class PackageData extends CoverageDataContainer implements Comparable, Ha
     }
 
     public boolean contains(String name) {
-        lock.lock();
-        try {
-            return this.children.containsKey(name);
-        } finally {
-            lock.unlock();
-        }
+        return this.children.containsKey(name);
     }
 
     /**
@@ -61,22 +56,11 @@ public class PackageData extends CoverageDataContainer implements Comparable, Ha
         if ((obj == null) || !(obj.getClass().equals(this.getClass()))) return false;
 
         PackageData packageData = (PackageData) obj;
-        getBothLocks(packageData);
-        try {
-            return super.equals(obj) && this.name.equals(packageData.name);
-        } finally {
-            lock.unlock();
-            packageData.lock.unlock();
-        }
+        return super.equals(obj) && this.name.equals(packageData.name);
     }
 
     public SortedSet getClasses() {
-        lock.lock();
-        try {
-            return new TreeSet(this.children.values());
-        } finally {
-            lock.unlock();
-        }
+        return new TreeSet(this.children.values());
     }
 
     public String getName() {
@@ -90,21 +74,16 @@ public class PackageData extends CoverageDataContainer implements Comparable, Ha
     public Collection getSourceFiles() {
         SortedMap sourceFileDatas = new TreeMap();
 
-        lock.lock();
-        try {
-            Iterator iter = this.children.values().iterator();
-            while (iter.hasNext()) {
-                ClassData classData = (ClassData) iter.next();
-                String sourceFileName = classData.getSourceFileName();
-                SourceFileData sourceFileData = (SourceFileData) sourceFileDatas.get(sourceFileName);
-                if (sourceFileData == null) {
-                    sourceFileData = new SourceFileData(sourceFileName);
-                    sourceFileDatas.put(sourceFileName, sourceFileData);
-                }
-                sourceFileData.addClassData(classData);
+        Iterator iter = this.children.values().iterator();
+        while (iter.hasNext()) {
+            ClassData classData = (ClassData) iter.next();
+            String sourceFileName = classData.getSourceFileName();
+            SourceFileData sourceFileData = (SourceFileData) sourceFileDatas.get(sourceFileName);
+            if (sourceFileData == null) {
+                sourceFileData = new SourceFileData(sourceFileName);
+                sourceFileDatas.put(sourceFileName, sourceFileData);
             }
-        } finally {
-            lock.unlock();
+            sourceFileData.addClassData(classData);
         }
         return sourceFileDatas.values();
     }
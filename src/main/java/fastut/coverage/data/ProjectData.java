@@ -1,56 +1,146 @@
 package fastut.coverage.data;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.Timer;
 import java.util.TreeSet;
 
+import fastut.coverage.util.ConfigurationUtil;
 import fastut.coverage.util.FileLocker;
 
 public class ProjectData extends CoverageDataContainer implements HasBeenInstrumented {
 
     private static final long serialVersionUID = 6;
 
-    /** This collection is used for quicker access to the list of classes. */
-    private Map               classes          = new HashMap();
+    /**
+     * This collection is used for quicker access to the list of classes. It is copied on write, lookups from
+     * instrumented code never lock.
+     */
+    private volatile Map      classes          = new HashMap();
 
-    public void addClassData(ClassData classData) {
+    /** Milliseconds between two background flushes, 0 when coverage is only saved on exit. */
+    private static long       flushInterval;
+
+    /** Longest time in milliseconds a flush may spend draining the touches. */
+    private static long       flushMaxPause;
+
+    /** Size in bytes of the delta log above which it is folded into the data file. */
+    private static long       compactSize;
+
+    /** Classes still in the mapped data file, read when first asked for. */
+    private transient volatile CoverageDataFormat.ClassIndex unloadedClasses;
+
+    void setUnloadedClasses(CoverageDataFormat.ClassIndex unloadedClasses) {
         lock.lock();
         try {
-            String packageName = classData.getPackageName();
-            PackageData packageData = (PackageData) children.get(packageName);
-            if (packageData == null) {
-                packageData = new PackageData(packageName);
-                // Each key is a package name, stored as an String object.
-                // Each value is information about the package, stored as a PackageData object.
-                this.children.put(packageName, packageData);
+            this.unloadedClasses = unloadedClasses.size() > 0 ? unloadedClasses : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the class from the data file if it is there and has not been read yet.
+     */
+    private ClassData faultIn(String name) {
+        if (unloadedClasses == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            ClassData classData = (ClassData) this.classes.get(name);
+            if (classData != null || unloadedClasses == null) {
+                return classData;
             }
-            packageData.addClassData(classData);
-            this.classes.put(classData.getName(), classData);
+            classData = unloadedClasses.load(name);
+            if (classData != null) {
+                addClassData(classData);
+            }
+            if (unloadedClasses.size() == 0) {
+                unloadedClasses = null;
+            }
+            return classData;
         } finally {
             lock.unlock();
         }
     }
 
-    public ClassData getClassData(String name) {
+    /**
+     * Reads every class not read yet, for the operations that walk the whole project.
+     */
+    private void loadAll() {
+        if (unloadedClasses == null) {
+            return;
+        }
         lock.lock();
         try {
-            return (ClassData) this.classes.get(name);
+            if (unloadedClasses != null) {
+                List loaded = new ArrayList();
+                for (String name : unloadedClasses.names()) {
+                    loaded.add(unloadedClasses.load(name));
+                }
+                unloadedClasses = null;
+                addClasses(loaded);
+            }
         } finally {
             lock.unlock();
         }
     }
 
+    public void addClassData(ClassData classData) {
+        addClasses(Collections.singletonList(classData));
+    }
+
+    /**
+     * Adds the classes with a single copy of the class map.
+     */
+    void addClasses(Collection classDatas) {
+        lock.lock();
+        try {
+            Map classes = new HashMap(this.classes);
+            for (Iterator iter = classDatas.iterator(); iter.hasNext();) {
+                ClassData classData = (ClassData) iter.next();
+                String packageName = classData.getPackageName();
+                PackageData packageData = (PackageData) children.get(packageName);
+                if (packageData == null) {
+                    packageData = new PackageData(packageName);
+                    // Each key is a package name, stored as an String object.
+                    // Each value is information about the package, stored as a PackageData object.
+                    this.children.put(packageName, packageData);
+                }
+                packageData.addClassData(classData);
+                classes.put(classData.getName(), classData);
+            }
+            this.classes = classes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ClassData getClassData(String name) {
+        ClassData classData = (ClassData) this.classes.get(name);
+        return classData != null ? classData : faultIn(name);
+    }
+
     /**
      * This is called by instrumented bytecode.
      */
     public ClassData getOrCreateClassData(String name) {
+        ClassData classData = getClassData(name);
+        if (classData != null) {
+            return classData;
+        }
         lock.lock();
         try {
-            ClassData classData = (ClassData) this.classes.get(name);
+            classData = getClassData(name);
             if (classData == null) {
                 System.out.println("create new class data for " + name);
                 classData = new ClassData(name);
@@ -63,18 +153,18 @@ public class ProjectData extends CoverageDataContainer implements HasBeenInstrum
     }
 
     public Collection getClasses() {
-        lock.lock();
-        try {
-            return this.classes.values();
-        } finally {
-            lock.unlock();
-        }
+        loadAll();
+        return Collections.unmodifiableCollection(this.classes.values());
     }
 
     public int getNumberOfClasses() {
+        CoverageDataFormat.ClassIndex unloaded = unloadedClasses;
+        if (unloaded == null) {
+            return this.classes.size();
+        }
         lock.lock();
         try {
-            return this.classes.size();
+            return this.classes.size() + (unloadedClasses == null ? 0 : unloadedClasses.size());
         } finally {
             lock.unlock();
         }
@@ -85,25 +175,17 @@ public class ProjectData extends CoverageDataContainer implements HasBeenInstrum
     }
 
     public SortedSet getPackages() {
-        lock.lock();
-        try {
-            return new TreeSet(this.children.values());
-        } finally {
-            lock.unlock();
-        }
+        loadAll();
+        return new TreeSet(this.children.values());
     }
 
     public Collection getSourceFiles() {
         SortedSet sourceFileDatas = new TreeSet();
-        lock.lock();
-        try {
-            Iterator iter = this.children.values().iterator();
-            while (iter.hasNext()) {
-                PackageData packageData = (PackageData) iter.next();
-                sourceFileDatas.addAll(packageData.getSourceFiles());
-            }
-        } finally {
-            lock.unlock();
+        loadAll();
+        Iterator iter = this.children.values().iterator();
+        while (iter.hasNext()) {
+            PackageData packageData = (PackageData) iter.next();
+            sourceFileDatas.addAll(packageData.getSourceFiles());
         }
         return sourceFileDatas;
     }
@@ -117,38 +199,90 @@ public class ProjectData extends CoverageDataContainer implements HasBeenInstrum
      */
     public SortedSet getSubPackages(String packageName) {
         SortedSet subPackages = new TreeSet();
-        lock.lock();
-        try {
-            Iterator iter = this.children.values().iterator();
-            while (iter.hasNext()) {
-                PackageData packageData = (PackageData) iter.next();
-                if (packageData.getName().startsWith(packageName + ".") || packageData.getName().equals(packageName)
-                    || packageName.equals("")) subPackages.add(packageData);
-            }
-        } finally {
-            lock.unlock();
+        loadAll();
+        Iterator iter = this.children.values().iterator();
+        while (iter.hasNext()) {
+            PackageData packageData = (PackageData) iter.next();
+            if (packageData.getName().startsWith(packageName + ".") || packageData.getName().equals(packageName)
+                || packageName.equals("")) subPackages.add(packageData);
         }
         return subPackages;
     }
 
+    public boolean equals(Object obj) {
+        loadAll();
+        if (obj instanceof ProjectData) {
+            ((ProjectData) obj).loadAll();
+        }
+        return super.equals(obj);
+    }
+
+    public int hashCode() {
+        loadAll();
+        return super.hashCode();
+    }
+
+    public double getBranchCoverageRate() {
+        loadAll();
+        return super.getBranchCoverageRate();
+    }
+
+    public CoverageData getChild(String name) {
+        loadAll();
+        return super.getChild(name);
+    }
+
+    public double getLineCoverageRate() {
+        loadAll();
+        return super.getLineCoverageRate();
+    }
+
+    public int getNumberOfChildren() {
+        loadAll();
+        return super.getNumberOfChildren();
+    }
+
+    public int getNumberOfCoveredBranches() {
+        loadAll();
+        return super.getNumberOfCoveredBranches();
+    }
+
+    public int getNumberOfCoveredLines() {
+        loadAll();
+        return super.getNumberOfCoveredLines();
+    }
+
+    public int getNumberOfValidBranches() {
+        loadAll();
+        return super.getNumberOfValidBranches();
+    }
+
+    public int getNumberOfValidLines() {
+        loadAll();
+        return super.getNumberOfValidLines();
+    }
+
     public void merge(CoverageData coverageData) {
         if (coverageData == null) {
             return;
         }
         ProjectData projectData = (ProjectData) coverageData;
-        getBothLocks(projectData);
+        loadAll();
+        projectData.loadAll();
+        lock.lock();
         try {
             super.merge(coverageData);
 
+            Map classes = new HashMap(this.classes);
             for (Iterator iter = projectData.classes.keySet().iterator(); iter.hasNext();) {
                 Object key = iter.next();
-                if (!this.classes.containsKey(key)) {
-                    this.classes.put(key, projectData.classes.get(key));
+                if (!classes.containsKey(key)) {
+                    classes.put(key, projectData.classes.get(key));
                 }
             }
+            this.classes = classes;
         } finally {
             lock.unlock();
-            projectData.lock.unlock();
         }
     }
 
@@ -173,107 +307,113 @@ public class ProjectData extends CoverageDataContainer implements HasBeenInstrum
             SourceFileData.class.toString();
         }
 
+        ConfigurationUtil config = new ConfigurationUtil();
+        flushInterval = Long.parseLong(config.getProperty("fastut.flush.interval", "0"));
+        flushMaxPause = Long.parseLong(config.getProperty("fastut.flush.maxPause", "50"));
+        compactSize = Long.parseLong(config.getProperty("fastut.delta.compactSize", "4194304"));
+
+        /*
+         * A note about saving on exit: Cobertura uses static fields to hold the data. When there are multiple
+         * classloaders, each classloader will keep track of the line counts for the classes that it loads. The static
+         * initializers for the Cobertura classes are also called for each classloader. So, there is one shutdown hook
+         * for each classloader. So, when the JVM exits, each shutdown hook will try to write the data it has kept to
+         * the datafile. They will do this at the same time. Before Java 6, this seemed to work fine, but with Java 6,
+         * there seems to have been a change with how file locks are implemented. So, care has to be taken to make sure
+         * only one thread locks a file at a time. So, CoverageDeltaLog synchronizes on the string that represents the
+         * path to the log. Apparently, there will be only one of these in the JVM even if there are multiple
+         * classloaders. I assume that is because the String class is loaded by the JVM's root classloader.
+         */
+
         // Add a hook to save the data when the JVM exits
-        Runtime.getRuntime().addShutdownHook(new Thread(new SaveTimer()));
+        Runtime.getRuntime().addShutdownHook(new Thread(new SaveTimer(true)));
+
+        // The generator reads the touches itself, so only flush periodically when asked to
+        if (flushInterval > 0) {
+            Timer timer = new Timer("fastut-coverage-flush", true);
+            timer.schedule(new SaveTimer(false), flushInterval, flushInterval);
+        }
+    }
 
-        // Possibly also save the coverage data every x seconds?
-        // Timer timer = new Timer(true);
-        // timer.schedule(saveTimer, 100);
+    /**
+     * Appends the touches gathered since the last flush to the delta log of the data file. Instrumented threads are
+     * never stopped; draining the touches blocks other readers of the TouchCollector for at most fastut.flush.maxPause
+     * milliseconds, what is left is written by the next flush. Runs every fastut.flush.interval milliseconds when set.
+     */
+    public static void flushGlobalProjectData() {
+        ProjectData delta = new ProjectData();
+        TouchCollector.drainTouchesOnProjectData(delta, flushMaxPause);
+        saveDelta(delta, true);
     }
 
-    // TODO
     public static ProjectData getDefault() {
         File dataFile = CoverageDataFileHandler.getDefaultDataFile();
-
-        synchronized (dataFile.getPath().intern()) {
-            FileLocker fileLocker = new FileLocker(dataFile);
-
-            try {
-                // Read the old data, merge our current data into it, then
-                // write a new ser file.
-                if (fileLocker.lock()) {
-                    return loadCoverageDataFromDatafile(dataFile);
-                }
-            } finally {
-                // Release the file lock
-                fileLocker.release();
-            }
+        ProjectData projectData = new CoverageDeltaLog(dataFile).load();
+        if (projectData == null) {
+            // We could not read from the serialized file, so use a new object.
+            System.out.println("Cobertura: Coverage data file " + dataFile.getAbsolutePath()
+                               + " either does not exist or is not readable.  Creating a new data file.");
         }
-        return null;
+        return projectData;
     }
 
+    /**
+     * Appends the touches of this JVM to the delta log; the data file itself is only rewritten by a compaction.
+     */
     public static void saveGlobalProjectData() {
         ProjectData projectDataToSave = new ProjectData();
 
         TouchCollector.applyTouchesOnProjectData(projectDataToSave);
+        // no compaction on exit, the JVM would not wait for it
+        saveDelta(projectDataToSave, false);
+    }
 
-        // Get a file lock
-        File dataFile = CoverageDataFileHandler.getDefaultDataFile();
-
-        /*
-         * A note about the next synchronized block: Cobertura uses static fields to hold the data. When there are
-         * multiple classloaders, each classloader will keep track of the line counts for the classes that it loads. The
-         * static initializers for the Cobertura classes are also called for each classloader. So, there is one shutdown
-         * hook for each classloader. So, when the JVM exits, each shutdown hook will try to write the data it has kept
-         * to the datafile. They will do this at the same time. Before Java 6, this seemed to work fine, but with Java
-         * 6, there seems to have been a change with how file locks are implemented. So, care has to be taken to make
-         * sure only one thread locks a file at a time. So, we will synchronize on the string that represents the path
-         * to the dataFile. Apparently, there will be only one of these in the JVM even if there are multiple
-         * classloaders. I assume that is because the String class is loaded by the JVM's root classloader.
-         */
-        synchronized (dataFile.getPath().intern()) {
-            FileLocker fileLocker = new FileLocker(dataFile);
+    /**
+     * Like {@link #saveGlobalProjectData()}, also saving the lines and branches of the classes instrumented in this JVM
+     * whether they were hit or not. For instrumentation that does not go through the data file, like the java agent.
+     */
+    public static void saveGlobalProjectData(ProjectData instrumentationData) {
+        TouchCollector.applyTouchesOnProjectData(instrumentationData);
+        saveDelta(instrumentationData, false);
+    }
 
+    private static void saveDelta(ProjectData delta, boolean compact) {
+        if (delta.getNumberOfClasses() == 0) {
+            return;
+        }
+        // with a shared file every JVM adds its counts in place
+        SharedCoverageFile sharedFile = SharedCoverageFile.getDefault();
+        if (sharedFile != null) {
             try {
-                // Read the old data, merge our current data into it, then
-                // write a new ser file.
-                if (fileLocker.lock()) {
-                    ProjectData datafileProjectData = loadCoverageDataFromDatafile(dataFile);
-                    if (datafileProjectData == null) {
-                        datafileProjectData = projectDataToSave;
-                    } else {
-                        datafileProjectData.merge(projectDataToSave);
-                    }
-                    CoverageDataFileHandler.saveCoverageData(datafileProjectData, dataFile);
-                }
-            } finally {
-                // Release the file lock
-                fileLocker.release();
+                sharedFile.add(delta);
+                return;
+            } catch (IOException e) {
+                System.err.println("FastUT: Error writing shared coverage file " + sharedFile.getFile() + ": "
+                                   + e.getLocalizedMessage() + ", falling back to the delta log.");
             }
         }
-    }
-
-    private static ProjectData loadCoverageDataFromDatafile(File dataFile) {
-        ProjectData projectData = null;
 
-        // Read projectData from the serialized file.
-        if (dataFile.isFile()) {
-            projectData = CoverageDataFileHandler.loadCoverageData(dataFile);
+        CoverageDeltaLog deltaLog = new CoverageDeltaLog(CoverageDataFileHandler.getDefaultDataFile());
+        try {
+            deltaLog.append(delta);
+        } catch (IOException e) {
+            System.err.println("FastUT: Error appending to " + deltaLog.getLogFile().getAbsolutePath() + ": "
+                               + e.getLocalizedMessage());
+            return;
         }
-
-        if (projectData == null) {
-            // We could not read from the serialized file, so use a new object.
-            System.out.println("Cobertura: Coverage data file " + dataFile.getAbsolutePath()
-                               + " either does not exist or is not readable.  Creating a new data file.");
+        if (compact && deltaLog.size() > compactSize) {
+            deltaLog.compactInBackground();
         }
-
-        return projectData;
     }
 
     @Override
     public void reset() {
-        lock.lock();
-        try {
-            Iterator iter = classes.keySet().iterator();
-            while (iter.hasNext()) {
-                Object key = iter.next();
-                ClassData data = (ClassData) classes.get(key);
-                if (data != null) {
-                    data.reset();
-                }
+        loadAll();
+        Iterator iter = classes.values().iterator();
+        while (iter.hasNext()) {
+            ClassData data = (ClassData) iter.next();
+            if (data != null) {
+                data.reset();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -2,12 +2,29 @@ package fastut.coverage.data;
 
 import java.util.TimerTask;
 
+/**
+ * Saves the touches of this JVM, periodically as a flush or once on exit.
+ */
 public class SaveTimer extends TimerTask implements HasBeenInstrumented
 {
 
+    private final boolean onExit;
+
+    /**
+     * @param onExit whether this is the shutdown hook, which saves whatever the flush interval is
+     */
+    public SaveTimer(boolean onExit)
+    {
+        this.onExit = onExit;
+    }
+
     public void run()
     {
-        //ProjectData.saveGlobalProjectData();
+        if (onExit) {
+            ProjectData.saveGlobalProjectData();
+        } else {
+            ProjectData.flushGlobalProjectData();
+        }
     }
 
 }
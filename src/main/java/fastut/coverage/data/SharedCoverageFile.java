@@ -0,0 +1,512 @@
+package fastut.coverage.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import fastut.coverage.util.ConfigurationUtil;
+
+/**
+ * <p>
+ * Coverage probes of many JVMs kept in one memory-mapped file. Every class owns a region of long counters, allocated
+ * at the end of the file. Counts are added in place, so flushing never loads, merges or rewrites the file, and
+ * {@link #read()} returns the live state while JVMs are still running.
+ * </p>
+ * <p>
+ * Allocating a region and adding to its counters both happen under a lock on the file header, so two JVMs never lose
+ * each other's increments, and a JVM never adds to a region another one has just replaced.
+ * </p>
+ *
+ * <pre>
+ * header: int magic "FUTS", int version, long end of the last region
+ * region: int length, int offset of the region replacing it (0 if live), int probe count,
+ *         UTF class name, int line count, per line: int line number, UTF method name, UTF method descriptor,
+ *         int jump count, int switch count, per switch: int key count, int[] keys, int branch count,
+ *         padding to 8 bytes, long[probe count] counters
+ * </pre>
+ *
+ * Probes of a line are its hits, then true and false hits of each jump, then default and branch hits of each switch.
+ * A class whose lines or branches are not all in its region gets a larger region holding the union of both layouts.
+ */
+public class SharedCoverageFile implements HasBeenInstrumented {
+
+    public static final int           MAGIC         = 0x46555453;
+
+    public static final int           VERSION       = 1;
+
+    private static final int          HEADER_SIZE   = 16;
+
+    private static final int          INITIAL_SIZE  = 1 << 20;
+
+    private static final Charset      UTF8          = Charset.forName("UTF-8");
+
+    private static SharedCoverageFile defaultFile;
+
+    private final File                file;
+    private final RandomAccessFile    raf;
+    private final FileChannel         channel;
+    private MappedByteBuffer          buffer;
+    /** live region of each class seen so far */
+    private final Map<String, Region> regions       = new HashMap<String, Region>();
+    /** end of the regions already scanned into the map */
+    private long                      scanned       = HEADER_SIZE;
+
+    /**
+     * @return the file configured with fastut.shared.datafile, or null when there is none
+     */
+    public static synchronized SharedCoverageFile getDefault() {
+        if (defaultFile == null) {
+            String path = new ConfigurationUtil().getSharedDatafile();
+            if (path == null) {
+                return null;
+            }
+            try {
+                defaultFile = new SharedCoverageFile(new File(path));
+            } catch (IOException e) {
+                System.err.println("FastUT: Error opening shared coverage file " + path + ": "
+                                   + e.getLocalizedMessage());
+                return null;
+            }
+        }
+        return defaultFile;
+    }
+
+    public SharedCoverageFile(File file) throws IOException{
+        this.file = file;
+        File dataDir = file.getAbsoluteFile().getParentFile();
+        if ((dataDir != null) && !dataDir.exists()) {
+            dataDir.mkdirs();
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                raf.setLength(INITIAL_SIZE);
+                map();
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putLong(8, HEADER_SIZE);
+            } else {
+                map();
+                if (buffer.getInt(0) != MAGIC) {
+                    throw new IOException("Not a FastUT shared coverage file.");
+                }
+                if (buffer.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported shared coverage version " + buffer.getInt(4) + ", expected "
+                                          + VERSION + ".");
+                }
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Adds the hits of every class of the project data to the shared counters.
+     */
+    public synchronized void add(ProjectData projectData) throws IOException {
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            for (Iterator<?> iter = projectData.getClasses().iterator(); iter.hasNext();) {
+                ClassData classData = (ClassData) iter.next();
+                SortedMap<Integer, LineLayout> layout = layoutOf(classData);
+                // under the lock, so the moved marker read here still holds when the counts land
+                Region region = findRegion(classData.getName());
+                if (region == null || !region.covers(layout)) {
+                    region = allocate(classData.getName(), layout);
+                }
+                region.add(classData);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return the current counters of all classes
+     */
+    public synchronized ProjectData read() throws IOException {
+        List<ClassData> classes = new ArrayList<ClassData>(regions.size());
+        FileLock lock = channel.lock(0, HEADER_SIZE, true);
+        try {
+            scan();
+            for (Region region : regions.values()) {
+                classes.add(region.toClassData());
+            }
+        } finally {
+            lock.release();
+        }
+        ProjectData projectData = new ProjectData();
+        projectData.addClasses(classes);
+        return projectData;
+    }
+
+    public synchronized void close() {
+        try {
+            channel.close();
+            raf.close();
+        } catch (IOException e) {
+            System.err.println("FastUT: Error closing shared coverage file " + file.getAbsolutePath() + ": "
+                               + e.getLocalizedMessage());
+        }
+    }
+
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    private void ensureMapped(long end) throws IOException {
+        if (end > buffer.capacity()) {
+            map();
+        }
+    }
+
+    private Region findRegion(String name) throws IOException {
+        Region region = regions.get(name);
+        if (region == null || buffer.getInt(region.offset + 4) != 0) {
+            scan();
+            region = regions.get(name);
+        }
+        return region;
+    }
+
+    /**
+     * Reads the regions other JVMs appended since the last scan.
+     */
+    private void scan() throws IOException {
+        long end = buffer.getLong(8);
+        ensureMapped(end);
+        while (scanned < end) {
+            Region region = new Region((int) scanned);
+            scanned += buffer.getInt(region.offset);
+            regions.put(region.name, region);
+        }
+        // a region may have been replaced after we scanned it
+        for (Iterator<Map.Entry<String, Region>> iter = regions.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<String, Region> entry = iter.next();
+            int movedTo = buffer.getInt(entry.getValue().offset + 4);
+            if (movedTo != 0) {
+                entry.setValue(new Region(movedTo));
+            }
+        }
+    }
+
+    /**
+     * Appends a region for the layout, holding the counts of the region it replaces. Called with the header locked.
+     */
+    private Region allocate(String name, SortedMap<Integer, LineLayout> layout) throws IOException {
+        Region old = findRegion(name);
+        if (old != null) {
+            for (Map.Entry<Integer, LineLayout> entry : old.layout.entrySet()) {
+                LineLayout line = layout.get(entry.getKey());
+                layout.put(entry.getKey(), line == null ? entry.getValue() : line.union(entry.getValue()));
+            }
+        }
+
+        byte[] header = encodeHeader(name, layout);
+        int probes = 0;
+        for (LineLayout line : layout.values()) {
+            probes += line.probeCount();
+        }
+        int countersAt = (12 + header.length + 7) & ~7;
+        int length = countersAt + probes * 8;
+        long offset = buffer.getLong(8);
+        if (offset + length > Integer.MAX_VALUE) {
+            throw new IOException("Shared coverage file " + file.getAbsolutePath() + " is full.");
+        }
+        if (offset + length > channel.size()) {
+            raf.setLength(Math.max(channel.size() * 2, offset + length));
+        }
+        ensureMapped(offset + length);
+        int at = (int) offset;
+        buffer.putInt(at, length);
+        buffer.putInt(at + 4, 0);
+        buffer.putInt(at + 8, probes);
+        ByteBuffer view = buffer.duplicate();
+        view.position(at + 12);
+        view.put(header);
+        buffer.putLong(8, offset + length);
+
+        Region region = new Region(at);
+        if (old != null) {
+            region.copyFrom(old);
+            buffer.putInt(old.offset + 4, at);
+        }
+        regions.put(name, region);
+        return region;
+    }
+
+    private static byte[] encodeHeader(String name, SortedMap<Integer, LineLayout> layout) {
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        out = putUTF(out, name);
+        out = ensure(out, 4);
+        out.putInt(layout.size());
+        for (Map.Entry<Integer, LineLayout> entry : layout.entrySet()) {
+            LineLayout line = entry.getValue();
+            out = ensure(out, 4);
+            out.putInt(entry.getKey());
+            out = putUTF(out, line.methodName);
+            out = putUTF(out, line.methodDescriptor);
+            out = ensure(out, 8);
+            out.putInt(line.jumps);
+            out.putInt(line.switchKeys.size());
+            for (int i = 0; i < line.switchKeys.size(); ++i) {
+                int[] keys = line.switchKeys.get(i);
+                out = ensure(out, 8 + keys.length * 4);
+                out.putInt(keys.length);
+                for (int key : keys) {
+                    out.putInt(key);
+                }
+                out.putInt(line.switchBranches.get(i));
+            }
+        }
+        byte[] bytes = new byte[out.position()];
+        out.flip();
+        out.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer out, int bytes) {
+        if (out.remaining() >= bytes) {
+            return out;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+        out.flip();
+        bigger.put(out);
+        return bigger;
+    }
+
+    private static ByteBuffer putUTF(ByteBuffer out, String str) {
+        byte[] bytes = (str == null ? "" : str).getBytes(UTF8);
+        out = ensure(out, 2 + bytes.length);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+        return out;
+    }
+
+    private static String getUTF(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return bytes.length == 0 ? null : new String(bytes, UTF8);
+    }
+
+    private static SortedMap<Integer, LineLayout> layoutOf(ClassData classData) {
+        SortedMap<Integer, LineLayout> layout = new TreeMap<Integer, LineLayout>();
+        for (CoverageData data : classData.getLines()) {
+            LineData lineData = (LineData) data;
+            LineLayout line = new LineLayout(lineData.getMethodName(), lineData.getMethodDescriptor());
+            for (int i = 0; i < lineData.getConditionSize(); ++i) {
+                Object condition = lineData.getConditionData(i);
+                if (condition instanceof JumpData) {
+                    line.jumps++;
+                } else {
+                    SwitchData switchData = (SwitchData) condition;
+                    line.switchKeys.add(switchData.getKeys());
+                    line.switchBranches.add(switchData.getHitArray().length);
+                }
+            }
+            layout.put(lineData.getLineNumber(), line);
+        }
+        return layout;
+    }
+
+    private static class LineLayout {
+
+        final String        methodName;
+        final String        methodDescriptor;
+        int                 jumps;
+        final List<int[]>   switchKeys     = new ArrayList<int[]>();
+        final List<Integer> switchBranches = new ArrayList<Integer>();
+
+        LineLayout(String methodName, String methodDescriptor){
+            this.methodName = methodName;
+            this.methodDescriptor = methodDescriptor;
+        }
+
+        int probeCount() {
+            int count = 1 + jumps * 2;
+            for (int branches : switchBranches) {
+                count += 1 + branches;
+            }
+            return count;
+        }
+
+        boolean covers(LineLayout other) {
+            if (jumps < other.jumps || switchBranches.size() < other.switchBranches.size()) {
+                return false;
+            }
+            for (int i = 0; i < other.switchBranches.size(); ++i) {
+                if (switchBranches.get(i) < other.switchBranches.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        LineLayout union(LineLayout other) {
+            LineLayout line = new LineLayout(methodName != null ? methodName : other.methodName,
+                                             methodDescriptor != null ? methodDescriptor : other.methodDescriptor);
+            line.jumps = Math.max(jumps, other.jumps);
+            for (int i = 0; i < Math.max(switchBranches.size(), other.switchBranches.size()); ++i) {
+                int[] keys = i < switchKeys.size() ? switchKeys.get(i) : new int[0];
+                int[] otherKeys = i < other.switchKeys.size() ? other.switchKeys.get(i) : new int[0];
+                int branches = i < switchBranches.size() ? switchBranches.get(i) : 0;
+                int otherBranches = i < other.switchBranches.size() ? other.switchBranches.get(i) : 0;
+                line.switchKeys.add(keys.length >= otherKeys.length ? keys : otherKeys);
+                line.switchBranches.add(Math.max(branches, otherBranches));
+            }
+            return line;
+        }
+    }
+
+    /**
+     * A class region as found in the file, with the probe index of each line.
+     */
+    private class Region {
+
+        final int                            offset;
+        final String                         name;
+        final SortedMap<Integer, LineLayout> layout     = new TreeMap<Integer, LineLayout>();
+        final Map<Integer, Integer>          firstProbe = new HashMap<Integer, Integer>();
+        final int                            countersAt;
+
+        Region(int offset){
+            this.offset = offset;
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset + 12);
+            name = getUTF(in);
+            int probe = 0;
+            for (int lines = in.getInt(); lines > 0; --lines) {
+                int lineNumber = in.getInt();
+                LineLayout line = new LineLayout(getUTF(in), getUTF(in));
+                line.jumps = in.getInt();
+                for (int switches = in.getInt(); switches > 0; --switches) {
+                    int[] keys = new int[in.getInt()];
+                    for (int i = 0; i < keys.length; ++i) {
+                        keys[i] = in.getInt();
+                    }
+                    line.switchKeys.add(keys);
+                    line.switchBranches.add(in.getInt());
+                }
+                layout.put(lineNumber, line);
+                firstProbe.put(lineNumber, probe);
+                probe += line.probeCount();
+            }
+            countersAt = offset + ((in.position() - offset + 7) & ~7);
+        }
+
+        boolean covers(SortedMap<Integer, LineLayout> other) {
+            for (Map.Entry<Integer, LineLayout> entry : other.entrySet()) {
+                LineLayout line = layout.get(entry.getKey());
+                if (line == null || !line.covers(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addTo(int probe, long hits) {
+            if (hits != 0) {
+                int at = countersAt + probe * 8;
+                buffer.putLong(at, buffer.getLong(at) + hits);
+            }
+        }
+
+        private long get(int probe) {
+            return buffer.getLong(countersAt + probe * 8);
+        }
+
+        void add(ClassData classData) {
+            for (CoverageData data : classData.getLines()) {
+                LineData lineData = (LineData) data;
+                int probe = firstProbe.get(lineData.getLineNumber());
+                LineLayout line = layout.get(lineData.getLineNumber());
+                addTo(probe, lineData.getHits());
+                int jumpProbe = probe + 1;
+                int switchProbe = probe + 1 + line.jumps * 2;
+                int switchIndex = 0;
+                for (int i = 0; i < lineData.getConditionSize(); ++i) {
+                    Object condition = lineData.getConditionData(i);
+                    if (condition instanceof JumpData) {
+                        JumpData jumpData = (JumpData) condition;
+                        addTo(jumpProbe + jumpData.getConditionNumber() * 2, jumpData.getTrueHits());
+                        addTo(jumpProbe + jumpData.getConditionNumber() * 2 + 1, jumpData.getFalseHits());
+                    } else {
+                        SwitchData switchData = (SwitchData) condition;
+                        long[] hits = switchData.getHitArray();
+                        addTo(switchProbe, switchData.getDefaultHits());
+                        for (int j = 0; j < hits.length; ++j) {
+                            addTo(switchProbe + 1 + j, hits[j]);
+                        }
+                        switchProbe += 1 + line.switchBranches.get(switchIndex++);
+                    }
+                }
+            }
+        }
+
+        void copyFrom(Region old) {
+            for (Map.Entry<Integer, LineLayout> entry : old.layout.entrySet()) {
+                LineLayout oldLine = entry.getValue();
+                LineLayout line = layout.get(entry.getKey());
+                int from = old.firstProbe.get(entry.getKey());
+                int to = firstProbe.get(entry.getKey());
+                addTo(to, old.get(from));
+                for (int j = 0; j < oldLine.jumps * 2; ++j) {
+                    addTo(to + 1 + j, old.get(from + 1 + j));
+                }
+                int oldSwitch = from + 1 + oldLine.jumps * 2;
+                int newSwitch = to + 1 + line.jumps * 2;
+                for (int s = 0; s < oldLine.switchBranches.size(); ++s) {
+                    for (int j = 0; j <= oldLine.switchBranches.get(s); ++j) {
+                        addTo(newSwitch + j, old.get(oldSwitch + j));
+                    }
+                    oldSwitch += 1 + oldLine.switchBranches.get(s);
+                    newSwitch += 1 + line.switchBranches.get(s);
+                }
+            }
+        }
+
+        ClassData toClassData() {
+            ClassData classData = new ClassData(name);
+            for (Map.Entry<Integer, LineLayout> entry : layout.entrySet()) {
+                int lineNumber = entry.getKey();
+                LineLayout line = entry.getValue();
+                int probe = firstProbe.get(lineNumber);
+                LineData lineData = classData.addLine(lineNumber, line.methodName, line.methodDescriptor);
+                lineData.setHits(get(probe++));
+                for (int j = 0; j < line.jumps; ++j) {
+                    classData.addLineJump(lineNumber, j);
+                    lineData.getJumpData(j).setHits(get(probe), get(probe + 1));
+                    probe += 2;
+                }
+                for (int s = 0; s < line.switchBranches.size(); ++s) {
+                    classData.addLineSwitch(lineNumber, s, line.switchKeys.get(s));
+                    long defaultHits = get(probe++);
+                    long[] hits = new long[line.switchBranches.get(s)];
+                    for (int j = 0; j < hits.length; ++j) {
+                        hits[j] = get(probe++);
+                    }
+                    lineData.getSwitchData(s, null).setHits(defaultHits, hits);
+                }
+            }
+            return classData;
+        }
+    }
+}
@@ -46,26 +46,16 @@ public class SourceFileData extends CoverageDataContainer implements Comparable<
     }
 
     public boolean contains(String name) {
-        lock.lock();
-        try {
-            return this.children.containsKey(name);
-        } finally {
-            lock.unlock();
-        }
+        return this.children.containsKey(name);
     }
 
     public boolean containsInstrumentationInfo() {
-        lock.lock();
-        try {
-            // Return false if any of our child ClassData's does not
-            // contain instrumentation info
-            Iterator iter = this.children.values().iterator();
-            while (iter.hasNext()) {
-                ClassData classData = (ClassData) iter.next();
-                if (!classData.containsInstrumentationInfo()) return false;
-            }
-        } finally {
-            lock.unlock();
+        // Return false if any of our child ClassData's does not
+        // contain instrumentation info
+        Iterator iter = this.children.values().iterator();
+        while (iter.hasNext()) {
+            ClassData classData = (ClassData) iter.next();
+            if (!classData.containsInstrumentationInfo()) return false;
         }
         return true;
     }
@@ -79,13 +69,7 @@ public class SourceFileData extends CoverageDataContainer implements Comparable<
         if ((obj == null) || !(obj.getClass().equals(this.getClass()))) return false;
 
         SourceFileData sourceFileData = (SourceFileData) obj;
-        getBothLocks(sourceFileData);
-        try {
-            return super.equals(obj) && this.name.equals(sourceFileData.name);
-        } finally {
-            lock.unlock();
-            sourceFileData.lock.unlock();
-        }
+        return super.equals(obj) && this.name.equals(sourceFileData.name);
     }
 
     public String getBaseName() {
@@ -105,24 +89,14 @@ public class SourceFileData extends CoverageDataContainer implements Comparable<
     }
 
     public SortedSet getClasses() {
-        lock.lock();
-        try {
-            return new TreeSet(this.children.values());
-        } finally {
-            lock.unlock();
-        }
+        return new TreeSet(this.children.values());
     }
 
     public LineData getLineCoverage(int lineNumber) {
-        lock.lock();
-        try {
-            Iterator iter = this.children.values().iterator();
-            while (iter.hasNext()) {
-                ClassData classData = (ClassData) iter.next();
-                if (classData.isValidSourceLineNumber(lineNumber)) return classData.getLineCoverage(lineNumber);
-            }
-        } finally {
-            lock.unlock();
+        Iterator iter = this.children.values().iterator();
+        while (iter.hasNext()) {
+            ClassData classData = (ClassData) iter.next();
+            if (classData.isValidSourceLineNumber(lineNumber)) return classData.getLineCoverage(lineNumber);
         }
         return null;
     }
@@ -164,15 +138,10 @@ public class SourceFileData extends CoverageDataContainer implements Comparable<
     }
 
     public boolean isValidSourceLineNumber(int lineNumber) {
-        lock.lock();
-        try {
-            Iterator iter = this.children.values().iterator();
-            while (iter.hasNext()) {
-                ClassData classData = (ClassData) iter.next();
-                if (classData.isValidSourceLineNumber(lineNumber)) return true;
-            }
-        } finally {
-            lock.unlock();
+        Iterator iter = this.children.values().iterator();
+        while (iter.hasNext()) {
+            ClassData classData = (ClassData) iter.next();
+            if (classData.isValidSourceLineNumber(lineNumber)) return true;
         }
         return false;
     }
@@ -2,119 +2,129 @@ package fastut.coverage.data;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * <p>
  * This class implements HasBeenInstrumented so that when cobertura instruments itself, it will omit this class. It does
  * this to avoid an infinite recursion problem because instrumented classes make use of this class.
  * </p>
+ * <p>
+ * Hits are counted in an AtomicLongArray. It is only replaced, under the monitor, when a branch beyond the keys known
+ * from instrumentation is touched.
+ * </p>
  */
 public class SwitchData implements BranchCoverageData, Comparable<Object>, Serializable, HasBeenInstrumented {
 
-    private static final long serialVersionUID = 9;
+    private static final long                               serialVersionUID = 9;
 
-    private transient Lock    lock;
+    private static final AtomicLongFieldUpdater<SwitchData> DEFAULT_HITS     = AtomicLongFieldUpdater.newUpdater(SwitchData.class,
+                                                                                                                 "defaultHits");
 
-    private int               switchNumber;
+    private int                                             switchNumber;
 
-    private long              defaultHits;
+    private volatile long                                   defaultHits;
 
-    private long[]            hits;
+    private transient volatile AtomicLongArray              hitCounts;
 
-    private int[]             keys;
+    /** The serialized form of hitCounts. */
+    private long[]                                          hits;
+
+    private volatile int[]                                  keys;
 
     public SwitchData(int switchNumber, int[] keys){
         super();
         this.switchNumber = switchNumber;
         defaultHits = 0;
-        hits = new long[keys.length];
-        Arrays.fill(hits, 0);
+        hitCounts = new AtomicLongArray(keys.length);
         this.keys = new int[keys.length];
         System.arraycopy(keys, 0, this.keys, 0, keys.length);
-        initLock();
     }
 
     public SwitchData(int switchNumber, int min, int max){
         super();
         this.switchNumber = switchNumber;
         defaultHits = 0;
-        hits = new long[max - min + 1];
-        Arrays.fill(hits, 0);
-        this.keys = new int[max - min + 1];
+        hitCounts = new AtomicLongArray(max - min + 1);
+        int[] keys = new int[max - min + 1];
         for (int i = 0; min <= max; keys[i++] = min++)
             ;
-        initLock();
+        this.keys = keys;
     }
 
     public SwitchData(int switchNumber){
         this(switchNumber, new int[0]);
     }
 
-    private void initLock() {
-        lock = new ReentrantLock();
-    }
-
     public int compareTo(Object o) {
         if (!o.getClass().equals(SwitchData.class)) return Integer.MAX_VALUE;
         return this.switchNumber - ((SwitchData) o).switchNumber;
     }
 
     void touchBranch(int branch, int new_hits) {
-        lock.lock();
-        try {
-            if (branch == -1) defaultHits++;
-            else {
-                if (hits.length <= branch) {
-                    long[] old = hits;
-                    hits = new long[branch + 1];
-                    System.arraycopy(old, 0, hits, 0, old.length);
-                    Arrays.fill(hits, old.length, hits.length - 1, 0);
+        if (branch == -1) DEFAULT_HITS.addAndGet(this, new_hits);
+        else counts(branch + 1).addAndGet(branch, new_hits);
+    }
+
+    /**
+     * @return the counters, grown to at least length entries
+     */
+    private AtomicLongArray counts(int length) {
+        AtomicLongArray counts = hitCounts;
+        if (counts.length() >= length) {
+            return counts;
+        }
+        synchronized (this) {
+            counts = hitCounts;
+            if (counts.length() < length) {
+                AtomicLongArray grown = new AtomicLongArray(length);
+                for (int i = counts.length() - 1; i >= 0; i--) {
+                    grown.set(i, counts.get(i));
                 }
-                hits[branch] += new_hits;
+                hitCounts = counts = grown;
             }
-        } finally {
-            lock.unlock();
+            return counts;
         }
     }
 
+    void setHits(long defaultHits, long[] hits) {
+        this.defaultHits = defaultHits;
+        this.hitCounts = new AtomicLongArray(hits);
+    }
+
+    int[] getKeys() {
+        return keys.clone();
+    }
+
+    long[] getHitArray() {
+        AtomicLongArray counts = hitCounts;
+        long[] hits = new long[counts.length()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = counts.get(i);
+        }
+        return hits;
+    }
+
     public int getSwitchNumber() {
         return this.switchNumber;
     }
 
     public long getHits(int branch) {
-        lock.lock();
-        try {
-            if (hits.length > branch) return hits[branch];
-            return -1;
-        } finally {
-            lock.unlock();
-        }
+        AtomicLongArray counts = hitCounts;
+        if (counts.length() > branch) return counts.get(branch);
+        return -1;
     }
 
     public long getDefaultHits() {
-        lock.lock();
-        try {
-            return defaultHits;
-        } finally {
-            lock.unlock();
-        }
+        return defaultHits;
     }
 
     public double getBranchCoverageRate() {
-        lock.lock();
-        try {
-            int branches = hits.length + 1;
-            int hit = (defaultHits > 0) ? 1 : 0;
-            for (int i = hits.length - 1; i >= 0; hit += ((hits[i--] > 0) ? 1 : 0))
-                ;
-            return ((double) hit) / branches;
-        } finally {
-            lock.unlock();
-        }
+        return ((double) getNumberOfCoveredBranches()) / getNumberOfValidBranches();
     }
 
     public boolean equals(Object obj) {
@@ -122,14 +132,9 @@ public class SwitchData implements BranchCoverageData, Comparable<Object>, Seria
         if ((obj == null) || !(obj.getClass().equals(this.getClass()))) return false;
 
         SwitchData switchData = (SwitchData) obj;
-        getBothLocks(switchData);
-        try {
-            return (this.defaultHits == switchData.defaultHits) && (Arrays.equals(this.hits, switchData.hits))
-                   && (this.switchNumber == switchData.switchNumber);
-        } finally {
-            lock.unlock();
-            switchData.lock.unlock();
-        }
+        return (this.defaultHits == switchData.defaultHits)
+               && (Arrays.equals(this.getHitArray(), switchData.getHitArray()))
+               && (this.switchNumber == switchData.switchNumber);
     }
 
     public int hashCode() {
@@ -137,94 +142,50 @@ public class SwitchData implements BranchCoverageData, Comparable<Object>, Seria
     }
 
     public int getNumberOfCoveredBranches() {
-        lock.lock();
-        try {
-            int ret = (defaultHits > 0) ? 1 : 0;
-            for (int i = hits.length - 1; i >= 0; i--) {
-                if (hits[i] > 0) ret++;
-            }
-            return ret;
-        } finally {
-            lock.unlock();
+        AtomicLongArray counts = hitCounts;
+        int ret = (defaultHits > 0) ? 1 : 0;
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) ret++;
         }
+        return ret;
     }
 
     public int getNumberOfValidBranches() {
-        lock.lock();
-        try {
-            return hits.length + 1;
-        } finally {
-            lock.unlock();
-        }
+        return hitCounts.length() + 1;
     }
 
     public void merge(BranchCoverageData coverageData) {
         SwitchData switchData = (SwitchData) coverageData;
-        getBothLocks(switchData);
-        try {
-            defaultHits += switchData.defaultHits;
-            for (int i = Math.min(hits.length, switchData.hits.length) - 1; i >= 0; i--)
-                hits[i] += switchData.hits[i];
-            if (switchData.hits.length > hits.length) {
-                long[] old = hits;
-                hits = new long[switchData.hits.length];
-                System.arraycopy(old, 0, hits, 0, old.length);
-                System.arraycopy(switchData.hits, old.length, hits, old.length, hits.length - old.length);
-            }
-            if ((this.keys.length == 0) && (switchData.keys.length > 0)) this.keys = switchData.keys;
-        } finally {
-            lock.unlock();
-            switchData.lock.unlock();
-        }
-
+        DEFAULT_HITS.addAndGet(this, switchData.defaultHits);
+        long[] otherHits = switchData.getHitArray();
+        AtomicLongArray counts = counts(otherHits.length);
+        for (int i = otherHits.length - 1; i >= 0; i--)
+            counts.addAndGet(i, otherHits[i]);
+        if ((this.keys.length == 0) && (switchData.keys.length > 0)) this.keys = switchData.keys;
     }
 
-    private void getBothLocks(SwitchData other) {
-        /*
-         * To prevent deadlock, we need to get both locks or none at all. When this method returns, the thread will have
-         * both locks. Make sure you unlock them!
-         */
-        boolean myLock = false;
-        boolean otherLock = false;
-        while ((!myLock) || (!otherLock)) {
-            try {
-                myLock = lock.tryLock();
-                otherLock = other.lock.tryLock();
-            } finally {
-                if ((!myLock) || (!otherLock)) {
-                    // could not obtain both locks - so unlock the one we got.
-                    if (myLock) {
-                        lock.unlock();
-                    }
-                    if (otherLock) {
-                        other.lock.unlock();
-                    }
-                    // do a yield so the other threads will get to work.
-                    Thread.yield();
-                }
-            }
-        }
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        hits = getHitArray();
+        out.defaultWriteObject();
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        initLock();
+        hitCounts = new AtomicLongArray(hits);
     }
 
     @Override
     public void reset() {
-        lock.lock();
-        try {
-            Arrays.fill(hits, 0);
-            this.defaultHits = 0;
-        } finally {
-            lock.unlock();
+        AtomicLongArray counts = hitCounts;
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            counts.set(i, 0);
         }
+        this.defaultHits = 0;
     }
 
     @Override
     public String toString() {
         return "SwitchData [switchNumber=" + switchNumber + ", defaultHits=" + defaultHits + ", hits="
-               + Arrays.toString(hits) + ", keys=" + Arrays.toString(keys) + "]";
+               + Arrays.toString(getHitArray()) + ", keys=" + Arrays.toString(keys) + "]";
     }
 }
@@ -0,0 +1,213 @@
+package fastut.coverage.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Which generated test covered which branch. For each method the branches are numbered as in
+ * {@link ClassData#getCoveredBranchBits(String)}, and every test has a {@link CompressedBitmap} of the branch outcomes it
+ * covered on its own. Queries are answered from the bitmaps, nothing is run again.
+ * </p>
+ * <p>
+ * Stored next to the data file as <code>&lt;datafile&gt;.tests</code>: int magic "FUTT", short version, int method
+ * count, per method: UTF class name, UTF method name and descriptor, int test count, per test: UTF test name and the
+ * bitmap.
+ * </p>
+ */
+public class TestCoverageData implements HasBeenInstrumented {
+
+    public static final int                                   MAGIC   = 0x46555454;
+
+    public static final short                                 VERSION = 1;
+
+    /** class name, tab, method name and descriptor to the bitmaps of the tests in recording order */
+    private final Map<String, Map<String, CompressedBitmap>> methods = new TreeMap<String, Map<String, CompressedBitmap>>();
+
+    public static File getDefaultFile() {
+        return new File(CoverageDataFileHandler.getDefaultDataFile().getPath() + ".tests");
+    }
+
+    private static String key(String className, String methodNameAndDescriptor) {
+        return className + '\t' + methodNameAndDescriptor;
+    }
+
+    private Map<String, CompressedBitmap> tests(String className, String methodNameAndDescriptor) {
+        Map<String, CompressedBitmap> tests = methods.get(key(className, methodNameAndDescriptor));
+        return tests != null ? tests : Collections.<String, CompressedBitmap> emptyMap();
+    }
+
+    /**
+     * Records the branch outcomes the test covered, replacing an earlier recording of the same test.
+     */
+    public synchronized void record(String className, String methodNameAndDescriptor, String test, BitSet covered) {
+        String key = key(className, methodNameAndDescriptor);
+        Map<String, CompressedBitmap> tests = methods.get(key);
+        if (tests == null) {
+            tests = new LinkedHashMap<String, CompressedBitmap>();
+            methods.put(key, tests);
+        }
+        tests.put(test, CompressedBitmap.valueOf(covered));
+    }
+
+    public synchronized List<String> getTests(String className, String methodNameAndDescriptor) {
+        return new ArrayList<String>(tests(className, methodNameAndDescriptor).keySet());
+    }
+
+    /**
+     * @return the branch outcomes the test covered, empty for an unknown test
+     */
+    public synchronized BitSet getCoveredBranches(String className, String methodNameAndDescriptor, String test) {
+        CompressedBitmap bitmap = tests(className, methodNameAndDescriptor).get(test);
+        return bitmap != null ? bitmap.toBitSet() : new BitSet();
+    }
+
+    /**
+     * @return the tests that covered the branch outcome, in recording order
+     */
+    public synchronized List<String> getTestsCovering(String className, String methodNameAndDescriptor, int branch) {
+        List<String> covering = new ArrayList<String>();
+        for (Map.Entry<String, CompressedBitmap> entry : tests(className, methodNameAndDescriptor).entrySet()) {
+            if (entry.getValue().contains(branch)) {
+                covering.add(entry.getKey());
+            }
+        }
+        return covering;
+    }
+
+    /**
+     * @return the branch outcomes covered by this test and by no other test of the method
+     */
+    public synchronized BitSet getUniqueBranches(String className, String methodNameAndDescriptor, String test) {
+        Map<String, CompressedBitmap> tests = tests(className, methodNameAndDescriptor);
+        CompressedBitmap bitmap = tests.get(test);
+        if (bitmap == null) {
+            return new BitSet();
+        }
+        BitSet unique = bitmap.toBitSet();
+        for (Map.Entry<String, CompressedBitmap> entry : tests.entrySet()) {
+            if (!entry.getKey().equals(test)) {
+                unique.andNot(entry.getValue().toBitSet());
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Picks tests greedily, largest coverage first, keeping each one that adds a branch outcome.
+     *
+     * @return the tests that can be dropped without losing coverage of the method
+     */
+    public synchronized List<String> getRedundantTests(String className, String methodNameAndDescriptor) {
+        final Map<String, CompressedBitmap> tests = tests(className, methodNameAndDescriptor);
+        List<String> byCoverage = new ArrayList<String>(tests.keySet());
+        Collections.sort(byCoverage, new Comparator<String>() {
+
+            public int compare(String o1, String o2) {
+                return tests.get(o2).cardinality() - tests.get(o1).cardinality();
+            }
+        });
+        BitSet covered = new BitSet();
+        Set<String> redundant = new HashSet<String>();
+        for (String test : byCoverage) {
+            CompressedBitmap bitmap = tests.get(test);
+            if (bitmap.isSubsetOf(covered)) {
+                redundant.add(test);
+            } else {
+                covered.or(bitmap.toBitSet());
+            }
+        }
+        List<String> inOrder = new ArrayList<String>();
+        for (String test : tests.keySet()) {
+            if (redundant.contains(test)) {
+                inOrder.add(test);
+            }
+        }
+        return inOrder;
+    }
+
+    /**
+     * Adds the recordings of the other data, which win for tests recorded in both.
+     */
+    public synchronized void merge(TestCoverageData other) {
+        synchronized (other) {
+            for (Map.Entry<String, Map<String, CompressedBitmap>> entry : other.methods.entrySet()) {
+                Map<String, CompressedBitmap> tests = methods.get(entry.getKey());
+                if (tests == null) {
+                    tests = new LinkedHashMap<String, CompressedBitmap>();
+                    methods.put(entry.getKey(), tests);
+                }
+                tests.putAll(entry.getValue());
+            }
+        }
+    }
+
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16384));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(methods.size());
+            for (Map.Entry<String, Map<String, CompressedBitmap>> entry : methods.entrySet()) {
+                int tab = entry.getKey().indexOf('\t');
+                out.writeUTF(entry.getKey().substring(0, tab));
+                out.writeUTF(entry.getKey().substring(tab + 1));
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<String, CompressedBitmap> test : entry.getValue().entrySet()) {
+                    out.writeUTF(test.getKey());
+                    test.getValue().write(out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the recordings in the file, empty when there is no file
+     */
+    public static TestCoverageData load(File file) throws IOException {
+        TestCoverageData data = new TestCoverageData();
+        if (!file.isFile()) {
+            return data;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a FastUT test coverage file.");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported test coverage version " + version + ", expected " + VERSION + ".");
+            }
+            for (int m = in.readInt(); m > 0; m--) {
+                String key = key(in.readUTF(), in.readUTF());
+                Map<String, CompressedBitmap> tests = new LinkedHashMap<String, CompressedBitmap>();
+                for (int t = in.readInt(); t > 0; t--) {
+                    String test = in.readUTF();
+                    tests.put(test, CompressedBitmap.read(in));
+                }
+                data.methods.put(key, tests);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -1,8 +1,12 @@
 package fastut.coverage.data;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import fastut.coverage.data.countermaps.AtomicCounterMap;
@@ -18,10 +22,71 @@ public class TouchCollector implements HasBeenInstrumented {
     private static final Map<String, Integer>        class2classId   = new ConcurrentHashMap<String, Integer>();
     private static final Map<Integer, String>        classId2class   = new ConcurrentHashMap<Integer, String>();
 
+    /** probe kinds in a probe layout, see {@link #registerProbes(String, String)} */
+    public static final char                         LINE_PROBE      = 'L';
+    public static final char                         JUMP_PROBE      = 'J';
+    public static final char                         SWITCH_PROBE    = 'S';
+    public static final char                         DERIVED_PROBE   = 'D';
+
+    /** chars per probe in a probe layout */
+    public static final int                          PROBE_CHARS     = 4;
+
+    private static final List<ClassProbes>           classProbes     = new CopyOnWriteArrayList<ClassProbes>();
+
     static {
         ProjectData.initialize();
     }
 
+    /**
+     * The probe array of one loaded instrumented class. A class defined by several class loaders has one per loader.
+     * Only the class holds its array, so the array goes when the class is unloaded, with the hits not applied yet.
+     */
+    private static class ClassProbes implements HasBeenInstrumented {
+
+        final String                className;
+
+        final String                layout;
+
+        final WeakReference<int[]>  hits;
+
+        /** per slot the hits applied to the project data so far */
+        final int[]                 applied;
+
+        /** per slot the lines counted by it besides its own, null for none */
+        final int[][]               derivedLines;
+
+        ClassProbes(String className, String layout, int[] hits){
+            this.className = className;
+            this.layout = layout;
+            this.hits = new WeakReference<int[]>(hits);
+            this.applied = new int[hits.length];
+            this.derivedLines = new int[hits.length][];
+            for (int at = 0; at < layout.length(); at += PROBE_CHARS) {
+                if (layout.charAt(at) == DERIVED_PROBE) {
+                    int probe = layout.charAt(at + 2);
+                    int[] lines = derivedLines[probe];
+                    lines = lines == null ? new int[1] : Arrays.copyOf(lines, lines.length + 1);
+                    lines[lines.length - 1] = layout.charAt(at + 1);
+                    derivedLines[probe] = lines;
+                }
+            }
+        }
+    }
+
+    /**
+     * This method is only called by code that has been instrumented, once from the static initializer of each
+     * instrumented class. The probes of the class then just increment a slot of the returned array, or set it to 1 when
+     * instrumented with fastut.probe.mode=firstHit. The layout has {@link #PROBE_CHARS} chars per slot: the probe kind,
+     * the line number, the jump or switch number and the branch plus one, so the switch default -1 is 0. Jumps take two
+     * slots, for false and for true. A derived line names the slot of the line probe counting it as its number, its own
+     * slot stays 0.
+     */
+    public static int[] registerProbes(String className, String layout) {
+        int[] hits = new int[layout.length() / PROBE_CHARS];
+        classProbes.add(new ClassProbes(className, layout, hits));
+        return hits;
+    }
+
     public static void reset() {
         touchedLines.clear();
         switchTouchData.clear();
@@ -29,6 +94,16 @@ public class TouchCollector implements HasBeenInstrumented {
         lastClassId.set(1);
         class2classId.clear();
         classId2class.clear();
+        // the classes stay loaded, only their counts go
+        for (ClassProbes probes : classProbes) {
+            int[] hits = probes.hits.get();
+            if (hits == null) {
+                classProbes.remove(probes);
+                continue;
+            }
+            Arrays.fill(hits, 0);
+            Arrays.fill(probes.applied, 0);
+        }
     }
 
     private static final int registerClassData(String name) {
@@ -44,7 +119,7 @@ public class TouchCollector implements HasBeenInstrumented {
 
     /**
      * This method is only called by code that has been instrumented. It is not called by any of the Cobertura code or
-     * ant tasks.
+     * ant tasks. Classes instrumented by this version use probes instead, see {@link #registerProbes(String, String)}.
      */
     public static final void touchSwitch(String classId, int lineNumber, int switchNumber, int branch) {
         switchTouchData.incrementValue(new SwitchTouchData(registerClassData(classId), lineNumber, switchNumber, branch));
@@ -161,14 +236,32 @@ public class TouchCollector implements HasBeenInstrumented {
 
     public static synchronized void applyTouchesOnProjectData(ProjectData projectData) {
         // System.out.println("Flushing results...");
-        Map<LineTouchData, Integer> touches = touchedLines.getFinalStateAndCleanIt();
+        applyTouches(projectData, touchedLines.getFinalStateAndCleanIt(), switchTouchData.getFinalStateAndCleanIt(),
+                     jumpTouchData.getFinalStateAndCleanIt());
+        applyProbes(projectData);
+        // System.out.println("Flushing results done");
+    }
+
+    /**
+     * Moves the touches gathered so far into the project data without stopping the instrumented threads. Gives up
+     * after maxPauseMillis, the touches left are picked up by the next call.
+     */
+    public static synchronized void drainTouchesOnProjectData(ProjectData projectData, long maxPauseMillis) {
+        long deadline = System.nanoTime() + maxPauseMillis * 1000000L;
+        applyTouches(projectData, touchedLines.drain(deadline), switchTouchData.drain(deadline),
+                     jumpTouchData.drain(deadline));
+        applyProbes(projectData);
+    }
+
+    private static void applyTouches(ProjectData projectData, Map<LineTouchData, Integer> touches,
+                                     Map<SwitchTouchData, Integer> switchTouches,
+                                     Map<JumpTouchData, Integer> jumpTouches) {
         for (Entry<LineTouchData, Integer> touch : touches.entrySet()) {
             if (touch.getValue() > 0) {
                 getClassFor(touch.getKey(), projectData).touch(touch.getKey().lineNumber, touch.getValue());
             }
         }
 
-        Map<SwitchTouchData, Integer> switchTouches = switchTouchData.getFinalStateAndCleanIt();
         for (Entry<SwitchTouchData, Integer> touch : switchTouches.entrySet()) {
             if (touch.getValue() > 0) {
                 getClassFor(touch.getKey(), projectData).touchSwitch(touch.getKey().lineNumber,
@@ -177,7 +270,6 @@ public class TouchCollector implements HasBeenInstrumented {
             }
         }
 
-        Map<JumpTouchData, Integer> jumpTouches = jumpTouchData.getFinalStateAndCleanIt();
         for (Entry<JumpTouchData, Integer> touch : jumpTouches.entrySet()) {
             if (touch.getValue() > 0) {
                 getClassFor(touch.getKey(), projectData).touchJump(touch.getKey().lineNumber,
@@ -185,7 +277,54 @@ public class TouchCollector implements HasBeenInstrumented {
                                                                    touch.getValue());
             }
         }
-        // System.out.println("Flushing results done");
+    }
+
+    /**
+     * Moves the probe counts into the project data. The slots are never written here, only the probes write them, so a
+     * hit landing while the slots are read is not lost: each slot applies what it gained since the last call, which
+     * stays right when the int wraps.
+     */
+    private static void applyProbes(ProjectData projectData) {
+        for (ClassProbes probes : classProbes) {
+            int[] hits = probes.hits.get();
+            if (hits == null) {
+                // the class was unloaded
+                classProbes.remove(probes);
+                continue;
+            }
+            ClassData classData = null;
+            for (int i = 0; i < hits.length; i++) {
+                int hit = hits[i];
+                int count = hit - probes.applied[i];
+                if (count == 0) {
+                    continue;
+                }
+                probes.applied[i] = hit;
+                if (classData == null) {
+                    classData = projectData.getOrCreateClassData(probes.className);
+                }
+                int at = i * PROBE_CHARS;
+                int lineNumber = probes.layout.charAt(at + 1);
+                int number = probes.layout.charAt(at + 2);
+                int branch = probes.layout.charAt(at + 3) - 1;
+                switch (probes.layout.charAt(at)) {
+                    case LINE_PROBE:
+                        classData.touch(lineNumber, count);
+                        if (probes.derivedLines[i] != null) {
+                            for (int derivedLine : probes.derivedLines[i]) {
+                                classData.touch(derivedLine, count);
+                            }
+                        }
+                        break;
+                    case JUMP_PROBE:
+                        classData.touchJump(lineNumber, number, branch != 0, count);
+                        break;
+                    case SWITCH_PROBE:
+                        classData.touchSwitch(lineNumber, number, branch, count);
+                        break;
+                }
+            }
+        }
     }
 
     private static ClassData getClassFor(LineTouchData key, ProjectData projectData) {
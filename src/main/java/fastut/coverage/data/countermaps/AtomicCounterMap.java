@@ -61,6 +61,22 @@ public class AtomicCounterMap<T> implements CounterMap<T>, HasBeenInstrumented {
         return res;
     }
 
+    public Map<T, Integer> drain(long deadlineNanos) {
+        Map<T, Integer> res = new LinkedHashMap<T, Integer>();
+        int visited = 0;
+        // entries stay in the map, an incrementer may still hold the counter
+        for (Map.Entry<T, AtomicInteger> entry : counters.entrySet()) {
+            int taken = entry.getValue().getAndSet(0);
+            if (taken > 0) {
+                res.put(entry.getKey(), taken);
+            }
+            if ((++visited & 0xFF) == 0 && System.nanoTime() - deadlineNanos > 0) {
+                break;
+            }
+        }
+        return res;
+    }
+
     public int getSize() {
         return counters.size();
     }
@@ -12,5 +12,11 @@ public interface CounterMap<T> {
 
     public Map<T, Integer> getFinalStateAndCleanIt();
 
+    /**
+     * Takes the counts gathered since the last drain, without blocking threads that keep incrementing. Stops early
+     * once System.nanoTime() passes the deadline; the counts not taken stay for the next drain.
+     */
+    public Map<T, Integer> drain(long deadlineNanos);
+
     public void clear();
 }
@@ -3,7 +3,6 @@ package fastut.coverage.instrument;
 import java.util.Collection;
 
 import org.apache.log4j.Logger;
-import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -11,7 +10,7 @@ import org.objectweb.asm.Opcodes;
 import fastut.coverage.data.ClassData;
 import fastut.coverage.data.ProjectData;
 
-public class ClassInstrumenter extends ClassAdapter {
+public class ClassInstrumenter extends ClassVisitor {
 
     private static final Logger logger              = Logger.getLogger(ClassInstrumenter.class);
 
@@ -29,6 +28,13 @@ public class ClassInstrumenter extends ClassAdapter {
 
     private boolean             instrument          = false;
 
+    private ProbeLayout         probes;
+
+    private boolean             hasClassInit        = false;
+
+    /** whether the class has a super class of its own, whose initializer may call the class before its own */
+    private boolean             hasSuperClass       = false;
+
     public String getClassName() {
         return this.myName;
     }
@@ -39,7 +45,7 @@ public class ClassInstrumenter extends ClassAdapter {
 
     public ClassInstrumenter(ProjectData projectData, final ClassVisitor cv, final Collection ignoreRegexs,
                              final Collection ignoreBranchesRegexes){
-        super(cv);
+        super(Opcodes.ASM9, cv);
         this.projectData = projectData;
         this.ignoreRegexs = ignoreRegexs;
         this.ignoreBranchesRegexs = ignoreBranchesRegexs;
@@ -67,6 +73,8 @@ public class ClassInstrumenter extends ClassAdapter {
             super.visit(version, access, name, signature, superName, interfaces);
         } else {
             instrument = true;
+            probes = new ProbeLayout(name);
+            hasSuperClass = superName != null && !superName.equals("java/lang/Object");
 
             // Flag this class as having been instrumented
             String[] newInterfaces = new String[interfaces.length + 1];
@@ -89,14 +97,36 @@ public class ClassInstrumenter extends ClassAdapter {
                                      final String[] exceptions) {
         MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
 
-        if (!instrument) return mv;
-
-        return mv == null ? null : new FirstPassMethodInstrumenter(classData, mv, this.myName, access, name, desc,
-                                                                   signature, exceptions, ignoreRegexs,
-                                                                   ignoreBranchesRegexs);
+        if (!instrument || mv == null) return mv;
+
+        if (name.equals("<clinit>")) {
+            // the probe array is filled in before anything else of the class runs
+            hasClassInit = true;
+            mv = new MethodVisitor(Opcodes.ASM9, mv) {
+
+                public void visitCode() {
+                    super.visitCode();
+                    probes.visitInitCall(mv);
+                }
+            };
+        } else if (hasSuperClass) {
+            // an enum constant with a body is created by the initializer of the enum, before its own initializer ran
+            mv = new MethodVisitor(Opcodes.ASM9, mv) {
+
+                public void visitCode() {
+                    super.visitCode();
+                    probes.visitEnsureInit(mv);
+                }
+            };
+        }
+        return new FirstPassMethodInstrumenter(classData, probes, mv, this.myName, access, name, desc, signature,
+                                               exceptions, ignoreRegexs, ignoreBranchesRegexs);
     }
 
     public void visitEnd() {
+        // all lines and branches are known now, index them for the per-method coverage queries
+        if (instrument) classData.buildMethodBranchIndex();
+        if (instrument) probes.visitEnd(cv, hasClassInit);
         if (instrument && classData.getNumberOfValidLines() == 0) logger.warn("No line number information found for class "
                                                                               + this.myName
                                                                               + ".  Perhaps you need to compile with debug=true?");
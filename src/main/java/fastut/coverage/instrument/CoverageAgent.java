@@ -0,0 +1,101 @@
+package fastut.coverage.instrument;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Collection;
+import java.util.Random;
+import java.util.Vector;
+
+import fastut.coverage.data.ProjectData;
+import fastut.coverage.data.TouchCollector;
+import fastut.coverage.util.ConfigurationUtil;
+import fastut.coverage.util.RegexUtil;
+
+/**
+ * <p>
+ * Collects coverage of an ordinary JVM, instrumenting the classes as they are loaded instead of routing them through
+ * {@link fastut.mock.MockFactory.InnerLoader}:
+ * </p>
+ *
+ * <pre>
+ * java -javaagent:fastut.core.jar=includeClasses=com\.acme\..*,excludeClasses=.*Test,datafile=fastut.ser ...
+ * </pre>
+ * <p>
+ * The options are includeClasses, excludeClasses, ignore and ignoreBranches, each a regex and each repeatable, and
+ * datafile. A regex containing a comma goes into fastut.agent.includeClasses or fastut.agent.excludeClasses of
+ * fastut.properties instead. FastUT and its dependencies have to be on the class path. The hits and the lines and
+ * branches of the instrumented classes are added to the data file on exit, and periodically when fastut.flush.interval
+ * is set, see {@link ProjectData#initialize()}.
+ * </p>
+ * <p>
+ * For production nodes probeMode=firstHit only records whether a line or branch was hit, and sampleRate=0.1
+ * instruments a tenth of the classes, picked by sampleSeed which is random unless given. They can be set as
+ * fastut.probe.mode, fastut.probe.sampleRate and fastut.probe.sampleSeed too.
+ * </p>
+ */
+public class CoverageAgent {
+
+    public static void premain(String agentArgs, Instrumentation inst) {
+        ClassPattern classPattern = new ClassPattern();
+        Collection ignoreRegexes = new Vector();
+        Collection ignoreBranchesRegexes = new Vector();
+        String[] options = agentArgs == null || agentArgs.length() == 0 ? new String[0] : agentArgs.split(",");
+        for (String option : options) {
+            int eq = option.indexOf('=');
+            String key = eq < 0 ? option : option.substring(0, eq);
+            String value = eq < 0 ? "" : option.substring(eq + 1);
+            if (key.equals("includeClasses")) {
+                classPattern.addIncludeClassesRegex(value);
+            } else if (key.equals("excludeClasses")) {
+                classPattern.addExcludeClassesRegex(value);
+            } else if (key.equals("ignore")) {
+                RegexUtil.addRegex(ignoreRegexes, value);
+            } else if (key.equals("ignoreBranches")) {
+                RegexUtil.addRegex(ignoreBranchesRegexes, value);
+            } else if (key.equals("datafile")) {
+                // read by CoverageDataFileHandler, nothing has asked for the data file yet
+                System.setProperty("fastut.datafile", value);
+            } else if (key.equals("probeMode")) {
+                // read by ProbeLayout, nothing has been instrumented yet
+                System.setProperty("fastut.probe.mode", value);
+            } else if (key.equals("sampleRate")) {
+                System.setProperty("fastut.probe.sampleRate", value);
+            } else if (key.equals("sampleSeed")) {
+                System.setProperty("fastut.probe.sampleSeed", value);
+            } else {
+                System.err.println("FastUT: Unknown agent option " + option + ", ignoring it.");
+            }
+        }
+        ConfigurationUtil config = new ConfigurationUtil();
+        String includeClasses = config.getProperty("fastut.agent.includeClasses", null);
+        if (includeClasses != null) {
+            classPattern.addIncludeClassesRegex(includeClasses);
+        }
+        String excludeClasses = config.getProperty("fastut.agent.excludeClasses", null);
+        if (excludeClasses != null) {
+            classPattern.addExcludeClassesRegex(excludeClasses);
+        }
+
+        // registers the exit hooks of ProjectData now, they cannot be added once the JVM is shutting down
+        TouchCollector.reset();
+
+        final ProjectData instrumentationData = new ProjectData();
+        final CoverageTransformer transformer = new CoverageTransformer(instrumentationData, classPattern,
+                                                                        ignoreRegexes, ignoreBranchesRegexes);
+        double sampleRate = Double.parseDouble(config.getProperty("fastut.probe.sampleRate", "1"));
+        if (sampleRate < 1.0d) {
+            String seed = config.getProperty("fastut.probe.sampleSeed", null);
+            int sampleSeed = seed != null ? Integer.parseInt(seed) : new Random().nextInt();
+            transformer.setSampling(sampleRate, sampleSeed);
+            System.out.println("FastUT: Instrumenting " + (sampleRate * 100) + "% of the classes, sample seed "
+                               + sampleSeed);
+        }
+        inst.addTransformer(transformer);
+        Runtime.getRuntime().addShutdownHook(new Thread("fastut-agent") {
+
+            public void run() {
+                ProjectData.saveGlobalProjectData(instrumentationData);
+                System.out.println(transformer.report());
+            }
+        });
+    }
+}
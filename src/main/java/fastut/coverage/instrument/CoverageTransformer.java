@@ -0,0 +1,205 @@
+package fastut.coverage.instrument;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassReader;
+
+import fastut.coverage.data.ProjectData;
+import fastut.coverage.data.TouchCollector;
+import fastut.util.FrameClassWriter;
+
+/**
+ * Instruments classes as they are loaded, see {@link CoverageAgent}. Transformations run on the loading threads without
+ * a shared lock, so parallel capable class loaders instrument in parallel. A loader asking for a class another thread is
+ * instrumenting, the same name and the same original bytes, waits for it instead of doing it twice. Only the loads in
+ * flight are kept: once the instrumenting thread has its bytes the entry goes, so the cache never outgrows the number of
+ * loading threads.
+ * <p>
+ * With a sample rate below 1 only that share of the classes is instrumented, the others load unchanged and cost
+ * nothing. Which classes are picked depends on the seed, so JVMs with different seeds cover different classes.
+ * </p>
+ */
+public class CoverageTransformer implements ClassFileTransformer {
+
+    /** never instrumented: FastUT itself, the JDK and the libraries the instrumenter runs on */
+    private static final String[]                          SKIPPED_PACKAGES = { "fastut/", "java/", "javax/", "sun/",
+            "com/sun/", "jdk/", "org/objectweb/asm/", "org/apache/log4j/" };
+
+    private final ProjectData                              projectData;
+
+    private final ClassPattern                             classPattern;
+
+    private final Collection                               ignoreRegexes;
+
+    private final Collection                               ignoreBranchesRegexes;
+
+    /** class name and digest of the original bytes to the instrumenting of them, while it runs */
+    private final ConcurrentMap<String, FutureTask<byte[]>> cache;
+
+    /** whether the class loader sees the TouchCollector of FastUT, weak so class loaders can still go */
+    private final Map<ClassLoader, Boolean>                visibleLoaders   = new WeakHashMap<ClassLoader, Boolean>();
+
+    private double                                         sampleRate       = 1.0d;
+
+    private int                                            sampleSeed;
+
+    private final AtomicInteger                            instrumented     = new AtomicInteger();
+
+    private final AtomicInteger                            cacheHits        = new AtomicInteger();
+
+    /**
+     * @param projectData gets the lines and branches of the instrumented classes
+     */
+    public CoverageTransformer(ProjectData projectData, ClassPattern classPattern, Collection ignoreRegexes,
+                               Collection ignoreBranchesRegexes){
+        this.projectData = projectData;
+        this.classPattern = classPattern;
+        this.ignoreRegexes = ignoreRegexes;
+        this.ignoreBranchesRegexes = ignoreBranchesRegexes;
+        this.cache = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    }
+
+    public byte[] transform(final ClassLoader loader, final String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, final byte[] classfileBuffer) {
+        // redefined classes may not add fields
+        if (className == null || classBeingRedefined != null || isSkipped(className)
+            || !classPattern.matches(className) || !isSampled(className) || !canSeeFastUT(loader)) {
+            return null;
+        }
+        String key = className + '@' + digest(classfileBuffer);
+        FutureTask<byte[]> task = cache.get(key);
+        if (task == null) {
+            FutureTask<byte[]> newTask = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+                public byte[] call() {
+                    return instrument(className, classfileBuffer, loader);
+                }
+            });
+            task = cache.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    task.run();
+                } finally {
+                    // the waiting threads hold the task already
+                    cache.remove(key, task);
+                }
+            } else {
+                cacheHits.incrementAndGet();
+            }
+        } else {
+            cacheHits.incrementAndGet();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // instrument() catches everything
+            return null;
+        }
+    }
+
+    /**
+     * @param sampleRate share of the classes to instrument, from 0 to 1
+     * @param sampleSeed picks the classes
+     */
+    public void setSampling(double sampleRate, int sampleSeed) {
+        this.sampleRate = sampleRate;
+        this.sampleSeed = sampleSeed;
+    }
+
+    boolean isSampled(String className) {
+        if (sampleRate >= 1.0d) {
+            return true;
+        }
+        // spread the name hashes before taking the share, neighbouring names land apart
+        int hash = (className.hashCode() ^ sampleSeed) * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) < sampleRate * Integer.MAX_VALUE;
+    }
+
+    /**
+     * The instrumented classes call {@link TouchCollector}, a loader that does not delegate to the one of FastUT (the
+     * bootstrap loader, isolated plugin loaders) gets the classes unchanged.
+     */
+    private boolean canSeeFastUT(ClassLoader loader) {
+        if (loader == null) {
+            return false;
+        }
+        synchronized (visibleLoaders) {
+            Boolean visible = visibleLoaders.get(loader);
+            if (visible != null) {
+                return visible;
+            }
+        }
+        boolean visible;
+        try {
+            visible = Class.forName(TouchCollector.class.getName(), false, loader) == TouchCollector.class;
+        } catch (Throwable e) {
+            visible = false;
+        }
+        synchronized (visibleLoaders) {
+            visibleLoaders.put(loader, visible);
+        }
+        return visible;
+    }
+
+    private static boolean isSkipped(String className) {
+        for (String skipped : SKIPPED_PACKAGES) {
+            if (className.startsWith(skipped)) {
+                return true;
+            }
+        }
+        // generated at runtime, not worth reporting
+        return className.indexOf("$$") >= 0;
+    }
+
+    /**
+     * @param loader the loader defining the class, its class files give the common super classes of the frames
+     * @return the instrumented class, or null to load the class unchanged
+     */
+    byte[] instrument(String className, byte[] bytes, ClassLoader loader) {
+        try {
+            ClassReader cr = new ClassReader(bytes);
+            FrameClassWriter cw = new FrameClassWriter(cr, loader);
+            ClassInstrumenter cv = new ClassInstrumenter(projectData, cw, ignoreRegexes, ignoreBranchesRegexes);
+            cr.accept(cv, ClassReader.SKIP_FRAMES);
+            if (!cv.isInstrumented()) {
+                return null;
+            }
+            instrumented.incrementAndGet();
+            return cw.toByteArray();
+        } catch (Throwable e) {
+            System.err.println("FastUT: Unable to instrument " + className + ", loading it unchanged: " + e);
+            return null;
+        }
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(bytes)).toString(Character.MAX_RADIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String report() {
+        return "FastUT: Instrumented " + instrumented.get() + " classes, " + cacheHits.get()
+               + " more shared with a parallel load.";
+    }
+}
@@ -5,15 +5,15 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodNode;
 
 import fastut.coverage.data.ClassData;
 import fastut.coverage.util.RegexUtil;
 
-public class FirstPassMethodInstrumenter extends MethodAdapter implements Opcodes {
+public class FirstPassMethodInstrumenter extends MethodVisitor implements Opcodes {
 
     private final String  ownerClass;
 
@@ -29,6 +29,8 @@ public class FirstPassMethodInstrumenter extends MethodAdapter implements Opcode
 
     private ClassData     classData;
 
+    private ProbeLayout   probes;
+
     private int           currentLine;
 
     private int           currentJump;
@@ -45,15 +47,18 @@ public class FirstPassMethodInstrumenter extends MethodAdapter implements Opcode
 
     private MethodNode    methodNode;
 
-    public FirstPassMethodInstrumenter(ClassData classData, final MethodVisitor mv, final String owner,
-                                       final int access, final String name, final String desc, final String signature,
-                                       final String[] exceptions, final Collection ignoreRegexs,
+    private MethodFlow    flow;
+
+    public FirstPassMethodInstrumenter(ClassData classData, ProbeLayout probes, final MethodVisitor mv,
+                                       final String owner, final int access, final String name, final String desc,
+                                       final String signature, final String[] exceptions, final Collection ignoreRegexs,
                                        final Collection ignoreBranchesRegexs){
-        super(new MethodNode(access, name, desc, signature, exceptions));
+        super(ASM9, new LabelKeepingMethodNode(access, name, desc, signature, exceptions));
         writerMethodVisitor = mv;
         this.ownerClass = owner;
         this.methodNode = (MethodNode) this.mv;
         this.classData = classData;
+        this.probes = probes;
         this.myAccess = access;
         this.myName = name;
         this.myDescriptor = desc;
@@ -65,9 +70,29 @@ public class FirstPassMethodInstrumenter extends MethodAdapter implements Opcode
         this.currentLine = 0;
     }
 
+    /**
+     * Replays the labels the first pass was given, the maps of the first pass are looked up with them in the second.
+     */
+    private static class LabelKeepingMethodNode extends MethodNode {
+
+        LabelKeepingMethodNode(int access, String name, String desc, String signature, String[] exceptions){
+            super(ASM9, access, name, desc, signature, exceptions);
+        }
+
+        protected LabelNode getLabelNode(Label label) {
+            if (!(label.info instanceof LabelNode)) {
+                label.info = new LabelNode(label);
+            }
+            return (LabelNode) label.info;
+        }
+    }
+
     public void visitEnd() {
         super.visitEnd();
 
+        if (ProbeLayout.PRUNE && !lineLabels.isEmpty()) {
+            flow = MethodFlow.analyze(methodNode, lineLabels);
+        }
         methodNode.accept(lineLabels.isEmpty() ? writerMethodVisitor : new SecondPassMethodInstrumenter(this)); // when
                                                                                                                 // there
                                                                                                                 // is no
@@ -99,7 +124,7 @@ public class FirstPassMethodInstrumenter extends MethodAdapter implements Opcode
         currentJump = 0;
         currentSwitch = 0;
 
-        lineLabels.put(start, new Integer(line));
+        lineLabels.put(start, Integer.valueOf(line));
 
         // removed because the MethodNode doesn't reproduce visitLineNumber where they are but at the end of the file
         // :-((
@@ -110,8 +135,8 @@ public class FirstPassMethodInstrumenter extends MethodAdapter implements Opcode
         // super.visitLineNumber(line, start);
     }
 
-    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
-        super.visitMethodInsn(opcode, owner, name, desc);
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
 
         // If any of the ignore patterns match this line
         // then remove it from our data
@@ -178,8 +203,19 @@ public class FirstPassMethodInstrumenter extends MethodAdapter implements Opcode
         return ownerClass;
     }
 
+    protected ProbeLayout getProbes() {
+        return probes;
+    }
+
     protected Map getLineLabels() {
         return lineLabels;
     }
 
+    /**
+     * @return the probes the second pass can leave out, null to keep them all
+     */
+    protected MethodFlow getFlow() {
+        return flow;
+    }
+
 }
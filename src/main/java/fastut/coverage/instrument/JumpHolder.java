@@ -6,16 +6,30 @@ public class JumpHolder {
 
     protected int jumpNumber;
 
+    protected int probe;
+
     public JumpHolder(int lineNumber, int jumpNumber){
         super();
         this.lineNumber = lineNumber;
         this.jumpNumber = jumpNumber;
     }
 
+    public JumpHolder(int lineNumber, int jumpNumber, int probe){
+        this(lineNumber, jumpNumber);
+        this.probe = probe;
+    }
+
     public int getJumpNumber() {
         return jumpNumber;
     }
 
+    /**
+     * @return the probe slot of the false outcome, the true outcome has the next one
+     */
+    public int getProbe() {
+        return probe;
+    }
+
     public int getLineNumber() {
         return lineNumber;
     }
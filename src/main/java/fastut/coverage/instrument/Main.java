@@ -0,0 +1,465 @@
+package fastut.coverage.instrument;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.objectweb.asm.ClassReader;
+
+import fastut.coverage.data.CoverageDataFileHandler;
+import fastut.coverage.data.CoverageDeltaLog;
+import fastut.coverage.data.ProjectData;
+import fastut.coverage.util.ArchiveUtil;
+import fastut.coverage.util.CommandLineBuilder;
+import fastut.coverage.util.Header;
+import fastut.coverage.util.IOUtil;
+import fastut.coverage.util.RegexUtil;
+import fastut.util.FrameClassWriter;
+
+/**
+ * <p>
+ * Instruments classes ahead of time, so the test JVMs load them as they are instead of instrumenting them again in
+ * {@link fastut.mock.MockFactory.InnerLoader}. Directories, class files and archives are accepted, archives inside
+ * archives (the jars of a war) are instrumented too. Classes are instrumented in parallel, everything else is copied
+ * with the same content and signature files are dropped, the instrumented classes no longer match them. Files are
+ * copied channel to channel; archive entries go through java.util.zip, which cannot copy compressed data raw, so a
+ * deflated entry is inflated and deflated again.
+ * </p>
+ *
+ * <pre>
+ * java fastut.coverage.instrument.Main [--datafile fastut.ser] [--destination dir] [--threads n]
+ *     [--ignore regex] [--ignoreBranches regex] [--includeClasses regex] [--excludeClasses regex]
+ *     [--auxClasspath path] [--basedir dir] file|dir ...
+ * </pre>
+ * <p>
+ * Without a destination the files are instrumented in place, each written aside and renamed over the original, so the
+ * class path loader never reads a half-written class. The lines and branches found are appended to the
+ * {@link CoverageDeltaLog} of the data file, which is not rewritten, so a JVM compacting it meanwhile loses nothing.
+ * The stack map frames of the instrumented classes are computed from the super types of the classes they use, looked
+ * up in the instrumented files and the auxClasspath.
+ * </p>
+ */
+public class Main {
+
+    /** class entries an archive may have instrumenting at once, per thread */
+    private static final int    PENDING_PER_THREAD    = 4;
+
+    private static final int    BUFFER_SIZE           = 1 << 16;
+
+    private final ProjectData   projectData;
+
+    private final ClassPattern  classPattern          = new ClassPattern();
+
+    private final Collection    ignoreRegexes         = new Vector();
+
+    private final Collection    ignoreBranchesRegexes = new Vector();
+
+    private final AtomicInteger instrumented          = new AtomicInteger();
+
+    private File                destinationDirectory;
+
+    private ExecutorService     executor;
+
+    private int                 maxPending;
+
+    /** sees the classes used by the instrumented ones, for their stack map frames */
+    private ClassLoader         classPathLoader;
+
+    Main(ProjectData projectData){
+        this.projectData = projectData;
+    }
+
+    /**
+     * An entry of an output archive, waiting for its class to be instrumented.
+     */
+    private static class PendingEntry {
+
+        final ZipEntry       entry;
+
+        final byte[]         bytes;
+
+        /** the instrumented class, null when there was nothing to instrument */
+        final Future<byte[]> instrumented;
+
+        PendingEntry(ZipEntry entry, byte[] bytes, Future<byte[]> instrumented){
+            this.entry = entry;
+            this.bytes = bytes;
+            this.instrumented = instrumented;
+        }
+    }
+
+    /**
+     * @return the instrumented class, or null when the class was an interface or instrumented already
+     */
+    byte[] instrumentClass(byte[] bytes) {
+        ClassReader cr = new ClassReader(bytes);
+        FrameClassWriter cw = new FrameClassWriter(cr, classPathLoader);
+        ClassInstrumenter cv = new ClassInstrumenter(projectData, cw, ignoreRegexes, ignoreBranchesRegexes);
+        cr.accept(cv, ClassReader.SKIP_FRAMES);
+        if (!cv.isInstrumented()) {
+            return null;
+        }
+        instrumented.incrementAndGet();
+        return cw.toByteArray();
+    }
+
+    private Future<byte[]> submit(final String name, final byte[] bytes) {
+        return executor.submit(new Callable<byte[]>() {
+
+            public byte[] call() {
+                try {
+                    return instrumentClass(bytes);
+                } catch (Throwable e) {
+                    System.err.println("FastUT: Unable to instrument " + name + ", copying it unchanged: " + e);
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the entries of the archive, in their order. Classes are instrumented on the executor with at most
+     * maxPending of them waiting to be written, archives inside the archive are instrumented on this thread.
+     *
+     * @return whether anything was instrumented or removed
+     */
+    private boolean instrumentArchive(CoberturaFile file, ZipInputStream in, ZipOutputStream out) throws IOException,
+                                                                                                   InterruptedException {
+        LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+        boolean modified = false;
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (ArchiveUtil.isSignatureFile(name)) {
+                modified = true;
+                continue;
+            }
+            byte[] bytes = entry.isDirectory() ? new byte[0] : IOUtil.createByteArrayFromInputStream(in);
+            Future<byte[]> instrumented = null;
+            if (name.endsWith(".class") && classPattern.matches(name)) {
+                instrumented = submit(file.getPathname() + "!" + name, bytes);
+            } else if (ArchiveUtil.isArchive(name)) {
+                Archive archive = new Archive(file, bytes);
+                instrumentArchive(archive);
+                if (archive.isModified()) {
+                    modified = true;
+                    bytes = archive.getBytes();
+                }
+            }
+            pending.add(new PendingEntry(entry, bytes, instrumented));
+            while (pending.size() > maxPending) {
+                modified |= write(out, pending.removeFirst());
+            }
+        }
+        while (!pending.isEmpty()) {
+            modified |= write(out, pending.removeFirst());
+        }
+        return modified;
+    }
+
+    private void instrumentArchive(Archive archive) throws IOException, InterruptedException {
+        ZipInputStream in = new ZipInputStream(archive.getInputStream());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(archive.getBytes().length);
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        boolean modified;
+        try {
+            modified = instrumentArchive(archive.getCoberturaFile(), in, out);
+        } finally {
+            out.close();
+        }
+        if (modified) {
+            archive.setModifiedBytes(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * @return whether the entry was instrumented
+     */
+    private boolean write(ZipOutputStream out, PendingEntry pending) throws IOException, InterruptedException {
+        byte[] bytes = pending.bytes;
+        byte[] instrumented = null;
+        if (pending.instrumented != null) {
+            try {
+                instrumented = pending.instrumented.get();
+            } catch (ExecutionException e) {
+                // submit() catches everything
+            }
+            if (instrumented != null) {
+                bytes = instrumented;
+            }
+        }
+        ZipEntry entry = new ZipEntry(pending.entry.getName());
+        entry.setTime(pending.entry.getTime());
+        entry.setComment(pending.entry.getComment());
+        entry.setExtra(pending.entry.getExtra());
+        if (pending.entry.getMethod() == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+        return instrumented != null;
+    }
+
+    private void addInstrumentationToArchive(CoberturaFile file) throws IOException, InterruptedException {
+        File outputFile;
+        if (destinationDirectory == null) {
+            outputFile = File.createTempFile("fastut", ".tmp", file.getAbsoluteFile().getParentFile());
+        } else {
+            outputFile = new File(destinationDirectory, file.getPathname());
+            outputFile.getParentFile().mkdirs();
+        }
+        boolean modified;
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile),
+                                                                               BUFFER_SIZE));
+            try {
+                modified = instrumentArchive(file, in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (destinationDirectory == null) {
+            if (modified) {
+                replaceFile(outputFile, file);
+            } else {
+                outputFile.delete();
+            }
+        }
+        System.out.println("FastUT: Instrumented " + file.getPathname());
+    }
+
+    private Future<byte[]> addInstrumentationToSingleClass(final CoberturaFile file) {
+        return executor.submit(new Callable<byte[]>() {
+
+            public byte[] call() throws IOException {
+                FileInputStream in = new FileInputStream(file);
+                byte[] bytes;
+                try {
+                    bytes = IOUtil.createByteArrayFromInputStream(in);
+                } finally {
+                    in.close();
+                }
+                byte[] instrumented = null;
+                try {
+                    instrumented = instrumentClass(bytes);
+                } catch (Throwable e) {
+                    System.err.println("FastUT: Unable to instrument " + file.getPathname() + ", copying it unchanged: "
+                                       + e);
+                }
+                if (instrumented != null && destinationDirectory == null) {
+                    File tmpFile = File.createTempFile("fastut", ".tmp", file.getAbsoluteFile().getParentFile());
+                    writeFile(tmpFile, instrumented);
+                    replaceFile(tmpFile, file);
+                } else if (instrumented != null) {
+                    File outputFile = new File(destinationDirectory, file.getPathname());
+                    outputFile.getParentFile().mkdirs();
+                    writeFile(outputFile, instrumented);
+                } else if (destinationDirectory != null) {
+                    copyFile(file);
+                }
+                return instrumented;
+            }
+        });
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces the file by the one written aside in a single rename where the platform allows it, so readers see all
+     * of the old file or all of the new one.
+     */
+    private static void replaceFile(File tmpFile, File file) throws IOException {
+        if (!tmpFile.renameTo(file)) {
+            IOUtil.moveFile(tmpFile, file);
+        }
+    }
+
+    /**
+     * Copies the file to the destination directory channel to channel, without passing it through the heap.
+     */
+    private void copyFile(CoberturaFile file) throws IOException {
+        File outputFile = new File(destinationDirectory, file.getPathname());
+        outputFile.getParentFile().mkdirs();
+        FileChannel in = new FileInputStream(file).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(outputFile).getChannel();
+            try {
+                long size = in.size();
+                for (long position = 0; position < size;) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void addInstrumentation(CoberturaFile file, List<Future<byte[]>> classes) throws IOException,
+                                                                                    InterruptedException {
+        if (file.isClass() && classPattern.matches(file.getPathname())) {
+            classes.add(addInstrumentationToSingleClass(file));
+        } else if (file.isDirectory()) {
+            String[] contents = file.list();
+            for (int i = 0; i < contents.length; i++) {
+                String pathname = file.getPathname().length() == 0 ? contents[i] : file.getPathname()
+                                                                                    + File.separator + contents[i];
+                addInstrumentation(new CoberturaFile(file.getBaseDir(), pathname), classes);
+            }
+        } else if (file.isArchive()) {
+            addInstrumentationToArchive(file);
+        } else if (file.isFile() && destinationDirectory != null) {
+            copyFile(file);
+        }
+    }
+
+    /**
+     * @return a loader of the instrumented directories and archives and the auxiliary class path, in front of this one
+     */
+    private static ClassLoader createClassPathLoader(List<CoberturaFile> files, List<File> auxClasspath)
+            throws MalformedURLException {
+        List<URL> urls = new ArrayList<URL>();
+        for (CoberturaFile file : files) {
+            if (file.isDirectory() || file.isArchive()) {
+                urls.add(file.toURI().toURL());
+            } else if (file.isClass()) {
+                urls.add(new File(file.getBaseDir()).toURI().toURL());
+            }
+        }
+        for (File file : auxClasspath) {
+            urls.add(file.toURI().toURL());
+        }
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), Main.class.getClassLoader());
+    }
+
+    void instrument(List<CoberturaFile> files, List<File> auxClasspath, int threads) throws IOException,
+                                                                                    InterruptedException {
+        classPathLoader = createClassPathLoader(files, auxClasspath);
+        executor = Executors.newFixedThreadPool(threads);
+        maxPending = threads * PENDING_PER_THREAD;
+        try {
+            List<Future<byte[]>> classes = new ArrayList<Future<byte[]>>();
+            for (CoberturaFile file : files) {
+                if (!file.exists()) {
+                    System.err.println("FastUT: " + file + " does not exist, skipping it.");
+                    continue;
+                }
+                addInstrumentation(file, classes);
+            }
+            for (Future<byte[]> future : classes) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    System.err.println("FastUT: Error instrumenting class: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Header.print(System.out);
+        args = CommandLineBuilder.preprocessCommandLineArguments(args);
+
+        File dataFile = CoverageDataFileHandler.getDefaultDataFile();
+        File destinationDirectory = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String baseDir = null;
+        Collection includeClassesRegexes = new Vector();
+        Collection excludeClassesRegexes = new Vector();
+        Collection ignoreRegexes = new Vector();
+        Collection ignoreBranchesRegexes = new Vector();
+        List<CoberturaFile> files = new ArrayList<CoberturaFile>();
+        List<File> auxClasspath = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--basedir")) {
+                baseDir = args[++i];
+            } else if (args[i].equals("--auxClasspath")) {
+                for (String path : args[++i].split(File.pathSeparator)) {
+                    if (path.length() > 0) {
+                        auxClasspath.add(new File(path));
+                    }
+                }
+            } else if (args[i].equals("--datafile")) {
+                dataFile = new File(args[++i]);
+            } else if (args[i].equals("--destination")) {
+                destinationDirectory = new File(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--ignore")) {
+                RegexUtil.addRegex(ignoreRegexes, args[++i]);
+            } else if (args[i].equals("--ignoreBranches")) {
+                RegexUtil.addRegex(ignoreBranchesRegexes, args[++i]);
+            } else if (args[i].equals("--includeClasses")) {
+                includeClassesRegexes.add(args[++i]);
+            } else if (args[i].equals("--excludeClasses")) {
+                excludeClassesRegexes.add(args[++i]);
+            } else if (baseDir == null) {
+                File file = new File(args[i]).getAbsoluteFile();
+                files.add(new CoberturaFile(file.isDirectory() ? file.getPath() : file.getParent(),
+                                            file.isDirectory() ? "" : file.getName()));
+            } else {
+                files.add(new CoberturaFile(baseDir, args[i]));
+            }
+        }
+
+        ProjectData projectData = new ProjectData();
+        Main main = new Main(projectData);
+        main.destinationDirectory = destinationDirectory;
+        main.ignoreRegexes.addAll(ignoreRegexes);
+        main.ignoreBranchesRegexes.addAll(ignoreBranchesRegexes);
+        for (Object regex : includeClassesRegexes) {
+            main.classPattern.addIncludeClassesRegex((String) regex);
+        }
+        for (Object regex : excludeClassesRegexes) {
+            main.classPattern.addExcludeClassesRegex((String) regex);
+        }
+
+        long start = System.currentTimeMillis();
+        main.instrument(files, auxClasspath, threads);
+        new CoverageDeltaLog(dataFile).append(projectData);
+        System.out.println("FastUT: Instrumented " + main.instrumented.get() + " classes in "
+                           + (System.currentTimeMillis() - start) + " ms, saved to " + dataFile.getAbsolutePath());
+    }
+}
@@ -0,0 +1,412 @@
+package fastut.coverage.instrument;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * <p>
+ * The control flow graph of a method, telling {@link SecondPassMethodInstrumenter} which probes it can leave out. Only
+ * built with fastut.probe.prune=true, see {@link ProbeLayout#PRUNE}.
+ * </p>
+ * <p>
+ * Lines: two basic blocks where the first dominates the second, the second post-dominates the first and both are in the
+ * same loops run equally often, so all the lines of such a chain of blocks are counted by one line probe, the last one.
+ * An exception thrown in between leaves the earlier lines uncounted, never counts a line that did not run.
+ * </p>
+ * <p>
+ * Jumps: when the target of a conditional jump and the instruction after it can only be reached from the jump, the
+ * outcomes are probed at those places directly, without storing the jump in the branch variable and checking it at
+ * the labels.
+ * </p>
+ * <p>
+ * Every block of a try block has an edge to its handlers, and blocks in different try blocks do not share line probes,
+ * so a caught exception does not uncount the lines around the try. Methods with subroutines (JSR/RET) are not
+ * analyzed, neither are blocks across irreducible loops or huge methods.
+ * </p>
+ */
+class MethodFlow implements Opcodes {
+
+    /** blocks above which only lines of the same block share a probe, the dominators are not even computed */
+    private static final int        MAX_BLOCKS        = 2000;
+
+    /** line label to the line label whose probe counts the line */
+    private final Map<Label, Label> lineProbes        = new HashMap<Label, Label>();
+
+    private final Set<Label>        staticJumpTargets = new HashSet<Label>();
+
+    private MethodFlow(){
+    }
+
+    /**
+     * @param lineLabels the labels of the lines to the line numbers
+     * @return null when the method is not analyzed
+     */
+    static MethodFlow analyze(MethodNode method, Map lineLabels) {
+        AbstractInsnNode[] insns = method.instructions.toArray();
+        int n = insns.length;
+        Map<LabelNode, Integer> labelIndex = new HashMap<LabelNode, Integer>();
+        // the next real instruction at or after each node, n at the end
+        int[] next = new int[n + 1];
+        next[n] = n;
+        for (int i = n - 1; i >= 0; i--) {
+            next[i] = insns[i].getOpcode() >= 0 ? i : next[i + 1];
+            if (insns[i] instanceof LabelNode) {
+                labelIndex.put((LabelNode) insns[i], Integer.valueOf(i));
+            }
+        }
+
+        // edges into every instruction, and the instructions starting a basic block
+        int[] incoming = new int[n + 1];
+        boolean[] leader = new boolean[n + 1];
+        incoming[next[0]]++;
+        leader[next[0]] = true;
+        for (Iterator it = method.tryCatchBlocks.iterator(); it.hasNext();) {
+            TryCatchBlockNode tryCatch = (TryCatchBlockNode) it.next();
+            int handler = next[labelIndex.get(tryCatch.handler).intValue()];
+            incoming[handler]++;
+            leader[handler] = true;
+            leader[next[labelIndex.get(tryCatch.start).intValue()]] = true;
+            leader[next[labelIndex.get(tryCatch.end).intValue()]] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            int opcode = insns[i].getOpcode();
+            if (opcode < 0) {
+                continue;
+            }
+            LabelNode[] targets = targets(insns[i]);
+            if (opcode == JSR || opcode == RET) {
+                return null;
+            }
+            for (LabelNode target : targets) {
+                int t = next[labelIndex.get(target).intValue()];
+                incoming[t]++;
+                leader[t] = true;
+            }
+            if (fallsThrough(opcode)) {
+                incoming[next[i + 1]]++;
+            }
+            if (targets.length > 0 || !fallsThrough(opcode)) {
+                leader[next[i + 1]] = true;
+            }
+        }
+
+        MethodFlow flow = new MethodFlow();
+        for (int i = 0; i < n; i++) {
+            int opcode = insns[i].getOpcode();
+            if (opcode < 0 || opcode == GOTO || !(insns[i] instanceof JumpInsnNode)) {
+                continue;
+            }
+            LabelNode target = ((JumpInsnNode) insns[i]).label;
+            int t = next[labelIndex.get(target).intValue()];
+            int f = next[i + 1];
+            if (t != f && incoming[t] == 1 && incoming[f] == 1) {
+                flow.staticJumpTargets.add(target.getLabel());
+            }
+        }
+
+        // basic blocks, then the entry and the exit node
+        int[] blockOf = new int[n + 1];
+        List<BitSet> tryBlocks = new ArrayList<BitSet>();
+        int blocks = 0;
+        for (int i = 0; i < n; i++) {
+            if (insns[i].getOpcode() >= 0 && leader[i]) {
+                blocks++;
+                tryBlocks.add(tryBlocks(method, labelIndex, i));
+            }
+            blockOf[i] = blocks - 1;
+        }
+        blockOf[n] = -1;
+        int entry = blocks;
+        int exit = blocks + 1;
+        int nodes = blocks + 2;
+        BitSet[] succ = new BitSet[nodes];
+        BitSet[] pred = new BitSet[nodes];
+        for (int b = 0; b < nodes; b++) {
+            succ[b] = new BitSet();
+            pred[b] = new BitSet();
+        }
+        addEdge(succ, pred, entry, blockOf[next[0]]);
+        for (int b = 0; b < blocks; b++) {
+            // any instruction of a block in a try block may throw
+            BitSet tryCatches = tryBlocks.get(b);
+            for (int k = tryCatches.nextSetBit(0); k >= 0; k = tryCatches.nextSetBit(k + 1)) {
+                LabelNode handler = ((TryCatchBlockNode) method.tryCatchBlocks.get(k)).handler;
+                addEdge(succ, pred, b, blockOf[next[labelIndex.get(handler).intValue()]]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int opcode = insns[i].getOpcode();
+            if (opcode < 0 || (next[i + 1] < n && !leader[next[i + 1]])) {
+                continue;
+            }
+            // the last instruction of block blockOf[i]
+            for (LabelNode target : targets(insns[i])) {
+                addEdge(succ, pred, blockOf[i], blockOf[next[labelIndex.get(target).intValue()]]);
+            }
+            if (fallsThrough(opcode) && next[i + 1] < n) {
+                addEdge(succ, pred, blockOf[i], blockOf[next[i + 1]]);
+            } else if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW) {
+                addEdge(succ, pred, blockOf[i], exit);
+            }
+        }
+
+        BitSet[] dom = null;
+        BitSet[] pdom = null;
+        BitSet[] loops = null;
+        if (blocks <= MAX_BLOCKS) {
+            dom = dominators(entry, succ, pred);
+            pdom = dominators(exit, pred, succ);
+            loops = loops(entry, succ, pred, dom);
+        }
+
+        // the lines of every block in instruction order
+        List<List<Label>> blockLines = new ArrayList<List<Label>>();
+        for (int b = 0; b < blocks; b++) {
+            blockLines.add(new ArrayList<Label>());
+        }
+        for (int i = 0; i < n; i++) {
+            if (insns[i] instanceof LabelNode && lineLabels.containsKey(((LabelNode) insns[i]).getLabel())) {
+                int b = blockOf[next[i]];
+                if (b >= 0) {
+                    blockLines.get(b).add(((LabelNode) insns[i]).getLabel());
+                }
+            }
+        }
+        for (int b = 0; b < blocks; b++) {
+            List<Label> lines = blockLines.get(b);
+            if (lines.isEmpty()) {
+                continue;
+            }
+            int last = b;
+            if (loops != null && dom[b] != null && pdom[b] != null) {
+                for (int r = 0; r < blocks; r++) {
+                    if (r != b && !blockLines.get(r).isEmpty() && dom[r] != null && pdom[r] != null
+                        && dom[r].get(b) && pdom[b].get(r) && loops[r].equals(loops[b])
+                        && tryBlocks.get(r).equals(tryBlocks.get(b))
+                        && dom[r].cardinality() > dom[last].cardinality()) {
+                        last = r;
+                    }
+                }
+            }
+            List<Label> lastLines = blockLines.get(last);
+            Label probe = lastLines.get(lastLines.size() - 1);
+            for (Label line : lines) {
+                flow.lineProbes.put(line, probe);
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * @return the indexes of the try catch blocks covering the instruction
+     */
+    private static BitSet tryBlocks(MethodNode method, Map<LabelNode, Integer> labelIndex, int insn) {
+        BitSet tryBlocks = new BitSet();
+        for (int k = 0; k < method.tryCatchBlocks.size(); k++) {
+            TryCatchBlockNode tryCatch = (TryCatchBlockNode) method.tryCatchBlocks.get(k);
+            if (labelIndex.get(tryCatch.start).intValue() < insn && insn < labelIndex.get(tryCatch.end).intValue()) {
+                tryBlocks.set(k);
+            }
+        }
+        return tryBlocks;
+    }
+
+    private static LabelNode[] targets(AbstractInsnNode insn) {
+        if (insn instanceof JumpInsnNode) {
+            return new LabelNode[] { ((JumpInsnNode) insn).label };
+        }
+        List labels;
+        LabelNode dflt;
+        if (insn instanceof TableSwitchInsnNode) {
+            labels = ((TableSwitchInsnNode) insn).labels;
+            dflt = ((TableSwitchInsnNode) insn).dflt;
+        } else if (insn instanceof LookupSwitchInsnNode) {
+            labels = ((LookupSwitchInsnNode) insn).labels;
+            dflt = ((LookupSwitchInsnNode) insn).dflt;
+        } else {
+            return new LabelNode[0];
+        }
+        LabelNode[] targets = new LabelNode[labels.size() + 1];
+        labels.toArray(targets);
+        targets[labels.size()] = dflt;
+        return targets;
+    }
+
+    private static boolean fallsThrough(int opcode) {
+        switch (opcode) {
+            case GOTO:
+            case RET:
+            case TABLESWITCH:
+            case LOOKUPSWITCH:
+            case IRETURN:
+            case LRETURN:
+            case FRETURN:
+            case DRETURN:
+            case ARETURN:
+            case RETURN:
+            case ATHROW:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static void addEdge(BitSet[] succ, BitSet[] pred, int from, int to) {
+        succ[from].set(to);
+        pred[to].set(from);
+    }
+
+    /**
+     * @return the dominators of every node reachable from the root, null for the others; with the edges reversed the
+     *         post-dominators
+     */
+    private static BitSet[] dominators(int root, BitSet[] succ, BitSet[] pred) {
+        int nodes = succ.length;
+        BitSet reachable = new BitSet();
+        List<Integer> order = new ArrayList<Integer>();
+        visit(root, succ, reachable, order);
+        BitSet[] dom = new BitSet[nodes];
+        for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+            dom[i] = (BitSet) reachable.clone();
+        }
+        dom[root] = new BitSet();
+        dom[root].set(root);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            // reverse post order converges in a few rounds
+            for (int k = order.size() - 1; k >= 0; k--) {
+                int v = order.get(k).intValue();
+                if (v == root) {
+                    continue;
+                }
+                BitSet d = null;
+                for (int p = pred[v].nextSetBit(0); p >= 0; p = pred[v].nextSetBit(p + 1)) {
+                    if (dom[p] == null) {
+                        continue;
+                    }
+                    if (d == null) {
+                        d = (BitSet) dom[p].clone();
+                    } else {
+                        d.and(dom[p]);
+                    }
+                }
+                d.set(v);
+                if (!d.equals(dom[v])) {
+                    dom[v] = d;
+                    changed = true;
+                }
+            }
+        }
+        return dom;
+    }
+
+    /**
+     * Depth first, adding every node after its successors.
+     */
+    private static void visit(int root, BitSet[] succ, BitSet visited, List<Integer> postOrder) {
+        // explicit stack, the graph of a big method would overflow the thread stack
+        List<int[]> stack = new ArrayList<int[]>();
+        visited.set(root);
+        stack.add(new int[] { root, 0 });
+        while (!stack.isEmpty()) {
+            int[] top = stack.get(stack.size() - 1);
+            int s = succ[top[0]].nextSetBit(top[1]);
+            if (s < 0) {
+                stack.remove(stack.size() - 1);
+                postOrder.add(Integer.valueOf(top[0]));
+            } else {
+                top[1] = s + 1;
+                if (!visited.get(s)) {
+                    visited.set(s);
+                    stack.add(new int[] { s, 0 });
+                }
+            }
+        }
+    }
+
+    /**
+     * @return per node the headers of the natural loops containing it, null when the loops are irreducible
+     */
+    private static BitSet[] loops(int entry, BitSet[] succ, BitSet[] pred, BitSet[] dom) {
+        int nodes = succ.length;
+        BitSet[] loops = new BitSet[nodes];
+        BitSet[] forward = new BitSet[nodes];
+        for (int v = 0; v < nodes; v++) {
+            loops[v] = new BitSet();
+            forward[v] = (BitSet) succ[v].clone();
+        }
+        for (int u = 0; u < nodes; u++) {
+            if (dom[u] == null) {
+                continue;
+            }
+            for (int h = succ[u].nextSetBit(0); h >= 0; h = succ[u].nextSetBit(h + 1)) {
+                if (!dom[u].get(h)) {
+                    continue;
+                }
+                // back edge u -> h, the loop body reaches u without passing h
+                forward[u].clear(h);
+                loops[h].set(h);
+                List<Integer> work = new ArrayList<Integer>();
+                if (!loops[u].get(h)) {
+                    loops[u].set(h);
+                    work.add(Integer.valueOf(u));
+                }
+                while (!work.isEmpty()) {
+                    int v = work.remove(work.size() - 1).intValue();
+                    for (int p = pred[v].nextSetBit(0); p >= 0; p = pred[v].nextSetBit(p + 1)) {
+                        if (dom[p] != null && !loops[p].get(h)) {
+                            loops[p].set(h);
+                            work.add(Integer.valueOf(p));
+                        }
+                    }
+                }
+            }
+        }
+        // without the back edges the graph has to be acyclic
+        BitSet visited = new BitSet();
+        List<Integer> order = new ArrayList<Integer>();
+        visit(entry, forward, visited, order);
+        BitSet done = new BitSet();
+        for (Integer v : order) {
+            for (int s = forward[v.intValue()].nextSetBit(0); s >= 0; s = forward[v.intValue()].nextSetBit(s + 1)) {
+                if (!done.get(s)) {
+                    return null;
+                }
+            }
+            done.set(v.intValue());
+        }
+        return loops;
+    }
+
+    /**
+     * @return the line label whose probe counts the line, the line label itself when the line keeps its probe
+     */
+    Label getLineProbe(Label lineLabel) {
+        Label probe = lineProbes.get(lineLabel);
+        return probe != null ? probe : lineLabel;
+    }
+
+    /**
+     * @return whether the conditional jump to the label can be probed without the branch variable
+     */
+    boolean isStaticJump(Label target) {
+        return staticJumpTargets.contains(target);
+    }
+}
@@ -1,7 +1,6 @@
 package fastut.coverage.instrument;
 
 import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -10,14 +9,14 @@ import org.objectweb.asm.Type;
 /**
  * Expects that the visitMaxs is calculated for me ....
  */
-public class NewLocalVariableMethodAdapter extends MethodAdapter implements Opcodes
+public class NewLocalVariableMethodAdapter extends MethodVisitor implements Opcodes
 {
     protected int firstStackVariable;
     protected int addedStackWords;
 
     public NewLocalVariableMethodAdapter(MethodVisitor mv, int access, String desc, int addedStackWords)
     {
-        super(mv);
+        super(ASM9, mv);
         Type[] args = Type.getArgumentTypes(desc);
         firstStackVariable = ((ACC_STATIC & access) != 0) ? 0 : 1;
         for (int i = 0; i < args.length; i++) {
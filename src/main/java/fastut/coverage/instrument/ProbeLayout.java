@@ -0,0 +1,213 @@
+package fastut.coverage.instrument;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import fastut.coverage.data.TouchCollector;
+import fastut.coverage.util.ConfigurationUtil;
+
+/**
+ * The probes of one instrumented class. Every line, jump outcome and switch branch the instrumented code touches gets a
+ * slot of a static int array of the class, filled in by {@link TouchCollector#registerProbes(String, String)} from the
+ * class initializer, and a probe just increments its slot.
+ * <p>
+ * With fastut.probe.mode=firstHit a probe stores 1 instead, and only while its slot is 0: the classes tell whether a
+ * line or branch was hit, not how often. Draining the hits leaves the slots as they are, so a probe that has fired
+ * only loads its slot until {@link TouchCollector#reset()}, it writes no shared cache line any more.
+ * </p>
+ * <p>
+ * Every line has its own probe unless fastut.probe.prune=true. Then lines counted by the probe of another line, see
+ * {@link MethodFlow}, take a slot too, naming the slot that counts them, and their own slot is never touched. Pruned,
+ * the lines before an exception thrown outside a try block are not counted.
+ * </p>
+ */
+class ProbeLayout implements Opcodes {
+
+    static final String         FIELD_NAME            = "__fastut_probes";
+
+    static final String         INIT_METHOD           = "__fastut_init";
+
+    private static final String TOUCH_COLLECTOR_CLASS = "fastut/coverage/data/TouchCollector";
+
+    /** fastut.probe.mode, count or firstHit */
+    static final boolean        FIRST_HIT             = "firstHit".equals(getProperty("fastut.probe.mode", "count"));
+
+    /** fastut.probe.prune, whether to leave out the probes {@link MethodFlow} can do without */
+    static final boolean        PRUNE                 = "true".equals(getProperty("fastut.probe.prune", "false"));
+
+    /** chars per ldc constant, a constant takes at most 65535 bytes and a char at most 3 */
+    private static final int    MAX_CONSTANT          = 16384;
+
+    private final String        owner;
+
+    private final String        className;
+
+    private final StringBuilder layout                = new StringBuilder();
+
+    private int                 size;
+
+    /**
+     * @param owner the internal name of the instrumented class
+     */
+    ProbeLayout(String owner){
+        this.owner = owner;
+        this.className = owner.replace('/', '.');
+    }
+
+    private static String getProperty(String key, String defaultValue) {
+        return new ConfigurationUtil().getProperty(key, defaultValue);
+    }
+
+    private int add(char kind, int lineNumber, int number, int branch) {
+        layout.append(kind).append((char) lineNumber).append((char) number).append((char) (branch + 1));
+        return size++;
+    }
+
+    int addLine(int lineNumber) {
+        return add(TouchCollector.LINE_PROBE, lineNumber, 0, 0);
+    }
+
+    /**
+     * Adds a line counted by the probe slot of another line.
+     *
+     * @return false when the slot cannot be named, the line needs a probe of its own then
+     */
+    boolean addDerivedLine(int lineNumber, int probe) {
+        if (probe > Character.MAX_VALUE) {
+            return false;
+        }
+        add(TouchCollector.DERIVED_PROBE, lineNumber, probe, 0);
+        return true;
+    }
+
+    /**
+     * @return the slot of the false outcome, the true outcome has the next one
+     */
+    int addJump(int lineNumber, int jumpNumber) {
+        int probe = add(TouchCollector.JUMP_PROBE, lineNumber, jumpNumber, 0);
+        add(TouchCollector.JUMP_PROBE, lineNumber, jumpNumber, 1);
+        return probe;
+    }
+
+    int addSwitch(int lineNumber, int switchNumber, int branch) {
+        return add(TouchCollector.SWITCH_PROBE, lineNumber, switchNumber, branch);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Increments the slot, or sets it in first hit mode.
+     */
+    void visitTouch(MethodVisitor mv, int probe) {
+        mv.visitFieldInsn(GETSTATIC, owner, FIELD_NAME, "[I");
+        visitPush(mv, probe);
+        visitIncrement(mv);
+    }
+
+    /**
+     * Increments the slot whose index is on the stack, or sets it in first hit mode.
+     */
+    void visitTouchIndexed(MethodVisitor mv) {
+        mv.visitFieldInsn(GETSTATIC, owner, FIELD_NAME, "[I");
+        mv.visitInsn(SWAP);
+        visitIncrement(mv);
+    }
+
+    private static void visitIncrement(MethodVisitor mv) {
+        if (FIRST_HIT) {
+            Label hit = new Label();
+            Label done = new Label();
+            mv.visitInsn(DUP2);
+            mv.visitInsn(IALOAD);
+            mv.visitJumpInsn(IFNE, hit);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IASTORE);
+            mv.visitJumpInsn(GOTO, done);
+            mv.visitLabel(hit);
+            mv.visitInsn(POP2);
+            mv.visitLabel(done);
+            return;
+        }
+        mv.visitInsn(DUP2);
+        mv.visitInsn(IALOAD);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitInsn(IASTORE);
+    }
+
+    static void visitPush(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(Integer.valueOf(value));
+        }
+    }
+
+    /**
+     * Fills the probe array, has to run before any probe of the class.
+     */
+    void visitInitCall(MethodVisitor mv) {
+        mv.visitMethodInsn(INVOKESTATIC, owner, INIT_METHOD, "()V", false);
+    }
+
+    /**
+     * Fills the probe array unless it is already, for methods which may run before the class initializer.
+     */
+    void visitEnsureInit(MethodVisitor mv) {
+        Label initialized = new Label();
+        mv.visitFieldInsn(GETSTATIC, owner, FIELD_NAME, "[I");
+        mv.visitJumpInsn(IFNONNULL, initialized);
+        visitInitCall(mv);
+        mv.visitLabel(initialized);
+    }
+
+    /**
+     * Adds the probe array, its init method and, when the class has none, a class initializer calling it. Called once
+     * all methods are instrumented.
+     *
+     * @param hasClassInit whether the class initializer already calls {@link #visitInitCall(MethodVisitor)}
+     */
+    void visitEnd(ClassVisitor cv, boolean hasClassInit) {
+        int access = ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC;
+        cv.visitField(access | ACC_TRANSIENT, FIELD_NAME, "[I", null, null).visitEnd();
+
+        MethodVisitor mv = cv.visitMethod(access, INIT_METHOD, "()V", null, null);
+        mv.visitCode();
+        // the class initializer keeps the array filled in by an early call, see visitEnsureInit
+        Label uninitialized = new Label();
+        mv.visitFieldInsn(GETSTATIC, owner, FIELD_NAME, "[I");
+        mv.visitJumpInsn(IFNULL, uninitialized);
+        mv.visitInsn(RETURN);
+        mv.visitLabel(uninitialized);
+        mv.visitLdcInsn(className);
+        mv.visitLdcInsn(layout.substring(0, Math.min(MAX_CONSTANT, layout.length())));
+        for (int at = MAX_CONSTANT; at < layout.length(); at += MAX_CONSTANT) {
+            mv.visitLdcInsn(layout.substring(at, Math.min(at + MAX_CONSTANT, layout.length())));
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;",
+                               false);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, TOUCH_COLLECTOR_CLASS, "registerProbes",
+                           "(Ljava/lang/String;Ljava/lang/String;)[I", false);
+        mv.visitFieldInsn(PUTSTATIC, owner, FIELD_NAME, "[I");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        if (!hasClassInit) {
+            mv = cv.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            visitInitCall(mv);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package fastut.coverage.instrument;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
 
@@ -10,8 +14,6 @@ import fastut.coverage.util.RegexUtil;
  */
 public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter implements Opcodes {
 
-    private String                      TOUCH_COLLECTOR_CLASS = "fastut/coverage/data/TouchCollector";
-
     private int                         currentLine;
 
     private int                         currentJump;
@@ -26,14 +28,29 @@ public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter
 
     private JumpHolder                  lastJump;
 
+    /** whether the last jump is probed without the branch variable, see {@link MethodFlow#isStaticJump(Label)} */
+    private boolean                     lastJumpStatic;
+
     private FirstPassMethodInstrumenter firstPass;
 
+    private ProbeLayout                 probes;
+
+    private MethodFlow                  flow;
+
+    /** the labels of the probed lines to their slot */
+    private Map                         lineProbes            = new HashMap();
+
+    /** the targets of the jumps probed without the branch variable to the slot of the jump */
+    private Map                         staticJumpProbes      = new HashMap();
+
     private static final int            BOOLEAN_TRUE          = ICONST_0;
     private static final int            BOOLEAN_FALSE         = ICONST_1;
 
     public SecondPassMethodInstrumenter(FirstPassMethodInstrumenter firstPass){
-        super(firstPass.getWriterMethodVisitor(), firstPass.getMyAccess(), firstPass.getMyDescriptor(), 2);
+        super(firstPass.getWriterMethodVisitor(), firstPass.getMyAccess(), firstPass.getMyDescriptor(), 1);
         this.firstPass = firstPass;
+        this.probes = firstPass.getProbes();
+        this.flow = firstPass.getFlow();
         this.currentLine = 0;
     }
 
@@ -48,11 +65,16 @@ public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter
         // would confuse people if it showed up in the reports.
         if ((opcode != GOTO) && (opcode != JSR) && (currentLine != 0)
             && (!this.firstPass.getMyName().equals("<clinit>"))) {
-            lastJump = new JumpHolder(currentLine, currentJump++);
-            mv.visitIntInsn(SIPUSH, currentLine);
-            mv.visitVarInsn(ISTORE, myVariableIndex);
-            mv.visitIntInsn(SIPUSH, lastJump.getJumpNumber());
-            mv.visitVarInsn(ISTORE, myVariableIndex + 1);
+            lastJumpStatic = flow != null && flow.isStaticJump(label);
+            if (lastJumpStatic) {
+                lastJump = new JumpHolder(currentLine, currentJump, getStaticJumpProbe(label));
+            } else {
+                lastJump = new JumpHolder(currentLine, currentJump, probes.addJump(currentLine, currentJump));
+                // the branch variable holds the probe of the jump, unique in the class
+                ProbeLayout.visitPush(mv, lastJump.getProbe());
+                mv.visitVarInsn(ISTORE, myVariableIndex);
+            }
+            currentJump++;
         }
 
         super.visitJumpInsn(opcode, label);
@@ -63,21 +85,21 @@ public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter
         currentLine = line;
         currentJump = 0;
 
-        instrumentOwnerClass();
-
         // Mark the current line number as covered:
-        // classData.touch(line)
-        mv.visitIntInsn(SIPUSH, line);
-        mv.visitMethodInsn(INVOKESTATIC, TOUCH_COLLECTOR_CLASS, "touch", "(Ljava/lang/String;I)V");
+        // classData.touch(line), or leave it to the probe of a later line
+        Label probeLabel = flow != null ? flow.getLineProbe(start) : start;
+        if (probeLabel == start || !probes.addDerivedLine(line, getLineProbe(probeLabel))) {
+            probes.visitTouch(mv, probeLabel == start ? getLineProbe(start) : probes.addLine(line));
+        }
 
         super.visitLineNumber(line, start);
     }
 
-    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
         // to touch the previous branch (when there is such)
         touchBranchFalse();
 
-        super.visitMethodInsn(opcode, owner, name, desc);
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
 
         // If any of the ignore patterns match this line
         // then remove it from our data
@@ -86,6 +108,13 @@ public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter
         }
     }
 
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        // to touch the previous branch (when there is such)
+        touchBranchFalse();
+
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
     public void visitFieldInsn(int opcode, String owner, String name, String desc) {
         // to touch the previous branch (when there is such)
         touchBranchFalse();
@@ -115,14 +144,12 @@ public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter
     }
 
     public void visitLabel(Label label) {
-        // When this is the first method's label ... create the 2 new local variables (lineNumber and branchNumber)
+        // When this is the first method's label ... create the new local variable (branchNumber)
         if (methodStarted) {
             methodStarted = false;
             myVariableIndex = getFirstStackVariable();
-            mv.visitInsn(ICONST_0);
+            mv.visitInsn(ICONST_M1);
             mv.visitVarInsn(ISTORE, myVariableIndex);
-            mv.visitIntInsn(SIPUSH, -1);
-            mv.visitVarInsn(ISTORE, myVariableIndex + 1);
             startLabel = label;
         }
         // to have the last label for visitLocalVariable
@@ -130,35 +157,37 @@ public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter
 
         super.visitLabel(label);
 
+        // only the jump falls through to this label
+        if (lastJumpStatic) {
+            touchBranchFalse();
+        }
+
         // instrument the branch coverage collection
-        if (firstPass.getJumpTargetLabels().keySet().contains(label)) { // this label is the true branch label
+        if (flow != null && flow.isStaticJump(label) && firstPass.getJumpTargetLabels().containsKey(label)) {
+            // only the jump leads here
+            probes.visitTouch(mv, getStaticJumpProbe(label));
+        } else if (firstPass.getJumpTargetLabels().keySet().contains(label)) { // this label is the true branch label
             if (lastJump != null) { // this is also label after jump - we have to check the branch number whether this
                                     // is the true or false branch
                 Label newLabelX = instrumentIsLastJump();
-                instrumentOwnerClass();
-                instrumentPutLineAndBranchNumbers();
-                mv.visitInsn(BOOLEAN_FALSE);
-                instrumentInvokeTouchJump();
+                instrumentInvokeTouchJump(BOOLEAN_FALSE);
                 Label newLabelY = new Label();
                 mv.visitJumpInsn(GOTO, newLabelY);
                 mv.visitLabel(newLabelX);
-                mv.visitVarInsn(ILOAD, myVariableIndex + 1);
+                mv.visitVarInsn(ILOAD, myVariableIndex);
                 mv.visitJumpInsn(IFLT, newLabelY);
-                instrumentOwnerClass();
-                instrumentPutLineAndBranchNumbers();
-                mv.visitInsn(BOOLEAN_TRUE);
-                instrumentInvokeTouchJump();
+                instrumentInvokeTouchJump(BOOLEAN_TRUE);
                 mv.visitLabel(newLabelY);
             } else { // just hit te true branch
                      // just check whether the jump has been invoked or the label has been touched other way
-                mv.visitVarInsn(ILOAD, myVariableIndex + 1);
+                mv.visitVarInsn(ILOAD, myVariableIndex);
                 Label newLabelX = new Label();
                 mv.visitJumpInsn(IFLT, newLabelX);
                 instrumentJumpHit(true);
                 mv.visitLabel(newLabelX);
             }
         } else if (lastJump != null) { // this is "only" after jump label, hit the false branch only if the lastJump is
-                                       // same as stored stack lineNumber and jumpNumber
+                                       // same as stored in the branch variable
             Label newLabelX = instrumentIsLastJump();
             instrumentJumpHit(false);
             mv.visitLabel(newLabelX);
@@ -234,66 +263,77 @@ public class SecondPassMethodInstrumenter extends NewLocalVariableMethodAdapter
 
     private void touchBranchFalse() {
         if (lastJump != null) {
+            if (lastJumpStatic) {
+                probes.visitTouch(mv, lastJump.getProbe() + 1);
+            } else {
+                instrumentJumpHit(false);
+            }
             lastJump = null;
-            instrumentJumpHit(false);
+            lastJumpStatic = false;
         }
     }
 
-    private void instrumentOwnerClass() {
-        // OwnerClass is the name of the class being instrumented
-        mv.visitLdcInsn(firstPass.getOwnerClass());
-        // mv.visitLdcInsn(firstPass.getMyName()+firstPass.getMyDescriptor());
-    }
-
-    private void instrumentSwitchHit(int lineNumber, int switchNumber, int branch) {
-        instrumentOwnerClass();
-
-        // Invoke the touchSwitch(lineNumber, switchNumber, branch)
-        mv.visitIntInsn(SIPUSH, lineNumber);
-        mv.visitIntInsn(SIPUSH, switchNumber);
-        mv.visitIntInsn(SIPUSH, branch);
-        instrumentInvokeTouchSwitch();
+    /**
+     * @return the slot of the line label, added the first time the line or a line counted by it is visited
+     */
+    private int getLineProbe(Label lineLabel) {
+        Integer probe = (Integer) lineProbes.get(lineLabel);
+        if (probe == null) {
+            probe = Integer.valueOf(probes.addLine(((Integer) firstPass.getLineLabels().get(lineLabel)).intValue()));
+            lineProbes.put(lineLabel, probe);
+        }
+        return probe.intValue();
     }
 
-    private void instrumentJumpHit(boolean branch) {
-        instrumentOwnerClass();
-
-        // Invoke the touchJump(lineNumber, branchNumber, branch)
-        instrumentPutLineAndBranchNumbers();
-        mv.visitInsn(branch ? BOOLEAN_TRUE : BOOLEAN_FALSE);
-        instrumentInvokeTouchJump();
+    /**
+     * @return the slot of the jump to the label, added when the jump or the label is visited first
+     */
+    private int getStaticJumpProbe(Label target) {
+        Integer probe = (Integer) staticJumpProbes.get(target);
+        if (probe == null) {
+            JumpHolder jump = (JumpHolder) firstPass.getJumpTargetLabels().get(target);
+            probe = Integer.valueOf(probes.addJump(jump.getLineNumber(), jump.getJumpNumber()));
+            staticJumpProbes.put(target, probe);
+        }
+        return probe.intValue();
     }
 
-    private void instrumentInvokeTouchJump() {
-        mv.visitMethodInsn(INVOKESTATIC, TOUCH_COLLECTOR_CLASS, "touchJump", "(Ljava/lang/String;IIZ)V");
-        mv.visitIntInsn(SIPUSH, -1); // is important to reset current branch, because we have to know that the branch
-                                     // info on stack has already been used and can't be used
-        mv.visitVarInsn(ISTORE, myVariableIndex + 1);
+    private void instrumentSwitchHit(int lineNumber, int switchNumber, int branch) {
+        // touchSwitch(lineNumber, switchNumber, branch)
+        probes.visitTouch(mv, probes.addSwitch(lineNumber, switchNumber, branch));
     }
 
-    private void instrumentInvokeTouchSwitch() {
-        mv.visitMethodInsn(INVOKESTATIC, TOUCH_COLLECTOR_CLASS, "touchSwitch", "(Ljava/lang/String;III)V");
+    private void instrumentJumpHit(boolean branch) {
+        // touchJump(lineNumber, branchNumber, branch)
+        instrumentInvokeTouchJump(branch ? BOOLEAN_TRUE : BOOLEAN_FALSE);
     }
 
-    private void instrumentPutLineAndBranchNumbers() {
+    /**
+     * Touches the outcome of the jump in the branch variable, the slot after its probe for ICONST_1.
+     */
+    private void instrumentInvokeTouchJump(int outcome) {
         mv.visitVarInsn(ILOAD, myVariableIndex);
-        mv.visitVarInsn(ILOAD, myVariableIndex + 1);
+        if (outcome == ICONST_1) {
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IADD);
+        }
+        probes.visitTouchIndexed(mv);
+        mv.visitInsn(ICONST_M1); // is important to reset current branch, because we have to know that the branch
+                                 // info on stack has already been used and can't be used
+        mv.visitVarInsn(ISTORE, myVariableIndex);
     }
 
     private Label instrumentIsLastJump() {
-        mv.visitVarInsn(ILOAD, myVariableIndex);
-        mv.visitIntInsn(SIPUSH, lastJump.getLineNumber());
+        // the probe alone tells the jump, it is unique in the class
         Label newLabelX = new Label();
-        mv.visitJumpInsn(IF_ICMPNE, newLabelX);
-        mv.visitVarInsn(ILOAD, myVariableIndex + 1);
-        mv.visitIntInsn(SIPUSH, lastJump.getJumpNumber());
+        mv.visitVarInsn(ILOAD, myVariableIndex);
+        ProbeLayout.visitPush(mv, lastJump.getProbe());
         mv.visitJumpInsn(IF_ICMPNE, newLabelX);
         return newLabelX;
     }
 
     public void visitMaxs(int maxStack, int maxLocals) {
-        mv.visitLocalVariable("__fastut__line__number__", "I", null, startLabel, endLabel, myVariableIndex);
-        mv.visitLocalVariable("__fastut__branch__number__", "I", null, startLabel, endLabel, myVariableIndex + 1);
+        mv.visitLocalVariable("__fastut__branch__number__", "I", null, startLabel, endLabel, myVariableIndex);
         super.visitMaxs(maxStack, maxLocals);
     }
 
@@ -0,0 +1,234 @@
+package fastut.coverage.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import fastut.coverage.data.ClassData;
+import fastut.coverage.data.CoverageData;
+import fastut.coverage.data.CoverageDataFormat;
+import fastut.coverage.data.CoverageDeltaLog;
+import fastut.coverage.data.LineData;
+import fastut.coverage.data.ProjectData;
+
+/**
+ * <p>
+ * Writes a report while walking the data file class by class. Each class is read from the mapped file, merged with its
+ * records in the frames of the {@link CoverageDeltaLog} not folded into the file yet, written and dropped, so only the
+ * class names and the totals per package stay in memory however large the project is. Nothing is compacted.
+ * </p>
+ * <p>
+ * The walk takes two passes: the first adds up the totals, which come before the classes in the report.
+ * </p>
+ */
+public abstract class CoverageReport {
+
+    protected final PrintWriter out;
+
+    protected CoverageReport(PrintWriter out){
+        this.out = out;
+    }
+
+    public void write(File dataFile) throws IOException {
+        CoverageDeltaLog deltaLog = new CoverageDeltaLog(dataFile);
+        List<CoverageDataFormat.ClassIndex> indexes = new ArrayList<CoverageDataFormat.ClassIndex>();
+        for (ByteBuffer buffer : deltaLog.map()) {
+            if (buffer == null) {
+                continue;
+            }
+            CoverageDataFormat.ClassIndex index = null;
+            if (CoverageDataFormat.isBinary(buffer)) {
+                index = CoverageDataFormat.index(buffer);
+            }
+            if (index == null) {
+                indexes = null;
+                break;
+            }
+            indexes.add(index);
+        }
+        if (indexes != null) {
+            write(new IndexedClasses(indexes));
+            return;
+        }
+        // older formats have no index and are read whole
+        ProjectData projectData = deltaLog.load();
+        if (projectData == null) {
+            throw new IOException("Could not read " + dataFile.getAbsolutePath());
+        }
+        write(new LoadedClasses(projectData));
+    }
+
+    private void write(Classes classes) {
+        SortedMap<String, List<String>> packages = new TreeMap<String, List<String>>();
+        for (String name : classes.names()) {
+            String packageName = getPackageName(name);
+            List<String> names = packages.get(packageName);
+            if (names == null) {
+                names = new ArrayList<String>();
+                packages.put(packageName, names);
+            }
+            names.add(name);
+        }
+
+        Totals projectTotals = new Totals();
+        Map<String, Totals> packageTotals = new HashMap<String, Totals>();
+        for (Map.Entry<String, List<String>> entry : packages.entrySet()) {
+            Totals totals = new Totals();
+            for (String name : entry.getValue()) {
+                totals.add(classes.get(name));
+            }
+            packageTotals.put(entry.getKey(), totals);
+            projectTotals.add(totals);
+        }
+
+        startReport(projectTotals);
+        for (Map.Entry<String, List<String>> entry : packages.entrySet()) {
+            startPackage(entry.getKey(), packageTotals.get(entry.getKey()));
+            for (String name : entry.getValue()) {
+                writeClass(classes.get(name));
+            }
+            endPackage();
+        }
+        endReport();
+        out.flush();
+    }
+
+    protected abstract void startReport(Totals totals);
+
+    protected abstract void startPackage(String packageName, Totals totals);
+
+    protected abstract void writeClass(ClassData classData);
+
+    protected abstract void endPackage();
+
+    protected abstract void endReport();
+
+    protected static SortedSet<LineData> getLines(ClassData classData, String methodNameAndDescriptor) {
+        SortedSet<LineData> lines = new TreeSet<LineData>();
+        for (CoverageData line : classData.getLines(methodNameAndDescriptor)) {
+            lines.add((LineData) line);
+        }
+        return lines;
+    }
+
+    protected static SortedSet<LineData> getLines(ClassData classData) {
+        SortedSet<LineData> lines = new TreeSet<LineData>();
+        for (CoverageData line : classData.getLines()) {
+            lines.add((LineData) line);
+        }
+        return lines;
+    }
+
+    private static String getPackageName(String className) {
+        int lastDot = className.lastIndexOf('.');
+        return lastDot == -1 ? "" : className.substring(0, lastDot);
+    }
+
+    /**
+     * Line and branch counts of a package or of the project.
+     */
+    protected static class Totals {
+
+        int linesValid;
+        int linesCovered;
+        int branchesValid;
+        int branchesCovered;
+
+        void add(ClassData classData) {
+            linesValid += classData.getNumberOfValidLines();
+            linesCovered += classData.getNumberOfCoveredLines();
+            branchesValid += classData.getNumberOfValidBranches();
+            branchesCovered += classData.getNumberOfCoveredBranches();
+        }
+
+        void add(Totals totals) {
+            linesValid += totals.linesValid;
+            linesCovered += totals.linesCovered;
+            branchesValid += totals.branchesValid;
+            branchesCovered += totals.branchesCovered;
+        }
+
+        double getLineRate() {
+            return linesValid == 0 ? 1d : (double) linesCovered / linesValid;
+        }
+
+        double getBranchRate() {
+            return branchesValid == 0 ? 1d : (double) branchesCovered / branchesValid;
+        }
+    }
+
+    private interface Classes {
+
+        Collection<String> names();
+
+        ClassData get(String name);
+    }
+
+    /**
+     * The classes of the data file and of the frames of its log, each class merged from all of them when read.
+     */
+    private static class IndexedClasses implements Classes {
+
+        private final List<CoverageDataFormat.ClassIndex> indexes;
+
+        IndexedClasses(List<CoverageDataFormat.ClassIndex> indexes){
+            this.indexes = indexes;
+        }
+
+        public Collection<String> names() {
+            SortedSet<String> names = new TreeSet<String>();
+            for (CoverageDataFormat.ClassIndex index : indexes) {
+                names.addAll(index.names());
+            }
+            return names;
+        }
+
+        public ClassData get(String name) {
+            ClassData merged = null;
+            for (CoverageDataFormat.ClassIndex index : indexes) {
+                ClassData classData = index.read(name);
+                if (classData == null) {
+                    continue;
+                }
+                if (merged == null) {
+                    merged = classData;
+                } else {
+                    merged.merge(classData);
+                }
+            }
+            return merged;
+        }
+    }
+
+    private static class LoadedClasses implements Classes {
+
+        private final ProjectData projectData;
+
+        LoadedClasses(ProjectData projectData){
+            this.projectData = projectData;
+        }
+
+        public Collection<String> names() {
+            SortedSet<String> names = new TreeSet<String>();
+            for (Iterator<?> iter = projectData.getClasses().iterator(); iter.hasNext();) {
+                names.add(((ClassData) iter.next()).getName());
+            }
+            return names;
+        }
+
+        public ClassData get(String name) {
+            return projectData.getClassData(name);
+        }
+    }
+}
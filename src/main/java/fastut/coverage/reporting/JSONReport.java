@@ -0,0 +1,100 @@
+package fastut.coverage.reporting;
+
+import java.io.PrintWriter;
+import java.util.TreeSet;
+
+import fastut.coverage.data.ClassData;
+import fastut.coverage.data.JumpData;
+import fastut.coverage.data.LineData;
+
+/**
+ * Writes the report as JSON, with the same packages, classes, methods and lines as {@link XMLReport}.
+ */
+public class JSONReport extends CoverageReport {
+
+    private boolean firstPackage = true;
+
+    private boolean firstClass;
+
+    public JSONReport(PrintWriter out){
+        super(out);
+    }
+
+    protected void startReport(Totals totals) {
+        out.print("{\"line-rate\":" + totals.getLineRate() + ",\"branch-rate\":" + totals.getBranchRate());
+        out.print(",\"lines-covered\":" + totals.linesCovered + ",\"lines-valid\":" + totals.linesValid);
+        out.print(",\"branches-covered\":" + totals.branchesCovered + ",\"branches-valid\":" + totals.branchesValid);
+        out.println(",\"timestamp\":" + System.currentTimeMillis() + ",\"packages\":[");
+    }
+
+    protected void startPackage(String packageName, Totals totals) {
+        if (!firstPackage) {
+            out.println(",");
+        }
+        firstPackage = false;
+        firstClass = true;
+        out.println("{\"name\":" + quote(packageName) + ",\"line-rate\":" + totals.getLineRate() + ",\"branch-rate\":"
+                    + totals.getBranchRate() + ",\"classes\":[");
+    }
+
+    protected void writeClass(ClassData classData) {
+        if (!firstClass) {
+            out.println(",");
+        }
+        firstClass = false;
+        out.print("{\"name\":" + quote(classData.getName()) + ",\"filename\":"
+                  + quote(classData.getSourceFileName()) + ",\"line-rate\":" + classData.getLineCoverageRate()
+                  + ",\"branch-rate\":" + classData.getBranchCoverageRate() + ",\"methods\":[");
+        String separator = "";
+        for (String method : new TreeSet<String>(classData.getMethodNamesAndDescriptors())) {
+            int paren = method.indexOf('(');
+            out.print(separator + "{\"name\":" + quote(method.substring(0, paren)) + ",\"signature\":"
+                      + quote(method.substring(paren)) + ",\"line-rate\":" + classData.getLineCoverageRate(method)
+                      + ",\"branch-rate\":" + classData.getBranchCoverageRate(method) + "}");
+            separator = ",";
+        }
+        out.print("],\"lines\":[");
+        separator = "";
+        for (LineData lineData : getLines(classData)) {
+            out.print(separator + "{\"number\":" + lineData.getLineNumber() + ",\"hits\":" + lineData.getHits()
+                      + ",\"branch\":" + lineData.hasBranch());
+            if (lineData.hasBranch()) {
+                out.print(",\"condition-coverage\":" + quote(lineData.getConditionCoverage()) + ",\"conditions\":[");
+                for (int i = 0; i < lineData.getConditionSize(); i++) {
+                    String type = lineData.getConditionData(i) instanceof JumpData ? "jump" : "switch";
+                    out.print((i == 0 ? "" : ",") + "{\"number\":" + i + ",\"type\":\"" + type + "\",\"coverage\":"
+                              + quote(lineData.getConditionCoverage(i)) + "}");
+                }
+                out.print("]");
+            }
+            out.print("}");
+            separator = ",";
+        }
+        out.print("]}");
+    }
+
+    protected void endPackage() {
+        out.println();
+        out.print("]}");
+    }
+
+    protected void endReport() {
+        out.println();
+        out.println("]}");
+    }
+
+    private static String quote(String str) {
+        StringBuilder quoted = new StringBuilder(str.length() + 2).append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
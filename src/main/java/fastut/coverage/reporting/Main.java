@@ -0,0 +1,69 @@
+package fastut.coverage.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import fastut.coverage.data.CoverageDataFileHandler;
+import fastut.coverage.data.CoverageDeltaLog;
+import fastut.coverage.util.Header;
+import fastut.coverage.util.IOUtil;
+
+/**
+ * Writes a coverage report from the data file.
+ *
+ * <pre>
+ * java fastut.coverage.reporting.Main [--datafile fastut.ser] [--format xml|json] [--destination coverage.xml] [srcdir ...]
+ * </pre>
+ */
+public class Main {
+
+    public static void main(String[] args) throws IOException {
+        Header.print(System.out);
+
+        File dataFile = CoverageDataFileHandler.getDefaultDataFile();
+        String format = "xml";
+        File destination = null;
+        List<String> sourceDirs = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--datafile")) {
+                dataFile = new File(args[++i]);
+            } else if (args[i].equals("--format")) {
+                format = args[++i];
+            } else if (args[i].equals("--destination")) {
+                destination = new File(args[++i]);
+            } else {
+                sourceDirs.add(args[i]);
+            }
+        }
+        if (!format.equals("xml") && !format.equals("json")) {
+            System.err.println("FastUT: Unknown report format " + format + ", expected xml or json.");
+            System.exit(1);
+        }
+        if (destination == null) {
+            destination = new File("coverage." + format);
+        }
+
+        // the deltas of JVMs that did not compact before they exited are merged class by class, see CoverageReport
+        if (!dataFile.isFile() && !new CoverageDeltaLog(dataFile).getLogFile().isFile()) {
+            System.err.println("FastUT: Coverage data file " + dataFile.getAbsolutePath() + " does not exist.");
+            System.exit(1);
+        }
+
+        PrintWriter out = IOUtil.getPrintWriter(destination);
+        try {
+            CoverageReport report;
+            if (format.equals("json")) {
+                report = new JSONReport(out);
+            } else {
+                report = new XMLReport(out, sourceDirs.toArray(new String[sourceDirs.size()]));
+            }
+            report.write(dataFile);
+        } finally {
+            out.close();
+        }
+        System.out.println("FastUT: Report written to " + destination.getAbsolutePath());
+    }
+}
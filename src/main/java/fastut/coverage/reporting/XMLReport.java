@@ -0,0 +1,122 @@
+package fastut.coverage.reporting;
+
+import java.io.PrintWriter;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import fastut.coverage.data.ClassData;
+import fastut.coverage.data.JumpData;
+import fastut.coverage.data.LineData;
+import fastut.coverage.util.Header;
+
+/**
+ * Writes the report in the XML format of Cobertura, see coverage-04.dtd.
+ */
+public class XMLReport extends CoverageReport {
+
+    private final String[] sourceDirs;
+
+    public XMLReport(PrintWriter out, String[] sourceDirs){
+        super(out);
+        this.sourceDirs = sourceDirs;
+    }
+
+    protected void startReport(Totals totals) {
+        out.println("<?xml version=\"1.0\"?>");
+        out.println("<!DOCTYPE coverage SYSTEM \"http://cobertura.sourceforge.net/xml/coverage-04.dtd\">");
+        out.println();
+        out.print("<coverage line-rate=\"" + totals.getLineRate() + "\" branch-rate=\"" + totals.getBranchRate() + "\"");
+        out.print(" lines-covered=\"" + totals.linesCovered + "\" lines-valid=\"" + totals.linesValid + "\"");
+        out.print(" branches-covered=\"" + totals.branchesCovered + "\" branches-valid=\"" + totals.branchesValid
+                  + "\"");
+        out.println(" complexity=\"0\" version=\"" + Header.version() + "\" timestamp=\"" + System.currentTimeMillis()
+                    + "\">");
+        out.println("\t<sources>");
+        for (String sourceDir : sourceDirs) {
+            out.println("\t\t<source>" + escape(sourceDir) + "</source>");
+        }
+        out.println("\t</sources>");
+        out.println("\t<packages>");
+    }
+
+    protected void startPackage(String packageName, Totals totals) {
+        out.println("\t\t<package name=\"" + escape(packageName) + "\" line-rate=\"" + totals.getLineRate()
+                    + "\" branch-rate=\"" + totals.getBranchRate() + "\" complexity=\"0\">");
+        out.println("\t\t\t<classes>");
+    }
+
+    protected void writeClass(ClassData classData) {
+        out.println("\t\t\t\t<class name=\"" + escape(classData.getName()) + "\" filename=\""
+                    + escape(classData.getSourceFileName()) + "\" line-rate=\"" + classData.getLineCoverageRate()
+                    + "\" branch-rate=\"" + classData.getBranchCoverageRate() + "\" complexity=\"0\">");
+        out.println("\t\t\t\t\t<methods>");
+        for (String method : new TreeSet<String>(classData.getMethodNamesAndDescriptors())) {
+            int paren = method.indexOf('(');
+            out.println("\t\t\t\t\t\t<method name=\"" + escape(method.substring(0, paren)) + "\" signature=\""
+                        + escape(method.substring(paren)) + "\" line-rate=\""
+                        + classData.getLineCoverageRate(method) + "\" branch-rate=\""
+                        + classData.getBranchCoverageRate(method) + "\">");
+            writeLines(getLines(classData, method), "\t\t\t\t\t\t\t");
+            out.println("\t\t\t\t\t\t</method>");
+        }
+        out.println("\t\t\t\t\t</methods>");
+        writeLines(getLines(classData), "\t\t\t\t\t");
+        out.println("\t\t\t\t</class>");
+    }
+
+    private void writeLines(SortedSet<LineData> lines, String indent) {
+        out.println(indent + "<lines>");
+        for (LineData lineData : lines) {
+            out.print(indent + "\t<line number=\"" + lineData.getLineNumber() + "\" hits=\"" + lineData.getHits()
+                      + "\" branch=\"" + lineData.hasBranch() + "\"");
+            if (!lineData.hasBranch()) {
+                out.println("/>");
+                continue;
+            }
+            out.println(" condition-coverage=\"" + escape(lineData.getConditionCoverage()) + "\">");
+            out.println(indent + "\t\t<conditions>");
+            for (int i = 0; i < lineData.getConditionSize(); i++) {
+                String type = lineData.getConditionData(i) instanceof JumpData ? "jump" : "switch";
+                out.println(indent + "\t\t\t<condition number=\"" + i + "\" type=\"" + type + "\" coverage=\""
+                            + escape(lineData.getConditionCoverage(i)) + "\"/>");
+            }
+            out.println(indent + "\t\t</conditions>");
+            out.println(indent + "\t</line>");
+        }
+        out.println(indent + "</lines>");
+    }
+
+    protected void endPackage() {
+        out.println("\t\t\t</classes>");
+        out.println("\t\t</package>");
+    }
+
+    protected void endReport() {
+        out.println("\t</packages>");
+        out.println("</coverage>");
+    }
+
+    private static String escape(String str) {
+        StringBuilder escaped = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -24,7 +24,7 @@ public abstract class ArchiveUtil
 
     /**
      * Check to see if the given file name is a signature file
-     * (meta-inf/*.rsa or meta-inf/*.sf).
+     * (meta-inf/*.rsa, *.dsa, *.ec or *.sf).
      *
      * @param name The file name.  Commonly a ZipEntry name.
      * @return true if the name is a signature file.
@@ -32,7 +32,8 @@ public abstract class ArchiveUtil
     public static boolean isSignatureFile(String name)
     {
         name = name.toLowerCase();
-        return (name.startsWith("meta-inf/") && (name.endsWith(".rsa") || name.endsWith(".sf")));
+        return (name.startsWith("meta-inf/") && (name.endsWith(".rsa") || name.endsWith(".dsa")
+                || name.endsWith(".ec") || name.endsWith(".sf")));
     }
 
 }
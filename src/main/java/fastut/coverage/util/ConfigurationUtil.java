@@ -63,6 +63,13 @@ public class ConfigurationUtil {
         return getProperty("fastut.datafile", "fastut.ser");
     }
 
+    /**
+     * @return the memory-mapped coverage file shared by all JVMs, or null to merge into the data file on exit
+     */
+    public String getSharedDatafile() {
+        return getProperty("fastut.shared.datafile", null);
+    }
+
     /**
      * Poor mans debugging. Intentionally didn't use log4j, as we dont want to introduce that dependency on instrumented
      * files.
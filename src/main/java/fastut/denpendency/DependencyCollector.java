@@ -10,7 +10,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
-import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
@@ -23,7 +22,7 @@ import org.objectweb.asm.tree.MethodNode;
 
 import fastut.mock.MockFactory;
 
-public class DependencyCollector extends ClassAdapter implements Opcodes {
+public class DependencyCollector extends ClassVisitor implements Opcodes {
 
     public Map<String, List<FastUTFieldNode>>   declared_fields        = new HashMap<String, List<FastUTFieldNode>>();
     public Map<String, List<MethodNode>>        declared_inits         = new HashMap<String, List<MethodNode>>();
@@ -37,7 +36,7 @@ public class DependencyCollector extends ClassAdapter implements Opcodes {
     Stack<String>                               class_name_stack       = new Stack<String>();
 
     public DependencyCollector(ClassVisitor cv){
-        super(cv);
+        super(ASM9, cv);
     }
 
     void collect(String className) {
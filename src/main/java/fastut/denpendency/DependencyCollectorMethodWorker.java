@@ -5,18 +5,17 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
-public class DependencyCollectorMethodWorker extends MethodAdapter implements Opcodes {
+public class DependencyCollectorMethodWorker extends MethodVisitor implements Opcodes {
 
     private final DependencyKey    key;
     private final Set<FieldCall>   fieldCalls;
     private final List<MethodCall> methodCalls;
 
     public DependencyCollectorMethodWorker(MethodVisitor mv, String className, String methodName, String methodDesc, DependencyCollector collector){
-        super(mv);
+        super(ASM9, mv);
         key = new DependencyKey(className, methodName, methodDesc);
         fieldCalls = new HashSet<FieldCall>();
         methodCalls = new ArrayList<MethodCall>();
@@ -32,10 +31,10 @@ public class DependencyCollectorMethodWorker extends MethodAdapter implements Op
     }
 
     @Override
-    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
         MethodCall call = new MethodCall(opcode, owner, name, desc);
         methodCalls.add(call);
-        super.visitMethodInsn(opcode, owner, name, desc);
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
     }
 
 }
@@ -1,5 +1,6 @@
 package fastut.denpendency;
 
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.FieldNode;
 
 public class FastUTFieldNode extends FieldNode {
@@ -10,7 +11,7 @@ public class FastUTFieldNode extends FieldNode {
 
     public FastUTFieldNode(int access, String name, String desc, String signature, Object value,
                            String declaredClassName){
-        super(access, name, desc, signature, value);
+        super(Opcodes.ASM9, access, name, desc, signature, value);
         this.declaredClassName = declaredClassName;
     }
 
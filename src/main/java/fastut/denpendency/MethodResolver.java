@@ -6,12 +6,10 @@ import java.util.Set;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.Attribute;
 import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
-import com.sun.xml.internal.ws.org.objectweb.asm.Opcodes;
-
-public class MethodResolver extends MethodAdapter {
+public class MethodResolver extends MethodVisitor {
 
     private String             methodName;
     private String             methodDesc;
@@ -20,7 +18,7 @@ public class MethodResolver extends MethodAdapter {
     private String             internalClassName;
 
     public MethodResolver(MethodConstantPool pool, MethodVisitor mv){
-        super(mv);
+        super(Opcodes.ASM9, mv);
         this.pool = pool;
         this.methodName = pool.getName();
         this.methodDesc = pool.getDesc();
@@ -123,11 +121,11 @@ public class MethodResolver extends MethodAdapter {
     }
 
     @Override
-    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
         if (!internalClassName.equals(owner)) {
             typeSet.add(owner);
         }
-        super.visitMethodInsn(opcode, owner, name, desc);
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
     }
 
     @Override
@@ -5,13 +5,13 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
-public class MethodScanner extends ClassAdapter {
+public class MethodScanner extends ClassVisitor {
 
     Map<String, MethodConstantPool> methodConstants = new HashMap<String, MethodConstantPool>();
     static Set<String>              doneSet         = new HashSet<String>();
@@ -26,7 +26,7 @@ public class MethodScanner extends ClassAdapter {
     }
 
     public MethodScanner(ClassVisitor cv){
-        super(cv);
+        super(Opcodes.ASM9, cv);
     }
 
     @Override
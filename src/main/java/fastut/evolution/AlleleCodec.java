@@ -0,0 +1,82 @@
+package fastut.evolution;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jgap.IChromosome;
+
+/**
+ * Tagged binary encoding of gene alleles, shared by the island and sandbox channels.
+ */
+class AlleleCodec {
+
+    private static final byte TAG_NULL    = 0;
+    private static final byte TAG_INT     = 1;
+    private static final byte TAG_LONG    = 2;
+    private static final byte TAG_DOUBLE  = 3;
+    private static final byte TAG_BOOLEAN = 4;
+    private static final byte TAG_INTS    = 5;
+
+    static void writeAlleles(DataOutputStream out, IChromosome chromosome) throws IOException {
+        out.writeInt(chromosome.size());
+        for (int i = 0; i < chromosome.size(); ++i) {
+            writeAllele(out, chromosome.getGene(i).getAllele());
+        }
+    }
+
+    static Object[] readAlleles(DataInputStream in) throws IOException {
+        Object[] alleles = new Object[in.readInt()];
+        for (int i = 0; i < alleles.length; ++i) {
+            alleles[i] = readAllele(in);
+        }
+        return alleles;
+    }
+
+    static void writeAllele(DataOutputStream out, Object allele) throws IOException {
+        if (allele instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeInt(((Integer) allele).intValue());
+        } else if (allele instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(((Long) allele).longValue());
+        } else if (allele instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Double) allele).doubleValue());
+        } else if (allele instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean(((Boolean) allele).booleanValue());
+        } else if (allele instanceof int[]) {
+            int[] values = (int[]) allele;
+            out.writeByte(TAG_INTS);
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        } else {
+            out.writeByte(TAG_NULL);
+        }
+    }
+
+    static Object readAllele(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_INT:
+                return Integer.valueOf(in.readInt());
+            case TAG_LONG:
+                return Long.valueOf(in.readLong());
+            case TAG_DOUBLE:
+                return Double.valueOf(in.readDouble());
+            case TAG_BOOLEAN:
+                return Boolean.valueOf(in.readBoolean());
+            case TAG_INTS:
+                int[] values = new int[in.readInt()];
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = in.readInt();
+                }
+                return values;
+            default:
+                return null;
+        }
+    }
+}
@@ -1,48 +1,123 @@
 package fastut.evolution;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
 import org.jgap.FitnessFunction;
 import org.jgap.IChromosome;
 
 import fastut.coverage.data.ClassData;
+import fastut.coverage.data.CoverageDataFormat;
+import fastut.coverage.data.ProjectData;
 import fastut.coverage.data.TouchCollector;
 import fastut.generate.TestDataGenerator;
 
 public class DependencyFitnessFunction extends FitnessFunction {
 
-    private static final long   serialVersionUID = 5891009005406173159L;
+    private static final long     serialVersionUID = 5891009005406173159L;
+
+    /** fitness of inputs that hang or kill their sandbox */
+    public static final double    PENALTY_FITNESS  = 0.0d;
 
-    private MethodInvokeContext invokeContext;
+    private MethodInvokeContext   invokeContext;
+
+    private transient SandboxPool sandbox;
 
     public DependencyFitnessFunction(MethodInvokeContext invokeContext){
+        this(invokeContext, null);
+    }
+
+    /**
+     * @param sandbox runs the inputs in sandbox JVMs instead of this one, may be null
+     */
+    public DependencyFitnessFunction(MethodInvokeContext invokeContext, SandboxPool sandbox){
         this.invokeContext = invokeContext;
+        this.sandbox = sandbox;
     }
 
     @Override
     protected double evaluate(IChromosome a_subject) {
+        if (sandbox != null) {
+            return sandbox.evaluate(invokeContext, a_subject);
+        }
+        ClassData classData = runInputs(a_subject);
+        if (invokeContext.hasTimedOut()) {
+            return PENALTY_FITNESS;
+        }
+        return classData.getBranchCoverageRate(invokeContext.getMethodSignature());
+    }
+
+    /**
+     * Decodes and invokes every input slot of the chromosome and returns the coverage they produced. Stops at the first
+     * invocation that misses the watchdog deadline. The coverage is added to {@link TestDataGenerator#coverageArchive}
+     * as well.
+     */
+    public ClassData runInputs(IChromosome a_subject) {
+        return runInputs(a_subject, null);
+    }
+
+    /**
+     * Like {@link #runInputs(IChromosome)}, telling the listener after each input.
+     *
+     * @param listener may be null
+     */
+    public ClassData runInputs(IChromosome a_subject, MethodInvokeContext.InputListener listener) {
         TouchCollector.reset();
         TestDataGenerator.projectData.reset();
+        invokeContext.clearTimedOut();
 
-        int size = a_subject.size();
-        int iSize = invokeContext.getGeneTypeSize();
-        int gSize = size / iSize;
-        GeneValueIterator geneIter = new GeneValueIterator(a_subject);
-        for (int i = 0; i < gSize; ++i) {
-            for (int j = 0; j < iSize; ++j) {
-                if (invokeContext.isParam(j)) {
-                    invokeContext.processParam(j, geneIter);
-                    continue;
-                }
-                invokeContext.processField(j, geneIter);
-                if(invokeContext.isMapBegin(j)) {
-                    ++j;
-                }
-            }
-            invokeContext.tryInvoke();
-        }
+        invokeContext.invokeBatch(a_subject, listener);
 
         TouchCollector.applyTouchesOnProjectData(TestDataGenerator.projectData);
-        ClassData classData = TestDataGenerator.projectData.getClassData(invokeContext.getClassName());
-        return classData.getBranchCoverageRate(invokeContext.getMethodSignature());
+        archive(TestDataGenerator.projectData);
+        return TestDataGenerator.projectData.getClassData(invokeContext.getClassName());
+    }
+
+    /**
+     * Invokes the input slots of the chromosome like {@link #runInputs(IChromosome)}, taking the coverage of each input
+     * on its own.
+     *
+     * @return per input the branch outcomes of the method it covered, see {@link ClassData#getCoveredBranchBits(String)}
+     */
+    public List<BitSet> recordInputs(IChromosome a_subject) {
+        TouchCollector.reset();
+        TestDataGenerator.projectData.reset();
+        invokeContext.clearTimedOut();
+
+        final List<BitSet> covered = new ArrayList<BitSet>();
+        invokeContext.invokeBatch(a_subject, new MethodInvokeContext.InputListener() {
+
+            public void inputDone(int input) {
+                TestDataGenerator.projectData.reset();
+                TouchCollector.applyTouchesOnProjectData(TestDataGenerator.projectData);
+                archive(TestDataGenerator.projectData);
+                ClassData classData = TestDataGenerator.projectData.getClassData(invokeContext.getClassName());
+                covered.add(classData != null ? classData.getCoveredBranchBits(invokeContext.getMethodSignature())
+                                              : new BitSet());
+            }
+        });
+        return covered;
+    }
+
+    /**
+     * Adds a copy of the coverage to the archive. Merging the coverage itself would hand the archive class data the
+     * next evaluation resets.
+     */
+    private static void archive(ProjectData coverage) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            CoverageDataFormat.write(coverage, out);
+            out.flush();
+            TestDataGenerator.coverageArchive.merge(CoverageDataFormat.read(ByteBuffer.wrap(bytes.toByteArray())));
+        } catch (IOException e) {
+            System.err.println("FastUT: Unable to archive the coverage of an evaluation: " + e);
+        }
     }
 
 }
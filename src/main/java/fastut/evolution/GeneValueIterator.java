@@ -1,6 +1,12 @@
 package fastut.evolution;
 
+import org.jgap.Gene;
 import org.jgap.IChromosome;
+import org.jgap.impl.BooleanGene;
+import org.jgap.impl.CollectionGene;
+import org.jgap.impl.DoubleGene;
+import org.jgap.impl.IntegerGene;
+import org.jgap.impl.LongGene;
 
 public class GeneValueIterator {
 
@@ -16,4 +22,52 @@ public class GeneValueIterator {
         pos++;
         return next;
     }
+
+    /**
+     * Reads the next gene as an int without going through the boxed allele of the known gene types.
+     */
+    public int nextInt() {
+        Gene gene = a_subject.getGene(pos++);
+        if (gene instanceof IntegerGene) {
+            return ((IntegerGene) gene).intValue();
+        }
+        if (gene instanceof LongGene) {
+            return (int) ((LongGene) gene).longValue();
+        }
+        return ((Number) gene.getAllele()).intValue();
+    }
+
+    public long nextLong() {
+        Gene gene = a_subject.getGene(pos++);
+        if (gene instanceof LongGene) {
+            return ((LongGene) gene).longValue();
+        }
+        if (gene instanceof IntegerGene) {
+            return ((IntegerGene) gene).intValue();
+        }
+        return ((Number) gene.getAllele()).longValue();
+    }
+
+    public double nextDouble() {
+        Gene gene = a_subject.getGene(pos++);
+        if (gene instanceof DoubleGene) {
+            return ((DoubleGene) gene).doubleValue();
+        }
+        return ((Number) gene.getAllele()).doubleValue();
+    }
+
+    /**
+     * Reads the next gene, the elements of a collection, map or array of base values.
+     */
+    public CollectionGene nextCollection() {
+        return (CollectionGene) a_subject.getGene(pos++);
+    }
+
+    public boolean nextBoolean() {
+        Gene gene = a_subject.getGene(pos++);
+        if (gene instanceof BooleanGene) {
+            return ((BooleanGene) gene).booleanValue();
+        }
+        return ((Boolean) gene.getAllele()).booleanValue();
+    }
 }
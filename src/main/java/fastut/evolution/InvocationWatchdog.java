@@ -0,0 +1,163 @@
+package fastut.evolution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs invocations of the method under test on an invoker thread with a deadline. An invoker that misses the deadline
+ * is interrupted and abandoned, a fresh one takes over, and the inputs that caused it are kept for the report.
+ * <p>
+ * The probes of the instrumented classes are shared by all threads, so an abandoned invoker still running would mix its
+ * touches into the coverage of the inputs after it. The watchdog therefore waits for it to end before it returns, and
+ * stops it when it ignores the interrupt. One that cannot be stopped is counted by {@link #getStuckThreads()}, a
+ * {@link SandboxWorker} with one is replaced.
+ */
+public class InvocationWatchdog {
+
+    private static final int          MAX_RECORDED = 100;
+    private static final AtomicInteger THREAD_SEQ  = new AtomicInteger();
+
+    private final long                timeout;
+    private final List<Thread>        abandoned    = new ArrayList<Thread>();
+    private final List<String>        offending    = new ArrayList<String>();
+    private ThreadPoolExecutor        executor;
+    private volatile Thread           invoker;
+    private int                       timeouts;
+
+    /**
+     * @param timeout milliseconds one invocation may take
+     */
+    public InvocationWatchdog(long timeout){
+        this.timeout = timeout;
+        this.executor = newExecutor();
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public synchronized int getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return abandoned invoker threads that are still running
+     */
+    public synchronized int getStuckThreads() {
+        for (Iterator<Thread> iter = abandoned.iterator(); iter.hasNext();) {
+            if (!iter.next().isAlive()) {
+                iter.remove();
+            }
+        }
+        return abandoned.size();
+    }
+
+    public synchronized List<String> getOffendingInputs() {
+        return Collections.unmodifiableList(new ArrayList<String>(offending));
+    }
+
+    /**
+     * Runs the task on the invoker thread.
+     *
+     * @param inputs describes the inputs, recorded when the deadline is missed
+     * @throws TimeoutException when the task did not finish in time
+     * @throws Throwable whatever the task threw
+     */
+    public <T> T call(Callable<T> task, Object inputs) throws Throwable {
+        return call(task, inputs, null);
+    }
+
+    /**
+     * Runs a task that invokes several inputs on the invoker thread. The deadline applies to each input: the task is
+     * given up only when the progress counter did not move for a whole timeout.
+     *
+     * @param progress number of inputs the task has finished, may be null for a single invocation
+     */
+    public synchronized <T> T call(Callable<T> task, Object inputs, AtomicInteger progress) throws Throwable {
+        Future<T> future = executor.submit(task);
+        int seen = progress == null ? 0 : progress.get();
+        while (true) {
+            try {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            } catch (TimeoutException e) {
+                if (progress != null && progress.get() != seen) {
+                    seen = progress.get();
+                    continue;
+                }
+                abandon(future, String.valueOf(inputs));
+                throw e;
+            }
+        }
+    }
+
+    private void abandon(Future<?> future, String inputs) {
+        future.cancel(true);
+        ++timeouts;
+        if (offending.size() < MAX_RECORDED) {
+            offending.add(inputs);
+        }
+        Thread stuck = invoker;
+        executor.shutdownNow();
+        executor = newExecutor();
+        if (stuck != null && !stop(stuck)) {
+            abandoned.add(stuck);
+        }
+        System.err.println("FastUT watchdog: invocation exceeded " + timeout + "ms with " + inputs + ", "
+                           + getStuckThreads() + " invoker threads stuck.");
+    }
+
+    /**
+     * Waits a timeout for the interrupted invoker to end, then stops it.
+     *
+     * @return whether the invoker ended
+     */
+    @SuppressWarnings("deprecation")
+    private boolean stop(Thread stuck) {
+        try {
+            stuck.join(timeout);
+            if (stuck.isAlive()) {
+                stuck.stop();
+                stuck.join(timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (UnsupportedOperationException e) {
+            // newer JVMs cannot stop a thread, it stays stuck
+        }
+        return !stuck.isAlive();
+    }
+
+    public synchronized String report() {
+        return "FastUT watchdog: " + timeouts + " timeouts, " + getStuckThreads() + " invoker threads stuck, offending inputs "
+               + offending;
+    }
+
+    private ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                                                             public Thread newThread(Runnable r) {
+                                                                 Thread thread = new Thread(r, "fastut-invoker-"
+                                                                                               + THREAD_SEQ.incrementAndGet());
+                                                                 thread.setDaemon(true);
+                                                                 invoker = thread;
+                                                                 return thread;
+                                                             }
+                                                         });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,243 @@
+package fastut.evolution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fastut.coverage.data.CoverageDataFileHandler;
+import fastut.coverage.data.CoverageDeltaLog;
+import fastut.coverage.data.ProjectData;
+import fastut.coverage.util.ConfigurationUtil;
+
+/**
+ * Island-model driver. Starts one worker JVM per island, each evolving its own sub-population of the same class, and
+ * relays migrants around a ring over loopback sockets (island i sends to island i + 1). When all islands are done the
+ * per-island coverage files are merged and appended to the {@link CoverageDeltaLog} of the default data file, so the
+ * coverage already there stays.
+ * <p>
+ * Usage: IslandCoordinator className [islands]. Tuning is read through {@link ConfigurationUtil}:
+ * fastut.island.interval, fastut.island.migrants, fastut.island.population, fastut.island.evolutions and
+ * fastut.island.jvmArgs.
+ * <p>
+ * A worker that exits or does not connect within fastut.island.startupTimeout ms, 60000 unless set, is started again
+ * up to fastut.island.respawns times, 1 unless set. After that its island is given up and the ring runs without it.
+ */
+public class IslandCoordinator {
+
+    private final String             className;
+    private final int                islands;
+    private final ConfigurationUtil  config = new ConfigurationUtil();
+    private final DataOutputStream[] outs;
+
+    /** how long accept waits before the pending workers are checked */
+    private static final int         ACCEPT_POLL = 1000;
+
+    public IslandCoordinator(String className, int islands){
+        this.className = className;
+        this.islands = islands;
+        this.outs = new DataOutputStream[islands];
+    }
+
+    public ProjectData run() throws IOException, InterruptedException {
+        ServerSocket server = new ServerSocket(0, islands, InetAddress.getByName(null));
+        server.setSoTimeout(ACCEPT_POLL);
+        Process[] workers = new Process[islands];
+        long[] started = new long[islands];
+        int[] respawns = new int[islands];
+        boolean[] pending = new boolean[islands];
+        try {
+            for (int i = 0; i < islands; ++i) {
+                workers[i] = startWorker(i, server.getLocalPort());
+                started[i] = System.currentTimeMillis();
+                pending[i] = true;
+            }
+            int waiting = islands;
+            int connected = 0;
+            while (waiting > 0) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    waiting -= checkPending(workers, started, respawns, pending, server.getLocalPort());
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int islandId = in.readInt();
+                if (islandId < 0 || islandId >= islands || !pending[islandId]) {
+                    // a worker given up on, connecting late
+                    socket.close();
+                    continue;
+                }
+                pending[islandId] = false;
+                waiting--;
+                connected++;
+                synchronized (outs) {
+                    outs[islandId] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                }
+                startRelay(islandId, in);
+            }
+            if (connected == 0) {
+                throw new IOException("no island worker of " + className + " connected");
+            }
+            for (Process worker : workers) {
+                if (worker == null) {
+                    continue;
+                }
+                int code = worker.waitFor();
+                if (code != 0) {
+                    System.err.println("FastUT island worker exited with code " + code);
+                }
+            }
+        } finally {
+            server.close();
+            for (Process worker : workers) {
+                if (worker != null && !hasExited(worker)) {
+                    worker.destroy();
+                }
+            }
+        }
+        return mergeCoverage();
+    }
+
+    /**
+     * Restarts the pending workers that exited or missed the startup timeout, or gives up on their islands.
+     *
+     * @return the number of islands given up
+     */
+    private int checkPending(Process[] workers, long[] started, int[] respawns, boolean[] pending, int port)
+                                                                                                          throws IOException {
+        long startupTimeout = Long.parseLong(config.getProperty("fastut.island.startupTimeout", "60000"));
+        int maxRespawns = Integer.parseInt(config.getProperty("fastut.island.respawns", "1"));
+        long now = System.currentTimeMillis();
+        int givenUp = 0;
+        for (int i = 0; i < islands; ++i) {
+            if (!pending[i]) {
+                continue;
+            }
+            boolean exited = hasExited(workers[i]);
+            if (!exited && now - started[i] < startupTimeout) {
+                continue;
+            }
+            String reason = exited ? "exited with code " + workers[i].exitValue() : "did not connect in time";
+            workers[i].destroy();
+            if (respawns[i] < maxRespawns) {
+                respawns[i]++;
+                System.err.println("FastUT island " + i + " " + reason + ", starting it again.");
+                workers[i] = startWorker(i, port);
+                started[i] = now;
+            } else {
+                System.err.println("FastUT island " + i + " " + reason + ", giving it up.");
+                workers[i] = null;
+                pending[i] = false;
+                givenUp++;
+            }
+        }
+        return givenUp;
+    }
+
+    private static boolean hasExited(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    private Process startWorker(int islandId, int port) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        String jvmArgs = config.getProperty("fastut.island.jvmArgs", "");
+        for (String arg : jvmArgs.trim().split("\\s+")) {
+            if (arg.length() > 0) {
+                command.add(arg);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(IslandWorker.class.getName());
+        command.add(className);
+        command.add(String.valueOf(port));
+        command.add(String.valueOf(islandId));
+        command.add(config.getProperty("fastut.island.interval", "2"));
+        command.add(config.getProperty("fastut.island.migrants", "2"));
+        command.add(config.getProperty("fastut.island.population", "50"));
+        command.add(config.getProperty("fastut.island.evolutions", "20"));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.inheritIO();
+        return builder.start();
+    }
+
+    /**
+     * Forwards every frame of one island to the next island of the ring. Frames are relayed as opaque bytes.
+     */
+    private void startRelay(final int islandId, final DataInputStream in) {
+        Thread relay = new Thread(new Runnable() {
+
+            public void run() {
+                int target = (islandId + 1) % islands;
+                try {
+                    while (true) {
+                        byte[] frame = new byte[in.readInt()];
+                        in.readFully(frame);
+                        if (target == islandId) {
+                            continue;
+                        }
+                        DataOutputStream out;
+                        synchronized (outs) {
+                            out = outs[target];
+                        }
+                        if (out == null) {
+                            // neighbour not connected yet, migrants are dropped
+                            continue;
+                        }
+                        synchronized (out) {
+                            out.writeInt(frame.length);
+                            out.write(frame);
+                            out.flush();
+                        }
+                    }
+                } catch (EOFException e) {
+                    // island finished
+                } catch (IOException e) {
+                    // neighbour finished before us, nothing left to relay to
+                }
+            }
+        }, "fastut-island-relay-" + islandId);
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    private ProjectData mergeCoverage() throws IOException {
+        File dataFile = CoverageDataFileHandler.getDefaultDataFile();
+        ProjectData merged = new ProjectData();
+        for (int i = 0; i < islands; ++i) {
+            File islandFile = IslandWorker.getCoverageFile(dataFile, i);
+            if (!islandFile.isFile()) {
+                continue;
+            }
+            ProjectData islandData = CoverageDataFileHandler.loadCoverageData(islandFile);
+            merged.merge(islandData);
+            islandFile.delete();
+        }
+        new CoverageDeltaLog(dataFile).append(merged);
+        return merged;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        String className = args.length > 0 ? args[0] : "samples.ComplexObject";
+        int islands = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        new IslandCoordinator(className, islands).run();
+    }
+}
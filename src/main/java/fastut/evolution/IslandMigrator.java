@@ -0,0 +1,184 @@
+package fastut.evolution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jgap.Gene;
+import org.jgap.Genotype;
+import org.jgap.IChromosome;
+import org.jgap.Population;
+
+/**
+ * Worker side of the island model. Sends the fittest chromosomes of this island to the coordinator and takes in the
+ * migrants the coordinator forwards from the neighbour island. Migrants arrive on a reader thread, so evolution never
+ * waits for a slower island.
+ */
+public class IslandMigrator {
+
+    private final int                  islandId;
+    private final int                  interval;
+    private final int                  migrants;
+    private final int                  populationSize;
+    private final int                  maxEvolutions;
+    private final Socket               socket;
+    private final DataOutputStream     out;
+    private final Queue<MigrantBatch>  arrivals = new ConcurrentLinkedQueue<MigrantBatch>();
+
+    public IslandMigrator(int islandId, int port, int interval, int migrants, int populationSize, int maxEvolutions)
+                                                                                                                  throws IOException{
+        this.islandId = islandId;
+        this.interval = interval;
+        this.migrants = migrants;
+        this.populationSize = populationSize;
+        this.maxEvolutions = maxEvolutions;
+        this.socket = new Socket(InetAddress.getByName(null), port);
+        this.socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(islandId);
+        out.flush();
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread reader = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    while (true) {
+                        byte[] frame = new byte[in.readInt()];
+                        in.readFully(frame);
+                        arrivals.add(decode(frame));
+                    }
+                } catch (EOFException e) {
+                    // coordinator closed the channel
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        System.err.println("FastUT island " + IslandMigrator.this.islandId + ": migration channel lost: "
+                                           + e.getLocalizedMessage());
+                    }
+                }
+            }
+        }, "fastut-island-" + islandId + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public int getIslandId() {
+        return islandId;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int getPopulationSize() {
+        return populationSize;
+    }
+
+    public int getMaxEvolutions() {
+        return maxEvolutions;
+    }
+
+    /**
+     * Sends the fittest chromosomes of the population away and replaces the weakest ones with the migrants that arrived
+     * for the same method since the last exchange.
+     */
+    @SuppressWarnings("unchecked")
+    public void exchange(String methodId, Genotype population) {
+        List<IChromosome> fittest = population.getFittestChromosomes(migrants);
+        try {
+            emigrate(methodId, fittest);
+        } catch (IOException e) {
+            System.err.println("FastUT island " + islandId + ": could not send migrants: " + e.getLocalizedMessage());
+        }
+
+        List<Object[]> immigrants = immigrate(methodId);
+        if (immigrants.isEmpty()) {
+            return;
+        }
+        Population chromosomes = population.getPopulation();
+        chromosomes.sortByFitness();
+        int size = chromosomes.size();
+        for (int i = 0; i < immigrants.size() && i < size - 1; ++i) {
+            IChromosome weakest = chromosomes.getChromosome(size - 1 - i);
+            Object[] alleles = immigrants.get(i);
+            if (alleles.length != weakest.size()) {
+                continue;
+            }
+            for (int j = 0; j < alleles.length; ++j) {
+                Gene gene = weakest.getGene(j);
+                gene.setAllele(alleles[j]);
+            }
+            weakest.setFitnessValueDirectly(-1);
+        }
+    }
+
+    void emigrate(String methodId, List<IChromosome> chromosomes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream frame = new DataOutputStream(buffer);
+        frame.writeUTF(methodId);
+        frame.writeInt(chromosomes.size());
+        for (IChromosome chromosome : chromosomes) {
+            AlleleCodec.writeAlleles(frame, chromosome);
+        }
+        frame.flush();
+        synchronized (out) {
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            out.flush();
+        }
+    }
+
+    List<Object[]> immigrate(String methodId) {
+        List<Object[]> immigrants = new ArrayList<Object[]>();
+        for (Iterator<MigrantBatch> iter = arrivals.iterator(); iter.hasNext();) {
+            MigrantBatch batch = iter.next();
+            iter.remove();
+            // islands may already be working on another method, those migrants are useless here
+            if (batch.methodId.equals(methodId)) {
+                immigrants.addAll(batch.alleles);
+            }
+        }
+        return immigrants;
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("FastUT island " + islandId + ": error closing migration channel: "
+                               + e.getLocalizedMessage());
+        }
+    }
+
+    static MigrantBatch decode(byte[] bytes) throws IOException {
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(bytes));
+        MigrantBatch batch = new MigrantBatch(frame.readUTF());
+        int count = frame.readInt();
+        for (int i = 0; i < count; ++i) {
+            batch.alleles.add(AlleleCodec.readAlleles(frame));
+        }
+        return batch;
+    }
+
+    static class MigrantBatch {
+
+        final String         methodId;
+        final List<Object[]> alleles = new ArrayList<Object[]>();
+
+        MigrantBatch(String methodId){
+            this.methodId = methodId;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package fastut.evolution;
+
+import java.io.File;
+
+import fastut.coverage.data.CoverageDataFileHandler;
+import fastut.generate.TestDataGenerator;
+
+/**
+ * Entry point of one island JVM, started by {@link IslandCoordinator}. Arguments: class name, coordinator port, island
+ * id, migration interval, migrants per exchange, population size, maximum evolutions. The coverage of every evaluation
+ * of the island is saved to {@link #getCoverageFile(File, int)}.
+ */
+public class IslandWorker {
+
+    public static File getCoverageFile(File dataFile, int islandId) {
+        return new File(dataFile.getAbsoluteFile().getParentFile(), dataFile.getName() + ".island" + islandId);
+    }
+
+    public static void main(String[] args) throws Throwable {
+        String className = args[0];
+        int port = Integer.parseInt(args[1]);
+        int islandId = Integer.parseInt(args[2]);
+        IslandMigrator migrator = new IslandMigrator(islandId, port, Integer.parseInt(args[3]),
+                                                     Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+                                                     Integer.parseInt(args[6]));
+        try {
+            String test = TestDataGenerator.generate(className, migrator);
+            System.out.println("// island " + islandId);
+            System.out.println(test);
+            CoverageDataFileHandler.saveCoverageData(TestDataGenerator.coverageArchive,
+                                                     getCoverageFile(CoverageDataFileHandler.getDefaultDataFile(),
+                                                                     islandId));
+        } finally {
+            migrator.close();
+        }
+        System.exit(0);
+    }
+}
@@ -1,14 +1,21 @@
 package fastut.evolution;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.jgap.IChromosome;
+import org.jgap.impl.CollectionGene;
 import org.objectweb.asm.Type;
 
 import fastut.denpendency.MethodCall;
@@ -18,11 +25,7 @@ import fastut.mock.Expect;
 import fastut.mock.MockFactory;
 import fastut.mock.MockPool;
 import fastut.util.ClassUtil;
-import fastut.util.NameUtil;
-import fastut.util.ObjectSelector;
 import fastut.util.TypeResolverFactory;
-import fastut.util.generics.type.ListSignaturedType;
-import fastut.util.generics.type.MapSignaturedType;
 import fastut.util.generics.type.SignaturedType;
 
 public class MethodInvokeContext {
@@ -33,24 +36,50 @@ public class MethodInvokeContext {
     private final Map<Integer, String>         geneNames         = new HashMap<Integer, String>();
     private final Map<String, String>          mockInternalNames = new HashMap<String, String>();
     private final Set<Integer>                 paramSet          = new HashSet<Integer>();
-    private final Map<String, Object>          valueMap          = new HashMap<String, Object>();
-    private final Object[]                     initargs;
+    private final Set<Integer>                 encodedSet        = new HashSet<Integer>();
+    private final InputValues                  values;
+    private final Map<Integer, MockSlot[]>     mockTables        = new HashMap<Integer, MockSlot[]>();
+    private InvocationWatchdog                 watchdog;
+    private PreparedInvocation                 prepared;
+    /** the loader of the tested class, set by {@link #prepare()} */
+    private ClassLoader                        loader;
+    private int                                slotSize;
+    private boolean                            timedOut;
 
     public MethodInvokeContext(MethodConstantPool pool, List<MethodCall> methodCalls){
         this.pool = pool;
         this.methodCalls = methodCalls;
-        initargs = new Object[Type.getArgumentTypes(pool.getDesc()).length];
+        values = new InputValues(Type.getArgumentTypes(pool.getDesc()).length);
     }
 
     void reset() {
-        valueMap.clear();
-        for (int i = 0; i < initargs.length; ++i) {
-            initargs[i] = null;
-        }
+        values.reset();
+    }
+
+    /**
+     * @param watchdog bounds the time of each invocation, may be null
+     */
+    public void setWatchdog(InvocationWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * @return whether an invocation missed the watchdog deadline since the last {@link #clearTimedOut()}
+     */
+    public boolean hasTimedOut() {
+        return timedOut;
+    }
+
+    void clearTimedOut() {
+        timedOut = false;
+    }
+
+    public MethodConstantPool getConstantPool() {
+        return pool;
     }
 
     public Object[] getInitArgs() {
-        return initargs;
+        return values.initargs;
     }
 
     public Map<Integer, SignaturedType> getGeneTypes() {
@@ -70,73 +99,85 @@ public class MethodInvokeContext {
         mockInternalNames.put(internalClassName, name);
     }
 
+    /**
+     * Marks the gene at index as the first of a value spread over genes by {@link ValueEncoding}.
+     */
+    public void markEncoded(int index) {
+        encodedSet.add(index);
+    }
+
+    public boolean isEncoded(int index) {
+        return encodedSet.contains(index);
+    }
+
+    /**
+     * @param slotSize the number of genes of one input, values spread over genes name only their first
+     */
+    public void setSlotSize(int slotSize) {
+        this.slotSize = slotSize;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
     public SignaturedType getGeneType(int index) {
         return geneTypes.get(index);
     }
 
     public Object processField(int index, GeneValueIterator geneIter) {
+        return processField(index, geneIter, values);
+    }
+
+    Object processField(int index, GeneValueIterator geneIter, InputValues into) {
         SignaturedType st = geneTypes.get(index);
-        if (st instanceof ListSignaturedType) {
-            return processListField((ListSignaturedType) st, index, geneIter);
-        } else if (st instanceof MapSignaturedType) {
-            return processMapField((MapSignaturedType) st, index, geneIter);
+        if (isEncoded(index)) {
+            return processEncodedField(st, index, geneIter, into);
         } else if (st.getType().getSort() == Type.OBJECT && !st.getType().getDescriptor().equals("Ljava/lang/String;")) {
-            return processMockField(st, index, geneIter);
+            return processMockField(st, index, geneIter, into);
         } else {
-            return processBaseField(st, index, geneIter);
+            return processBaseField(st, index, geneIter, into);
         }
     }
 
     Object adjustValue(Type type, GeneValueIterator geneIter) {
         if (type.getSort() == Type.SHORT || type.getDescriptor().equals("Ljava/lang/Short;")) {
-            return Short.valueOf((short) (int) (Integer) (geneIter.next()));
+            return Short.valueOf((short) geneIter.nextInt());
+        }
+        if (type.getSort() == Type.BYTE || type.getDescriptor().equals("Ljava/lang/Byte;")) {
+            return Byte.valueOf((byte) geneIter.nextInt());
+        }
+        if (type.getSort() == Type.CHAR || type.getDescriptor().equals("Ljava/lang/Character;")) {
+            return Character.valueOf((char) geneIter.nextInt());
         }
         if (type.getDescriptor().equals("Ljava/lang/String;")) {
-            return pool.getObject(type, (Integer) (geneIter.next()));
+            return pool.getObject(type, geneIter.nextInt());
         }
+        // the allele is already boxed by the gene, hand it over as is
         return geneIter.next();
     }
 
-    @SuppressWarnings("unchecked")
-    Object processListField(ListSignaturedType lst, int index, GeneValueIterator geneIter) {
-        String gName = geneNames.get(index);
-        List<Object> value = (List<Object>) valueMap.get(gName);
-        Type argType = lst.getArgType().getType();
-        Object obj = adjustValue(argType, geneIter);
-        if (obj != null) {
-            if (value == null) {
-                value = new ArrayList<Object>();
-            }
-            value.add(obj);
+    List<Object> processMockField(SignaturedType st, int index, GeneValueIterator geneIter, InputValues into) {
+        List<Object> expectValues = new ArrayList<Object>();
+        for (MockSlot slot : mockTable(index)) {
+            Object value = geneIter.next();
+            expectValues.add(value);
+            MockPool.setExpect(slot.condition, new Expect(value));
+            into.valueMap.put(slot.mockName, slot.mock);
         }
-
-        valueMap.put(gName, value);
-        return value;
+        return expectValues;
     }
 
-    @SuppressWarnings("unchecked")
-    Object processMapField(MapSignaturedType mst, int index, GeneValueIterator geneIter) {
-        String gName = geneNames.get(index);
-        String mapName = NameUtil.transform(gName);
-        Map<Object, Object> value = (Map<Object, Object>) valueMap.get(mapName);
-        Type kType = mst.getKtype().getType();
-        Type vType = mst.getVtype().getType();
-        Object k = adjustValue(kType, geneIter);
-        Object v = adjustValue(vType, geneIter);
-        if (k != null) {
-            if (value == null) {
-                value = new HashMap<Object, Object>();
-            }
-            value.put(k, v);
-            valueMap.put(mapName, value);
-        } else {
-            valueMap.put(mapName, null);
+    /**
+     * Mocks and conditions of the calls answered by the mocked field at index. Mocks keep no state, expectations live
+     * in the MockPool, so one instance per call serves every input.
+     */
+    MockSlot[] mockTable(int index) {
+        MockSlot[] table = mockTables.get(index);
+        if (table != null) {
+            return table;
         }
-        return value;
-    }
-
-    List<Object> processMockField(SignaturedType st, int index, GeneValueIterator geneIter) {
-        List<Object> expectValues = new ArrayList<Object>();
+        List<MockSlot> slots = new ArrayList<MockSlot>();
         String gName = geneNames.get(index);
         for (MethodCall call : methodCalls) {
             if (mockInternalNames.containsKey(call.getOwner()) && Type.getReturnType(call.getDesc()) != Type.VOID_TYPE) {
@@ -148,45 +189,202 @@ public class MethodInvokeContext {
                 Object mock = TypeResolverFactory.newInstance(mockClass);
                 Condition condition = new Condition(call.getOwner().replace('/', '.') + "." + call.getName()
                                                     + call.getDesc());
-                Object value = geneIter.next();
-                expectValues.add(value);
-                Expect expect = new Expect(value);
-                MockPool.setExpect(condition, expect);
-                valueMap.put(mockName, mock);
+                slots.add(new MockSlot(mockName, mock, condition));
             }
         }
-        return expectValues;
+        table = slots.toArray(new MockSlot[slots.size()]);
+        mockTables.put(index, table);
+        return table;
+    }
+
+    Object processEncodedField(SignaturedType st, int index, GeneValueIterator geneIter, InputValues into) {
+        Object value = decode(st, geneIter, 0);
+        into.valueMap.put(geneNames.get(index), value);
+        return value;
     }
 
-    Object processBaseField(SignaturedType st, int index, GeneValueIterator geneIter) {
+    Object processBaseField(SignaturedType st, int index, GeneValueIterator geneIter, InputValues into) {
         Object value = adjustValue(st.getType(), geneIter);
-        valueMap.put(geneNames.get(index), value);
+        into.valueMap.put(geneNames.get(index), value);
         return value;
     }
 
     public Object processParam(int index, GeneValueIterator geneIter) {
+        return processParam(index, geneIter, values);
+    }
+
+    Object processParam(int index, GeneValueIterator geneIter, InputValues into) {
         String gName = geneNames.get(index);
         SignaturedType st = geneTypes.get(index);
         int argIndex = Integer.parseInt(gName.substring("arg".length()));
-        if (st instanceof ListSignaturedType) {
-            return processListParam(st, argIndex, geneIter);
-        } else if (st instanceof MapSignaturedType) {
-            return processMapParam(st, argIndex, geneIter);
+        if (isEncoded(index)) {
+            return processEncodedParam(st, argIndex, geneIter, into);
         } else {
-            return processBaseParam(st, argIndex, geneIter);
+            return processBaseParam(st, argIndex, geneIter, into);
         }
     }
 
-    Object processListParam(SignaturedType st, int argIndex, GeneValueIterator geneIter) {
-        return null;
+    /**
+     * A collection, map, array or object argument.
+     */
+    Object processEncodedParam(SignaturedType st, int argIndex, GeneValueIterator geneIter, InputValues into) {
+        return into.initargs[argIndex] = decode(st, geneIter, 0);
     }
 
-    Object processMapParam(SignaturedType st, int argIndex, GeneValueIterator geneIter) {
-        return null;
+    Object processBaseParam(SignaturedType st, int argIndex, GeneValueIterator geneIter, InputValues into) {
+        return into.initargs[argIndex] = adjustValue(st.getType(), geneIter);
     }
 
-    Object processBaseParam(SignaturedType st, int argIndex, GeneValueIterator geneIter) {
-        return initargs[argIndex] = adjustValue(st.getType(), geneIter);
+    /**
+     * Decodes a value spread over genes by {@link ValueEncoding}, the genes of nested values in turn. Containers and
+     * objects come from the loader of the tested class as {@link #prepare()} resolved it, whichever thread decodes, so
+     * they are of the classes the method expects.
+     *
+     * @param depth how many collections, maps and arrays contain the value
+     */
+    Object decode(SignaturedType st, GeneValueIterator geneIter, int depth) {
+        switch (ValueEncoding.kindOf(st, depth, pool.getClassName())) {
+            case BASE:
+                return decodeBase(ValueEncoding.getRawType(st), geneIter);
+            case OBJECT:
+                return decodeObject(ValueEncoding.getRawType(st), geneIter);
+            case COLLECTION:
+                return decodeCollection(st, geneIter, depth);
+            case MAP:
+                return decodeMap(st, geneIter, depth);
+            case ARRAY:
+                return decodeArray(st, geneIter, depth);
+            default:
+                return null;
+        }
+    }
+
+    Object decodeBase(Type type, GeneValueIterator geneIter) {
+        Type primitive = ValueEncoding.unbox(type);
+        Object value = adjustValue(primitive, geneIter);
+        if (primitive.getSort() == Type.FLOAT && value instanceof Number) {
+            return Float.valueOf(((Number) value).floatValue());
+        }
+        return value;
+    }
+
+    Object decodeObject(Type type, GeneValueIterator geneIter) {
+        int choice = geneIter.nextInt();
+        List<Type> candidates = ValueEncoding.getCandidates(type, pool.getClassName());
+        if (choice <= 0 || choice > candidates.size()) {
+            return null;
+        }
+        Class<?> clazz = loadClass(candidates.get(choice - 1));
+        return clazz != null ? ValueEncoding.newInstance(clazz) : null;
+    }
+
+    Object decodeCollection(SignaturedType st, GeneValueIterator geneIter, int depth) {
+        Class<?> declared = loadClass(ValueEncoding.getRawType(st));
+        Object collection = declared != null ? ValueEncoding.newContainer(declared) : null;
+        SignaturedType elementType = ValueEncoding.getElementType(st);
+        if (ValueEncoding.isCompact(st, depth, pool.getClassName())) {
+            CollectionGene gene = geneIter.nextCollection();
+            Type type = ValueEncoding.getRawType(elementType);
+            for (int i = 0; collection != null && i < gene.length(); ++i) {
+                ValueEncoding.add(collection, decodeElement(type, gene.valueAt(i, 0)));
+            }
+            return collection;
+        }
+        int length = geneIter.nextInt();
+        for (int i = 0; i < ValueEncoding.MAX_ELEMENTS; ++i) {
+            Object element = decode(elementType, geneIter, depth + 1);
+            if (collection != null && i < length) {
+                ValueEncoding.add(collection, element);
+            }
+        }
+        return collection;
+    }
+
+    Object decodeMap(SignaturedType st, GeneValueIterator geneIter, int depth) {
+        Class<?> declared = loadClass(ValueEncoding.getRawType(st));
+        Object map = declared != null ? ValueEncoding.newContainer(declared) : null;
+        SignaturedType keyType = ValueEncoding.getElementType(st);
+        SignaturedType valueType = ValueEncoding.getValueType(st);
+        if (ValueEncoding.isCompact(st, depth, pool.getClassName())) {
+            CollectionGene gene = geneIter.nextCollection();
+            Type kType = ValueEncoding.getRawType(keyType);
+            Type vType = ValueEncoding.getRawType(valueType);
+            for (int i = 0; map != null && i < gene.length(); ++i) {
+                Object key = decodeElement(kType, gene.valueAt(i, 0));
+                ValueEncoding.put(map, key, decodeElement(vType, gene.valueAt(i, 1)));
+            }
+            return map;
+        }
+        int length = geneIter.nextInt();
+        for (int i = 0; i < ValueEncoding.MAX_ELEMENTS; ++i) {
+            Object key = decode(keyType, geneIter, depth + 1);
+            Object value = decode(valueType, geneIter, depth + 1);
+            if (map != null && i < length) {
+                ValueEncoding.put(map, key, value);
+            }
+        }
+        return map;
+    }
+
+    Object decodeArray(SignaturedType st, GeneValueIterator geneIter, int depth) {
+        Class<?> arrayClass = loadClass(ValueEncoding.getRawType(st));
+        SignaturedType elementType = ValueEncoding.getElementType(st);
+        if (ValueEncoding.isCompact(st, depth, pool.getClassName())) {
+            CollectionGene gene = geneIter.nextCollection();
+            if (arrayClass == null) {
+                return null;
+            }
+            Object array = Array.newInstance(arrayClass.getComponentType(), gene.length());
+            Type type = ValueEncoding.getRawType(elementType);
+            for (int i = 0; i < gene.length(); ++i) {
+                Array.set(array, i, decodeElement(type, gene.valueAt(i, 0)));
+            }
+            return array;
+        }
+        int length = Math.max(0, Math.min(ValueEncoding.MAX_ELEMENTS, geneIter.nextInt()));
+        Object array = arrayClass != null ? Array.newInstance(arrayClass.getComponentType(), length) : null;
+        for (int i = 0; i < ValueEncoding.MAX_ELEMENTS; ++i) {
+            Object element = decode(elementType, geneIter, depth + 1);
+            // a primitive array keeps its zero for a missing element
+            if (array != null && i < length && element != null) {
+                Array.set(array, i, element);
+            }
+        }
+        return array;
+    }
+
+    /**
+     * @return the base value encoded as the int of a {@link CollectionGene}, for a String the index into the pool
+     */
+    Object decodeElement(Type type, int value) {
+        switch (ValueEncoding.unbox(type).getSort()) {
+            case Type.BOOLEAN:
+                return Boolean.valueOf((value & 1) != 0);
+            case Type.CHAR:
+                return Character.valueOf((char) value);
+            case Type.BYTE:
+                return Byte.valueOf((byte) value);
+            case Type.SHORT:
+                return Short.valueOf((short) value);
+            case Type.INT:
+                return Integer.valueOf(value);
+            case Type.LONG:
+                return Long.valueOf(value);
+            default:
+                // doubles and floats are not compact, see ValueEncoding#isCompact
+                return pool.getObject(type, value);
+        }
+    }
+
+    private Class<?> loadClass(Type type) {
+        try {
+            if (loader == null) {
+                prepare();
+            }
+            return ClassUtil.loadClass(type, loader);
+        } catch (Throwable e) {
+            return null;
+        }
     }
 
     public void markParamSign(int index) {
@@ -213,14 +411,6 @@ public class MethodInvokeContext {
         return paramSet.contains(index);
     }
 
-    public boolean isMapBegin(int index) {
-        String gName = geneNames.get(index);
-        if(gName.endsWith("$fastut$map$key")) {
-            return true;
-        }
-        return false;
-    }
-
     public boolean shouldBeMock(String owner) {
         return mockInternalNames.containsKey(owner);
     }
@@ -237,25 +427,187 @@ public class MethodInvokeContext {
         return geneNames.get(index);
     }
 
-    public Object tryInvoke() {
-        try {
+    /**
+     * Decodes the genes of one input slot into the arguments and field values.
+     */
+    void decodeSlot(GeneValueIterator geneIter, InputValues into) {
+        for (int j = 0; j < slotSize; ++j) {
+            if (!geneTypes.containsKey(j)) {
+                // inside a value spread over genes
+                continue;
+            }
+            if (isParam(j)) {
+                processParam(j, geneIter, into);
+                continue;
+            }
+            processField(j, geneIter, into);
+        }
+    }
+
+    /**
+     * Resolves the method, field setters and mock tables once, on the first thread to ask since the mock loader is
+     * thread local. The batch decodes on the invoker thread of the watchdog, whose mock loader is another one, so the
+     * loader of the tested class is kept for the decoding.
+     */
+    PreparedInvocation prepare() throws Exception {
+        if (prepared == null) {
             Class<?> receiverClass = Class.forName(pool.getClassName(), true, MockFactory.currentLoader());
+            loader = receiverClass.getClassLoader();
             Method method = ClassUtil.getMethod(receiverClass, pool.getName(), pool.getDesc());
+            for (Map.Entry<Integer, SignaturedType> entry : geneTypes.entrySet()) {
+                SignaturedType st = entry.getValue();
+                if (!isParam(entry.getKey()) && !isEncoded(entry.getKey()) && st.getType().getSort() == Type.OBJECT
+                    && !st.getType().getDescriptor().equals("Ljava/lang/String;")) {
+                    mockTable(entry.getKey());
+                }
+            }
+            prepared = new PreparedInvocation(receiverClass, method);
+        }
+        return prepared;
+    }
+
+    /**
+     * Decodes every input slot of the chromosome and invokes them back to back against the prepared invocation. With a
+     * watchdog the whole batch runs on its invoker thread, and stops at the first input that misses the deadline. The
+     * batch decodes into values of its own, an invoker given up on cannot overwrite the inputs of the next batch, and
+     * checks before each input whether it was given up.
+     *
+     * @return the number of inputs invoked
+     */
+    public int invokeBatch(IChromosome chromosome) {
+        return invokeBatch(chromosome, null);
+    }
 
-            Object receiver = null;
-            if (!Modifier.isStatic(method.getModifiers())) {
-                receiver = TypeResolverFactory.newInstance(receiverClass);
-                for (Map.Entry<String, Object> entryV : valueMap.entrySet()) {
-                    ObjectSelector.set(receiver, entryV.getKey(), entryV.getValue());
+    /**
+     * Like {@link #invokeBatch(IChromosome)}, telling the listener after each input.
+     *
+     * @param listener may be null
+     */
+    public int invokeBatch(IChromosome chromosome, final InputListener listener) {
+        final PreparedInvocation invocation;
+        try {
+            invocation = prepare();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return 0;
+        }
+        final int slots = chromosome.size() / getSlotSize();
+        final GeneValueIterator geneIter = new GeneValueIterator(chromosome);
+        final InputValues batchValues = new InputValues(values.initargs.length);
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Callable<Integer> batch = new Callable<Integer>() {
+
+            public Integer call() {
+                for (int i = 0; i < slots; i = done.incrementAndGet()) {
+                    if (cancelled.get() || Thread.currentThread().isInterrupted()) {
+                        // given up by the watchdog
+                        break;
+                    }
+                    decodeSlot(geneIter, batchValues);
+                    try {
+                        invocation.invoke(batchValues.valueMap, batchValues.initargs);
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                    }
+                    batchValues.reset();
+                    if (listener != null && !cancelled.get()) {
+                        listener.inputDone(i);
+                    }
                 }
+                return done.get();
+            }
+        };
+        Object inputs = new Object() {
+
+            @Override
+            public String toString() {
+                return "input " + done.get() + " " + batchValues;
+            }
+        };
+        try {
+            return watchdog == null ? batch.call() : watchdog.call(batch, inputs, done);
+        } catch (TimeoutException e) {
+            cancelled.set(true);
+            timedOut = true;
+            return done.get();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return done.get();
+        }
+    }
+
+    public Object tryInvoke() {
+        try {
+            // the class the values were decoded for
+            final PreparedInvocation prepared = prepare();
+            Callable<Object> invocation = new Callable<Object>() {
+
+                public Object call() throws Exception {
+                    return prepared.invoke(values.valueMap, values.initargs);
+                }
+            };
+            Object ret;
+            if (watchdog == null) {
+                ret = invocation.call();
+            } else {
+                ret = watchdog.call(invocation, values.toString());
             }
-            Object ret = method.invoke(receiver, initargs);
             reset();
             return ret;
+        } catch (TimeoutException e) {
+            timedOut = true;
+            reset();
+            return null;
         } catch (Throwable e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Told after each input of a batch, on the thread that invoked it.
+     */
+    public interface InputListener {
+
+        void inputDone(int input);
+    }
+
+    /**
+     * The decoded arguments and field values of one input.
+     */
+    static class InputValues {
+
+        final Map<String, Object> valueMap = new HashMap<String, Object>();
+        final Object[]            initargs;
+
+        InputValues(int args){
+            initargs = new Object[args];
+        }
+
+        void reset() {
+            valueMap.clear();
+            for (int i = 0; i < initargs.length; ++i) {
+                initargs[i] = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "args " + Arrays.deepToString(initargs) + " fields " + valueMap;
+        }
+    }
+
+    static class MockSlot {
+
+        final String    mockName;
+        final Object    mock;
+        final Condition condition;
+
+        MockSlot(String mockName, Object mock, Condition condition){
+            this.mockName = mockName;
+            this.mock = mock;
+            this.condition = condition;
+        }
+    }
 }
@@ -0,0 +1,72 @@
+package fastut.evolution;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import fastut.util.ObjectSelector;
+import fastut.util.TypeResolverFactory;
+
+/**
+ * The method under test resolved once for a {@link MethodInvokeContext}: the reflective method and a setter per field
+ * name, compiled on first use. Inputs of a batch run against it without going through the class loader or Mirror.
+ */
+class PreparedInvocation {
+
+    private final Class<?>           receiverClass;
+    private final Method             method;
+    private final boolean            isStatic;
+    private final Map<String, Field> setters = new HashMap<String, Field>();
+
+    PreparedInvocation(Class<?> receiverClass, Method method){
+        this.receiverClass = receiverClass;
+        this.method = method;
+        this.isStatic = Modifier.isStatic(method.getModifiers());
+        method.setAccessible(true);
+    }
+
+    Object invoke(Map<String, Object> values, Object[] args) throws Exception {
+        Object receiver = null;
+        if (!isStatic) {
+            receiver = TypeResolverFactory.newInstance(receiverClass);
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                Field field = setter(entry.getKey());
+                if (field != null) {
+                    field.set(receiver, entry.getValue());
+                } else {
+                    ObjectSelector.set(receiver, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return method.invoke(receiver, args);
+    }
+
+    /**
+     * @return the accessible field, or null when Mirror has to handle the name (paths, final or missing fields)
+     */
+    private Field setter(String name) {
+        if (setters.containsKey(name)) {
+            return setters.get(name);
+        }
+        Field field = null;
+        if (name.indexOf('.') < 0) {
+            for (Class<?> c = receiverClass; c != null && field == null; c = c.getSuperclass()) {
+                try {
+                    field = c.getDeclaredField(name);
+                } catch (NoSuchFieldException e) {
+                    // look in the super class
+                }
+            }
+        }
+        if (field != null && (Modifier.isFinal(field.getModifiers()) || Modifier.isStatic(field.getModifiers()))) {
+            field = null;
+        }
+        if (field != null) {
+            field.setAccessible(true);
+        }
+        setters.put(name, field);
+        return field;
+    }
+}
@@ -0,0 +1,280 @@
+package fastut.evolution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jgap.IChromosome;
+
+import fastut.coverage.util.ConfigurationUtil;
+
+/**
+ * Pool of pre-started {@link SandboxWorker} JVMs that run the inputs of a chromosome away from the generator JVM. A
+ * worker that times out, exits or breaks the protocol is killed and replaced, and the chromosome gets
+ * {@link DependencyFitnessFunction#PENALTY_FITNESS}.
+ * <p>
+ * Protocol over a loopback socket, all values written with DataOutputStream:
+ * <ul>
+ * <li>worker hello: int worker id</li>
+ * <li>{@link #OPEN}: UTF class name, UTF method name and descriptor, int n, n UTF pool strings; answered by
+ * {@link #READY} or {@link #ERROR} with an UTF message</li>
+ * <li>{@link #BATCH}: the chromosome alleles; answered by one {@link #PROGRESS} per input done, then
+ * {@link #COVERAGE}: int branch count, int n, n bitmap bytes, boolean whether an invoker thread is stuck. A worker
+ * with a stuck thread exits after its answer, the thread would touch the coverage of later batches.</li>
+ * </ul>
+ * The invocation timeout applies to each input: a worker is given up when it reports no input for that long. A
+ * chromosome waits fastut.sandbox.wait ms for a free worker, twice the invocation timeout unless set, and as long as a
+ * replacement worker takes to start when one is starting.
+ */
+public class SandboxPool {
+
+    static final byte                   OPEN            = 'O';
+    static final byte                   BATCH           = 'B';
+    static final byte                   READY           = 'R';
+    static final byte                   ERROR           = 'E';
+    static final byte                   COVERAGE        = 'C';
+    static final byte                   PROGRESS        = 'P';
+
+    private static final long           STARTUP_TIMEOUT = 60000L;
+
+    private final int                   size;
+    private final long                  invocationTimeout;
+    private final long                  waitTimeout;
+    private final ServerSocket          server;
+    private final BlockingQueue<Sandbox> idle           = new LinkedBlockingQueue<Sandbox>();
+    private final Map<Integer, Process> starting        = new ConcurrentHashMap<Integer, Process>();
+    private final AtomicInteger         nextId          = new AtomicInteger();
+    private final AtomicInteger         timeouts        = new AtomicInteger();
+    private final AtomicInteger         replaced        = new AtomicInteger();
+    private final ConfigurationUtil     config          = new ConfigurationUtil();
+    private volatile boolean            closed;
+
+    /**
+     * @param size number of worker JVMs kept alive
+     * @param invocationTimeout milliseconds allowed per input slot
+     */
+    public SandboxPool(int size, long invocationTimeout) throws IOException{
+        this.size = size;
+        this.invocationTimeout = invocationTimeout;
+        String defaultWait = String.valueOf(invocationTimeout > 0 ? 2 * invocationTimeout : STARTUP_TIMEOUT);
+        this.waitTimeout = Long.parseLong(config.getProperty("fastut.sandbox.wait", defaultWait));
+        this.server = new ServerSocket(0, size, InetAddress.getByName(null));
+        Thread acceptor = new Thread(new Runnable() {
+
+            public void run() {
+                accept();
+            }
+        }, "fastut-sandbox-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (int i = 0; i < size; ++i) {
+            spawn();
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getTimeouts() {
+        return timeouts.get();
+    }
+
+    public int getReplaced() {
+        return replaced.get();
+    }
+
+    /**
+     * Runs all input slots of the chromosome in one sandbox and returns their branch coverage rate.
+     */
+    public double evaluate(MethodInvokeContext invokeContext, IChromosome chromosome) {
+        Sandbox sandbox;
+        try {
+            sandbox = idle.poll(waitTimeout, TimeUnit.MILLISECONDS);
+            if (sandbox == null && !starting.isEmpty()) {
+                // a replacement is on its way, no sooner than a JVM starts
+                sandbox = idle.poll(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DependencyFitnessFunction.PENALTY_FITNESS;
+        }
+        if (sandbox == null) {
+            System.err.println("FastUT sandbox: no worker available, scoring input with penalty.");
+            return DependencyFitnessFunction.PENALTY_FITNESS;
+        }
+        try {
+            String methodId = invokeContext.getClassName() + "." + invokeContext.getMethodSignature();
+            if (!methodId.equals(sandbox.methodId)) {
+                sandbox.open(invokeContext);
+                sandbox.methodId = methodId;
+            }
+            // each input read resets the timeout
+            sandbox.socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, invocationTimeout));
+            sandbox.out.writeByte(BATCH);
+            AlleleCodec.writeAlleles(sandbox.out, chromosome);
+            sandbox.out.flush();
+            byte answer = sandbox.in.readByte();
+            while (answer == PROGRESS) {
+                answer = sandbox.in.readByte();
+            }
+            if (answer != COVERAGE) {
+                throw new IOException("unexpected answer");
+            }
+            int total = sandbox.in.readInt();
+            byte[] bitmap = new byte[sandbox.in.readInt()];
+            sandbox.in.readFully(bitmap);
+            if (sandbox.in.readBoolean()) {
+                replace(sandbox);
+            } else {
+                idle.add(sandbox);
+            }
+            if (total == 0) {
+                return 1.0;
+            }
+            return ((double) BitSet.valueOf(bitmap).cardinality()) / total;
+        } catch (SocketTimeoutException e) {
+            timeouts.incrementAndGet();
+            System.err.println("FastUT sandbox " + sandbox.id + " timed out, replacing it.");
+            replace(sandbox);
+            return DependencyFitnessFunction.PENALTY_FITNESS;
+        } catch (IOException e) {
+            System.err.println("FastUT sandbox " + sandbox.id + " failed (" + e.getLocalizedMessage()
+                               + "), replacing it.");
+            replace(sandbox);
+            return DependencyFitnessFunction.PENALTY_FITNESS;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println("FastUT sandbox: error closing server socket: " + e.getLocalizedMessage());
+        }
+        List<Sandbox> left = new ArrayList<Sandbox>();
+        idle.drainTo(left);
+        for (Sandbox sandbox : left) {
+            sandbox.destroy();
+        }
+        for (Process process : starting.values()) {
+            process.destroy();
+        }
+        System.out.println("FastUT sandbox: " + timeouts.get() + " timeouts, " + replaced.get() + " workers replaced.");
+    }
+
+    private void replace(Sandbox sandbox) {
+        sandbox.destroy();
+        replaced.incrementAndGet();
+        if (!closed) {
+            try {
+                spawn();
+            } catch (IOException e) {
+                System.err.println("FastUT sandbox: could not start replacement worker: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void spawn() throws IOException {
+        int id = nextId.incrementAndGet();
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        String jvmArgs = config.getProperty("fastut.sandbox.jvmArgs", "");
+        for (String arg : jvmArgs.trim().split("\\s+")) {
+            if (arg.length() > 0) {
+                command.add(arg);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SandboxWorker.class.getName());
+        command.add(String.valueOf(server.getLocalPort()));
+        command.add(String.valueOf(id));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.inheritIO();
+        starting.put(id, builder.start());
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int id = in.readInt();
+                Process process = starting.remove(id);
+                if (process == null) {
+                    socket.close();
+                    continue;
+                }
+                idle.add(new Sandbox(id, process, socket, in));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("FastUT sandbox: error accepting worker: " + e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    private static class Sandbox {
+
+        final int              id;
+        final Process          process;
+        final Socket           socket;
+        final DataInputStream  in;
+        final DataOutputStream out;
+        String                 methodId;
+
+        Sandbox(int id, Process process, Socket socket, DataInputStream in) throws IOException{
+            this.id = id;
+            this.process = process;
+            this.socket = socket;
+            this.in = in;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void open(MethodInvokeContext invokeContext) throws IOException {
+            // the sandbox builds its own plan, so it needs the exact string pool the genes index into
+            List<String> strings = invokeContext.getConstantPool().STRING_POOL;
+            socket.setSoTimeout((int) STARTUP_TIMEOUT);
+            out.writeByte(OPEN);
+            out.writeUTF(invokeContext.getClassName());
+            out.writeUTF(invokeContext.getMethodSignature());
+            out.writeInt(strings.size());
+            for (String str : strings) {
+                out.writeUTF(str);
+            }
+            out.flush();
+            byte answer = in.readByte();
+            if (answer != READY) {
+                throw new IOException(answer == ERROR ? in.readUTF() : "unexpected answer");
+            }
+        }
+
+        void destroy() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the worker is killed anyway
+            }
+            process.destroy();
+        }
+    }
+}
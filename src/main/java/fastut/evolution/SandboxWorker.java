@@ -0,0 +1,175 @@
+package fastut.evolution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import org.jgap.Chromosome;
+import org.jgap.Gene;
+import org.objectweb.asm.tree.MethodNode;
+
+import fastut.coverage.data.ClassData;
+import fastut.coverage.util.ConfigurationUtil;
+import fastut.denpendency.DependencyKey;
+import fastut.denpendency.MethodConstantPool;
+import fastut.generate.TestDataGenerator;
+import fastut.generate.struct.MethodPlan;
+
+/**
+ * Sandbox JVM started by {@link SandboxPool}. Rebuilds the plan of the requested method and runs the chromosomes it is
+ * sent, answering with the branch bitmap of each. Arguments: pool port, worker id.
+ */
+public class SandboxWorker {
+
+    private final InvocationWatchdog  watchdog;
+    private MethodPlan                plan;
+    private DependencyFitnessFunction function;
+    private Chromosome                chromosome;
+
+    SandboxWorker(){
+        long timeout = Long.parseLong(new ConfigurationUtil().getProperty("fastut.invoke.timeout", "5000"));
+        watchdog = timeout > 0 ? new InvocationWatchdog(timeout) : null;
+    }
+
+    void open(String className, String methodSignature, List<String> strings) throws Throwable {
+        TestDataGenerator generator = new TestDataGenerator(className);
+        generator.setWatchdog(watchdog);
+        Map<String, MethodConstantPool> values = generator.getMethodConstants();
+        plan = null;
+        chromosome = null;
+        for (Map.Entry<DependencyKey, MethodNode> entry : generator.getDeclaredMethods().entrySet()) {
+            MethodNode mNode = entry.getValue();
+            String methodId = entry.getKey().getClassName().replace('/', '.') + "." + mNode.name + mNode.desc;
+            if (methodId.equals(className + "." + methodSignature)) {
+                values.get(methodId).STRING_POOL = strings;
+                plan = generator.plan(entry.getKey(), mNode, values);
+                break;
+            }
+        }
+        if (plan == null) {
+            throw new IllegalArgumentException("no branch to cover in " + className + "." + methodSignature);
+        }
+        function = new DependencyFitnessFunction(plan.invokeContext);
+    }
+
+    ClassData run(Object[] alleles, MethodInvokeContext.InputListener listener) throws Throwable {
+        int templateSize = plan.genes.size();
+        if (alleles.length % templateSize != 0) {
+            throw new IllegalArgumentException(alleles.length + " alleles do not match a template of " + templateSize
+                                               + " genes");
+        }
+        if (chromosome == null || chromosome.size() != alleles.length) {
+            Gene[] genes = new Gene[alleles.length];
+            for (int i = 0; i < genes.length; ++i) {
+                genes[i] = plan.genes.get(i % templateSize).newGene();
+            }
+            chromosome = new Chromosome(genes[0].getConfiguration(), genes);
+        }
+        for (int i = 0; i < alleles.length; ++i) {
+            chromosome.getGene(i).setAllele(alleles[i]);
+        }
+        return function.runInputs(chromosome, listener);
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int port = Integer.parseInt(args[0]);
+        int id = Integer.parseInt(args[1]);
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(id);
+        out.flush();
+
+        SandboxWorker worker = new SandboxWorker();
+        String methodSignature = null;
+        try {
+            while (true) {
+                byte request = in.readByte();
+                if (request == SandboxPool.OPEN) {
+                    String className = in.readUTF();
+                    methodSignature = in.readUTF();
+                    List<String> strings = new ArrayList<String>();
+                    for (int i = in.readInt(); i > 0; --i) {
+                        strings.add(in.readUTF());
+                    }
+                    try {
+                        worker.open(className, methodSignature, strings);
+                        out.writeByte(SandboxPool.READY);
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        out.writeByte(SandboxPool.ERROR);
+                        out.writeUTF(String.valueOf(e.getMessage()));
+                    }
+                } else if (request == SandboxPool.BATCH) {
+                    ProgressListener progress = new ProgressListener(out);
+                    ClassData classData = worker.run(AlleleCodec.readAlleles(in), progress);
+                    BitSet bits = classData.getCoveredBranchBits(methodSignature);
+                    // an input that hung scores the penalty, whatever it covered before
+                    byte[] bitmap = worker.plan.invokeContext.hasTimedOut() ? new byte[0] : bits.toByteArray();
+                    boolean stuck = worker.watchdog != null && worker.watchdog.getStuckThreads() > 0;
+                    synchronized (out) {
+                        progress.close();
+                        out.writeByte(SandboxPool.COVERAGE);
+                        out.writeInt(classData.getNumberOfValidBranches(methodSignature));
+                        out.writeInt(bitmap.length);
+                        out.write(bitmap);
+                        out.writeBoolean(stuck);
+                    }
+                    if (stuck) {
+                        out.flush();
+                        break;
+                    }
+                } else {
+                    System.err.println("FastUT sandbox " + id + ": unknown request " + request);
+                    break;
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // the pool closed the channel
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Reports each input of a batch to the pool, which restarts its timeout on every report. Closed before the answer,
+     * so an abandoned invoker finishing an input late writes nothing into the next batch.
+     */
+    private static class ProgressListener implements MethodInvokeContext.InputListener {
+
+        private final DataOutputStream out;
+        private boolean                closed;
+
+        ProgressListener(DataOutputStream out){
+            this.out = out;
+        }
+
+        public void inputDone(int input) {
+            synchronized (out) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    out.writeByte(SandboxPool.PROGRESS);
+                    out.flush();
+                } catch (IOException e) {
+                    // the pool gave up on this worker, the answer fails as well
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package fastut.evolution;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jgap.impl.CollectionGene;
+import org.objectweb.asm.Type;
+
+import fastut.coverage.util.ConfigurationUtil;
+import fastut.denpendency.MethodConstantPool;
+import fastut.util.ClassHierarchy;
+import fastut.util.TypeMatcher;
+import fastut.util.TypeResolverFactory;
+import fastut.util.generics.type.ArraySignaturedType;
+import fastut.util.generics.type.ListSignaturedType;
+import fastut.util.generics.type.MapSignaturedType;
+import fastut.util.generics.type.SignaturedType;
+
+/**
+ * How a value of a generic type is spread over the genes of an input slot. The gene template built by
+ * {@link fastut.generate.TestDataGenerator#plan} and the decoding of {@link MethodInvokeContext} both walk the type
+ * with {@link #kindOf(SignaturedType, int, String)}, so they agree on the genes of every nested part:
+ * <ul>
+ * <li>{@link Kind#BASE}: a String, a primitive or its box takes one gene.</li>
+ * <li>{@link Kind#COLLECTION}, {@link Kind#ARRAY}, {@link Kind#MAP} of base values but doubles and floats, see
+ * {@link #isCompact}: one {@link CollectionGene} of up to fastut.gene.maxSize elements, 256 unless set, whose length
+ * evolves.</li>
+ * <li>{@link Kind#COLLECTION}, {@link Kind#ARRAY} of other values, doubles and floats among them: a length gene from 0
+ * to fastut.gene.maxElements, 3 unless set, then the genes of that many elements. Elements past the length are decoded
+ * and dropped, so every input has the same genes.</li>
+ * <li>{@link Kind#MAP} of other values: a length gene, then the genes of that many keys and values.</li>
+ * <li>{@link Kind#OBJECT}: any other class takes one gene choosing null or one of its instantiable subtypes.</li>
+ * <li>{@link Kind#NONE}: a type variable, an unbounded wildcard, a class without instantiable subtypes or anything
+ * nested deeper than {@link #MAX_DEPTH} takes no gene and is null.</li>
+ * </ul>
+ * A wildcard is encoded as its bound.
+ */
+public class ValueEncoding {
+
+    public enum Kind {
+        NONE, BASE, COLLECTION, MAP, ARRAY, OBJECT
+    }
+
+    /** fastut.gene.maxElements, the most elements of a collection, map or array */
+    public static final int                                MAX_ELEMENTS   = getMaxElements();
+
+    /** fastut.gene.maxSize, the most elements of a collection, map or array of base values */
+    public static final int                                MAX_SIZE       = getMaxSize();
+
+    /** how deep collections nest before the inner ones are left null */
+    public static final int                                MAX_DEPTH      = 3;
+
+    /** the most subtypes an object gene chooses from */
+    static final int                                       MAX_CANDIDATES = 32;
+
+    private static final Type                              OBJECT_TYPE    = Type.getType(Object.class);
+
+    private static final ClassHierarchy                    hierarchy      = ClassHierarchy.forLoader(null);
+
+    private static final ConcurrentMap<String, List<Type>> candidates     = new ConcurrentHashMap<String, List<Type>>();
+
+    /** the packages of the JDK, whose classes are candidates only for a JDK type */
+    private static final String[]                          JDK_PACKAGES   = { "java/", "javax/", "sun/",
+            "com/sun/", "jdk/"                                           };
+
+    private static int getMaxSize() {
+        return Integer.parseInt(new ConfigurationUtil().getProperty("fastut.gene.maxSize", "256"));
+    }
+
+    private static int getMaxElements() {
+        return Integer.parseInt(new ConfigurationUtil().getProperty("fastut.gene.maxElements", "3"));
+    }
+
+    /**
+     * @param depth how many collections, maps and arrays contain the value
+     * @param className the tested class, whose referenced types are the first object candidates
+     */
+    public static Kind kindOf(SignaturedType st, int depth, String className) {
+        st = resolve(st);
+        if (st == null || depth > MAX_DEPTH) {
+            return Kind.NONE;
+        }
+        Type type = getRawType(st);
+        if (st instanceof ArraySignaturedType || type.getSort() == Type.ARRAY) {
+            return Kind.ARRAY;
+        }
+        if (isBase(type)) {
+            return Kind.BASE;
+        }
+        if (type.getSort() != Type.OBJECT) {
+            return Kind.NONE;
+        }
+        String name = type.getInternalName();
+        if (st instanceof ListSignaturedType && hierarchy.isAssignableFrom("java/util/Collection", name)) {
+            return Kind.COLLECTION;
+        }
+        if (st instanceof MapSignaturedType && hierarchy.isAssignableFrom("java/util/Map", name)) {
+            return Kind.MAP;
+        }
+        return getCandidates(type, className).isEmpty() ? Kind.NONE : Kind.OBJECT;
+    }
+
+    /**
+     * @return whether a collection or array of base values or a map of base keys and values, which one
+     *         {@link CollectionGene} encodes, one column per element, a key and a value column per entry
+     */
+    public static boolean isCompact(SignaturedType st, int depth, String className) {
+        switch (kindOf(st, depth, className)) {
+            case COLLECTION:
+            case ARRAY:
+                return isIntColumn(getElementType(st), depth + 1, className);
+            case MAP:
+                return isIntColumn(getElementType(st), depth + 1, className)
+                       && isIntColumn(getValueType(st), depth + 1, className);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return whether the value fits an int column, a double or a float has fractions and a range no int holds
+     */
+    private static boolean isIntColumn(SignaturedType st, int depth, String className) {
+        if (kindOf(st, depth, className) != Kind.BASE) {
+            return false;
+        }
+        int sort = unbox(getRawType(st)).getSort();
+        return sort != Type.DOUBLE && sort != Type.FLOAT;
+    }
+
+    /**
+     * @return the type with a wildcard replaced by its bound, null for an unbounded wildcard or a missing type
+     */
+    public static SignaturedType resolve(SignaturedType st) {
+        if (st == null || st.getType() != null || st instanceof ArraySignaturedType) {
+            return st;
+        }
+        Type bound = st.getUtype() != null ? st.getUtype() : st.getLtype();
+        return bound != null ? SignaturedType.makeSimpleType(bound) : null;
+    }
+
+    /**
+     * @return the erased type of the value
+     */
+    public static Type getRawType(SignaturedType st) {
+        st = resolve(st);
+        if (st == null) {
+            return OBJECT_TYPE;
+        }
+        if (st instanceof ArraySignaturedType) {
+            return Type.getType("[" + getRawType(((ArraySignaturedType) st).getDeclType()).getDescriptor());
+        }
+        return st.getType();
+    }
+
+    /**
+     * @return the element type of a collection or array, the key type of a map
+     */
+    public static SignaturedType getElementType(SignaturedType st) {
+        st = resolve(st);
+        if (st instanceof ArraySignaturedType) {
+            return ((ArraySignaturedType) st).getDeclType();
+        }
+        if (st instanceof ListSignaturedType) {
+            return ((ListSignaturedType) st).getArgType();
+        }
+        if (st instanceof MapSignaturedType) {
+            return ((MapSignaturedType) st).getKtype();
+        }
+        return SignaturedType.makeSimpleType(Type.getType(st.getType().getDescriptor().substring(1)));
+    }
+
+    /**
+     * @return the value type of a map
+     */
+    public static SignaturedType getValueType(SignaturedType st) {
+        return ((MapSignaturedType) resolve(st)).getVtype();
+    }
+
+    static boolean isBase(Type type) {
+        if (type.getSort() != Type.OBJECT) {
+            return type.getSort() != Type.ARRAY && type.getSort() != Type.VOID;
+        }
+        return type.getDescriptor().equals("Ljava/lang/String;") || unbox(type) != type;
+    }
+
+    /**
+     * @return the primitive type of a box, any other type as it is
+     */
+    public static Type unbox(Type type) {
+        String name = type.getInternalName();
+        if (name.equals("java/lang/Integer")) {
+            return Type.INT_TYPE;
+        } else if (name.equals("java/lang/Long")) {
+            return Type.LONG_TYPE;
+        } else if (name.equals("java/lang/Short")) {
+            return Type.SHORT_TYPE;
+        } else if (name.equals("java/lang/Byte")) {
+            return Type.BYTE_TYPE;
+        } else if (name.equals("java/lang/Character")) {
+            return Type.CHAR_TYPE;
+        } else if (name.equals("java/lang/Boolean")) {
+            return Type.BOOLEAN_TYPE;
+        } else if (name.equals("java/lang/Double")) {
+            return Type.DOUBLE_TYPE;
+        } else if (name.equals("java/lang/Float")) {
+            return Type.FLOAT_TYPE;
+        }
+        return type;
+    }
+
+    /**
+     * The instantiable subtypes an object gene chooses from, the ones the tested class refers to first, see
+     * {@link TypeMatcher#match(Type, Set)}. When the tested class refers to none, the subtypes on the class path
+     * closest to the tested class come first: those of its package, then of packages sharing more of its name, then
+     * the other libraries and last the JDK, whose classes are candidates only for a JDK type. Sorted, so that a
+     * sandbox planning the same method gets the same list.
+     */
+    public static List<Type> getCandidates(Type type, String className) {
+        String key = className + ' ' + type.getDescriptor();
+        List<Type> found = candidates.get(key);
+        if (found == null) {
+            Set<String> allTypes = MethodConstantPool.CLASS_TYPE_SET.get(className);
+            final String tested = className.replace('.', '/');
+            boolean jdkType = isJdk(type.getInternalName());
+            List<Type> matched = new ArrayList<Type>();
+            for (Type candidate : TypeMatcher.match(type, allTypes)) {
+                if (jdkType || !isJdk(candidate.getInternalName())) {
+                    matched.add(candidate);
+                }
+            }
+            Collections.sort(matched, new Comparator<Type>() {
+
+                public int compare(Type o1, Type o2) {
+                    int shared1 = sharedPackage(tested, o1.getInternalName());
+                    int shared2 = sharedPackage(tested, o2.getInternalName());
+                    if (shared1 != shared2) {
+                        return shared1 > shared2 ? -1 : 1;
+                    }
+                    boolean jdk1 = isJdk(o1.getInternalName());
+                    if (jdk1 != isJdk(o2.getInternalName())) {
+                        return jdk1 ? 1 : -1;
+                    }
+                    return o1.getDescriptor().compareTo(o2.getDescriptor());
+                }
+            });
+            found = Collections.unmodifiableList(matched.subList(0, Math.min(MAX_CANDIDATES, matched.size())));
+            candidates.putIfAbsent(key, found);
+        }
+        return found;
+    }
+
+    private static boolean isJdk(String internalName) {
+        for (String jdk : JDK_PACKAGES) {
+            if (internalName.startsWith(jdk)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how many leading package names the two classes share
+     */
+    static int sharedPackage(String internalName, String other) {
+        int shared = 0;
+        for (int i = 0; i < internalName.length() && i < other.length(); ++i) {
+            if (internalName.charAt(i) != other.charAt(i)) {
+                break;
+            }
+            if (internalName.charAt(i) == '/') {
+                shared++;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return an instance of the class, through its public no-argument constructor when it has one, null when it cannot
+     *         be created
+     */
+    static Object newInstance(Class<?> clazz) {
+        try {
+            Constructor<?> constructor = clazz.getConstructor();
+            return constructor.newInstance();
+        } catch (NoSuchMethodException e) {
+            // another public constructor then, with pooled arguments
+        } catch (Throwable e) {
+            return null;
+        }
+        try {
+            return TypeResolverFactory.newInstance(clazz);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return an empty collection or map assignable to the declared class, null when none is known
+     */
+    static Object newContainer(Class<?> declared) {
+        if (!declared.isInterface() && !Modifier.isAbstract(declared.getModifiers())) {
+            Object container = newInstance(declared);
+            if (container != null) {
+                return container;
+            }
+        }
+        Object container;
+        if (SortedMap.class.isAssignableFrom(declared)) {
+            container = new TreeMap<Object, Object>();
+        } else if (ConcurrentMap.class.isAssignableFrom(declared)) {
+            container = new ConcurrentHashMap<Object, Object>();
+        } else if (Map.class.isAssignableFrom(declared)) {
+            container = new HashMap<Object, Object>();
+        } else if (SortedSet.class.isAssignableFrom(declared)) {
+            container = new TreeSet<Object>();
+        } else if (Set.class.isAssignableFrom(declared)) {
+            container = new HashSet<Object>();
+        } else if (Queue.class.isAssignableFrom(declared)) {
+            container = new LinkedList<Object>();
+        } else {
+            container = new ArrayList<Object>();
+        }
+        return declared.isInstance(container) ? container : null;
+    }
+
+    /**
+     * Adds the element unless the collection refuses it, a null in a TreeSet for one.
+     */
+    @SuppressWarnings("unchecked")
+    static void add(Object collection, Object element) {
+        try {
+            ((Collection<Object>) collection).add(element);
+        } catch (RuntimeException e) {
+            // left out
+        }
+    }
+
+    /**
+     * Puts the entry unless the map refuses it.
+     */
+    @SuppressWarnings("unchecked")
+    static void put(Object map, Object key, Object value) {
+        try {
+            ((Map<Object, Object>) map).put(key, value);
+        } catch (RuntimeException e) {
+            // left out
+        }
+    }
+}
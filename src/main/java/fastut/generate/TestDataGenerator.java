@@ -1,8 +1,11 @@
 package fastut.generate;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.GenericSignatureFormatError;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,6 +20,7 @@ import org.jgap.Gene;
 import org.jgap.Genotype;
 import org.jgap.IChromosome;
 import org.jgap.impl.BooleanGene;
+import org.jgap.impl.CollectionGene;
 import org.jgap.impl.DoubleGene;
 import org.jgap.impl.FastUTDefaultConfiguration;
 import org.jgap.impl.IntegerGene;
@@ -27,7 +31,9 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.MethodNode;
 
 import fastut.coverage.data.ProjectData;
+import fastut.coverage.data.TestCoverageData;
 import fastut.coverage.data.TouchCollector;
+import fastut.coverage.util.ConfigurationUtil;
 import fastut.coverage.instrument.ClassInstrumenter;
 import fastut.denpendency.DependencyCollector;
 import fastut.denpendency.DependencyKey;
@@ -38,7 +44,12 @@ import fastut.denpendency.MethodConstantPool;
 import fastut.denpendency.MethodScanner;
 import fastut.evolution.DependencyFitnessFunction;
 import fastut.evolution.GeneValueIterator;
+import fastut.evolution.InvocationWatchdog;
+import fastut.evolution.IslandMigrator;
 import fastut.evolution.MethodInvokeContext;
+import fastut.evolution.SandboxPool;
+import fastut.evolution.ValueEncoding;
+import fastut.generate.struct.MethodPlan;
 import fastut.generate.struct.ParamBinding;
 import fastut.generate.struct.TestPath;
 import fastut.generate.struct.UnitMethod;
@@ -46,31 +57,62 @@ import fastut.generate.struct.UserParamTestValue;
 import fastut.mock.MockFactory;
 import fastut.util.FastUTRegxString;
 import fastut.util.FormatOut;
-import fastut.util.NameUtil;
-import fastut.util.TypeMatcher;
-import fastut.util.generics.parser.SignatureParser;
-import fastut.util.generics.tree.TypeSignature;
+import fastut.util.FrameClassWriter;
 import fastut.util.generics.type.ListSignaturedType;
-import fastut.util.generics.type.MapSignaturedType;
 import fastut.util.generics.type.SignaturedType;
-import fastut.util.generics.visitor.Reifier;
+import fastut.util.generics.visitor.SignatureCache;
 
 public class TestDataGenerator {
 
-    final DependencyCollector collector;
-    final MethodScanner       scanner;
-    final List<Gene>          genes                 = new ArrayList<Gene>();
-    final Map<Integer, Type>  geneTypeMap           = new HashMap<Integer, Type>();
-    final Configuration       geneConfiguration     = new FastUTDefaultConfiguration();
-    private Collection<?>     ignoreRegexes         = new Vector<Object>();
-    private Collection<?>     ignoreBranchesRegexes = new Vector<Object>();
-    public static ProjectData projectData           = new ProjectData();
-    private final byte[]      codes;
+    final DependencyCollector  collector;
+    final MethodScanner        scanner;
+    final List<Gene>           genes                 = new ArrayList<Gene>();
+    final Map<Integer, Type>   geneTypeMap           = new HashMap<Integer, Type>();
+    final Configuration        geneConfiguration     = new FastUTDefaultConfiguration();
+    private Collection<?>      ignoreRegexes         = new Vector<Object>();
+    private Collection<?>      ignoreBranchesRegexes = new Vector<Object>();
+    public static ProjectData  projectData           = new ProjectData();
+    /** the coverage of every evaluation, {@link #projectData} only holds the one of the last */
+    public static ProjectData  coverageArchive       = new ProjectData();
+    private final byte[]       codes;
+    private IslandMigrator     migrator;
+    private SandboxPool        sandbox;
+    private InvocationWatchdog watchdog;
+    private int                populationSize        = 10;
+    private int                maxEvolutions         = 10;
+
+    public void setMigrator(IslandMigrator migrator) {
+        this.migrator = migrator;
+    }
+
+    public void setSandbox(SandboxPool sandbox) {
+        this.sandbox = sandbox;
+    }
+
+    public void setWatchdog(InvocationWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    public void setPopulationSize(int populationSize) {
+        this.populationSize = populationSize;
+    }
+
+    public void setMaxEvolutions(int maxEvolutions) {
+        this.maxEvolutions = maxEvolutions;
+    }
 
     public byte[] getCode() {
         return codes;
     }
 
+    public Map<DependencyKey, MethodNode> getDeclaredMethods() {
+        return collector.declared_methods;
+    }
+
+    public Map<String, MethodConstantPool> getMethodConstants() {
+        return scanner.getMethodConstants();
+    }
+
     public TestDataGenerator(String className) throws IOException{
         Configuration.reset();
         // collector
@@ -82,9 +124,9 @@ public class TestDataGenerator {
 
         // point
         ClassReader ccr = new ClassReader(className);
-        ClassWriter ccw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        ClassWriter ccw = new FrameClassWriter(ccr, ClassLoader.getSystemClassLoader());
         ClassInstrumenter ccv = new ClassInstrumenter(projectData, ccw, ignoreRegexes, ignoreBranchesRegexes);
-        ccr.accept(ccv, 0);
+        ccr.accept(ccv, ClassReader.SKIP_FRAMES);
 
         codes = ccw.toByteArray();
     }
@@ -149,6 +191,110 @@ public class TestDataGenerator {
         }
     }
 
+    /**
+     * Appends the genes of a value of the type, the genes of its elements in turn, see {@link ValueEncoding}.
+     *
+     * @param depth how many collections, maps and arrays contain the value
+     */
+    void addGenes(SignaturedType type, MethodConstantPool pool, List<Gene> genes, int depth) throws Throwable {
+        switch (ValueEncoding.kindOf(type, depth, pool.getClassName())) {
+            case BASE:
+                genes.add(getGene(ValueEncoding.unbox(ValueEncoding.getRawType(type)), pool));
+                break;
+            case OBJECT:
+                // 0 is null, i the (i - 1)th candidate
+                List<Type> candidates = ValueEncoding.getCandidates(ValueEncoding.getRawType(type), pool.getClassName());
+                genes.add(new IntegerGene(geneConfiguration, 0, candidates.size()));
+                break;
+            case COLLECTION:
+            case ARRAY:
+                if (ValueEncoding.isCompact(type, depth, pool.getClassName())) {
+                    int[] bounds = getBounds(ValueEncoding.getElementType(type), pool);
+                    genes.add(new CollectionGene(geneConfiguration, ValueEncoding.MAX_SIZE, new int[] { bounds[0] },
+                                                 new int[] { bounds[1] }));
+                    break;
+                }
+                genes.add(new IntegerGene(geneConfiguration, 0, ValueEncoding.MAX_ELEMENTS));
+                for (int i = 0; i < ValueEncoding.MAX_ELEMENTS; ++i) {
+                    addGenes(ValueEncoding.getElementType(type), pool, genes, depth + 1);
+                }
+                break;
+            case MAP:
+                if (ValueEncoding.isCompact(type, depth, pool.getClassName())) {
+                    int[] keyBounds = getBounds(ValueEncoding.getElementType(type), pool);
+                    int[] valueBounds = getBounds(ValueEncoding.getValueType(type), pool);
+                    genes.add(new CollectionGene(geneConfiguration, ValueEncoding.MAX_SIZE,
+                                                 new int[] { keyBounds[0], valueBounds[0] },
+                                                 new int[] { keyBounds[1], valueBounds[1] }));
+                    break;
+                }
+                genes.add(new IntegerGene(geneConfiguration, 0, ValueEncoding.MAX_ELEMENTS));
+                for (int i = 0; i < ValueEncoding.MAX_ELEMENTS; ++i) {
+                    addGenes(ValueEncoding.getElementType(type), pool, genes, depth + 1);
+                    addGenes(ValueEncoding.getValueType(type), pool, genes, depth + 1);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Appends the genes of a value spread over genes and names the first of them.
+     *
+     * @return the index of the first gene, -1 when the value takes none and stays null
+     */
+    int addEncodedGenes(String name, SignaturedType type, MethodConstantPool pool, List<Gene> genes,
+                        MethodInvokeContext invokeContext) throws Throwable {
+        int first = genes.size();
+        addGenes(type, pool, genes, 0);
+        if (genes.size() == first) {
+            return -1;
+        }
+        invokeContext.setGeneInfo(first, name, type);
+        invokeContext.markEncoded(first);
+        return first;
+    }
+
+    /**
+     * @return the lower and upper bound of the int a base value is encoded as in a {@link CollectionGene}, the bounds
+     *         of its own gene
+     */
+    int[] getBounds(SignaturedType type, MethodConstantPool pool) throws Throwable {
+        Gene gene = getGene(ValueEncoding.unbox(ValueEncoding.getRawType(type)), pool);
+        if (gene instanceof IntegerGene) {
+            return new int[] { ((IntegerGene) gene).getLowerBounds(), ((IntegerGene) gene).getUpperBounds() };
+        } else if (gene instanceof LongGene) {
+            return new int[] { ((LongGene) gene).getLowerBounds(), ((LongGene) gene).getUpperBounds() };
+        }
+        // a boolean is the low bit
+        return new int[] { 0, 1 };
+    }
+
+    /**
+     * @return the generic parameter types of the method, the erased ones where it has no signature or a type variable
+     */
+    static SignaturedType[] getParameterTypes(MethodNode mNode, Type[] argumentTypes) {
+        SignaturedType[] types = null;
+        if (mNode.signature != null) {
+            try {
+                types = SignatureCache.reifyParameterTypes(mNode.signature);
+            } catch (GenericSignatureFormatError e) {
+                System.err.println("bad signature " + mNode.signature + " of " + mNode.name);
+            }
+        }
+        // the signature of an inner class constructor leaves out the outer instance
+        if (types == null || types.length != argumentTypes.length) {
+            types = new SignaturedType[argumentTypes.length];
+        }
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == null) {
+                types[i] = SignaturedType.makeSimpleType(argumentTypes[i]);
+            }
+        }
+        return types;
+    }
+
     public List<FastUTFieldNode> getAllFields(String name) {
         Set<FastUTFieldNode> nodeSet = new HashSet<FastUTFieldNode>();
         boolean stop = false;
@@ -165,7 +311,7 @@ public class TestDataGenerator {
 
     public IChromosome getBest(int branchNum, List<Gene> template, MethodInvokeContext invokeContext) throws Throwable {
         Configuration.reset();
-        DependencyFitnessFunction function = new DependencyFitnessFunction(invokeContext);
+        DependencyFitnessFunction function = new DependencyFitnessFunction(invokeContext, sandbox);
         geneConfiguration.setFitnessFunction(function);
         List<Gene> lgs = new ArrayList<Gene>();
         for (int i = 0; i < branchNum; ++i) {
@@ -178,16 +324,20 @@ public class TestDataGenerator {
 
         Chromosome sampleChromosome = new Chromosome(geneConfiguration, sampleGenes);
         geneConfiguration.setSampleChromosome(sampleChromosome);
-        geneConfiguration.setPopulationSize(10);
+        geneConfiguration.setPopulationSize(populationSize);
         Genotype population = Genotype.randomInitialGenotype(geneConfiguration);
+        String methodId = invokeContext.getClassName() + "." + invokeContext.getMethodSignature();
         IChromosome bestSolutionSoFar = null;
-        for (int i = 0; i < 10; i++) {
+        for (int i = 0; i < maxEvolutions; i++) {
             bestSolutionSoFar = population.getFittestChromosome();
             System.out.println("the " + (i + 1) + " generation best:" + bestSolutionSoFar);
             if (bestSolutionSoFar.getFitnessValue() >= 1.0) {
                 break;
             }
             population.evolve();
+            if (migrator != null && (i + 1) % migrator.getInterval() == 0) {
+                migrator.exchange(methodId, population);
+            }
         }
 
         return bestSolutionSoFar;
@@ -277,16 +427,54 @@ public class TestDataGenerator {
     }
 
     public static void main(String[] args) throws Throwable {
+        System.out.println(generate("samples.ComplexObject", null));
+    }
 
-        String className = "samples.ComplexObject";
+    /**
+     * Evolves test data for every public method of the class and returns the generated test source.
+     *
+     * @param migrator exchanges chromosomes with the other islands, or null for a standalone run
+     */
+    public static String generate(String className, IslandMigrator migrator) throws Throwable {
         String orignalName = className;
         TestDataGenerator generator = new TestDataGenerator(className);
+        if (migrator != null) {
+            generator.setMigrator(migrator);
+            generator.setPopulationSize(migrator.getPopulationSize());
+            generator.setMaxEvolutions(migrator.getMaxEvolutions());
+        }
+        ConfigurationUtil config = new ConfigurationUtil();
+        long invokeTimeout = Long.parseLong(config.getProperty("fastut.invoke.timeout", "5000"));
+        if (invokeTimeout > 0) {
+            generator.setWatchdog(new InvocationWatchdog(invokeTimeout));
+        }
+        int sandboxes = Integer.parseInt(config.getProperty("fastut.sandbox.workers", "0"));
+        if (sandboxes > 0) {
+            generator.setSandbox(new SandboxPool(sandboxes, Long.parseLong(config.getProperty("fastut.sandbox.timeout",
+                                                                                               "1000"))));
+        }
+        try {
+            return generator.generateTests(orignalName);
+        } finally {
+            if (generator.sandbox != null) {
+                generator.sandbox.close();
+            }
+            if (generator.watchdog != null) {
+                System.err.println(generator.watchdog.report());
+            }
+        }
+    }
 
-        Map<String, MethodConstantPool> values = generator.scanner.getMethodConstants();
+    private String generateTests(String orignalName) throws Throwable {
+        Map<String, MethodConstantPool> values = scanner.getMethodConstants();
         makeSharing(values);
+        TestCoverageData testCoverage = null;
+        if (Boolean.parseBoolean(new ConfigurationUtil().getProperty("fastut.coverage.perTest", "false"))) {
+            testCoverage = new TestCoverageData();
+        }
 
         List<UnitMethod> unitMethods = new ArrayList<UnitMethod>();
-        for (Map.Entry<DependencyKey, MethodNode> entry : generator.collector.declared_methods.entrySet()) {
+        for (Map.Entry<DependencyKey, MethodNode> entry : collector.declared_methods.entrySet()) {
             MethodNode mNode = entry.getValue();
             if (!Modifier.isPublic(mNode.access) || mNode.name.equals("<init>")) {
                 continue;
@@ -303,116 +491,157 @@ public class TestDataGenerator {
                 continue;
             }
 
-            className = entry.getKey().getClassName().replace('/', '.');
-            String methodId = className + "." + methodName + methodDesc;
-            MethodConstantPool pool = values.get(methodId);
-            pool.reduce();
-            System.err.println(pool);
-            Set<String> allTypes = MethodConstantPool.CLASS_TYPE_SET.get(className);
-            System.err.println("allTypes: " + allTypes);
-            Set<Type> matchedTypes = TypeMatcher.match(Type.getType(List.class), allTypes);
-            System.err.println("match: " + matchedTypes);
-            System.err.println("methodID: " + methodId);
-
-            DependencyKey key = new DependencyKey(className.replace('.', '/'), methodName, methodDesc);
-            List<MethodCall> methodCalls = generator.collector.METHOD_VISITED_METHODS.get(key);
-            Set<FieldCall> fieldCalls = generator.collector.METHOD_VISITED_FIELDS.get(key);
-            for (FieldCall call : fieldCalls) {
-                System.err.println(call);
+            MethodPlan plan = plan(entry.getKey(), mNode, values);
+            if (plan == null) {
+                continue;
             }
+            IChromosome bestSolutionSoFar = getBest(plan.branchNum, plan.genes, plan.invokeContext);
 
-            MethodInvokeContext invokeContext = new MethodInvokeContext(pool, methodCalls);
+            makeCode(initUnitMethod(autoUnitMethod, plan.branchNum, plan.invokeContext.getClassName()),
+                     plan.invokeContext, bestSolutionSoFar);
+            if (testCoverage != null) {
+                recordTests(testCoverage, autoUnitMethod, unitMethods.size() - 1, plan.invokeContext, bestSolutionSoFar);
+            }
+        }
+        if (testCoverage != null) {
+            File testCoverageFile = TestCoverageData.getDefaultFile();
+            try {
+                TestCoverageData saved = TestCoverageData.load(testCoverageFile);
+                saved.merge(testCoverage);
+                saved.save(testCoverageFile);
+            } catch (IOException e) {
+                System.err.println("FastUT: Error saving per test coverage to " + testCoverageFile.getAbsolutePath()
+                                   + ": " + e.getMessage());
+            }
+        }
 
-            // force to load class
-            MockFactory.currentLoader().loadClass(pool.getClassName());
-            int branchNum = projectData.getClassData(pool.getClassName()).getNumberOfValidBranches(pool.getName()
-                                                                                                           + pool.getDesc());
+        int dot = orignalName.lastIndexOf('.');
+        orignalName = (dot != -1) ? orignalName.substring(dot + 1) : orignalName;
+        FastUTTestCreator testCreator = new FastUTTestCreator(orignalName, unitMethods, true);
+        return testCreator.getTest();
+    }
+
+    /**
+     * Runs the inputs of the best chromosome once more in this JVM, one at a time, and records the branches each of
+     * them covers under the name of the test generated from it.
+     */
+    private void recordTests(TestCoverageData testCoverage, UnitMethod unitMethod, int methodNum,
+                             MethodInvokeContext invokeContext, IChromosome best) {
+        List<BitSet> covered = new DependencyFitnessFunction(invokeContext).recordInputs(best);
+        for (int i = 0; i < covered.size(); i++) {
+            testCoverage.record(invokeContext.getClassName(), invokeContext.getMethodSignature(),
+                                "test_method_" + unitMethod.name + "_" + methodNum + "_branch_" + i, covered.get(i));
+        }
+    }
 
-            if (branchNum <= 0) {
-                System.out.println("no branch, so skip! for " + methodId);
+    /**
+     * Builds the gene template and invocation context of one declared method.
+     *
+     * @return the plan, or null when the method has no branch to cover
+     */
+    public MethodPlan plan(DependencyKey declaredKey, MethodNode mNode, Map<String, MethodConstantPool> values)
+                                                                                                               throws Throwable {
+        String methodName = mNode.name;
+        String methodDesc = mNode.desc;
+        String className = declaredKey.getClassName().replace('/', '.');
+        String methodId = className + "." + methodName + methodDesc;
+        MethodConstantPool pool = values.get(methodId);
+        pool.reduce();
+        System.err.println(pool);
+        System.err.println("methodID: " + methodId);
+
+        DependencyKey key = new DependencyKey(className.replace('.', '/'), methodName, methodDesc);
+        List<MethodCall> methodCalls = collector.METHOD_VISITED_METHODS.get(key);
+        Set<FieldCall> fieldCalls = collector.METHOD_VISITED_FIELDS.get(key);
+        for (FieldCall call : fieldCalls) {
+            System.err.println(call);
+        }
+
+        MethodInvokeContext invokeContext = new MethodInvokeContext(pool, methodCalls);
+        invokeContext.setWatchdog(watchdog);
+
+        // force to load class
+        MockFactory.currentLoader().loadClass(pool.getClassName());
+        int branchNum = projectData.getClassData(pool.getClassName()).getNumberOfValidBranches(pool.getName()
+                                                                                                       + pool.getDesc());
+
+        if (branchNum <= 0) {
+            System.out.println("no branch, so skip! for " + methodId);
+            return null;
+        } else {
+            System.err.println(methodId + "'s branch num [" + branchNum + "].");
+        }
+
+        List<Gene> genes = new ArrayList<Gene>();
+        List<FastUTFieldNode> fields = getAllFields(declaredKey.getClassName());
+        System.err.println(fields);
+        for (FastUTFieldNode node : fields) {
+            if ((Modifier.isFinal(node.access) && node.signature == null)) {
                 continue;
             } else {
-                System.err.println(methodId + "'s branch num [" + branchNum + "].");
-            }
-
-            List<Gene> genes = new ArrayList<Gene>();
-            List<FastUTFieldNode> fields = generator.getAllFields(entry.getKey().getClassName());
-            System.err.println(fields);
-            for (FastUTFieldNode node : fields) {
-                if ((Modifier.isFinal(node.access) && node.signature == null)) {
-                    continue;
-                } else {
-                    Type ft = Type.getType(node.desc);
-                    if (ft.getSort() == Type.OBJECT && !ft.getClassName().equals("java.lang.String")) {
-                        Class<?> retClass = MockFactory.mock(ft.getClassName());
-                        if (retClass != null) {
-                            invokeContext.setMockName(ft.getInternalName(), node.name);
-                            node.setMockable(true);
-                            node.setMockedClass(retClass);
-                        } else {
-                            System.err.println("mock failed for " + node);
-                            node.setMockable(false);
-                            if (node.signature != null) {
-                                Reifier rf = Reifier.make();
-                                TypeSignature tree = SignatureParser.make().parseTypeSig(node.signature);
-                                tree.accept(rf);
-                                SignaturedType t = rf.getResult();
-                                if (t instanceof ListSignaturedType) {
-                                    genes.add(generator.getGene(t, pool));
-                                    invokeContext.setGeneInfo(genes.size() - 1, node.name, t);
-                                } else if (t instanceof MapSignaturedType) {
-                                    MapSignaturedType mst = (MapSignaturedType)t;
-                                    genes.add(generator.getGene(mst.getKtype(), pool));
-                                    invokeContext.setGeneInfo(genes.size() - 1, NameUtil.getMapKeyName(node.name), mst);
-                                    genes.add(generator.getGene(mst.getVtype(), pool));
-                                    invokeContext.setGeneInfo(genes.size() - 1, NameUtil.getMapValueName(node.name), mst);
-                                }
-                            }
-                        }
+                Type ft = Type.getType(node.desc);
+                if (ft.getSort() == Type.OBJECT && !ft.getClassName().equals("java.lang.String")) {
+                    Class<?> retClass = MockFactory.mock(ft.getClassName());
+                    if (retClass != null) {
+                        invokeContext.setMockName(ft.getInternalName(), node.name);
+                        node.setMockable(true);
+                        node.setMockedClass(retClass);
                     } else {
+                        System.err.println("mock failed for " + node);
                         node.setMockable(false);
-                        SignaturedType t = SignaturedType.makeSimpleType(ft);
-                        genes.add(generator.getGene(t, pool));
-                        invokeContext.setGeneInfo(genes.size() - 1, node.name, t);
+                        if (node.signature != null) {
+                            SignaturedType t = SignatureCache.reifyTypeSig(node.signature);
+                            addEncodedGenes(node.name, t, pool, genes, invokeContext);
+                        } else {
+                            // an instance of a subtype then, or null
+                            addEncodedGenes(node.name, SignaturedType.makeSimpleType(ft), pool, genes, invokeContext);
+                        }
                     }
+                } else if (ft.getSort() == Type.ARRAY) {
+                    node.setMockable(false);
+                    SignaturedType t = node.signature != null ? SignatureCache.reifyTypeSig(node.signature)
+                                                              : SignaturedType.makeSimpleType(ft);
+                    addEncodedGenes(node.name, t, pool, genes, invokeContext);
+                } else {
+                    node.setMockable(false);
+                    SignaturedType t = SignaturedType.makeSimpleType(ft);
+                    genes.add(getGene(t, pool));
+                    invokeContext.setGeneInfo(genes.size() - 1, node.name, t);
                 }
             }
+        }
 
-            for (MethodCall call : methodCalls) {
-                System.err.println(call);
-                if (invokeContext.shouldBeMock(call.getOwner()) && Type.getReturnType(call.getDesc()) != Type.VOID_TYPE) {
-                    Type returnType = Type.getReturnType(call.getDesc());
-                    genes.add(generator.getGene(SignaturedType.makeSimpleType(returnType), pool));
-                    Class<?> mockClass = MockFactory.mock(call.getOwner().replace('/', '.'));
-                    String mockName = invokeContext.getMockName(call.getOwner());
-                    invokeContext.setGeneInfo(genes.size() - 1, mockName,
-                                              SignaturedType.makeSimpleType(Type.getType(mockClass)));
-                }
+        for (MethodCall call : methodCalls) {
+            System.err.println(call);
+            if (invokeContext.shouldBeMock(call.getOwner()) && Type.getReturnType(call.getDesc()) != Type.VOID_TYPE) {
+                Type returnType = Type.getReturnType(call.getDesc());
+                genes.add(getGene(SignaturedType.makeSimpleType(returnType), pool));
+                Class<?> mockClass = MockFactory.mock(call.getOwner().replace('/', '.'));
+                String mockName = invokeContext.getMockName(call.getOwner());
+                invokeContext.setGeneInfo(genes.size() - 1, mockName,
+                                          SignaturedType.makeSimpleType(Type.getType(mockClass)));
             }
+        }
 
-            Type[] argumentTypes = Type.getArgumentTypes(pool.getDesc());
-            for (int i = 0; i < argumentTypes.length; ++i) {
-                if (argumentTypes[i].getSort() != Type.OBJECT
-                    || argumentTypes[i].getDescriptor().equals("Ljava/lang/String;")) {
-                    genes.add(generator.getGene(SignaturedType.makeSimpleType(argumentTypes[i]), pool));
-                    invokeContext.setGeneInfo(genes.size() - 1, "arg" + i,
-                                              SignaturedType.makeSimpleType(argumentTypes[i]));
-                    invokeContext.markParamSign(genes.size() - 1);
-                } else {
-                    // TODO
+        Type[] argumentTypes = Type.getArgumentTypes(pool.getDesc());
+        SignaturedType[] parameterTypes = getParameterTypes(mNode, argumentTypes);
+        for (int i = 0; i < argumentTypes.length; ++i) {
+            if ((argumentTypes[i].getSort() != Type.OBJECT && argumentTypes[i].getSort() != Type.ARRAY)
+                || argumentTypes[i].getDescriptor().equals("Ljava/lang/String;")) {
+                genes.add(getGene(SignaturedType.makeSimpleType(argumentTypes[i]), pool));
+                invokeContext.setGeneInfo(genes.size() - 1, "arg" + i,
+                                          SignaturedType.makeSimpleType(argumentTypes[i]));
+                invokeContext.markParamSign(genes.size() - 1);
+            } else {
+                // collections, maps, arrays and objects, an argument without genes stays null
+                int first = addEncodedGenes("arg" + i, parameterTypes[i], pool, genes, invokeContext);
+                if (first >= 0) {
+                    invokeContext.markParamSign(first);
                 }
             }
-
-            IChromosome bestSolutionSoFar = generator.getBest(branchNum, genes, invokeContext);
-
-            makeCode(initUnitMethod(autoUnitMethod, branchNum, invokeContext.getClassName()), invokeContext,
-                     bestSolutionSoFar);
         }
-
-        int dot = orignalName.lastIndexOf('.');
-        orignalName = (dot != -1) ? orignalName.substring(dot + 1) : orignalName;
-        FastUTTestCreator testCreator = new FastUTTestCreator(orignalName, unitMethods, true);
-        System.out.println(testCreator.getTest());
+        invokeContext.setSlotSize(genes.size());
+        return new MethodPlan(methodId, branchNum, genes, invokeContext);
     }
 
     static UnitMethod initUnitMethod(UnitMethod target, int branchNum, String className) {
@@ -430,7 +659,7 @@ public class TestDataGenerator {
     public static void makeCode(UnitMethod target, MethodInvokeContext invokeContext, IChromosome a_subject) {
         List<TestPath> paths = target.testBranches;
         int size = a_subject.size();
-        int iSize = invokeContext.getGeneTypeSize();
+        int iSize = invokeContext.getSlotSize();
         int gSize = size / iSize;
         GeneValueIterator geneIter = new GeneValueIterator(a_subject);
         for (int i = 0; i < gSize; ++i) {
@@ -440,7 +669,10 @@ public class TestDataGenerator {
             for (int j = 0; j < iSize; ++j) {
 
                 SignaturedType st = invokeContext.getGeneType(j);
-                Type type = st.getType();
+                if (st == null) {
+                    // inside a value spread over genes
+                    continue;
+                }
 
                 if (invokeContext.isParam(j)) {
                     Object paramValue = invokeContext.processParam(j, geneIter);
@@ -451,17 +683,18 @@ public class TestDataGenerator {
 
                 String gName = invokeContext.getGeneName(j);
                 Object value = invokeContext.processField(j, geneIter);
+                if (invokeContext.isEncoded(j)) {
+                    path.additionalConstraints += FormatOut.asOperation("ReflectUtil", "setFieldValue", "instance",
+                                                                        FormatOut.asString(gName),
+                                                                        FormatOut.asString(value));
+                    continue;
+                }
+                Type type = st.getType();
                 if (!invokeContext.isParam(j)
-                    && (type.getSort() != Type.OBJECT || type.getDescriptor().equals("Ljava/lang/String;") || st instanceof ListSignaturedType || st instanceof MapSignaturedType)) {
-                    if (st instanceof ListSignaturedType || st instanceof MapSignaturedType) {
-                        path.additionalConstraints += FormatOut.asDeclartion(st, gName, value);
-                        path.additionalConstraints += FormatOut.asOperation("ReflectUtil", "setFieldValue", "instance",
-                                                                            FormatOut.asString(gName), NameUtil.transform(gName));
-                    } else {
-                        path.additionalConstraints += FormatOut.asOperation("ReflectUtil", "setFieldValue", "instance",
-                                                                            FormatOut.asString(gName),
-                                                                            FormatOut.asString(value));
-                    }
+                    && (type.getSort() != Type.OBJECT || type.getDescriptor().equals("Ljava/lang/String;"))) {
+                    path.additionalConstraints += FormatOut.asOperation("ReflectUtil", "setFieldValue", "instance",
+                                                                        FormatOut.asString(gName),
+                                                                        FormatOut.asString(value));
                 } else if (invokeContext.isParam(j)) {
                     path.userParamTestValues.get(pIndex).userParamValue = FormatOut.asString(initargs[pIndex]);
                     pIndex++;
@@ -483,10 +716,6 @@ public class TestDataGenerator {
                         }
                     }
                 }
-
-                if(invokeContext.isMapBegin(j)) {
-                    ++j;
-                }
             }
 
             try {
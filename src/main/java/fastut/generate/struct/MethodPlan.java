@@ -0,0 +1,26 @@
+package fastut.generate.struct;
+
+import java.util.List;
+
+import org.jgap.Gene;
+
+import fastut.evolution.MethodInvokeContext;
+
+/**
+ * Everything needed to evolve inputs for one method: the gene template of one input slot, the number of slots and the
+ * context that decodes and invokes them.
+ */
+public class MethodPlan {
+
+    public final String              methodId;
+    public final int                 branchNum;
+    public final List<Gene>          genes;
+    public final MethodInvokeContext invokeContext;
+
+    public MethodPlan(String methodId, int branchNum, List<Gene> genes, MethodInvokeContext invokeContext){
+        this.methodId = methodId;
+        this.branchNum = branchNum;
+        this.genes = genes;
+        this.invokeContext = invokeContext;
+    }
+}
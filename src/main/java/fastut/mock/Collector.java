@@ -9,7 +9,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
@@ -17,7 +16,7 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
-public class Collector extends ClassAdapter implements Opcodes {
+public class Collector extends ClassVisitor implements Opcodes {
 
     private Map<String, MethodNode> abstracts      = new HashMap<String, MethodNode>();
     private Set<String>             implementss    = new HashSet<String>();
@@ -27,7 +26,7 @@ public class Collector extends ClassAdapter implements Opcodes {
     private String                  firstClassName = null;
 
     public Collector(ClassVisitor cv){
-        super(cv);
+        super(ASM9, cv);
     }
 
     public List<MethodNode> getAbstracts() {
@@ -22,6 +22,7 @@ import org.objectweb.asm.tree.MethodNode;
 
 import fastut.generate.TestDataGenerator;
 import fastut.object.ObjectPool;
+import fastut.util.FrameClassWriter;
 
 public class MockFactory implements Opcodes {
 
@@ -154,14 +155,17 @@ public class MockFactory implements Opcodes {
     @SuppressWarnings("unchecked")
     static Class<?> mockAbstract(Collector collector, String className, String originalClassName,
                                  InnerLoader innerLoader) {
-        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        ClassWriter cw = new FrameClassWriter(innerLoader);
         ClassNode classNode = collector.getFirstClassNode();
         String innerClassName = classNode.name.replace('.', '/');
         className = className.replace('.', '/');
+        // the version of the mocked class, 1.8 at least so that its default interface methods can be called
+        int version = (classNode.version & 0xFFFF) < V1_8 ? V1_8 : classNode.version;
         if (Modifier.isInterface(classNode.access)) {
-            cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, className, null, "java/lang/Object", new String[] { innerClassName });
+            cw.visit(version, ACC_PUBLIC + ACC_SUPER, className, null, "java/lang/Object",
+                     new String[] { innerClassName });
         } else {
-            cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, className, null, innerClassName, new String[] {});
+            cw.visit(version, ACC_PUBLIC + ACC_SUPER, className, null, innerClassName, new String[] {});
         }
 
         MethodNode initNode = collector.getSimplestInitNode();
@@ -169,9 +173,9 @@ public class MockFactory implements Opcodes {
             MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
             mv.visitVarInsn(ALOAD, 0);
             if (Modifier.isInterface(classNode.access)) {
-                mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+                mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
             } else {
-                mv.visitMethodInsn(INVOKESPECIAL, innerClassName, "<init>", "()V");
+                mv.visitMethodInsn(INVOKESPECIAL, innerClassName, "<init>", "()V", false);
             }
             mv.visitInsn(RETURN);
             mv.visitMaxs(1, 1);
@@ -187,7 +191,7 @@ public class MockFactory implements Opcodes {
                                                                                                    initNode.desc), mv);
             generator.loadThis();
             generator.loadArgs();
-            generator.visitMethodInsn(INVOKESPECIAL, innerClassName, "<init>", initNode.desc);
+            generator.visitMethodInsn(INVOKESPECIAL, innerClassName, "<init>", initNode.desc, false);
             generator.returnValue();
             generator.visitMaxs(1, 1);
             generator.visitEnd();
@@ -237,7 +241,7 @@ public class MockFactory implements Opcodes {
                 generator.visitInsn(AASTORE);
             }
             generator.visitMethodInsn(INVOKESTATIC, "fastut/mock/MockUp", "tryMock",
-                                      "(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;");
+                                      "(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;", false);
             generator.visitVarInsn(ASTORE, argumentTypes.length + 1);
             generator.visitVarInsn(ALOAD, argumentTypes.length + 1);
             Label l0 = new Label();
@@ -283,16 +287,18 @@ public class MockFactory implements Opcodes {
                     }
             }
         }
-        generator.visitMaxs(1, 1);
+        // the frames are computed on visitMaxs, so it comes after the last instruction
         generator.returnValue();
+        generator.visitMaxs(0, 0);
+        generator.visitEnd();
     }
 
     static Class<?> mockNormal(String className, InnerLoader innerLoader) {
         try {
             ClassReader cr = new ClassReader(className);
-            ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+            ClassWriter cw = new FrameClassWriter(cr, innerLoader);
             MockMaker mocker = new MockMaker(cw);
-            cr.accept(mocker, ClassReader.SKIP_DEBUG);
+            cr.accept(mocker, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
             try {
                 File file = new File("/tmp/" + className.replace('.', '/') + ".class");
                 if (!file.exists()) {
@@ -2,18 +2,17 @@ package fastut.mock;
 
 import java.lang.reflect.Modifier;
 
-import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
-public class MockMaker extends ClassAdapter implements Opcodes {
+public class MockMaker extends ClassVisitor implements Opcodes {
 
     private String className;
 
     public MockMaker(ClassVisitor cv){
-        super(cv);
+        super(ASM9, cv);
     }
 
     @Override
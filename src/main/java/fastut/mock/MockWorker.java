@@ -1,13 +1,12 @@
 package fastut.mock;
 
 import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.GeneratorAdapter;
 
-public class MockWorker extends MethodAdapter implements Opcodes {
+public class MockWorker extends MethodVisitor implements Opcodes {
 
     private final String className;
     private final String methodName;
@@ -15,7 +14,7 @@ public class MockWorker extends MethodAdapter implements Opcodes {
     private final int    access;
 
     public MockWorker(MethodVisitor mv, String className, String methodName, String methodDesc, int access){
-        super(mv);
+        super(ASM9, mv);
         this.className = className;
         this.methodName = methodName;
         this.methodDesc = methodDesc;
@@ -44,7 +43,7 @@ public class MockWorker extends MethodAdapter implements Opcodes {
             generator.visitInsn(AASTORE);
         }
         generator.visitMethodInsn(INVOKESTATIC, "fastut/mock/MockUp", "tryMock",
-                                  "(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;");
+                                  "(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;", false);
         generator.visitVarInsn(ASTORE, argumentTypes.length + 1);
         generator.visitVarInsn(ALOAD, argumentTypes.length + 1);
         Label l0 = new Label();
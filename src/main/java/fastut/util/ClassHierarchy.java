@@ -0,0 +1,216 @@
+package fastut.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * <p>
+ * The super types of the classes a class loader sees, read from the headers of their class files. Nothing is loaded
+ * or initialized, so the hierarchy can be asked while a class is being defined. A type without a class file, generated
+ * at runtime, is loaded without initializing it, an unknown type has no super types. Only known types are kept, an
+ * unknown one is looked for again next time, so a class defined later is found once it is defined.
+ * </p>
+ * <p>
+ * Headers and super type closures are read once per loader and shared by all threads, see
+ * {@link #forLoader(ClassLoader)}. Types are internal names, java/lang/String.
+ * </p>
+ */
+public class ClassHierarchy {
+
+    public static final String                            OBJECT      = "java/lang/Object";
+
+    private static final TypeHeader                       UNKNOWN     = new TypeHeader(0, null, new String[0]);
+
+    private static final Map<ClassLoader, ClassHierarchy> hierarchies = new WeakHashMap<ClassLoader, ClassHierarchy>();
+
+    /** the hierarchy keeps its loader weakly, the loader is the key of the hierarchies */
+    private final WeakReference<ClassLoader>              loader;
+
+    private final ConcurrentMap<String, TypeHeader>       headers     = new ConcurrentHashMap<String, TypeHeader>();
+
+    private final ConcurrentMap<String, Set<String>>      superTypes  = new ConcurrentHashMap<String, Set<String>>();
+
+    private ClassHierarchy(ClassLoader loader){
+        this.loader = new WeakReference<ClassLoader>(loader);
+    }
+
+    /**
+     * @param loader null for the system class loader
+     * @return the hierarchy shared by everyone asking about the loader
+     */
+    public static ClassHierarchy forLoader(ClassLoader loader) {
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+        synchronized (hierarchies) {
+            ClassHierarchy hierarchy = hierarchies.get(loader);
+            if (hierarchy == null) {
+                hierarchy = new ClassHierarchy(loader);
+                hierarchies.put(loader, hierarchy);
+            }
+            return hierarchy;
+        }
+    }
+
+    /**
+     * @return whether the loader knows the type
+     */
+    public boolean contains(String type) {
+        return getHeader(type) != UNKNOWN;
+    }
+
+    public boolean isInterface(String type) {
+        return (getHeader(type).access & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * @return whether the type is a known class that is neither an interface nor abstract
+     */
+    public boolean isInstantiable(String type) {
+        TypeHeader header = getHeader(type);
+        return header != UNKNOWN && (header.access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT)) == 0;
+    }
+
+    /**
+     * @return whether type is a super class or super interface of the other type, or the type itself
+     */
+    public boolean isAssignableFrom(String type, String other) {
+        return type.equals(OBJECT) || getSuperTypes(other).contains(type);
+    }
+
+    /**
+     * @return the type, its super classes and all its super interfaces, without java/lang/Object for interfaces
+     */
+    public Set<String> getSuperTypes(String type) {
+        Set<String> closure = superTypes.get(type);
+        if (closure == null) {
+            TypeHeader header = getHeader(type);
+            Set<String> types = new HashSet<String>();
+            types.add(type);
+            boolean complete = header != UNKNOWN;
+            if (header.superName != null) {
+                complete &= addSuperTypes(types, header.superName);
+            }
+            for (String superInterface : header.interfaces) {
+                complete &= addSuperTypes(types, superInterface);
+            }
+            closure = Collections.unmodifiableSet(types);
+            if (complete) {
+                Set<String> known = superTypes.putIfAbsent(type, closure);
+                if (known != null) {
+                    closure = known;
+                }
+            }
+        }
+        return closure;
+    }
+
+    /**
+     * @return whether the super types of the type are all known, only then they are kept
+     */
+    private boolean addSuperTypes(Set<String> types, String type) {
+        types.addAll(getSuperTypes(type));
+        return superTypes.containsKey(type);
+    }
+
+    /**
+     * @return the nearest class both types extend, java/lang/Object when one of them is an interface or unknown
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        TypeHeader class1 = getHeader(type1);
+        if (class1 == UNKNOWN || !contains(type2) || isInterface(type1) || isInterface(type2)) {
+            return OBJECT;
+        }
+        for (String superName = class1.superName; superName != null; superName = getHeader(superName).superName) {
+            if (isAssignableFrom(superName, type2)) {
+                return superName;
+            }
+        }
+        return OBJECT;
+    }
+
+    private TypeHeader getHeader(String type) {
+        TypeHeader header = headers.get(type);
+        if (header == null) {
+            header = readHeader(type);
+            if (header != UNKNOWN) {
+                headers.putIfAbsent(type, header);
+            }
+        }
+        return header;
+    }
+
+    private TypeHeader readHeader(String type) {
+        ClassLoader classLoader = loader.get();
+        if (classLoader == null) {
+            return UNKNOWN;
+        }
+        InputStream in = classLoader.getResourceAsStream(type + ".class");
+        if (in != null) {
+            try {
+                try {
+                    ClassReader classReader = new ClassReader(in);
+                    return new TypeHeader(classReader.getAccess(), classReader.getSuperName(),
+                                          classReader.getInterfaces());
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return UNKNOWN;
+            }
+        }
+        try {
+            Class<?> clazz = Class.forName(type.replace('/', '.'), false, classLoader);
+            Class<?>[] interfaces = clazz.getInterfaces();
+            String[] interfaceNames = new String[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaceNames[i] = interfaces[i].getName().replace('.', '/');
+            }
+            Class<?> superClass = clazz.getSuperclass();
+            int access = clazz.isInterface() ? Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT : 0;
+            if (Modifier.isAbstract(clazz.getModifiers())) {
+                access |= Opcodes.ACC_ABSTRACT;
+            }
+            return new TypeHeader(access, superClass != null ? superClass.getName().replace('.', '/') : null,
+                                  interfaceNames);
+        } catch (Throwable e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * What the hierarchy needs of a class file.
+     */
+    private static class TypeHeader {
+
+        final int      access;
+
+        final String   superName;
+
+        final String[] interfaces;
+
+        TypeHeader(int access, String superName, String[] interfaces){
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+    }
+}
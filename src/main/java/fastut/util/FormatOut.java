@@ -1,6 +1,10 @@
 package fastut.util;
 
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +32,7 @@ public class FormatOut {
     public static final char   DOUBLE_QUOTES_STR     = '\"';
     public static final char   LONG_SUFFIX_STR       = 'L';
     public static final char   DOUBLE_SUFFIX_STR     = 'D';
+    public static final char   FLOAT_SUFFIX_STR      = 'F';
     public static final String NULL_STR              = "null";
     public static final String NEW_STR               = "new";
     public static final String ARRAYLIST_TYPE_STR    = "ArrayList";
@@ -54,6 +59,35 @@ public class FormatOut {
         if (value instanceof Enum) {
             return builder.append(value.getClass().getSimpleName()).append(DOT_STR).append(value).toString();
         }
+        if (value.getClass().isArray()) {
+            return asArrayString(value);
+        }
+        if (value instanceof Collection) {
+            return asCollectionString((Collection<?>) value);
+        }
+        if (value instanceof Map) {
+            return asMapString((Map<?, ?>) value);
+        }
+        if (value instanceof Byte) {
+            // a bare int literal would box to an Integer in Arrays.asList or a put
+            return builder.append("(byte) ").append(value).toString();
+        }
+        if (value instanceof Short) {
+            return builder.append("(short) ").append(value).toString();
+        }
+        if (value instanceof Character) {
+            return builder.append("(char) ").append((int) ((Character) value).charValue()).toString();
+        }
+        if (value instanceof BigInteger || value instanceof BigDecimal) {
+            return builder.append(NEW_STR).append(BLANK_STR).append(value.getClass().getSimpleName()).append(LEFT_PARENTHESES_STR).append(DOUBLE_QUOTES_STR).append(value).append(DOUBLE_QUOTES_STR).append(RIGHT_PARENTHESES_STR).toString();
+        }
+        if (!isLiteral(value)) {
+            if (hasDefaultConstructor(value.getClass())) {
+                return builder.append(NEW_STR).append(BLANK_STR).append(value.getClass().getSimpleName()).append(LEFT_PARENTHESES_STR).append(RIGHT_PARENTHESES_STR).toString();
+            }
+            // built by TypeResolverFactory with pooled constructor arguments, which the value does not tell
+            return builder.append(NULL_STR).append(" /* a ").append(value.getClass().getSimpleName()).append(", no public no-argument constructor */").toString();
+        }
         builder.append(value);
         if (value instanceof Long) {
             return builder.append(LONG_SUFFIX_STR).toString();
@@ -61,9 +95,81 @@ public class FormatOut {
         if (value instanceof Double) {
             return builder.append(DOUBLE_SUFFIX_STR).toString();
         }
+        if (value instanceof Float) {
+            return builder.append(FLOAT_SUFFIX_STR).toString();
+        }
         return builder.toString();
     }
 
+    /**
+     * new int[] {1, 2}
+     */
+    static String asArrayString(Object array) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(NEW_STR).append(BLANK_STR).append(array.getClass().getComponentType().getSimpleName()).append("[] {");
+        for (int i = 0; i < Array.getLength(array); ++i) {
+            if (i > 0) {
+                builder.append(COMMA_STR).append(BLANK_STR);
+            }
+            builder.append(asString(Array.get(array, i)));
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * new ArrayList(Arrays.asList("a", "b")), raw so that it fits any element type
+     */
+    static String asCollectionString(Collection<?> collection) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(NEW_STR).append(BLANK_STR).append(collection.getClass().getSimpleName()).append(LEFT_PARENTHESES_STR);
+        if (!collection.isEmpty()) {
+            builder.append("Arrays.asList").append(LEFT_PARENTHESES_STR);
+            boolean first = true;
+            for (Object element : collection) {
+                if (!first) {
+                    builder.append(COMMA_STR).append(BLANK_STR);
+                }
+                builder.append(asString(element));
+                first = false;
+            }
+            builder.append(RIGHT_PARENTHESES_STR);
+        }
+        return builder.append(RIGHT_PARENTHESES_STR).toString();
+    }
+
+    /**
+     * new HashMap() {{ put("a", 1); }}, raw so that it fits any key and value type
+     */
+    static String asMapString(Map<?, ?> map) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(NEW_STR).append(BLANK_STR).append(map.getClass().getSimpleName()).append(LEFT_PARENTHESES_STR).append(RIGHT_PARENTHESES_STR);
+        if (!map.isEmpty()) {
+            builder.append(" {{ ");
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                builder.append(PUT_OP).append(LEFT_PARENTHESES_STR).append(asString(entry.getKey())).append(COMMA_STR).append(BLANK_STR).append(asString(entry.getValue())).append(RIGHT_PARENTHESES_STR).append(SEMI_STR).append(BLANK_STR);
+            }
+            builder.append("}}");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return whether the value is written as it prints, with a suffix for a long, double or float
+     */
+    static boolean isLiteral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Float
+               || value instanceof Boolean;
+    }
+
+    static boolean hasDefaultConstructor(Class<?> clazz) {
+        try {
+            clazz.getConstructor();
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
     public static String asDeclartion(SignaturedType st, String varName, Object rawValue) {
         if (st == null || varName == null) {
             return null;
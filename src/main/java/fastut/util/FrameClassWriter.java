@@ -0,0 +1,54 @@
+package fastut.util;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * <p>
+ * A ClassWriter computing the stack map frames of the classes it writes, so that they pass the type checking verifier
+ * instead of falling back to the old one or failing. Classes older than Java 6 have no frames and may use JSR, they
+ * only get their max stack and locals computed.
+ * </p>
+ * <p>
+ * The common super class of two types is found from the {@link ClassHierarchy} of the loader, so computing the frames
+ * of a class being defined does not load or initialize other classes, and the writers of one loader share the class
+ * headers they read. An unknown type merges to java/lang/Object.
+ * </p>
+ */
+public class FrameClassWriter extends ClassWriter {
+
+    private final ClassHierarchy hierarchy;
+
+    /**
+     * For new classes.
+     *
+     * @param loader the loader seeing the types the class uses, null for the system class loader
+     */
+    public FrameClassWriter(ClassLoader loader){
+        super(COMPUTE_FRAMES);
+        this.hierarchy = ClassHierarchy.forLoader(loader);
+    }
+
+    /**
+     * For classes transformed from the reader, copying its constant pool.
+     *
+     * @param loader the loader seeing the types the class uses, null for the system class loader
+     */
+    public FrameClassWriter(ClassReader classReader, ClassLoader loader){
+        super(classReader, hasFrames(classReader) ? COMPUTE_FRAMES : COMPUTE_MAXS);
+        this.hierarchy = ClassHierarchy.forLoader(loader);
+    }
+
+    /**
+     * @return whether the class is recent enough for stack map frames, Java 6 or later
+     */
+    public static boolean hasFrames(ClassReader classReader) {
+        return classReader.readUnsignedShort(6) >= (Opcodes.V1_6 & 0xFFFF);
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        return hierarchy.getCommonSuperClass(type1, type2);
+    }
+}
@@ -11,7 +11,7 @@ import org.objectweb.asm.signature.SignatureVisitor;
  * @author Eugene Kuleshov
  * @author Eric Bruneton
  */
-public class Reifier implements SignatureVisitor {
+public class Reifier extends SignatureVisitor {
 
     private final StringBuffer declaration;
 
@@ -47,11 +47,13 @@ public class Reifier implements SignatureVisitor {
     private String             separator   = "";
 
     public Reifier(final int access){
+        super(Opcodes.ASM9);
         isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
         this.declaration = new StringBuffer();
     }
 
     private Reifier(final StringBuffer buf){
+        super(Opcodes.ASM9);
         this.declaration = buf;
     }
 
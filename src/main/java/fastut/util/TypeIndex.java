@@ -0,0 +1,580 @@
+package fastut.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.ModuleVisitor;
+import org.objectweb.asm.Opcodes;
+
+import fastut.coverage.util.ConfigurationUtil;
+
+/**
+ * <p>
+ * The direct subtypes and public constructors of every class on the class path, the JDK included, so that a List or an
+ * interface can be given any implementation the class path has, not only the ones the tested class names. Ask
+ * {@link #getInstantiableSubtypes(String)}.
+ * </p>
+ * <p>
+ * Building the index reads the header and the constructors of every class file once, it is saved to fastut.typeindex,
+ * or the file named by the property of that name, and later runs map the file instead. The file records the names,
+ * sizes and dates of the class path entries and is rebuilt when they change.
+ * </p>
+ * <p>
+ * File layout, big endian: magic, version, the class path fingerprint as a long, the type count n, the subtype edge
+ * count e and the name byte count, then n + 1 name offsets, n flags, n + 1 offsets into the subtypes, e subtype
+ * indexes and the UTF-8 internal names sorted bytewise. The flags are the access flags of the class file, plus
+ * {@link #KNOWN} when the class file is on the class path, a super type of a class can be missing from it, and
+ * {@link #PUBLIC_CONSTRUCTOR}.
+ * </p>
+ */
+public class TypeIndex {
+
+    private static final int                          MAGIC              = 0x46555449;
+
+    private static final int                          VERSION            = 1;
+
+    private static final int                          HEADER_SIZE        = 28;
+
+    static final int                                  KNOWN              = 1 << 16;
+
+    static final int                                  PUBLIC_CONSTRUCTOR = 1 << 17;
+
+    /** marks the JDK modules in the class path, they are read from the jrt file system */
+    private static final File                         JRT                = new File("jrt:");
+
+    private static TypeIndex                          defaultIndex;
+
+    private final ByteBuffer                          buffer;
+
+    private final int                                 typeCount;
+
+    private final int                                 nameOffsets;
+
+    private final int                                 flags;
+
+    private final int                                 subtypeOffsets;
+
+    private final int                                 subtypes;
+
+    private final int                                 names;
+
+    private final ConcurrentMap<String, List<String>> instantiables = new ConcurrentHashMap<String, List<String>>();
+
+    private TypeIndex(ByteBuffer buffer){
+        this.buffer = buffer;
+        this.typeCount = buffer.getInt(16);
+        int edgeCount = buffer.getInt(20);
+        this.nameOffsets = HEADER_SIZE;
+        this.flags = nameOffsets + (typeCount + 1) * 4;
+        this.subtypeOffsets = flags + typeCount * 4;
+        this.subtypes = subtypeOffsets + (typeCount + 1) * 4;
+        this.names = subtypes + edgeCount * 4;
+    }
+
+    /**
+     * @return the index of the class path of this JVM, built on first use when the saved one is missing or stale
+     */
+    public static synchronized TypeIndex getDefault() {
+        if (defaultIndex == null) {
+            File file = new File(new ConfigurationUtil().getProperty("fastut.typeindex", "fastut.typeindex"));
+            defaultIndex = open(file, getClassPath());
+        }
+        return defaultIndex;
+    }
+
+    /**
+     * @return the class path and, before Java 9, the boot class path of this JVM, or the JDK modules from Java 9 on
+     */
+    static List<File> getClassPath() {
+        List<File> classPath = new ArrayList<File>();
+        String bootClassPath = System.getProperty("sun.boot.class.path");
+        if (bootClassPath != null) {
+            addPath(classPath, bootClassPath);
+        } else if (new File(System.getProperty("java.home"), "lib/modules").isFile()) {
+            classPath.add(JRT);
+        }
+        addPath(classPath, System.getProperty("java.class.path"));
+        return classPath;
+    }
+
+    private static void addPath(List<File> classPath, String path) {
+        if (path != null) {
+            for (String entry : path.split(File.pathSeparator)) {
+                if (entry.length() > 0) {
+                    classPath.add(new File(entry));
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the index saved to the file, or builds it and saves it there when the class path has changed since.
+     */
+    public static TypeIndex open(File file, List<File> classPath) {
+        long fingerprint = fingerprint(classPath);
+        if (file.isFile()) {
+            try {
+                ByteBuffer mapped = map(file);
+                if (mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION && mapped.getLong(8) == fingerprint) {
+                    return new TypeIndex(mapped);
+                }
+            } catch (IOException e) {
+                System.err.println("FastUT: Unable to read the type index " + file + ", rebuilding it: " + e);
+            }
+        }
+        long start = System.currentTimeMillis();
+        byte[] bytes = build(classPath, fingerprint);
+        File tmp = null;
+        try {
+            // a file of its own, JVMs indexing the same class path at once do not write into each other's
+            tmp = File.createTempFile("fastut", ".tmp", file.getAbsoluteFile().getParentFile());
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            TypeIndex index = new TypeIndex(map(file));
+            System.out.println("FastUT: Indexed " + index.typeCount + " types in "
+                               + (System.currentTimeMillis() - start) + " ms, saved to " + file);
+            return index;
+        } catch (IOException e) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            System.err.println("FastUT: Unable to save the type index to " + file + ", keeping it in memory: " + e);
+            return new TypeIndex(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping outlives the channel
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long fingerprint(List<File> classPath) {
+        long hash = VERSION;
+        for (File entry : classPath) {
+            if (entry == JRT) {
+                File modules = new File(System.getProperty("java.home"), "lib/modules");
+                hash = fingerprint(hash, modules.getAbsolutePath(), modules.length(), modules.lastModified());
+            } else if (entry.isDirectory()) {
+                hash = fingerprintDirectory(hash, entry);
+            } else {
+                hash = fingerprint(hash, entry.getAbsolutePath(), entry.length(), entry.lastModified());
+            }
+        }
+        return hash;
+    }
+
+    private static long fingerprintDirectory(long hash, File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return hash;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                hash = fingerprintDirectory(hash, file);
+            } else if (file.getName().endsWith(".class")) {
+                hash = fingerprint(hash, file.getPath(), file.length(), file.lastModified());
+            }
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, String path, long length, long lastModified) {
+        hash = hash * 31 + path.hashCode();
+        hash = hash * 31 + length;
+        return hash * 31 + lastModified;
+    }
+
+    /**
+     * @return the instantiable subtypes of the type, the type itself included: public classes that are neither
+     *         interfaces nor abstract and have a public constructor. Internal names, empty when the type is unknown.
+     */
+    public List<String> getInstantiableSubtypes(String type) {
+        List<String> result = instantiables.get(type);
+        if (result == null) {
+            List<String> found = new ArrayList<String>();
+            int index = indexOf(type);
+            if (index >= 0) {
+                boolean[] seen = new boolean[typeCount];
+                int[] pending = new int[16];
+                int size = 0;
+                pending[size++] = index;
+                seen[index] = true;
+                while (size > 0) {
+                    int current = pending[--size];
+                    if (isInstantiable(buffer.getInt(flags + current * 4))) {
+                        found.add(nameAt(current));
+                    }
+                    int end = buffer.getInt(subtypeOffsets + (current + 1) * 4);
+                    for (int at = buffer.getInt(subtypeOffsets + current * 4); at < end; at++) {
+                        int subtype = buffer.getInt(subtypes + at * 4);
+                        if (!seen[subtype]) {
+                            seen[subtype] = true;
+                            if (size == pending.length) {
+                                pending = Arrays.copyOf(pending, size * 2);
+                            }
+                            pending[size++] = subtype;
+                        }
+                    }
+                }
+                Collections.sort(found);
+            }
+            result = Collections.unmodifiableList(found);
+            instantiables.putIfAbsent(type, result);
+        }
+        return result;
+    }
+
+    private static boolean isInstantiable(int flags) {
+        int required = KNOWN | PUBLIC_CONSTRUCTOR | Opcodes.ACC_PUBLIC;
+        return (flags & required) == required && (flags & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT)) == 0;
+    }
+
+    /**
+     * @return whether the class file of the type is on the class path
+     */
+    public boolean contains(String type) {
+        int index = indexOf(type);
+        return index >= 0 && (buffer.getInt(flags + index * 4) & KNOWN) != 0;
+    }
+
+    public int size() {
+        return typeCount;
+    }
+
+    private int indexOf(String type) {
+        byte[] name = utf8(type);
+        int low = 0;
+        int high = typeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareName(int index, byte[] name) {
+        int start = names + buffer.getInt(nameOffsets + index * 4);
+        int length = names + buffer.getInt(nameOffsets + (index + 1) * 4) - start;
+        for (int i = 0; i < length && i < name.length; i++) {
+            int cmp = (buffer.get(start + i) & 0xFF) - (name[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - name.length;
+    }
+
+    private String nameAt(int index) {
+        int start = names + buffer.getInt(nameOffsets + index * 4);
+        byte[] name = new byte[names + buffer.getInt(nameOffsets + (index + 1) * 4) - start];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = buffer.get(start + i);
+        }
+        try {
+            return new String(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A type while building, the first class file of a name on the class path wins.
+     */
+    private static class TypeEntry {
+
+        final byte[]        name;
+
+        int                 flags;
+
+        final List<String>  superTypes = new ArrayList<String>();
+
+        final List<Integer> subtypes   = new ArrayList<Integer>();
+
+        int                 index;
+
+        TypeEntry(String name){
+            this.name = utf8(name);
+        }
+    }
+
+    private static byte[] build(List<File> classPath, long fingerprint) {
+        final Map<String, TypeEntry> entries = new HashMap<String, TypeEntry>();
+        for (File entry : classPath) {
+            try {
+                if (entry == JRT) {
+                    scanModules(entries);
+                } else if (entry.isDirectory()) {
+                    scanDirectory(entries, entry);
+                } else if (entry.isFile()) {
+                    scanJar(entries, entry);
+                }
+            } catch (IOException e) {
+                System.err.println("FastUT: Unable to index " + entry + ", skipping it: " + e);
+            }
+        }
+        for (TypeEntry entry : new ArrayList<TypeEntry>(entries.values())) {
+            for (String superType : entry.superTypes) {
+                TypeEntry superEntry = entries.get(superType);
+                if (superEntry == null) {
+                    superEntry = new TypeEntry(superType);
+                    entries.put(superType, superEntry);
+                }
+            }
+        }
+        List<TypeEntry> sorted = new ArrayList<TypeEntry>(entries.values());
+        Collections.sort(sorted, new Comparator<TypeEntry>() {
+
+            public int compare(TypeEntry o1, TypeEntry o2) {
+                for (int i = 0; i < o1.name.length && i < o2.name.length; i++) {
+                    int cmp = (o1.name[i] & 0xFF) - (o2.name[i] & 0xFF);
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                }
+                return o1.name.length - o2.name.length;
+            }
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            sorted.get(i).index = i;
+        }
+        int edgeCount = 0;
+        int nameBytes = 0;
+        for (TypeEntry entry : sorted) {
+            for (String superType : entry.superTypes) {
+                entries.get(superType).subtypes.add(entry.index);
+                edgeCount++;
+            }
+            nameBytes += entry.name.length;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + sorted.size() * 12 + edgeCount * 4
+                                                                + nameBytes + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(sorted.size());
+            out.writeInt(edgeCount);
+            out.writeInt(nameBytes);
+            int offset = 0;
+            for (TypeEntry entry : sorted) {
+                out.writeInt(offset);
+                offset += entry.name.length;
+            }
+            out.writeInt(offset);
+            for (TypeEntry entry : sorted) {
+                out.writeInt(entry.flags);
+            }
+            offset = 0;
+            for (TypeEntry entry : sorted) {
+                out.writeInt(offset);
+                offset += entry.subtypes.size();
+            }
+            out.writeInt(offset);
+            for (TypeEntry entry : sorted) {
+                for (Integer subtype : entry.subtypes) {
+                    out.writeInt(subtype);
+                }
+            }
+            for (TypeEntry entry : sorted) {
+                out.write(entry.name);
+            }
+        } catch (IOException e) {
+            // cannot happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void scanModules(final Map<String, TypeEntry> entries) throws IOException {
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        DirectoryStream<Path> modules = Files.newDirectoryStream(jrt.getPath("/modules"));
+        try {
+            for (Path module : modules) {
+                Path moduleInfo = module.resolve("module-info.class");
+                if (!Files.isRegularFile(moduleInfo)) {
+                    continue;
+                }
+                final Set<String> exported = getExportedPackages(Files.readAllBytes(moduleInfo));
+                Files.walkFileTree(module, new SimpleFileVisitor<Path>() {
+
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (file.getFileName().toString().endsWith(".class")) {
+                            scanClass(entries, Files.readAllBytes(file), exported);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        } finally {
+            modules.close();
+        }
+    }
+
+    /**
+     * @return the packages the module exports to everyone, the classes of the others cannot be created from outside
+     */
+    private static Set<String> getExportedPackages(byte[] moduleInfo) {
+        final Set<String> exported = new HashSet<String>();
+        new ClassReader(moduleInfo).accept(new ClassVisitor(Opcodes.ASM9) {
+
+            public ModuleVisitor visitModule(String name, int access, String version) {
+                return new ModuleVisitor(Opcodes.ASM9) {
+
+                    public void visitExport(String packaze, int access, String... modules) {
+                        if (modules == null) {
+                            exported.add(packaze);
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return exported;
+    }
+
+    private static void scanDirectory(Map<String, TypeEntry> entries, File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                scanDirectory(entries, file);
+            } else if (file.getName().endsWith(".class")) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    scanClass(entries, IOUtils.toByteArray(in), null);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    private static void scanJar(Map<String, TypeEntry> entries, File jar) throws IOException {
+        JarFile jarFile = new JarFile(jar);
+        try {
+            for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements();) {
+                JarEntry entry = e.nextElement();
+                // the classes for other Java versions of a multi-release jar are left out
+                if (entry.getName().endsWith(".class") && !entry.getName().startsWith("META-INF/")) {
+                    InputStream in = jarFile.getInputStream(entry);
+                    try {
+                        scanClass(entries, IOUtils.toByteArray(in), null);
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * @param exported the packages whose public classes are public outside of their module, null for all
+     */
+    private static void scanClass(final Map<String, TypeEntry> entries, byte[] bytes, Set<String> exported) {
+        ClassReader classReader;
+        try {
+            classReader = new ClassReader(bytes);
+        } catch (RuntimeException e) {
+            // not a class file ASM understands, leave it out
+            return;
+        }
+        String name = classReader.getClassName();
+        if (entries.containsKey(name) || (classReader.getAccess() & Opcodes.ACC_MODULE) != 0) {
+            return;
+        }
+        final TypeEntry entry = new TypeEntry(name);
+        entry.flags = (classReader.getAccess() & 0xFFFF) | KNOWN;
+        if (exported != null && !exported.contains(name.substring(0, Math.max(0, name.lastIndexOf('/'))))) {
+            entry.flags &= ~Opcodes.ACC_PUBLIC;
+        }
+        if (classReader.getSuperName() != null) {
+            entry.superTypes.add(classReader.getSuperName());
+        }
+        entry.superTypes.addAll(Arrays.asList(classReader.getInterfaces()));
+        classReader.accept(new ClassVisitor(Opcodes.ASM9) {
+
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                             String[] exceptions) {
+                if (name.equals("<init>") && (access & Opcodes.ACC_PUBLIC) != 0) {
+                    entry.flags |= PUBLIC_CONSTRUCTOR;
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        entries.put(name, entry);
+    }
+}
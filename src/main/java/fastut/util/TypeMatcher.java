@@ -1,43 +1,63 @@
 package fastut.util;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.objectweb.asm.Type;
 
 public class TypeMatcher {
 
-    static final ClassLoader loader = new ClassLoader() {
-                                    };
+    /** the class headers of the system class loader, read once and shared with the frame computation */
+    static final ClassHierarchy       hierarchy         = ClassHierarchy.forLoader(ClassLoader.getSystemClassLoader());
 
-    static Type asType(String internalName) {
-        return Type.getType('L' + internalName + ';');
-    }
+    /** the super types of every array */
+    private static final List<String> ARRAY_SUPER_TYPES = Arrays.asList(ClassHierarchy.OBJECT, "java/lang/Cloneable",
+                                                                        "java/io/Serializable");
 
-    static Class<?> loadClassByType(Type type) {
-        try {
-            return ClassUtil.loadClass(type, loader);
-        } catch (Throwable e) {
-            return null;
-        }
+    static Type asType(String internalName) {
+        return Type.getObjectType(internalName);
     }
 
+    /**
+     * @return whether a value of the right type can be assigned to the left type, arrays of references are covariant
+     */
     static boolean isAssignable(Type left, Type right) {
-        Class<?> leftClass = loadClassByType(left);
-        if (leftClass == null) {
-            return false;
+        if (right.getSort() == Type.ARRAY) {
+            if (left.getSort() == Type.OBJECT) {
+                return ARRAY_SUPER_TYPES.contains(left.getInternalName());
+            }
+            if (left.getSort() != Type.ARRAY) {
+                return false;
+            }
+            Type leftElement = Type.getType(left.getDescriptor().substring(1));
+            Type rightElement = Type.getType(right.getDescriptor().substring(1));
+            if (leftElement.getSort() < Type.ARRAY || rightElement.getSort() < Type.ARRAY) {
+                // int[] is only an int[]
+                return leftElement.equals(rightElement);
+            }
+            return isAssignable(leftElement, rightElement);
         }
-        Class<?> rightClass = loadClassByType(right);
-        if (rightClass == null) {
+        if (left.getSort() != Type.OBJECT || right.getSort() != Type.OBJECT) {
+            // a primitive is only itself
+            return left.equals(right);
+        }
+        if (!hierarchy.contains(left.getInternalName()) || !hierarchy.contains(right.getInternalName())) {
             return false;
         }
-        return leftClass.isAssignableFrom(rightClass);
+        return hierarchy.isAssignableFrom(left.getInternalName(), right.getInternalName());
     }
 
     static boolean isInstantiation(Type type) {
-        return TypeUtil.instantiation(loadClassByType(type));
+        return type.getSort() == Type.OBJECT && hierarchy.isInstantiable(type.getInternalName());
     }
 
+    /**
+     * @param allTypes the types the tested class refers to, preferred as they are the ones it expects
+     * @return the instantiable types of allTypes assignable to varType, or when there is none, all the instantiable
+     *         subtypes of varType on the class path, see {@link TypeIndex}
+     */
     public static Set<Type> match(Type varType, Set<String> allTypes) {
         Set<Type> matched = new HashSet<Type>();
         if (allTypes != null) {
@@ -48,6 +68,22 @@ public class TypeMatcher {
                 }
             }
         }
+        if (matched.isEmpty()) {
+            matched.addAll(matchClassPath(varType));
+        }
+        return matched;
+    }
+
+    /**
+     * @return the public concrete subtypes of varType with a public constructor on the class path, varType included
+     */
+    public static Set<Type> matchClassPath(Type varType) {
+        Set<Type> matched = new HashSet<Type>();
+        if (varType.getSort() == Type.OBJECT) {
+            for (String subtype : TypeIndex.getDefault().getInstantiableSubtypes(varType.getInternalName())) {
+                matched.add(asType(subtype));
+            }
+        }
         return matched;
     }
 
@@ -4,14 +4,14 @@ import fastut.util.generics.visitor.TypeTreeVisitor;
 
 public class SimpleClassTypeSignature implements FieldTypeSignature {
 
-    private boolean        dollar;
-    private String         name;
-    private TypeArgument[] typeArgs;
+    private final boolean        dollar;
+    private final String         name;
+    private final TypeArgument[] typeArgs;
 
     private SimpleClassTypeSignature(String n, boolean dollar, TypeArgument[] tas){
         name = n;
         this.dollar = dollar;
-        typeArgs = tas;
+        typeArgs = tas.clone();
     }
 
     public static SimpleClassTypeSignature make(String n, boolean dollar, TypeArgument[] tas) {
@@ -30,8 +30,11 @@ public class SimpleClassTypeSignature implements FieldTypeSignature {
         return name;
     }
 
+    /**
+     * @return a copy, the signature is shared through {@link fastut.util.generics.visitor.SignatureCache}
+     */
     public TypeArgument[] getTypeArguments() {
-        return typeArgs;
+        return typeArgs.clone();
     }
 
     public void accept(TypeTreeVisitor<?> v) {
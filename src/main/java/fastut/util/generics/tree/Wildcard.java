@@ -4,12 +4,12 @@ import fastut.util.generics.visitor.TypeTreeVisitor;
 
 public class Wildcard implements TypeArgument {
 
-    private FieldTypeSignature[] upperBounds;
-    private FieldTypeSignature[] lowerBounds;
+    private final FieldTypeSignature[] upperBounds;
+    private final FieldTypeSignature[] lowerBounds;
 
     private Wildcard(FieldTypeSignature[] ubs, FieldTypeSignature[] lbs){
-        upperBounds = ubs;
-        lowerBounds = lbs;
+        upperBounds = ubs.clone();
+        lowerBounds = lbs.clone();
     }
 
     private static final FieldTypeSignature[] emptyBounds = new FieldTypeSignature[0];
@@ -18,13 +18,19 @@ public class Wildcard implements TypeArgument {
         return new Wildcard(ubs, lbs);
     }
 
+    /**
+     * @return a copy, the wildcard is shared through {@link fastut.util.generics.visitor.SignatureCache}
+     */
     public FieldTypeSignature[] getUpperBounds() {
-        return upperBounds;
+        return upperBounds.clone();
     }
 
+    /**
+     * @return a copy, the wildcard is shared through {@link fastut.util.generics.visitor.SignatureCache}
+     */
     public FieldTypeSignature[] getLowerBounds() {
         if (lowerBounds.length == 1 && lowerBounds[0] == BottomSignature.make()) return emptyBounds;
-        else return lowerBounds;
+        else return lowerBounds.clone();
     }
 
     public void accept(TypeTreeVisitor<?> v) {
@@ -5,7 +5,7 @@ import java.util.List;
 
 public class ArraySignaturedType extends SignaturedType {
 
-    private SignaturedType declType;
+    private final SignaturedType declType;
 
     public ArraySignaturedType(SignaturedType declType){
         super(declType.getType());
@@ -5,8 +5,8 @@ import java.util.List;
 
 public class ListSignaturedType extends SignaturedType {
 
-    private SignaturedType argType;
-    private SignaturedType declType;
+    private final SignaturedType argType;
+    private final SignaturedType declType;
 
     public ListSignaturedType(SignaturedType declType, SignaturedType argType){
         super(declType.getType());
@@ -5,9 +5,9 @@ import java.util.Map;
 
 public class MapSignaturedType extends SignaturedType {
 
-    private SignaturedType declType;
-    private SignaturedType ktype;
-    private SignaturedType vtype;
+    private final SignaturedType declType;
+    private final SignaturedType ktype;
+    private final SignaturedType vtype;
 
     public MapSignaturedType(SignaturedType declType, SignaturedType ktype, SignaturedType vtype){
         super(declType.getType());
@@ -2,13 +2,13 @@ package fastut.util.generics.type;
 
 public class MultiArgumentSignaturedType extends SignaturedType {
 
-    private SignaturedType   declType;
-    private SignaturedType[] typeArgs;
+    private final SignaturedType   declType;
+    private final SignaturedType[] typeArgs;
 
     public MultiArgumentSignaturedType(SignaturedType declType, SignaturedType[] typeArgs){
         super(declType.getType());
         this.declType = declType;
-        this.typeArgs = typeArgs;
+        this.typeArgs = typeArgs.clone();
     }
 
 }
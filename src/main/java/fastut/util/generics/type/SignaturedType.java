@@ -6,17 +6,20 @@ import fastut.object.ObjectPool;
 
 public class SignaturedType implements Makable {
 
-    private boolean eq;
-    private Type    type;
-    private Type    ltype;
-    private Type    utype;
+    private final boolean eq;
+    private final Type    type;
+    private final Type    ltype;
+    private final Type    utype;
 
     public SignaturedType(Type type){
         this.type = type;
+        this.ltype = null;
+        this.utype = null;
         eq = true;
     }
 
     public SignaturedType(Type ltype, Type utype){
+        this.type = null;
         this.ltype = ltype;
         this.utype = utype;
         eq = false;
@@ -153,6 +153,7 @@ public class Reifier implements TypeTreeVisitor<SignaturedType> {
     public void visitTypeVariableSignature(TypeVariableSignature tv) {
         // resultType = getFactory().findTypeVariable(tv.getIdentifier());
         System.err.println("visitTypeVariableSignature(" + tv.getIdentifier() + ")");
+        resultType = null;
     }
 
     public void visitWildcard(Wildcard w) {
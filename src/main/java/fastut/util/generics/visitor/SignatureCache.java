@@ -0,0 +1,110 @@
+package fastut.util.generics.visitor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fastut.coverage.util.ConfigurationUtil;
+import fastut.util.generics.parser.SignatureParser;
+import fastut.util.generics.tree.TypeSignature;
+import fastut.util.generics.type.SignaturedType;
+
+/**
+ * Parsed and reified type signatures by signature string, shared by all classes and threads. The same few signatures,
+ * Ljava/util/List&lt;Ljava/lang/String;&gt;; and the like, come up in field after field, each is parsed once and then
+ * looked up. Everyone asking for a signature gets the same trees, nobody may change them.
+ * <p>
+ * The cache holds at most fastut.signature.cacheSize signatures, 4096 unless set. Beyond that the least recently used
+ * one is dropped for each new one.
+ * </p>
+ */
+public class SignatureCache {
+
+    static final int                         MAX_SIZE = getMaxSize();
+
+    private static final Map<String, Parsed> cache    = Collections.synchronizedMap(new LruMap());
+
+    private SignatureCache(){
+    }
+
+    private static int getMaxSize() {
+        return Integer.parseInt(new ConfigurationUtil().getProperty("fastut.signature.cacheSize", "4096"));
+    }
+
+    /**
+     * Signatures in access order, the eldest one is the least recently used and goes first.
+     */
+    private static class LruMap extends LinkedHashMap<String, Parsed> {
+
+        private static final long serialVersionUID = 1L;
+
+        LruMap(){
+            super(16, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Parsed> eldest) {
+            return size() > MAX_SIZE;
+        }
+    }
+
+    /**
+     * A signature with its trees.
+     */
+    private static class Parsed {
+
+        final TypeSignature  tree;
+
+        /** null when the reifier gives none, for a type variable */
+        final SignaturedType type;
+
+        Parsed(TypeSignature tree, SignaturedType type){
+            this.tree = tree;
+            this.type = type;
+        }
+    }
+
+    /**
+     * @throws java.lang.reflect.GenericSignatureFormatError if the signature is not a valid type signature
+     */
+    public static TypeSignature parseTypeSig(String signature) {
+        return get(signature).tree;
+    }
+
+    /**
+     * @return the reified type of the type signature, null when the reifier gives none
+     * @throws java.lang.reflect.GenericSignatureFormatError if the signature is not a valid type signature
+     */
+    public static SignaturedType reifyTypeSig(String signature) {
+        return get(signature).type;
+    }
+
+    /**
+     * Method signatures are not cached, each method is planned once.
+     *
+     * @return the reified parameter types of the method signature, null for a type variable
+     * @throws java.lang.reflect.GenericSignatureFormatError if the signature is not a valid method signature
+     */
+    public static SignaturedType[] reifyParameterTypes(String signature) {
+        TypeSignature[] trees = SignatureParser.make().parseMethodSig(signature).getParameterTypes();
+        SignaturedType[] types = new SignaturedType[trees.length];
+        for (int i = 0; i < trees.length; i++) {
+            Reifier reifier = Reifier.make();
+            trees[i].accept(reifier);
+            types[i] = reifier.getResult();
+        }
+        return types;
+    }
+
+    private static Parsed get(String signature) {
+        Parsed parsed = cache.get(signature);
+        if (parsed == null) {
+            TypeSignature tree = SignatureParser.make().parseTypeSig(signature);
+            Reifier reifier = Reifier.make();
+            tree.accept(reifier);
+            parsed = new Parsed(tree, reifier.getResult());
+            // parsed outside the lock, a thread parsing the same signature meanwhile only wastes its work
+            cache.put(signature, parsed);
+        }
+        return parsed;
+    }
+}
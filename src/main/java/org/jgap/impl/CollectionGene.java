@@ -0,0 +1,284 @@
+package org.jgap.impl;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+import org.jgap.BaseGene;
+import org.jgap.Configuration;
+import org.jgap.Gene;
+import org.jgap.IPersistentRepresentation;
+import org.jgap.InvalidConfigurationException;
+import org.jgap.RandomGenerator;
+import org.jgap.UnsupportedRepresentationException;
+
+/**
+ * A Gene whose allele is a variable number of elements, the values of a collection, map or array. Each element is a
+ * fixed number of ints, its columns, one for a collection element, a key and a value for a map entry. Every column has
+ * its own bounds. The allele is a flat int[] of length() * columns values, element after element.
+ * <p>
+ * The length evolves as the values do: a mutation grows the collection, shrinks it or changes one value. Grown and
+ * shrunk by up to the mutation percentage of the length, at least by one, a collection gets from empty to hundreds of
+ * elements in a few generations. The length never exceeds the maximum length the gene is made with, which bounds the
+ * memory of the decoded collections.
+ * </p>
+ */
+public class CollectionGene extends BaseGene implements IPersistentRepresentation {
+
+    private static final long serialVersionUID = -2417553063180428161L;
+
+    private static final int  GROW             = 0;
+
+    private static final int  SHRINK           = 1;
+
+    private final int         m_maxLength;
+
+    private final int[]       m_lowerBounds;
+
+    private final int[]       m_upperBounds;
+
+    private int[]             m_values         = new int[0];
+
+    /**
+     * @param a_config the configuration to use
+     * @param a_maxLength the most elements the collection may have
+     * @param a_lowerBounds the lowest value of each column of an element, inclusive
+     * @param a_upperBounds the highest value of each column of an element, inclusive
+     * @throws InvalidConfigurationException
+     */
+    public CollectionGene(final Configuration a_config, final int a_maxLength, final int[] a_lowerBounds,
+                          final int[] a_upperBounds) throws InvalidConfigurationException{
+        super(a_config);
+        if (a_lowerBounds.length == 0 || a_lowerBounds.length != a_upperBounds.length) {
+            throw new IllegalArgumentException("one lower and one upper bound per column");
+        }
+        m_maxLength = a_maxLength;
+        m_lowerBounds = a_lowerBounds.clone();
+        m_upperBounds = a_upperBounds.clone();
+    }
+
+    protected Gene newGeneInternal() {
+        try {
+            return new CollectionGene(getConfiguration(), m_maxLength, m_lowerBounds, m_upperBounds);
+        } catch (InvalidConfigurationException iex) {
+            throw new IllegalStateException(iex.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of columns of an element
+     */
+    public int getColumns() {
+        return m_lowerBounds.length;
+    }
+
+    public int getMaxLength() {
+        return m_maxLength;
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public int length() {
+        return m_values.length / getColumns();
+    }
+
+    /**
+     * @return the value of the column of the element
+     */
+    public int valueAt(final int a_element, final int a_column) {
+        return m_values[a_element * getColumns() + a_column];
+    }
+
+    protected Object getInternalValue() {
+        return m_values;
+    }
+
+    /**
+     * Sets the elements. Values beyond the maximum length or an incomplete last element are dropped, a value out of
+     * its bounds is replaced by a random one within.
+     *
+     * @param a_newValue an int[], null for no element
+     */
+    public void setAllele(final Object a_newValue) {
+        int[] values = a_newValue == null ? new int[0] : (int[]) a_newValue;
+        int length = Math.min(m_maxLength, values.length / getColumns());
+        m_values = Arrays.copyOf(values, length * getColumns());
+        for (int i = 0; i < m_values.length; i++) {
+            int column = i % getColumns();
+            if (m_values[i] < m_lowerBounds[column] || m_values[i] > m_upperBounds[column]) {
+                m_values[i] = randomValue(column, getRandomGenerator());
+            }
+        }
+    }
+
+    /**
+     * A random length, as likely below ten as between ten and a hundred, with random values.
+     */
+    public void setToRandomValue(final RandomGenerator a_numberGenerator) {
+        int length = (int) Math.pow(m_maxLength + 1, a_numberGenerator.nextDouble()) - 1;
+        m_values = new int[Math.min(m_maxLength, length) * getColumns()];
+        for (int i = 0; i < m_values.length; i++) {
+            m_values[i] = randomValue(i % getColumns(), a_numberGenerator);
+        }
+    }
+
+    /**
+     * Grows the collection, shrinks it or changes one value, at random. An empty collection grows, a full one does not.
+     *
+     * @param a_index ignored, the gene mutates as one atomic element
+     * @param a_percentage percentage of mutation (greater than -1 and smaller than 1)
+     */
+    public void applyMutation(final int a_index, final double a_percentage) {
+        RandomGenerator generator = getRandomGenerator();
+        int length = length();
+        int operator = generator.nextInt(3);
+        if (length == 0 || operator == GROW && length < m_maxLength) {
+            grow(generator, Math.min(m_maxLength - length, step(length, a_percentage)));
+        } else if (operator == SHRINK) {
+            shrink(generator, Math.min(length, step(length, a_percentage)));
+        } else {
+            int i = generator.nextInt(m_values.length);
+            int column = i % getColumns();
+            long range = (long) m_upperBounds[column] - m_lowerBounds[column];
+            long value = m_values[i] + Math.round(range * a_percentage);
+            if (value < m_lowerBounds[column] || value > m_upperBounds[column]) {
+                m_values[i] = randomValue(column, generator);
+            } else {
+                m_values[i] = (int) value;
+            }
+        }
+    }
+
+    private static int step(final int a_length, final double a_percentage) {
+        return Math.max(1, (int) Math.round(Math.abs(a_percentage) * a_length));
+    }
+
+    /**
+     * Inserts random elements at a random position.
+     */
+    private void grow(final RandomGenerator a_generator, final int a_count) {
+        int columns = getColumns();
+        int at = a_generator.nextInt(length() + 1) * columns;
+        int[] values = new int[m_values.length + a_count * columns];
+        System.arraycopy(m_values, 0, values, 0, at);
+        for (int i = 0; i < a_count * columns; i++) {
+            values[at + i] = randomValue(i % columns, a_generator);
+        }
+        System.arraycopy(m_values, at, values, at + a_count * columns, m_values.length - at);
+        m_values = values;
+    }
+
+    /**
+     * Removes consecutive elements from a random position.
+     */
+    private void shrink(final RandomGenerator a_generator, final int a_count) {
+        int columns = getColumns();
+        int at = a_generator.nextInt(length() - a_count + 1) * columns;
+        int[] values = new int[m_values.length - a_count * columns];
+        System.arraycopy(m_values, 0, values, 0, at);
+        System.arraycopy(m_values, at + a_count * columns, values, at, values.length - at);
+        m_values = values;
+    }
+
+    private int randomValue(final int a_column, final RandomGenerator a_generator) {
+        double randomValue = ((long) m_upperBounds[a_column] - (long) m_lowerBounds[a_column])
+                             * a_generator.nextDouble() + m_lowerBounds[a_column];
+        return (int) Math.round(randomValue);
+    }
+
+    private RandomGenerator getRandomGenerator() {
+        if (getConfiguration() != null && getConfiguration().getRandomGenerator() != null) {
+            return getConfiguration().getRandomGenerator();
+        }
+        return new StockRandomGenerator();
+    }
+
+    /**
+     * Shorter collections first, then by their values.
+     */
+    public int compareTo(final Object a_other) {
+        if (a_other == null) {
+            return 1;
+        }
+        int[] other = ((CollectionGene) a_other).m_values;
+        if (m_values.length != other.length) {
+            return m_values.length < other.length ? -1 : 1;
+        }
+        for (int i = 0; i < m_values.length; i++) {
+            if (m_values[i] != other[i]) {
+                return m_values[i] < other[i] ? -1 : 1;
+            }
+        }
+        if (isCompareApplicationData()) {
+            return compareApplicationData(getApplicationData(), ((CollectionGene) a_other).getApplicationData());
+        }
+        return 0;
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(m_values);
+    }
+
+    public String toString() {
+        return "CollectionGene(" + m_maxLength + "," + Arrays.toString(m_lowerBounds) + ","
+               + Arrays.toString(m_upperBounds) + ")=" + Arrays.toString(m_values);
+    }
+
+    /**
+     * The values, the maximum length, the lower and the upper bounds, each list of ints in parentheses.
+     */
+    public String getPersistentRepresentation() {
+        return asList(m_values) + PERSISTENT_FIELD_DELIMITER + m_maxLength + PERSISTENT_FIELD_DELIMITER
+               + asList(m_lowerBounds) + PERSISTENT_FIELD_DELIMITER + asList(m_upperBounds);
+    }
+
+    /**
+     * Sets the values from a representation of {@link #getPersistentRepresentation()}, the length and bounds are the
+     * ones the gene was made with.
+     */
+    public void setValueFromPersistentRepresentation(final String a_representation)
+                                                                                   throws UnsupportedRepresentationException {
+        if (a_representation != null) {
+            StringTokenizer tokenizer = new StringTokenizer(a_representation, PERSISTENT_FIELD_DELIMITER);
+            if (tokenizer.countTokens() != 4) {
+                throw new UnsupportedRepresentationException("The format of the given persistent representation "
+                                                             + " is not recognized: it does not contain four tokens: "
+                                                             + a_representation);
+            }
+            setAllele(parseList(tokenizer.nextToken()));
+        }
+    }
+
+    private static String asList(final int[] a_values) {
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < a_values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(a_values[i]);
+        }
+        return builder.append(')').toString();
+    }
+
+    private static int[] parseList(final String a_list) throws UnsupportedRepresentationException {
+        if (!a_list.startsWith("(") || !a_list.endsWith(")")) {
+            throw new UnsupportedRepresentationException("The format of the given persistent representation "
+                                                         + "is not recognized: " + a_list + " is not a list.");
+        }
+        String inner = a_list.substring(1, a_list.length() - 1);
+        if (inner.length() == 0) {
+            return new int[0];
+        }
+        String[] tokens = inner.split(",");
+        int[] values = new int[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                values[i] = Integer.parseInt(tokens[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new UnsupportedRepresentationException("The format of the given persistent representation "
+                                                         + "is not recognized: " + a_list + " is not a list of ints.");
+        }
+        return values;
+    }
+}
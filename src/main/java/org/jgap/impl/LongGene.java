@@ -54,6 +54,12 @@ public class LongGene extends NumberGene implements IPersistentRepresentation {
      */
     private int                 m_lowerBounds;
 
+    /**
+     * Primitive copy of the current allele, kept in sync by setAllele() so that decoding can read the value without
+     * unboxing.
+     */
+    private long                m_longValue;
+
     /**
      * Constructs a new IntegerGene with default settings. No bounds will be put into effect for values (alleles) of
      * this Gene instance, other than the standard range of integer values.
@@ -174,7 +180,7 @@ public class LongGene extends NumberGene implements IPersistentRepresentation {
                 setAllele(null);
             } else {
                 try {
-                    setAllele(new Integer(Integer.parseInt(valueRepresentation)));
+                    setAllele(Long.valueOf(Long.parseLong(valueRepresentation)));
                 } catch (NumberFormatException e) {
                     throw new UnsupportedRepresentationException("The format of the given persistent representation "
                                                                  + "is not recognized: field 1 does not appear to be "
@@ -211,7 +217,18 @@ public class LongGene extends NumberGene implements IPersistentRepresentation {
      * @since 1.0
      */
     public long longValue() {
-        return ((Long) getAllele()).longValue();
+        return m_longValue;
+    }
+
+    /**
+     * Sets the allele and refreshes the primitive copy returned by longValue().
+     *
+     * @param a_newValue the new allele, a Long or null
+     */
+    public void setAllele(final Object a_newValue) {
+        super.setAllele(a_newValue);
+        Object value = getInternalValue();
+        m_longValue = value == null ? 0L : ((Long) value).longValue();
     }
 
     /**
@@ -229,7 +246,7 @@ public class LongGene extends NumberGene implements IPersistentRepresentation {
     public void setToRandomValue(final RandomGenerator a_numberGenerator) {
         double randomValue = ((long) m_upperBounds - (long) m_lowerBounds) * a_numberGenerator.nextDouble()
                              + m_lowerBounds;
-        setAllele(new Long((int) Math.round(randomValue)));
+        setAllele(Long.valueOf((int) Math.round(randomValue)));
     }
 
     /**
@@ -244,7 +261,7 @@ public class LongGene extends NumberGene implements IPersistentRepresentation {
      * @since 1.0
      */
     protected int compareToNative(final Object a_o1, final Object a_o2) {
-        return ((Integer) a_o1).compareTo((Integer) a_o2);
+        return ((Long) a_o1).compareTo((Long) a_o2);
     }
 
     /**
@@ -275,7 +292,7 @@ public class LongGene extends NumberGene implements IPersistentRepresentation {
                     rn = new StockRandomGenerator();
                 }
                 if (m_upperBounds == m_lowerBounds) {
-                    setAllele(new Long(m_lowerBounds));
+                    setAllele(Long.valueOf(m_lowerBounds));
                 } else {
                     setToRandomValue(rn);
                 }
@@ -295,10 +312,10 @@ public class LongGene extends NumberGene implements IPersistentRepresentation {
     public void applyMutation(final int a_index, final double a_percentage) {
         double range = ((long) m_upperBounds - (long) m_lowerBounds) * a_percentage;
         if (getAllele() == null) {
-            setAllele(new Long((int) range + m_lowerBounds));
+            setAllele(Long.valueOf((int) range + m_lowerBounds));
         } else {
             int newValue = (int) Math.round(longValue() + range);
-            setAllele(new Long(newValue));
+            setAllele(Long.valueOf(newValue));
         }
     }
 